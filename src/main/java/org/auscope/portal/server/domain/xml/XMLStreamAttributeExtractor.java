@@ -2,30 +2,45 @@ package org.auscope.portal.server.domain.xml;
 
 import java.io.InputStream;
 import java.util.Iterator;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * This class is for extracting all attributes of a specific element type from an XML Stream
  * 
  * It exists to offer a high performance low memory method of parsing an XML stream in a simplistic manner
+ * 
+ * The stream is pulled through a StAX reader one event at a time so memory use is constant regardless of
+ * the size of the stream. Element and attribute names are matched against their prefixed (as written) names.
  *
  */
 public class XMLStreamAttributeExtractor implements Iterator<String> {
 	
-	private Scanner scanner;
-	private Pattern compiledPattern;
-	private Pattern compiledAttributeToFind;
+	private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+	
+	private XMLStreamReader reader;
+	private String elementToMatch;
+	private String attributeToFind;
 	private String nextValue;
 	
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		return factory;
+	}
+	
 	/**
+	 * The encoding of xmlStream will be detected from the stream itself (defaulting to UTF-8)
 	 * @param elementToMatch The FQ XML element name you will be searching for
 	 * @param attributeToFind The FQ attribute within elementToMatch that will be extracted
 	 * @param xmlStream The input XML stream
 	 */
 	public XMLStreamAttributeExtractor(String elementToMatch, String attributeToFind, InputStream xmlStream) {
-		this(elementToMatch, attributeToFind, xmlStream,  java.nio.charset.Charset.defaultCharset().toString());
+		this(elementToMatch, attributeToFind, xmlStream, null);
 	}
 	
 	/**
@@ -35,10 +50,48 @@ public class XMLStreamAttributeExtractor implements Iterator<String> {
 	 * @param xmlStreamCharset The optional charset for the input stream.
 	 */
 	public XMLStreamAttributeExtractor(String elementToMatch, String attributeToFind, InputStream xmlStream, String xmlStreamCharset) {
-		this.scanner = new Scanner(xmlStream, xmlStreamCharset);
-		this.compiledAttributeToFind = Pattern.compile(String.format(".*%1$s=\"([^\"]*)\".*", attributeToFind));
-		this.compiledPattern = Pattern.compile(String.format("<%1$s[^\\\\>]*>", elementToMatch));
+		this.elementToMatch = elementToMatch;
+		this.attributeToFind = attributeToFind;
+		try {
+			if (xmlStreamCharset == null) {
+				this.reader = INPUT_FACTORY.createXMLStreamReader(xmlStream);
+			} else {
+				this.reader = INPUT_FACTORY.createXMLStreamReader(xmlStream, xmlStreamCharset);
+			}
+		} catch (XMLStreamException ex) {
+			throw new IllegalArgumentException("Unable to read xmlStream", ex);
+		}
+	}
+	
+	/**
+	 * Gets the name of the current element/attribute including its prefix (if any)
+	 */
+	private static String qualifiedName(String prefix, String localName) {
+		if (prefix == null || prefix.isEmpty()) {
+			return localName;
+		}
+		return prefix + ":" + localName;
+	}
+	
+	/**
+	 * Advances the reader to the next matching element, returning its attribute value (or null if the stream is exhausted)
+	 */
+	private String findNextValue() throws XMLStreamException {
+		while (reader.hasNext()) {
+			if (reader.next() != XMLStreamConstants.START_ELEMENT ||
+				!elementToMatch.equals(qualifiedName(reader.getPrefix(), reader.getLocalName()))) {
+				continue;
+			}
+			
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				if (attributeToFind.equals(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)))) {
+					return reader.getAttributeValue(i);
+				}
+			}
+		}
 		
+		reader.close();
+		return null;
 	}
 
 	/**
@@ -48,40 +101,29 @@ public class XMLStreamAttributeExtractor implements Iterator<String> {
 	@Override
 	public boolean hasNext() {
 		if (nextValue == null) {
-			do {
-				nextValue = scanner.findWithinHorizon(this.compiledPattern, 0);
-				if (nextValue == null) {
-					return false;
-				}
-			} while(!this.compiledAttributeToFind.matcher(nextValue).matches());
+			try {
+				nextValue = findNextValue();
+			} catch (XMLStreamException ex) {
+				throw new IllegalStateException("Error reading XML stream", ex);
+			}
 		}
 		
-		return true;
+		return nextValue != null;
 	}
 
 	/**
-	 * Extracts the next attribute value from this attribute extractor
+	 * Extracts the next attribute value from this attribute extractor (or null if there are none)
 	 * @return
 	 */
 	@Override
 	public String next() {
-		if (nextValue == null) {
-			nextValue = scanner.findWithinHorizon(this.compiledPattern, 0);
-			if (nextValue == null) {
-				return null;
-			}
+		if (!hasNext()) {
+			return null;
 		}
 		
-		try {
-			Matcher attrMatcher = this.compiledAttributeToFind.matcher(nextValue);
-			if (attrMatcher.matches()) {
-				return attrMatcher.group(1);
-			} else {
-				throw new IllegalStateException();
-			}
-		} finally {
-			nextValue = null;
-		}
+		String value = nextValue;
+		nextValue = null;
+		return value;
 	}
 
 	/**
@@ -89,8 +131,7 @@ public class XMLStreamAttributeExtractor implements Iterator<String> {
 	 */
 	@Override
 	public void remove() {
-		scanner.remove();
-		
+		throw new UnsupportedOperationException();
 	}
 	
 	
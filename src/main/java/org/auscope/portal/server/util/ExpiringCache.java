@@ -0,0 +1,121 @@
+package org.auscope.portal.server.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A simple thread safe key/value cache whose entries expire a fixed amount of time after
+ * they are inserted. The cache is bounded - once maxEntries is reached expired entries
+ * are purged and if the cache is still full new entries are silently discarded.
+ *
+ * This is intended for short lived caching of remote service responses where a
+ * cache miss is only ever a performance penalty.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ExpiringCache<K, V> {
+
+    /** An entry in the cache along with the time (in ms since epoch) that it expires */
+    private static class Entry<V> {
+        final V value;
+        final long expiry;
+
+        Entry(V value, long expiry) {
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<K, Entry<V>>();
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    /**
+     * @param ttlMillis How long (in milli seconds) an entry will remain in the cache
+     * @param maxEntries The maximum number of entries this cache will hold at any time
+     */
+    public ExpiringCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the unexpired value associated with key or null if there is none.
+     * @param key
+     * @return
+     */
+    public V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.expiry < System.currentTimeMillis()) {
+            map.remove(key, entry);
+            return null;
+        }
+
+        return entry.value;
+    }
+
+    /**
+     * Associates value with key for the configured TTL. If the cache is full (after purging
+     * expired entries) the value will NOT be cached.
+     * @param key
+     * @param value
+     * @return true if the value was cached, false otherwise
+     */
+    public boolean put(K key, V value) {
+        if (ttlMillis <= 0 || maxEntries <= 0) {
+            return false;
+        }
+
+        if (map.size() >= maxEntries) {
+            purgeExpired();
+            if (map.size() >= maxEntries) {
+                return false;
+            }
+        }
+
+        map.put(key, new Entry<V>(value, System.currentTimeMillis() + ttlMillis));
+        return true;
+    }
+
+    /**
+     * Removes the value associated with key (if any)
+     * @param key
+     */
+    public void remove(K key) {
+        map.remove(key);
+    }
+
+    /**
+     * Removes every entry from this cache
+     */
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Gets the number of entries in this cache (including any that have expired but have not yet been purged)
+     * @return
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Removes all expired entries from this cache
+     */
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expiry < now) {
+                it.remove();
+            }
+        }
+    }
+}
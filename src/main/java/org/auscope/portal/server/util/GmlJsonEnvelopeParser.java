@@ -0,0 +1,266 @@
+package org.auscope.portal.server.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * A streaming parser for the JSON envelope returned by the portal's WFS/GML endpoints, eg:
+ *
+ * {"success":true, "msg":"", "data":{"gml":"...", "kml":"..."}}
+ *
+ * Only 'success', 'msg' and 'data.gml' are extracted. The (potentially very large) GML string is
+ * decoded directly into a Writer as it is read so it's never held in memory. Everything else is skipped.
+ *
+ * The parser is lenient in the same ways as net.sf.json (single quoted strings and unquoted keys are accepted).
+ */
+public class GmlJsonEnvelopeParser {
+
+    /** The longest 'msg' value that will be kept*/
+    private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+
+    private Reader in;
+    private int pushedBack = -2;
+
+    /**
+     * The non GML parts of an envelope
+     */
+    public static class Envelope {
+        private boolean success = true;
+        private String msg;
+        private boolean gmlFound;
+
+        /**
+         * False only if the envelope explicitly reported 'success' as false
+         * @return
+         */
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * The 'msg' value (if any). Can be null
+         * @return
+         */
+        public String getMsg() {
+            return msg;
+        }
+
+        /**
+         * Whether a 'data.gml' string was found (and written)
+         * @return
+         */
+        public boolean isGmlFound() {
+            return gmlFound;
+        }
+    }
+
+    /**
+     * @param in The JSON to parse. Will not be closed.
+     */
+    public GmlJsonEnvelopeParser(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Parses the envelope, writing the decoded 'data.gml' string (if any) to gmlOut
+     * @param gmlOut Receives the GML. Will not be closed
+     * @return
+     * @throws IOException If the underlying reader fails or the JSON is malformed
+     */
+    public Envelope parse(Writer gmlOut) throws IOException {
+        Envelope envelope = new Envelope();
+
+        expect(nextNonWhitespace(), '{');
+        int c;
+        while ((c = nextNonWhitespace()) != '}') {
+            if (c == ',') {
+                continue;
+            }
+
+            String key = readKey(c);
+            expect(nextNonWhitespace(), ':');
+            c = nextNonWhitespace();
+            if ("success".equals(key)) {
+                envelope.success = !"false".equalsIgnoreCase(readScalar(c));
+            } else if ("msg".equals(key)) {
+                envelope.msg = (c == '"' || c == '\'') ? readScalar(c) : null;
+                if (envelope.msg == null) {
+                    skipValue(c);
+                }
+            } else if ("data".equals(key) && c == '{') {
+                envelope.gmlFound |= parseData(gmlOut);
+            } else {
+                skipValue(c);
+            }
+        }
+
+        return envelope;
+    }
+
+    /**
+     * Parses the 'data' object (the opening brace has been consumed)
+     * @return true if a GML string was written
+     */
+    private boolean parseData(Writer gmlOut) throws IOException {
+        boolean gmlFound = false;
+        int c;
+        while ((c = nextNonWhitespace()) != '}') {
+            if (c == ',') {
+                continue;
+            }
+
+            String key = readKey(c);
+            expect(nextNonWhitespace(), ':');
+            c = nextNonWhitespace();
+            if ("gml".equals(key) && (c == '"' || c == '\'')) {
+                copyString(c, gmlOut, Integer.MAX_VALUE);
+                gmlFound = true;
+            } else {
+                skipValue(c);
+            }
+        }
+        return gmlFound;
+    }
+
+    private int read() throws IOException {
+        if (pushedBack != -2) {
+            int c = pushedBack;
+            pushedBack = -2;
+            return c;
+        }
+        return in.read();
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+
+        if (c < 0) {
+            throw new IOException("Unexpected end of JSON");
+        }
+        return c;
+    }
+
+    private static void expect(int actual, char expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException(String.format("Expected '%1$s' but found '%2$s'", expected, (char) actual));
+        }
+    }
+
+    /**
+     * Reads an object key starting with c (quoted or unquoted)
+     */
+    private String readKey(int c) throws IOException {
+        if (c == '"' || c == '\'') {
+            StringBuilder sb = new StringBuilder();
+            copyString(c, sb, MAX_MESSAGE_LENGTH);
+            return sb.toString();
+        }
+        return readLiteral(c);
+    }
+
+    /**
+     * Reads a string or literal (true/false/null/number) value starting with c. Objects/arrays are skipped (returning null)
+     */
+    private String readScalar(int c) throws IOException {
+        if (c == '"' || c == '\'') {
+            StringBuilder sb = new StringBuilder();
+            copyString(c, sb, MAX_MESSAGE_LENGTH);
+            return sb.toString();
+        } else if (c == '{' || c == '[') {
+            skipValue(c);
+            return null;
+        }
+        return readLiteral(c);
+    }
+
+    /**
+     * Reads an unquoted token starting with c up to the next delimiter (which is pushed back)
+     */
+    private String readLiteral(int c) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (c >= 0 && c != ',' && c != '}' && c != ']' && c != ':' && !Character.isWhitespace(c)) {
+            sb.append((char) c);
+            c = read();
+        }
+        pushedBack = c;
+        return sb.toString();
+    }
+
+    /**
+     * Decodes a quoted string (the opening quote has been consumed) into out. Characters beyond maxLength are discarded.
+     * @param out Can be null (the string is skipped)
+     */
+    private void copyString(int quote, Appendable out, int maxLength) throws IOException {
+        int length = 0;
+        int c;
+        while ((c = read()) != quote) {
+            if (c < 0) {
+                throw new IOException("Unterminated JSON string");
+            }
+
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                case 'b': c = '\b'; break;
+                case 'f': c = '\f'; break;
+                case 'n': c = '\n'; break;
+                case 'r': c = '\r'; break;
+                case 't': c = '\t'; break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < hex.length; i++) {
+                        int h = read();
+                        if (h < 0) {
+                            throw new IOException("Unterminated JSON string");
+                        }
+                        hex[i] = (char) h;
+                    }
+                    try {
+                        c = Integer.parseInt(new String(hex), 16);
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Invalid unicode escape in JSON string");
+                    }
+                    break;
+                default:
+                    if (c < 0) {
+                        throw new IOException("Unterminated JSON string");
+                    }
+                    break; //Covers \" \' \\ and \/
+                }
+            }
+
+            if (out != null && length++ < maxLength) {
+                out.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Skips over a value that starts with c
+     */
+    private void skipValue(int c) throws IOException {
+        if (c == '"' || c == '\'') {
+            copyString(c, null, 0);
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = read();
+                if (c < 0) {
+                    throw new IOException("Unexpected end of JSON");
+                } else if (c == '"' || c == '\'') {
+                    copyString(c, null, 0);
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            }
+        } else {
+            readLiteral(c);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.auscope.portal.server.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple line based diff of two strings (longest common subsequence).
+ *
+ * Common leading/trailing lines are stripped before the LCS table is built so the typical case (a small
+ * edit somewhere in a large script) only needs a small table.
+ */
+public class LineDiff {
+
+    /**
+     * The largest LCS table (in cells) that will be built. Larger differences are reported as every
+     * line being deleted and then inserted.
+     */
+    public static final int MAX_TABLE_CELLS = 4 * 1024 * 1024;
+
+    /**
+     * What happened to a line
+     */
+    public enum Operation {
+        /** The line is present in both strings*/
+        EQUAL,
+        /** The line is only present in the second string*/
+        INSERT,
+        /** The line is only present in the first string*/
+        DELETE
+    }
+
+    /**
+     * A single line of a diff
+     */
+    public static class Line {
+        private final Operation operation;
+        private final String text;
+
+        public Line(Operation operation, String text) {
+            this.operation = operation;
+            this.text = text;
+        }
+
+        /**
+         * What happened to this line
+         * @return
+         */
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * The line text (without line terminator)
+         * @return
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    private LineDiff() {
+    }
+
+    private static String[] splitLines(String s) {
+        if (s == null || s.isEmpty()) {
+            return new String[0];
+        }
+        return s.split("\r?\n", -1);
+    }
+
+    /**
+     * Calculates the lines that must be deleted/inserted to turn from into to
+     * @param from
+     * @param to
+     * @return Every line of both strings in order
+     */
+    public static List<Line> diff(String from, String to) {
+        String[] a = splitLines(from);
+        String[] b = splitLines(to);
+        List<Line> result = new ArrayList<Line>(Math.max(a.length, b.length));
+
+        int prefix = 0;
+        while (prefix < a.length && prefix < b.length && a[prefix].equals(b[prefix])) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < a.length - prefix && suffix < b.length - prefix &&
+                a[a.length - 1 - suffix].equals(b[b.length - 1 - suffix])) {
+            suffix++;
+        }
+
+        for (int i = 0; i < prefix; i++) {
+            result.add(new Line(Operation.EQUAL, a[i]));
+        }
+
+        int n = a.length - prefix - suffix;
+        int m = b.length - prefix - suffix;
+        if ((long) (n + 1) * (long) (m + 1) > MAX_TABLE_CELLS) {
+            for (int i = 0; i < n; i++) {
+                result.add(new Line(Operation.DELETE, a[prefix + i]));
+            }
+            for (int j = 0; j < m; j++) {
+                result.add(new Line(Operation.INSERT, b[prefix + j]));
+            }
+        } else {
+            //lcs[i][j] is the LCS length of a[prefix + i..] and b[prefix + j..]
+            int[][] lcs = new int[n + 1][m + 1];
+            for (int i = n - 1; i >= 0; i--) {
+                for (int j = m - 1; j >= 0; j--) {
+                    if (a[prefix + i].equals(b[prefix + j])) {
+                        lcs[i][j] = lcs[i + 1][j + 1] + 1;
+                    } else {
+                        lcs[i][j] = Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+                    }
+                }
+            }
+
+            int i = 0;
+            int j = 0;
+            while (i < n && j < m) {
+                if (a[prefix + i].equals(b[prefix + j])) {
+                    result.add(new Line(Operation.EQUAL, a[prefix + i]));
+                    i++;
+                    j++;
+                } else if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+                    result.add(new Line(Operation.DELETE, a[prefix + i++]));
+                } else {
+                    result.add(new Line(Operation.INSERT, b[prefix + j++]));
+                }
+            }
+            while (i < n) {
+                result.add(new Line(Operation.DELETE, a[prefix + i++]));
+            }
+            while (j < m) {
+                result.add(new Line(Operation.INSERT, b[prefix + j++]));
+            }
+        }
+
+        for (int i = a.length - suffix; i < a.length; i++) {
+            result.add(new Line(Operation.EQUAL, a[i]));
+        }
+
+        return result;
+    }
+}
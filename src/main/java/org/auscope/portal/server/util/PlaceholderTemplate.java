@@ -0,0 +1,88 @@
+package org.auscope.portal.server.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pre-parsed template containing named placeholders of the form {NAME} (upper case letters, digits
+ * and underscores only). Any other use of braces is treated as literal text.
+ *
+ * The template is parsed once (into a list of literal segments and placeholder names) so rendering is
+ * just a matter of appending segments and values. Values are appended unchanged - callers are responsible
+ * for any escaping.
+ *
+ * Instances are immutable and thread safe.
+ */
+public class PlaceholderTemplate {
+
+    /** literals[i] precedes placeholder names[i]. There is always one more literal than placeholder*/
+    private final String[] literals;
+    private final String[] names;
+    private final int literalLength;
+
+    /**
+     * Parses template
+     * @param template The template text
+     */
+    public PlaceholderTemplate(String template) {
+        List<String> literalList = new ArrayList<String>();
+        List<String> nameList = new ArrayList<String>();
+        int length = 0;
+        int literalStart = 0;
+
+        for (int i = template.indexOf('{'); i >= 0; i = template.indexOf('{', i + 1)) {
+            int end = i + 1;
+            while (end < template.length() && isNameChar(template.charAt(end))) {
+                end++;
+            }
+            if (end == i + 1 || end >= template.length() || template.charAt(end) != '}') {
+                continue;
+            }
+
+            literalList.add(template.substring(literalStart, i));
+            length += i - literalStart;
+            nameList.add(template.substring(i + 1, end));
+            literalStart = end + 1;
+            i = end;
+        }
+        literalList.add(template.substring(literalStart));
+        length += template.length() - literalStart;
+
+        this.literals = literalList.toArray(new String[literalList.size()]);
+        this.names = nameList.toArray(new String[nameList.size()]);
+        this.literalLength = length;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Appends this template to out with each placeholder replaced with the matching value from values.
+     * Placeholders without a value are rendered as an empty string.
+     * @param out Where to render the template
+     * @param values Placeholder names keyed to their values
+     */
+    public void render(StringBuilder out, Map<String, String> values) {
+        for (int i = 0; i < names.length; i++) {
+            out.append(literals[i]);
+            String value = values.get(names[i]);
+            if (value != null) {
+                out.append(value);
+            }
+        }
+        out.append(literals[literals.length - 1]);
+    }
+
+    /**
+     * Renders this template with each placeholder replaced with the matching value from values.
+     * @param values Placeholder names keyed to their values
+     * @return
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder out = new StringBuilder(literalLength + 64 * names.length);
+        render(out, values);
+        return out.toString();
+    }
+}
@@ -0,0 +1,166 @@
+package org.auscope.portal.server.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONObject;
+
+/**
+ * An immutable, fully rendered HTTP response body (along with a gzipped copy and an ETag for each).
+ *
+ * Intended for responses that are expensive to generate but change rarely - they can be rendered
+ * once and then written to any number of clients, with conditional requests answered by
+ * 304 Not Modified.
+ *
+ * The gzipped and identity bodies are different representations so each gets its own ETag, otherwise
+ * a cache could answer a request that can't accept gzip with a gzipped body (or vice versa).
+ */
+public class PreRenderedResponse {
+
+    /** The content type used for JSON responses*/
+    public static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    private final long version;
+    private final String contentType;
+    private final byte[] body;
+    private final byte[] gzippedBody;
+    private final String etag;
+    private final String gzipEtag;
+
+    /**
+     * @param version An arbitrary version number describing the source data of this response
+     * @param contentType The content type of body
+     * @param body The response body
+     * @throws IOException
+     */
+    public PreRenderedResponse(long version, String contentType, byte[] body) throws IOException {
+        this.version = version;
+        this.contentType = contentType;
+        this.body = body;
+        this.gzippedBody = gzip(body);
+        String hash = md5Hex(body);
+        this.etag = "\"" + hash + "\"";
+        this.gzipEtag = "\"" + hash + "-gzip\"";
+    }
+
+    /**
+     * Renders model as a JSON object
+     * @param version An arbitrary version number describing the source data of this response
+     * @param model Will be rendered as a JSON object
+     * @return
+     * @throws IOException
+     */
+    public static PreRenderedResponse fromJson(long version, Object model) throws IOException {
+        return new PreRenderedResponse(version, JSON_CONTENT_TYPE, JSONObject.fromObject(model).toString().getBytes("UTF-8"));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(data);
+        gos.close();
+        return bos.toByteArray();
+    }
+
+    private static String md5Hex(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is unavailable", ex);
+        }
+    }
+
+    /**
+     * The version number this response was rendered from
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * The (quoted) entity tag for the identity (uncompressed) body of this response
+     * @return
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * The (quoted) entity tag for the gzipped body of this response
+     * @return
+     */
+    public String getGzipETag() {
+        return gzipEtag;
+    }
+
+    /**
+     * Returns true if the specified If-None-Match header value matches the ETag of the specified body
+     * @param ifNoneMatch Can be null
+     * @param gzipped Whether the gzipped (or identity) body is being requested
+     * @return
+     */
+    public boolean matches(String ifNoneMatch, boolean gzipped) {
+        String etag = gzipped ? gzipEtag : this.etag;
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes this response. Clients that accept gzip will receive the precompressed body and conditional
+     * requests with a matching ETag (for the selected body) will receive a 304 (with no body).
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        boolean gzipped = acceptEncoding != null && acceptEncoding.contains("gzip");
+
+        response.setHeader("ETag", gzipped ? gzipEtag : etag);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("Vary", "Accept-Encoding");
+
+        if (matches(request.getHeader("If-None-Match"), gzipped)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] data = body;
+        if (gzipped) {
+            response.setHeader("Content-Encoding", "gzip");
+            data = gzippedBody;
+        }
+
+        response.setContentType(contentType);
+        response.setContentLength(data.length);
+        OutputStream os = response.getOutputStream();
+        os.write(data);
+        os.flush();
+    }
+}
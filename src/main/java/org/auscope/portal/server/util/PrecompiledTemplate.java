@@ -0,0 +1,118 @@
+package org.auscope.portal.server.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pre-parsed java.text.MessageFormat style template. Only simple argument references ({0}, {1} etc) are
+ * supported along with the MessageFormat quoting rules ('' for a single quote, 'quoted {text}' for literal text).
+ *
+ * The template is parsed once (into a list of literal segments and argument references) so rendering is
+ * just a matter of appending segments and arguments. Unlike MessageFormat, arguments are always rendered using
+ * String.valueOf (no locale specific formatting of numbers/dates).
+ *
+ * Instances are immutable and thread safe.
+ */
+public class PrecompiledTemplate {
+
+    /** literals[i] precedes argument argumentIndexes[i]. There is always one more literal than argument*/
+    private final String[] literals;
+    private final int[] argumentIndexes;
+    private final int literalLength;
+
+    /**
+     * Parses template
+     * @param template A MessageFormat style template
+     * @throws IllegalArgumentException If template is malformed or uses anything other than simple argument references
+     */
+    public PrecompiledTemplate(String template) {
+        List<String> literalList = new ArrayList<String>();
+        List<Integer> indexList = new ArrayList<Integer>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        int length = 0;
+
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < template.length() && template.charAt(i + 1) == '\'') {
+                    current.append('\'');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '{' && !quoted) {
+                int end = template.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unmatched braces in the template.");
+                }
+
+                String reference = template.substring(i + 1, end).trim();
+                int index;
+                try {
+                    index = Integer.parseInt(reference);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException(String.format("Only simple argument references are supported. Found '{%1$s}'", reference));
+                }
+                if (index < 0) {
+                    throw new IllegalArgumentException("Negative argument number: " + index);
+                }
+
+                literalList.add(current.toString());
+                length += current.length();
+                current.setLength(0);
+                indexList.add(index);
+                i = end;
+            } else {
+                current.append(c);
+            }
+        }
+        literalList.add(current.toString());
+        length += current.length();
+
+        this.literals = literalList.toArray(new String[literalList.size()]);
+        this.argumentIndexes = new int[indexList.size()];
+        for (int i = 0; i < argumentIndexes.length; i++) {
+            argumentIndexes[i] = indexList.get(i);
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * The total length of all literal text in this template (ie the length of a render with empty arguments)
+     * @return
+     */
+    public int getLiteralLength() {
+        return literalLength;
+    }
+
+    /**
+     * Appends this template to out with each argument reference replaced with the matching value from arguments.
+     * References to arguments that aren't specified are rendered unchanged (as per MessageFormat).
+     * @param out Where to render the template
+     * @param arguments The argument values
+     */
+    public void render(StringBuilder out, Object... arguments) {
+        for (int i = 0; i < argumentIndexes.length; i++) {
+            out.append(literals[i]);
+            int index = argumentIndexes[i];
+            if (index < arguments.length) {
+                out.append(arguments[index]);
+            } else {
+                out.append('{').append(index).append('}');
+            }
+        }
+        out.append(literals[literals.length - 1]);
+    }
+
+    /**
+     * Renders this template with each argument reference replaced with the matching value from arguments.
+     * @param arguments The argument values
+     * @return
+     */
+    public String render(Object... arguments) {
+        StringBuilder out = new StringBuilder(literalLength + 32 * argumentIndexes.length);
+        render(out, arguments);
+        return out.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package org.auscope.portal.server.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls that share the same key. The first caller for a key makes the call (on its
+ * own thread), any callers for the same key that arrive while that call is in flight wait for (and share)
+ * its result or exception. Nothing is retained once the call completes - this is not a cache.
+ *
+ * Results are shared between threads so they should be treated as immutable.
+ *
+ * @param <K> The key type
+ * @param <V> The result type
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Runs call (or joins an identical call already in progress) returning its result
+     * @param key Identifies identical calls
+     * @param call The call to make if no identical call is in progress
+     * @return
+     * @throws Exception Whatever call threw
+     */
+    public V execute(K key, Callable<V> call) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            task = existing;
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * The number of distinct calls currently in progress
+     * @return
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,295 @@
+package org.auscope.portal.server.vegl;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.cloud.CloudComputeService;
+import org.auscope.portal.server.web.controllers.JobBuilderController;
+import org.auscope.portal.server.web.service.monitor.VGLJobStatusChangeHandler;
+
+/**
+ * Launches jobs (that have already been staged and provisioned) on a bounded pool of threads.
+ *
+ * Launches are scheduled in one of two lanes. Single (interactive) submissions always run ahead of any waiting
+ * batch launches so a large batch can't hold them up. Each lane can only have maxQueuedLaunches launches waiting
+ * or in progress - scheduling a batch launch blocks until there is room, a single submission that doesn't fit is
+ * placed into the VGLPollingJobQueueManager queue instead.
+ *
+ * Whenever a compute service reports that its quota has been exceeded, the job is placed into the
+ * VGLPollingJobQueueManager queue (as per a single submission) and every other launch against that compute
+ * service for the next quotaBackoffSeconds is sent straight to the queue rather than hitting the provider again.
+ */
+public class JobLaunchScheduler {
+
+    /** The error correction text that compute services use to indicate their quota has been exceeded */
+    public static final String QUOTA_EXCEEDED = "Quota exceeded";
+
+    /**
+     * The possible results of a single launch
+     */
+    public enum LaunchOutcome {
+        /** The compute service accepted the job */
+        LAUNCHED,
+        /** The compute service is over quota, the job has been placed in the polling queue */
+        QUEUED,
+        /** The launch failed, the job has been set to the error status */
+        FAILED
+    }
+
+    /**
+     * Receives notification when a scheduled launch completes. Called on a scheduler thread.
+     */
+    public interface LaunchListener {
+        void launchCompleted(VEGLJob job, LaunchOutcome outcome, String message);
+    }
+
+    /** The default maximum number of launches (per lane) that can be waiting or in progress */
+    public static final int DEFAULT_MAX_QUEUED_LAUNCHES = 200;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private VEGLJobManager jobManager;
+    private VGLPollingJobQueueManager queueManager;
+    private VGLJobStatusChangeHandler statusChangeHandler;
+    private ThreadPoolExecutor executor;
+    /** Bounds the single submission lane */
+    private Semaphore interactivePermits;
+    /** Bounds the batch submission lane */
+    private Semaphore batchPermits;
+    /** Used for keeping launches (within a lane) in the order they were scheduled */
+    private AtomicLong launchSequence = new AtomicLong();
+    private long quotaBackoffMillis = 5 * 60 * 1000L;
+    /** compute service id keyed to the time (in ms) that we can resume launching against it */
+    private ConcurrentHashMap<String, Long> quotaExceededUntil = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * @param jobManager Used for persisting job status changes
+     * @param queueManager Jobs that exceed a compute service quota are placed into this queue
+     * @param statusChangeHandler Notified when a launch fails
+     * @param maxConcurrentLaunches The maximum number of launches that can be in progress at any one time
+     */
+    public JobLaunchScheduler(VEGLJobManager jobManager, VGLPollingJobQueueManager queueManager,
+            VGLJobStatusChangeHandler statusChangeHandler, int maxConcurrentLaunches) {
+        this(jobManager, queueManager, statusChangeHandler, maxConcurrentLaunches, DEFAULT_MAX_QUEUED_LAUNCHES);
+    }
+
+    /**
+     * @param jobManager Used for persisting job status changes
+     * @param queueManager Jobs that exceed a compute service quota are placed into this queue
+     * @param statusChangeHandler Notified when a launch fails
+     * @param maxConcurrentLaunches The maximum number of launches that can be in progress at any one time
+     * @param maxQueuedLaunches The maximum number of launches (in each lane) that can be waiting or in progress at any one time
+     */
+    public JobLaunchScheduler(VEGLJobManager jobManager, VGLPollingJobQueueManager queueManager,
+            VGLJobStatusChangeHandler statusChangeHandler, int maxConcurrentLaunches, int maxQueuedLaunches) {
+        this.jobManager = jobManager;
+        this.queueManager = queueManager;
+        this.statusChangeHandler = statusChangeHandler;
+        this.interactivePermits = new Semaphore(maxQueuedLaunches);
+        this.batchPermits = new Semaphore(maxQueuedLaunches);
+        //The launches themselves are bounded by the permits
+        this.executor = new ThreadPoolExecutor(maxConcurrentLaunches, maxConcurrentLaunches, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+    }
+
+    /**
+     * How long launches against a compute service will be queued (without contacting the service) after it reports
+     * that its quota has been exceeded
+     * @param quotaBackoffSeconds
+     */
+    public void setQuotaBackoffSeconds(int quotaBackoffSeconds) {
+        this.quotaBackoffMillis = quotaBackoffSeconds * 1000L;
+    }
+
+    /**
+     * Returns true if launches against the specified compute service are currently being queued due to an exceeded quota
+     * @param computeServiceId
+     * @return
+     */
+    public boolean isQuotaExceeded(String computeServiceId) {
+        Long until = quotaExceededUntil.get(computeServiceId);
+        if (until == null) {
+            return false;
+        }
+
+        if (System.currentTimeMillis() < until) {
+            return true;
+        }
+
+        quotaExceededUntil.remove(computeServiceId, until);
+        return false;
+    }
+
+    /**
+     * A single scheduled launch. Single submissions are ordered ahead of batch launches, otherwise launches
+     * are ordered by when they were scheduled.
+     */
+    private class LaunchTask implements Runnable, Comparable<LaunchTask> {
+        private final CloudComputeService cloudComputeService;
+        private final VEGLJob job;
+        private final String userDataString;
+        private final LaunchListener listener;
+        private final boolean batch;
+        private final long sequence;
+
+        public LaunchTask(CloudComputeService cloudComputeService, VEGLJob job, String userDataString, LaunchListener listener, boolean batch) {
+            this.cloudComputeService = cloudComputeService;
+            this.job = job;
+            this.userDataString = userDataString;
+            this.listener = listener;
+            this.batch = batch;
+            this.sequence = launchSequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(LaunchTask other) {
+            if (batch != other.batch) {
+                return batch ? 1 : -1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public void run() {
+            LaunchOutcome outcome = LaunchOutcome.FAILED;
+            String message = null;
+            try {
+                if (isQuotaExceeded(cloudComputeService.getId())) {
+                    enqueue(cloudComputeService, job, userDataString);
+                    outcome = LaunchOutcome.QUEUED;
+                } else {
+                    launch(cloudComputeService, job, userDataString);
+                    outcome = LaunchOutcome.LAUNCHED;
+                }
+            } catch (PortalServiceException e) {
+                if (e.getErrorCorrection() != null && e.getErrorCorrection().contains(QUOTA_EXCEEDED)) {
+                    quotaExceededUntil.put(cloudComputeService.getId(), System.currentTimeMillis() + quotaBackoffMillis);
+                    enqueue(cloudComputeService, job, userDataString);
+                    outcome = LaunchOutcome.QUEUED;
+                } else {
+                    message = e.getMessage();
+                    markError(job, e);
+                }
+            } catch (Exception e) {
+                logger.error("Unexpected error launching job " + job.getId(), e);
+                message = e.getMessage();
+                markError(job, e);
+            } finally {
+                (batch ? batchPermits : interactivePermits).release();
+            }
+
+            notifyListener(listener, job, outcome, message);
+        }
+    }
+
+    /**
+     * Schedules job (a single submission) to be launched using cloudComputeService ahead of any waiting batch launches.
+     * job should be in the provisioning status.
+     *
+     * If too many single submissions are already waiting, job will be placed straight into the polling queue (and
+     * listener notified on the calling thread).
+     * @param cloudComputeService The service to launch job with
+     * @param job The job to launch
+     * @param userDataString The bootstrap script for job
+     * @param listener Will be notified once the launch completes (can be null)
+     */
+    public void scheduleLaunch(CloudComputeService cloudComputeService, VEGLJob job, String userDataString, LaunchListener listener) {
+        if (!interactivePermits.tryAcquire()) {
+            logger.warn("Too many launches waiting, placing job " + job.getId() + " into the queue");
+            LaunchOutcome outcome = LaunchOutcome.QUEUED;
+            String message = null;
+            try {
+                enqueue(cloudComputeService, job, userDataString);
+            } catch (Exception e) {
+                logger.error("Unexpected error queueing job " + job.getId(), e);
+                outcome = LaunchOutcome.FAILED;
+                message = e.getMessage();
+                markError(job, e);
+            }
+            notifyListener(listener, job, outcome, message);
+            return;
+        }
+
+        executor.execute(new LaunchTask(cloudComputeService, job, userDataString, listener, false));
+    }
+
+    /**
+     * Schedules job (part of a batch submission) to be launched using cloudComputeService once there are no single
+     * submissions waiting. job should be in the provisioning status.
+     *
+     * Blocks while the maximum number of batch launches are already waiting. If interrupted while waiting job will be
+     * set to the error status (and listener notified on the calling thread).
+     * @param cloudComputeService The service to launch job with
+     * @param job The job to launch
+     * @param userDataString The bootstrap script for job
+     * @param listener Will be notified once the launch completes (can be null)
+     */
+    public void scheduleBatchLaunch(CloudComputeService cloudComputeService, VEGLJob job, String userDataString, LaunchListener listener) {
+        try {
+            batchPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            markError(job, e);
+            notifyListener(listener, job, LaunchOutcome.FAILED, "Interrupted while waiting to launch");
+            return;
+        }
+
+        executor.execute(new LaunchTask(cloudComputeService, job, userDataString, listener, true));
+    }
+
+    private void notifyListener(LaunchListener listener, VEGLJob job, LaunchOutcome outcome, String message) {
+        if (listener == null) {
+            return;
+        }
+
+        try {
+            listener.launchCompleted(job, outcome, message);
+        } catch (Exception ex) {
+            logger.warn("Launch listener failed: " + ex.getMessage());
+            logger.debug("Exception:", ex);
+        }
+    }
+
+    private void launch(CloudComputeService cloudComputeService, VEGLJob job, String userDataString) throws PortalServiceException {
+        String instanceId = cloudComputeService.executeJob(job, userDataString);
+        logger.info("Launched instance: " + instanceId);
+        // set reference as instanceId for use when killing a job
+        job.setComputeInstanceId(instanceId);
+        String oldJobStatus = job.getStatus();
+        job.setStatus(JobBuilderController.STATUS_PENDING);
+        jobManager.createJobAuditTrail(oldJobStatus, job, "Set job to Pending");
+        job.setSubmitDate(new Date());
+        jobManager.saveJob(job);
+    }
+
+    private void enqueue(CloudComputeService cloudComputeService, VEGLJob job, String userDataString) {
+        queueManager.addJobToQueue(new VGLQueueJob(jobManager, cloudComputeService, job, userDataString, statusChangeHandler));
+        String oldJobStatus = job.getStatus();
+        job.setStatus(JobBuilderController.STATUS_INQUEUE);
+        jobManager.saveJob(job);
+        jobManager.createJobAuditTrail(oldJobStatus, job, "Job Placed in Queue");
+    }
+
+    private void markError(VEGLJob job, Exception e) {
+        String oldJobStatus = job.getStatus();
+        job.setStatus(JobBuilderController.STATUS_ERROR);
+        jobManager.saveJob(job);
+        jobManager.createJobAuditTrail(oldJobStatus, job, e);
+        statusChangeHandler.handleStatusChange(job, job.getStatus(), oldJobStatus);
+    }
+
+    /**
+     * Stops any further launches. Jobs that haven't been launched will be left in the provisioning status.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
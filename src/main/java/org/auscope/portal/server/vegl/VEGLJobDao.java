@@ -1,10 +1,16 @@
 package org.auscope.portal.server.vegl;
 
+import java.sql.SQLException;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.server.web.controllers.JobBuilderController;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 
 /**
@@ -15,6 +21,20 @@ import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 public class VEGLJobDao extends HibernateDaoSupport {
     protected final Log logger = LogFactory.getLog(getClass());
 
+    /** How many jobs are written before the session is flushed (should match hibernate.jdbc.batch_size)*/
+    public static final int BATCH_SIZE = 50;
+
+    /**
+     * Callback for updating a job immediately after it has been inserted (and assigned an ID)
+     */
+    public interface InsertCallback {
+        /**
+         * Called after job has been inserted. Any changes made to job will be persisted.
+         * @param job
+         */
+        void jobInserted(VEGLJob job);
+    }
+
     /**
      * Retrieves jobs that are grouped under given series.
      * It excludes jobs that are deleted.
@@ -86,4 +106,50 @@ public class VEGLJobDao extends HibernateDaoSupport {
     public void save(final VEGLJob job) {
         getHibernateTemplate().saveOrUpdate(job);
     }
+
+    /**
+     * Inserts every one of the specified (new) jobs and an audit log entry for each in a single transaction.
+     * The session is flushed every BATCH_SIZE jobs so that JDBC batching can be used.
+     *
+     * If anything fails, none of the jobs will be persisted.
+     *
+     * @param jobs The jobs to insert
+     * @param callback [Optional] Called after each job has been assigned an ID
+     * @param auditMessage The audit log message to record against each job
+     */
+    public void saveAll(final List<VEGLJob> jobs, final InsertCallback callback, final String auditMessage) {
+        getHibernateTemplate().execute(new HibernateCallback<Object>() {
+            @Override
+            public Object doInHibernate(Session session) throws HibernateException, SQLException {
+                Transaction tx = session.beginTransaction();
+                try {
+                    Date now = new Date();
+                    for (int i = 0; i < jobs.size(); i++) {
+                        VEGLJob job = jobs.get(i);
+                        session.save(job);
+                        if (callback != null) {
+                            callback.jobInserted(job);
+                        }
+
+                        VGLJobAuditLog auditLog = new VGLJobAuditLog();
+                        auditLog.setJobId(job.getId());
+                        auditLog.setToStatus(job.getStatus());
+                        auditLog.setTransitionDate(now);
+                        auditLog.setMessage(auditMessage);
+                        session.save(auditLog);
+
+                        if ((i + 1) % BATCH_SIZE == 0) {
+                            session.flush();
+                            session.clear();
+                        }
+                    }
+                    tx.commit();
+                } catch (RuntimeException ex) {
+                    tx.rollback();
+                    throw ex;
+                }
+                return null;
+            }
+        });
+    }
 }
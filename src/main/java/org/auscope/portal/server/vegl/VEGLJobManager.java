@@ -21,6 +21,7 @@ public class VEGLJobManager {
     private VEGLSeriesDao veglSeriesDao;
     private VGLJobAuditLogDao vglJobAuditLogDao;
     private VGLSignatureDao vglSignatureDao;
+    private VGLJobNotificationDao vglJobNotificationDao;
 
     public List<VEGLSeries> querySeries(String user, String name, String desc) {
         return veglSeriesDao.query(user, name, desc);
@@ -58,6 +59,16 @@ public class VEGLJobManager {
         veglJobDao.save(veglJob);
     }
 
+    /**
+     * Inserts a list of new jobs (and their job created audit trail) in a single transaction
+     * @param jobs The jobs to insert
+     * @param callback [Optional] Called after each job has been assigned an ID
+     * @param message The audit trail message for each job
+     */
+    public void createJobs(List<VEGLJob> jobs, VEGLJobDao.InsertCallback callback, String message) {
+        veglJobDao.saveAll(jobs, callback, message);
+    }
+
     /**
      * Create the job life cycle audit trail. If the creation is unsuccessful, it
      * will silently fail and log the failure message to error log.
@@ -112,6 +123,32 @@ public class VEGLJobManager {
         }
     }
 
+    /**
+     * Places a notification email for job into the outbox. It will be sent (at some later time) to
+     * the job's email address.
+     * @param job
+     */
+    public void queueJobNotification(VEGLJob job) {
+        vglJobNotificationDao.save(new VGLJobNotification(job.getId(), job.getEmailAddress()));
+    }
+
+    /**
+     * Gets every outbox notification that is due to be sent at or before date
+     * @param date
+     * @return
+     */
+    public List<VGLJobNotification> getDueJobNotifications(Date date) {
+        return vglJobNotificationDao.getDueNotifications(date);
+    }
+
+    public void saveJobNotification(VGLJobNotification notification) {
+        vglJobNotificationDao.save(notification);
+    }
+
+    public void deleteJobNotification(VGLJobNotification notification) {
+        vglJobNotificationDao.delete(notification);
+    }
+
     public void deleteSeries(VEGLSeries series) {
         veglSeriesDao.delete(series);
     }
@@ -139,4 +176,8 @@ public class VEGLJobManager {
     public void setVglSignatureDao(VGLSignatureDao vglSignatureDao) {
         this.vglSignatureDao = vglSignatureDao;
     }
+
+    public void setVglJobNotificationDao(VGLJobNotificationDao vglJobNotificationDao) {
+        this.vglJobNotificationDao = vglJobNotificationDao;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+package org.auscope.portal.server.vegl;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A simple POJO class representing a job notification email that is waiting
+ * (in the outbox) to be sent.
+ */
+public class VGLJobNotification implements Serializable {
+
+    private static final long serialVersionUID = 2609853826420498562L;
+
+    /** The primary key for this notification*/
+    private Integer id;
+    /** The id of the job this notification concerns*/
+    private Integer jobId;
+    /** Where the notification will be sent*/
+    private String emailAddress;
+    /** When this notification was queued*/
+    private Date queuedDate;
+    /** The number of failed attempts at sending this notification*/
+    private int attempts;
+    /** This notification won't be sent before this date*/
+    private Date nextAttemptDate;
+
+    /**
+     * Default constructor.
+     */
+    public VGLJobNotification() {
+    }
+
+    /**
+     * @param jobId The id of the job this notification concerns
+     * @param emailAddress Where the notification will be sent
+     */
+    public VGLJobNotification(Integer jobId, String emailAddress) {
+        this.jobId = jobId;
+        this.emailAddress = emailAddress;
+        this.queuedDate = new Date();
+        this.nextAttemptDate = queuedDate;
+    }
+
+    /**
+     * @return the id
+     */
+    public Integer getId() {
+        return id;
+    }
+
+    /**
+     * @param id the id to set
+     */
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the jobId
+     */
+    public Integer getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @param jobId the jobId to set
+     */
+    public void setJobId(Integer jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * @return the emailAddress
+     */
+    public String getEmailAddress() {
+        return emailAddress;
+    }
+
+    /**
+     * @param emailAddress the emailAddress to set
+     */
+    public void setEmailAddress(String emailAddress) {
+        this.emailAddress = emailAddress;
+    }
+
+    /**
+     * @return the queuedDate
+     */
+    public Date getQueuedDate() {
+        return queuedDate;
+    }
+
+    /**
+     * @param queuedDate the queuedDate to set
+     */
+    public void setQueuedDate(Date queuedDate) {
+        this.queuedDate = queuedDate;
+    }
+
+    /**
+     * @return the attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @param attempts the attempts to set
+     */
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return the nextAttemptDate
+     */
+    public Date getNextAttemptDate() {
+        return nextAttemptDate;
+    }
+
+    /**
+     * @param nextAttemptDate the nextAttemptDate to set
+     */
+    public void setNextAttemptDate(Date nextAttemptDate) {
+        this.nextAttemptDate = nextAttemptDate;
+    }
+
+    @Override
+    public String toString() {
+        return "VGLJobNotification [id=" + id + ", jobId=" + jobId
+                + ", emailAddress=" + emailAddress + ", attempts=" + attempts + "]";
+    }
+}
@@ -0,0 +1,42 @@
+package org.auscope.portal.server.vegl;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
+
+/**
+ * A hibernate-backed VGLJobNotification (notification outbox) data access object.
+ */
+public class VGLJobNotificationDao extends HibernateDaoSupport {
+    protected final Log logger = LogFactory.getLog(getClass());
+
+    public VGLJobNotificationDao() {
+        super();
+    }
+
+    /**
+     * Retrieves the queued notifications that are due to be attempted at (or before) date.
+     */
+    @SuppressWarnings("unchecked")
+    public List<VGLJobNotification> getDueNotifications(final Date date) {
+        return (List<VGLJobNotification>) getHibernateTemplate().findByNamedParam(
+                "from VGLJobNotification n where n.nextAttemptDate <= :date order by n.emailAddress, n.queuedDate", "date", date);
+    }
+
+    /**
+     * Saves or updates the given notification.
+     */
+    public void save(final VGLJobNotification notification) {
+        getHibernateTemplate().saveOrUpdate(notification);
+    }
+
+    /**
+     * Deletes the given notification.
+     */
+    public void delete(final VGLJobNotification notification) {
+        getHibernateTemplate().delete(notification);
+    }
+}
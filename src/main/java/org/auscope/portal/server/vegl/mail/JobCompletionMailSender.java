@@ -1,7 +1,9 @@
 package org.auscope.portal.server.vegl.mail;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
@@ -13,9 +15,9 @@ import org.auscope.portal.server.vegl.VEGLJob;
 import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VEGLSeries;
 import org.auscope.portal.server.vegl.VGLJobStatusAndLogReader;
+import org.auscope.portal.server.vegl.mail.NotificationRenderer.Format;
 import org.springframework.mail.MailSender;
 import org.springframework.mail.SimpleMailMessage;
-import org.springframework.ui.velocity.VelocityEngineUtils;
 
 /**
  * A concrete implementation of JobMailServer interface
@@ -31,7 +33,7 @@ public class JobCompletionMailSender implements JobMailSender {
     private VEGLJobManager jobManager;
     private VGLJobStatusAndLogReader jobStatLogReader;
     private MailSender mailSender;
-    private VelocityEngine velocityEngine;
+    private NotificationRenderer renderer;
 
     //Properties that get injected thru setter methods
     private String template;
@@ -41,6 +43,8 @@ public class JobCompletionMailSender implements JobMailSender {
     private int maxLinesForTail;
     private String emailSender;
     private String emailSubject;
+    private String digestTemplate;
+    private String digestSubject;
 
     public JobCompletionMailSender(VEGLJobManager jobManager,
             VGLJobStatusAndLogReader jobStatLogReader, MailSender mailSender,
@@ -48,7 +52,7 @@ public class JobCompletionMailSender implements JobMailSender {
         this.jobManager = jobManager;
         this.jobStatLogReader = jobStatLogReader;
         this.mailSender = mailSender;
-        this.velocityEngine = velocityEngine;
+        this.renderer = new NotificationRenderer(velocityEngine);
     }
 
     /**
@@ -185,12 +189,56 @@ public class JobCompletionMailSender implements JobMailSender {
         return emailSubject;
     }
 
+    /**
+     * Sets the digest notification template file (used when notifying
+     * a user about many jobs at once) including its location on the class path.
+     *
+     * @param digestTemplate
+     */
+    public void setDigestTemplate(String digestTemplate) {
+        this.digestTemplate = digestTemplate;
+    }
+
+    /**
+     * Gets the digest notification template file path.
+     *
+     * @return
+     */
+    public String getDigestTemplate() {
+        return digestTemplate;
+    }
+
+    /**
+     * Sets the digest email subject. The number of jobs will be
+     * substituted into the subject.
+     *
+     * @param digestSubject
+     */
+    public void setDigestSubject(String digestSubject) {
+        this.digestSubject = digestSubject;
+    }
+
+    /**
+     * Gets the digest email subject.
+     *
+     * @return
+     */
+    public String getDigestSubject() {
+        return digestSubject;
+    }
+
     /**
      * Constructs job completion notification email content.
      */
     @Override
     public String constructMailContent(VEGLSeries jobSeries, VEGLJob job) {
+        return renderer.render(template, Format.TEXT, createMailModel(jobSeries, job));
+    }
 
+    /**
+     * Builds the model used for rendering the job completion notification templates
+     */
+    private Map<String, Object> createMailModel(VEGLSeries jobSeries, VEGLJob job) {
         Date submitDate, processDate;
         if(job.getSubmitDate()!=null){
             submitDate=job.getSubmitDate();
@@ -215,21 +263,56 @@ public class JobCompletionMailSender implements JobMailSender {
         model.put("jobId", job.getId().toString());
         model.put("jobName", job.getName());
         model.put("jobDescription", job.getDescription());
-        model.put("dateSubmitted", DateUtil.formatDate(submitDate, dateFormat));
-        model.put("dateProcessed", DateUtil.formatDate(processDate, dateFormat));
+        model.put("dateSubmitted", renderer.formatDate(submitDate, dateFormat));
+        model.put("dateProcessed", renderer.formatDate(processDate, dateFormat));
         model.put("timeElapsed", timeElapsed);
         model.put("jobExecLogSnippet", TextUtil.tail(jobStatLogReader.getSectionedLog(job, "Python"), maxLinesForTail));
+        return model;
+    }
 
-        return VelocityEngineUtils.mergeTemplateIntoString(velocityEngine, template, model);
+    /**
+     * Constructs the job completion notification email for job.
+     *
+     * @param job
+     * @return
+     */
+    public SimpleMailMessage createMailMessage(VEGLJob job) {
+        return createMailMessage(job, new HashMap<Integer, VEGLSeries>());
     }
 
     /**
-     * Sends job completion notification email with Spring
-     * framework's MailSender.
+     * Constructs a job completion notification email for every job in jobs. Each
+     * email is rendered separately so a job that can't be rendered (eg its series
+     * no longer exists) doesn't prevent the others being sent.
+     *
+     * @param jobs
+     * @return The emails in the same order as jobs. Jobs that couldn't be rendered will have a null entry.
      */
-    @Override
-    public void sendMail(VEGLJob job) {
-        VEGLSeries jobSeries = jobManager.getSeriesById(job.getSeriesId());
+    public List<SimpleMailMessage> createMailMessages(List<VEGLJob> jobs) {
+        Map<Integer, VEGLSeries> seriesById = new HashMap<Integer, VEGLSeries>();
+        List<SimpleMailMessage> messages = new ArrayList<SimpleMailMessage>(jobs.size());
+        for (VEGLJob job : jobs) {
+            try {
+                messages.add(createMailMessage(job, seriesById));
+            } catch (Exception ex) {
+                LOG.error("Unable to construct email notification for job id [" + job.getId() + "].", ex);
+                messages.add(null);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Constructs the job completion notification email for job
+     * @param seriesById Series that have already been looked up (will be updated)
+     */
+    private SimpleMailMessage createMailMessage(VEGLJob job, Map<Integer, VEGLSeries> seriesById) {
+        Integer seriesId = job.getSeriesId();
+        VEGLSeries jobSeries = seriesById.get(seriesId);
+        if (jobSeries == null) {
+            jobSeries = jobManager.getSeriesById(seriesId);
+            seriesById.put(seriesId, jobSeries);
+        }
 
         String seriesName = jobSeries.getName();
         String jobName = job.getName();
@@ -248,7 +331,59 @@ public class JobCompletionMailSender implements JobMailSender {
         msg.setFrom(this.emailSender);
         msg.setTo(job.getEmailAddress());
         msg.setSubject(subject);
-        msg.setText(constructMailContent(jobSeries, job));
+        msg.setText(renderer.render(template, Format.TEXT, createMailModel(jobSeries, job)));
+        return msg;
+    }
+
+    /**
+     * Constructs a single notification email summarising every job in jobs.
+     *
+     * @param emailAddress Where the email will be sent
+     * @param jobs The (processed) jobs to summarise
+     * @return
+     */
+    public SimpleMailMessage createDigestMailMessage(String emailAddress, List<VEGLJob> jobs) {
+        Map<Integer, VEGLSeries> seriesById = new HashMap<Integer, VEGLSeries>();
+        List<Map<String, Object>> jobModels = new ArrayList<Map<String, Object>>(jobs.size());
+        for (VEGLJob job : jobs) {
+            //Jobs in a digest typically share a series (eg a parameter sweep)
+            VEGLSeries jobSeries = seriesById.get(job.getSeriesId());
+            if (jobSeries == null && job.getSeriesId() != null) {
+                jobSeries = jobManager.getSeriesById(job.getSeriesId());
+                seriesById.put(job.getSeriesId(), jobSeries);
+            }
+
+            Date processDate = job.getProcessDate() == null ? new Date() : job.getProcessDate();
+            Map<String, Object> jobModel = new HashMap<String, Object>();
+            jobModel.put("jobId", job.getId().toString());
+            jobModel.put("jobName", job.getName());
+            jobModel.put("status", job.getStatus());
+            jobModel.put("seriesName", jobSeries == null ? "" : jobSeries.getName());
+            jobModel.put("dateProcessed", renderer.formatDate(processDate, dateFormat));
+            jobModels.add(jobModel);
+        }
+
+        String user = jobs.get(0).getUser();
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("userName", user.substring(0, user.indexOf("@")));
+        model.put("jobCount", jobs.size());
+        model.put("jobs", jobModels);
+
+        SimpleMailMessage msg = new SimpleMailMessage();
+        msg.setFrom(this.emailSender);
+        msg.setTo(emailAddress);
+        msg.setSubject(String.format(this.digestSubject, jobs.size()));
+        msg.setText(renderer.render(digestTemplate, Format.TEXT, model));
+        return msg;
+    }
+
+    /**
+     * Sends job completion notification email with Spring
+     * framework's MailSender.
+     */
+    @Override
+    public void sendMail(VEGLJob job) {
+        SimpleMailMessage msg = createMailMessage(job);
 
         try {
             this.mailSender.send(msg);
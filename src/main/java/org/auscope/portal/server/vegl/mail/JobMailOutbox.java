@@ -0,0 +1,245 @@
+package org.auscope.portal.server.vegl.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobManager;
+import org.auscope.portal.server.vegl.VEGLSeries;
+import org.auscope.portal.server.vegl.VGLJobNotification;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.MailSender;
+import org.springframework.mail.SimpleMailMessage;
+
+/**
+ * A JobMailSender that doesn't send anything - it places job notifications into a persistent
+ * outbox (via VEGLJobManager) so that callers (eg the job status monitor) are never held up by
+ * building the email or a slow SMTP relay.
+ *
+ * The outbox is emptied by calls to dispatch (see JobMailDispatcher). Each run renders every ready email
+ * and sends them as a single batch. A failed email only affects the notifications of that email, which are
+ * retried with an exponential backoff. A recipient with more than one job notification in the outbox
+ * will receive a single digest email covering all of their jobs.
+ */
+public class JobMailOutbox implements JobMailSender {
+    private final Log LOG = LogFactory.getLog(getClass());
+
+    private VEGLJobManager jobManager;
+    private JobCompletionMailSender jobCompletionMailSender;
+    private MailSender mailSender;
+
+    private int quietPeriodSeconds = 120;
+    private int maxDelaySeconds = 900;
+    private int maxAttempts = 5;
+    private int retryDelaySeconds = 60;
+
+    /**
+     * @param jobManager Used for accessing the outbox
+     * @param jobCompletionMailSender Used for constructing the individual notification/digest emails
+     * @param mailSender Used for sending the emails
+     */
+    public JobMailOutbox(VEGLJobManager jobManager, JobCompletionMailSender jobCompletionMailSender, MailSender mailSender) {
+        this.jobManager = jobManager;
+        this.jobCompletionMailSender = jobCompletionMailSender;
+        this.mailSender = mailSender;
+    }
+
+    /**
+     * A recipient's notifications won't be sent until none have been queued for this many seconds (so that
+     * jobs finishing together are sent as a single digest).
+     * @param quietPeriodSeconds
+     */
+    public void setQuietPeriodSeconds(int quietPeriodSeconds) {
+        this.quietPeriodSeconds = quietPeriodSeconds;
+    }
+
+    /**
+     * A recipient's notifications will always be sent once the oldest has been queued for this many seconds
+     * (regardless of the quiet period).
+     * @param maxDelaySeconds
+     */
+    public void setMaxDelaySeconds(int maxDelaySeconds) {
+        this.maxDelaySeconds = maxDelaySeconds;
+    }
+
+    /**
+     * The number of attempts at sending a notification before it is discarded
+     * @param maxAttempts
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * The delay before the first retry of a failed notification. Each subsequent retry doubles the delay.
+     * @param retryDelaySeconds
+     */
+    public void setRetryDelaySeconds(int retryDelaySeconds) {
+        this.retryDelaySeconds = retryDelaySeconds;
+    }
+
+    @Override
+    public String constructMailContent(VEGLSeries jobSeries, VEGLJob job) {
+        return jobCompletionMailSender.constructMailContent(jobSeries, job);
+    }
+
+    /**
+     * Queues a notification email for job in the outbox.
+     */
+    @Override
+    public void sendMail(VEGLJob job) {
+        try {
+            jobManager.queueJobNotification(job);
+        } catch (Exception ex) {
+            LOG.error("Queuing of email notification failed for job id [" + job.getId() + "].", ex);
+        }
+    }
+
+    /**
+     * Sends every notification in the outbox that is ready to be sent.
+     */
+    public synchronized void dispatch() {
+        Date now = new Date();
+
+        //Notifications are ordered by recipient
+        Map<String, List<VGLJobNotification>> byRecipient = new LinkedHashMap<String, List<VGLJobNotification>>();
+        for (VGLJobNotification notification : jobManager.getDueJobNotifications(now)) {
+            List<VGLJobNotification> recipientNotifications = byRecipient.get(notification.getEmailAddress());
+            if (recipientNotifications == null) {
+                recipientNotifications = new ArrayList<VGLJobNotification>();
+                byRecipient.put(notification.getEmailAddress(), recipientNotifications);
+            }
+            recipientNotifications.add(notification);
+        }
+
+        List<SimpleMailMessage> messages = new ArrayList<SimpleMailMessage>();
+        List<List<VGLJobNotification>> messageNotifications = new ArrayList<List<VGLJobNotification>>();
+        List<VEGLJob> singleJobs = new ArrayList<VEGLJob>();
+        List<List<VGLJobNotification>> singleJobNotifications = new ArrayList<List<VGLJobNotification>>();
+        for (Map.Entry<String, List<VGLJobNotification>> entry : byRecipient.entrySet()) {
+            if (!isReady(entry.getValue(), now)) {
+                continue;
+            }
+
+            List<VEGLJob> jobs = new ArrayList<VEGLJob>();
+            List<VGLJobNotification> notifications = new ArrayList<VGLJobNotification>();
+            for (VGLJobNotification notification : entry.getValue()) {
+                VEGLJob job = jobManager.getJobById(notification.getJobId());
+                if (job == null) {
+                    LOG.warn("Discarding notification for job that no longer exists: " + notification);
+                    jobManager.deleteJobNotification(notification);
+                } else {
+                    jobs.add(job);
+                    notifications.add(notification);
+                }
+            }
+            if (jobs.isEmpty()) {
+                continue;
+            }
+
+            if (jobs.size() == 1) {
+                singleJobs.add(jobs.get(0));
+                singleJobNotifications.add(notifications);
+                continue;
+            }
+
+            try {
+                messages.add(jobCompletionMailSender.createDigestMailMessage(entry.getKey(), jobs));
+                messageNotifications.add(notifications);
+            } catch (Exception ex) {
+                LOG.error("Unable to construct email notification for " + entry.getKey(), ex);
+                retryLater(notifications, now);
+            }
+        }
+
+        //Recipients with a single job get the regular notification. Jobs that can't be rendered are retried on their own
+        if (!singleJobs.isEmpty()) {
+            List<SimpleMailMessage> singleMessages = jobCompletionMailSender.createMailMessages(singleJobs);
+            for (int i = 0; i < singleMessages.size(); i++) {
+                if (singleMessages.get(i) == null) {
+                    retryLater(singleJobNotifications.get(i), now);
+                } else {
+                    messages.add(singleMessages.get(i));
+                    messageNotifications.add(singleJobNotifications.get(i));
+                }
+            }
+        }
+
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        //The emails are sent as a single batch (sharing the one SMTP connection). Only the emails the
+        //sender reports as failed are retried - the rest were delivered and must not be resent.
+        Set<SimpleMailMessage> failedMessages = Collections.newSetFromMap(new IdentityHashMap<SimpleMailMessage, Boolean>());
+        try {
+            mailSender.send(messages.toArray(new SimpleMailMessage[messages.size()]));
+        } catch (MailSendException ex) {
+            for (Object failedMessage : ex.getFailedMessages().keySet()) {
+                if (failedMessage instanceof SimpleMailMessage) {
+                    failedMessages.add((SimpleMailMessage) failedMessage);
+                }
+            }
+            if (failedMessages.isEmpty()) {
+                failedMessages.addAll(messages);
+            }
+            LOG.debug("Exception:", ex);
+        } catch (Exception ex) {
+            LOG.warn("Sending of email notifications failed: " + ex.getMessage());
+            LOG.debug("Exception:", ex);
+            failedMessages.addAll(messages);
+        }
+
+        for (int i = 0; i < messages.size(); i++) {
+            if (failedMessages.contains(messages.get(i))) {
+                LOG.warn("Sending of email notification to " + Arrays.toString(messages.get(i).getTo()) + " failed");
+                retryLater(messageNotifications.get(i), now);
+                continue;
+            }
+
+            for (VGLJobNotification notification : messageNotifications.get(i)) {
+                jobManager.deleteJobNotification(notification);
+            }
+        }
+    }
+
+    /**
+     * A recipient's notifications are ready once no new notifications have been queued for the quiet period
+     * or the oldest notification has waited the maximum delay.
+     */
+    private boolean isReady(List<VGLJobNotification> notifications, Date now) {
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+        for (VGLJobNotification notification : notifications) {
+            long queued = notification.getQueuedDate().getTime();
+            oldest = Math.min(oldest, queued);
+            newest = Math.max(newest, queued);
+        }
+
+        return now.getTime() - newest >= quietPeriodSeconds * 1000L ||
+               now.getTime() - oldest >= maxDelaySeconds * 1000L;
+    }
+
+    private void retryLater(List<VGLJobNotification> notifications, Date now) {
+        for (VGLJobNotification notification : notifications) {
+            notification.setAttempts(notification.getAttempts() + 1);
+            if (notification.getAttempts() >= maxAttempts) {
+                LOG.error("Giving up sending email notification: " + notification);
+                jobManager.deleteJobNotification(notification);
+            } else {
+                long delayMillis = (retryDelaySeconds * 1000L) << (notification.getAttempts() - 1);
+                notification.setNextAttemptDate(new Date(now.getTime() + delayMillis));
+                jobManager.saveJobNotification(notification);
+            }
+        }
+    }
+}
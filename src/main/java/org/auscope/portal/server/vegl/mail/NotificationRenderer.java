@@ -0,0 +1,116 @@
+package org.auscope.portal.server.vegl.mail;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+
+/**
+ * Renders notification emails from Velocity templates.
+ *
+ * Each template is parsed once (on first use) and then shared between threads. Dates are formatted
+ * with (thread safe) cached formatters. Templates can be rendered as plain text or as HTML - for HTML
+ * every String in the model (including those nested in Maps/Lists) is escaped before rendering.
+ */
+public class NotificationRenderer {
+
+    /**
+     * The content type being rendered
+     */
+    public enum Format {
+        TEXT,
+        HTML
+    }
+
+    private VelocityEngine velocityEngine;
+    private ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+    /**
+     * @param velocityEngine Used for loading and parsing templates
+     */
+    public NotificationRenderer(VelocityEngine velocityEngine) {
+        this.velocityEngine = velocityEngine;
+    }
+
+    /**
+     * Gets the parsed template, loading it if this is the first request for it
+     * @param templateName The template location on the class path
+     * @return
+     */
+    public Template getTemplate(String templateName) {
+        Template template = templates.get(templateName);
+        if (template == null) {
+            template = velocityEngine.getTemplate(templateName);
+            Template existing = templates.putIfAbsent(templateName, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Formats date using pattern.
+     * @param date
+     * @param pattern A SimpleDateFormat pattern
+     * @return
+     */
+    public String formatDate(Date date, String pattern) {
+        //FastDateFormat instances are thread safe and cached per pattern
+        return FastDateFormat.getInstance(pattern).format(date);
+    }
+
+    /**
+     * Renders templateName with model
+     * @param templateName The template location on the class path
+     * @param format How the model values should be treated
+     * @param model The values referenced by the template
+     * @return
+     */
+    public String render(String templateName, Format format, Map<String, Object> model) {
+        StringWriter writer = new StringWriter(4096);
+        merge(getTemplate(templateName), format, model, writer);
+        return writer.toString();
+    }
+
+    private void merge(Template template, Format format, Map<String, Object> model, StringWriter writer) {
+        Map<String, Object> contextModel = model;
+        if (format == Format.HTML) {
+            contextModel = escapeHtml(model);
+        }
+        template.merge(new VelocityContext(contextModel), writer);
+    }
+
+    private Map<String, Object> escapeHtml(Map<String, Object> model) {
+        Map<String, Object> escaped = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : model.entrySet()) {
+            escaped.put(entry.getKey(), escapeHtmlValue(entry.getValue()));
+        }
+        return escaped;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object escapeHtmlValue(Object value) {
+        if (value instanceof String) {
+            return StringEscapeUtils.escapeHtml((String) value);
+        } else if (value instanceof Map) {
+            return escapeHtml((Map<String, Object>) value);
+        } else if (value instanceof List) {
+            List<Object> escaped = new ArrayList<Object>();
+            for (Object item : (List<Object>) value) {
+                escaped.add(escapeHtmlValue(item));
+            }
+            return escaped;
+        }
+        return value;
+    }
+}
@@ -15,6 +15,9 @@ import org.auscope.portal.core.services.csw.CSWServiceItem;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
 import org.auscope.portal.core.view.JSONView;
 import org.auscope.portal.server.web.service.VglAdminService;
+import org.auscope.portal.server.web.service.http.ResilientHttpServiceCaller;
+import org.auscope.portal.server.web.service.http.ResilientHttpServiceCaller.CircuitState;
+import org.auscope.portal.server.web.service.http.ResilientHttpServiceCaller.HostStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Controller;
@@ -39,6 +42,8 @@ public class AdminController {
     private PortalPropertyPlaceholderConfigurer portalProperties;
     /** for actually performing diagnostics*/
     private VglAdminService adminService;
+    /** for reporting on the health of upstream hosts*/
+    private ResilientHttpServiceCaller serviceCaller;
 
 
 
@@ -49,9 +54,11 @@ public class AdminController {
     @Autowired
     public AdminController(@Qualifier(value = "cswServiceList") ArrayList cswServiceList,
             PortalPropertyPlaceholderConfigurer portalProperties,
-            VglAdminService adminService) {
+            VglAdminService adminService,
+            ResilientHttpServiceCaller serviceCaller) {
         this.portalProperties = portalProperties;
         this.adminService = adminService;
+        this.serviceCaller = serviceCaller;
         this.cswServiceList = new ArrayList<CSWServiceItem>();
         for (int i = 0; i < cswServiceList.size(); i++) {
             this.cswServiceList.add((CSWServiceItem) cswServiceList.get(i));
@@ -102,6 +109,30 @@ public class AdminController {
         return generateTestResponse(response);
     }
 
+    /**
+     * Reports the connection pool, timeout and circuit breaker state of every upstream host
+     * contacted through the HttpServiceCaller. Hosts with an open circuit are reported as errors.
+     * @return
+     */
+    @RequestMapping("/upstreamHostStatus.diag")
+    public ModelAndView upstreamHostStatus() {
+        AdminDiagnosticResponse response = new AdminDiagnosticResponse();
+        for (HostStatus status : serviceCaller.getHostStatuses()) {
+            String detail = String.format("%1$s: circuit %2$s, %3$d active request(s), %4$d/%5$d connection(s) leased/idle, timeout %6$dms, median latency %7$dms, percentile latency %8$dms, %9$d request(s), %10$d failure(s), %11$d rejected",
+                    status.getHost(), status.getState(), status.getActiveRequests(), status.getLeasedConnections(), status.getAvailableConnections(),
+                    status.getTimeoutMillis(), status.getMedianLatencyMillis(), status.getPercentileLatencyMillis(),
+                    status.getTotalRequests(), status.getTotalFailures(), status.getTotalRejected());
+            response.addDetail(detail);
+
+            if (status.getState() != CircuitState.CLOSED) {
+                response.addError(String.format("'%1$s' is failing fast after %2$d consecutive failure(s)", status.getHost(), status.getConsecutiveFailures()));
+            } else if (status.getConsecutiveFailures() > 0) {
+                response.addWarning(String.format("'%1$s' has failed %2$d time(s) in a row", status.getHost(), status.getConsecutiveFailures()));
+            }
+        }
+        return generateTestResponse(response);
+    }
+
     /**
      * Builds a list of EndpointAndSelector objects by combining an array of endpoints with an array of selectors.
      *
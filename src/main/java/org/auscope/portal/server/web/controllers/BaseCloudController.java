@@ -1,15 +1,14 @@
 package org.auscope.portal.server.web.controllers;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.text.MessageFormat;
 
-import org.apache.commons.io.IOUtils;
 import org.auscope.portal.core.server.PortalPropertyPlaceholderConfigurer;
 import org.auscope.portal.core.server.controllers.BasePortalController;
 import org.auscope.portal.core.services.cloud.CloudComputeService;
 import org.auscope.portal.core.services.cloud.CloudStorageService;
 import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.web.service.BootstrapTemplateService;
+import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * Methods and variables common to any controller wishing to access
@@ -26,6 +25,9 @@ public abstract class BaseCloudController extends BasePortalController {
 
     protected PortalPropertyPlaceholderConfigurer hostConfigurer;
 
+    /** Renders the bootstrap scripts for jobs. Can be overridden with a configured instance*/
+    protected BootstrapTemplateService bootstrapTemplateService = new BootstrapTemplateService();
+
     /**
      * @param cloudStorageServices All cloud storage services that are available to this controller
      * @param cloudComputeServices All cloud compute services that are available to this controller
@@ -93,14 +95,12 @@ public abstract class BaseCloudController extends BasePortalController {
     }
 
     /**
-     * Loads the bootstrap shell script template as a string.
-     * @return
-     * @throws IOException
+     * Sets the service used for rendering job bootstrap scripts
+     * @param bootstrapTemplateService
      */
-    private String getBootstrapTemplate() throws IOException {
-        InputStream is = this.getClass().getResourceAsStream("vl-bootstrap.sh");
-        String template = IOUtils.toString(is);
-        return template.replaceAll("\r", ""); //Windows style file endings have a tendency to sneak in via StringWriter and the like
+    @Autowired(required=false)
+    public void setBootstrapTemplateService(BootstrapTemplateService bootstrapTemplateService) {
+        this.bootstrapTemplateService = bootstrapTemplateService;
     }
 
 
@@ -113,7 +113,6 @@ public abstract class BaseCloudController extends BasePortalController {
      * @throws IOException
      */
     public String createBootstrapForJob(VEGLJob job) throws IOException {
-        String bootstrapTemplate = getBootstrapTemplate();
         CloudStorageService cloudStorageService = getStorageService(job);
 
         Object[] arguments = new Object[] {
@@ -128,8 +127,8 @@ public abstract class BaseCloudController extends BasePortalController {
             cloudStorageService.getRegionName() == null ? "" : cloudStorageService.getRegionName() //OS_REGION_NAME
         };
 
-        String result = MessageFormat.format(bootstrapTemplate, arguments);
-        return result;
+        //Templates can vary per compute service
+        return bootstrapTemplateService.render(job.getComputeServiceId(), arguments);
     }
 
 
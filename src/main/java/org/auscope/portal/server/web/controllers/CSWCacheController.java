@@ -1,61 +1,215 @@
 package org.auscope.portal.server.web.controllers;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.auscope.portal.core.server.PortalPropertyPlaceholderConfigurer;
 import org.auscope.portal.core.server.controllers.BaseCSWController;
-import org.auscope.portal.core.services.CSWCacheService;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.view.ViewCSWRecordFactory;
 import org.auscope.portal.core.view.ViewKnownLayerFactory;
+import org.auscope.portal.server.util.PreRenderedResponse;
+import org.auscope.portal.server.web.service.csw.CSWRecordIndex;
+import org.auscope.portal.server.web.service.csw.CSWRecordIndex.SearchResult;
+import org.auscope.portal.server.web.service.csw.CSWRecordSnapshot;
+import org.auscope.portal.server.web.service.csw.IncrementalCSWCacheService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 
 /**
+ * The record and keyword responses are rendered (and gzipped) once per CSW cache snapshot and
+ * then served to every client with ETag/304 support.
+ *
  * @version $Id: CSWCacheController.java 1863 2011-08-08 07:55:42Z JoshVote $
  */
 @Controller
 public class CSWCacheController extends BaseCSWController {
 
-    private CSWCacheService cswService;
+    private IncrementalCSWCacheService cswService;
+    private ViewCSWRecordFactory viewCSWRecordFactory;
+
+    /** The getCSWRecords.do response for the latest snapshot*/
+    private volatile PreRenderedResponse renderedRecords;
+    /** The getCSWKeywords.do response for the latest snapshot*/
+    private volatile PreRenderedResponse renderedKeywords;
+    /** The spatial/keyword index for the latest snapshot*/
+    private volatile CSWRecordIndex recordIndex;
+
+    /** The maximum number of records that searchCSWRecords.do will return in a single page*/
+    public static final int MAX_SEARCH_LIMIT = 500;
 
     /**
      * Constructor
      * @param
      */
     @Autowired
-    public CSWCacheController(CSWCacheService cswService,
+    public CSWCacheController(IncrementalCSWCacheService cswService,
                          ViewCSWRecordFactory viewCSWRecordFactory,
                          ViewKnownLayerFactory viewKnownLayerFactory,
                          PortalPropertyPlaceholderConfigurer propertyResolver) {
 
         super(viewCSWRecordFactory, viewKnownLayerFactory);
         this.cswService = cswService;
+        this.viewCSWRecordFactory = viewCSWRecordFactory;
 
         cswService.updateCache();
     }
 
+    /**
+     * Renders a standard JSON response (success, data, msg) for the specified snapshot version
+     */
+    private PreRenderedResponse renderResponse(long version, Object data) throws IOException {
+        ModelMap model = new ModelMap();
+        model.put("success", true);
+        model.put("data", data);
+        model.put("msg", "");
+        return PreRenderedResponse.fromJson(version, model);
+    }
+
+    /**
+     * Gets the rendered getCSWRecords.do response for the current snapshot, rendering it if required
+     */
+    private PreRenderedResponse getRenderedRecords() throws Exception {
+        CSWRecordSnapshot snapshot = cswService.getSnapshot();
+        PreRenderedResponse rendered = renderedRecords;
+        if (rendered != null && rendered.getVersion() == snapshot.getVersion()) {
+            return rendered;
+        }
+
+        synchronized (this) {
+            rendered = renderedRecords;
+            if (rendered == null || rendered.getVersion() != snapshot.getVersion()) {
+                List<ModelMap> views = new ArrayList<ModelMap>(snapshot.getRecords().size());
+                for (CSWRecord record : snapshot.getRecords()) {
+                    views.add(viewCSWRecordFactory.toView(record));
+                }
+                rendered = renderResponse(snapshot.getVersion(), views);
+                renderedRecords = rendered;
+            }
+            return rendered;
+        }
+    }
+
+    /**
+     * Gets the rendered getCSWKeywords.do response for the current snapshot, rendering it if required
+     */
+    private PreRenderedResponse getRenderedKeywords() throws Exception {
+        CSWRecordSnapshot snapshot = cswService.getSnapshot();
+        PreRenderedResponse rendered = renderedKeywords;
+        if (rendered != null && rendered.getVersion() == snapshot.getVersion()) {
+            return rendered;
+        }
+
+        synchronized (this) {
+            rendered = renderedKeywords;
+            if (rendered == null || rendered.getVersion() != snapshot.getVersion()) {
+                Map<String, Set<CSWRecord>> keywords = snapshot.getKeywords();
+                List<ModelMap> response = new ArrayList<ModelMap>();
+                for (String keyword : keywords.keySet()) {
+                    ModelMap modelMap = new ModelMap();
+                    modelMap.put("keyword", keyword);
+                    modelMap.put("count", keywords.get(keyword).size());
+                    response.add(modelMap);
+                }
+                rendered = renderResponse(snapshot.getVersion(), response);
+                renderedKeywords = rendered;
+            }
+            return rendered;
+        }
+    }
+
+    /**
+     * Gets the spatial/keyword index for the current snapshot, building it if required
+     */
+    private CSWRecordIndex getRecordIndex() {
+        CSWRecordSnapshot snapshot = cswService.getSnapshot();
+        CSWRecordIndex index = recordIndex;
+        if (index != null && index.getVersion() == snapshot.getVersion()) {
+            return index;
+        }
+
+        synchronized (this) {
+            index = recordIndex;
+            if (index == null || index.getVersion() != snapshot.getVersion()) {
+                index = new CSWRecordIndex(snapshot.getVersion(), snapshot.getRecords());
+                recordIndex = index;
+            }
+            return index;
+        }
+    }
+
     /**
      * This controller method returns a representation of each and every CSWRecord from the internal cache
-     * @throws Exception
+     *
+     * Returns null on success (the response is written directly)
      */
     @RequestMapping("/getCSWRecords.do")
-    public ModelAndView getCSWRecords() {
-        List<CSWRecord> records = null;
+    public ModelAndView getCSWRecords(HttpServletRequest request, HttpServletResponse response) {
+        PreRenderedResponse rendered = null;
         try {
-            records = this.cswService.getRecordCache();
+            rendered = getRenderedRecords();
         } catch (Exception e) {
             log.error(String.format("error getting data records: %1$s", e));
             log.debug("Exception:", e);
             return generateJSONResponseMAV(false, new CSWRecord[] {}, "Error getting data records");
         }
-        return generateJSONResponseMAV(records.toArray(new CSWRecord[records.size()]));
+
+        writeRenderedResponse(rendered, request, response);
+        return null;
+    }
+
+    /**
+     * Searches the internal cache for CSWRecords that intersect a bounding box and/or have a set of keywords.
+     * Only the requested page of records is returned.
+     *
+     * The response data will be an object with 'records' (the page of records) and 'totalResults' (the total number
+     * of matching records)
+     *
+     * @param westBoundLongitude [Optional] If any bound is omitted, records will not be spatially filtered
+     * @param eastBoundLongitude [Optional] May be less than westBoundLongitude for regions crossing the anti meridian
+     * @param southBoundLatitude [Optional]
+     * @param northBoundLatitude [Optional]
+     * @param keywords [Optional] Records must have all of these keywords (case insensitive)
+     * @param start [Optional] The index of the first matching record to return
+     * @param limit [Optional] The maximum number of records to return (capped at MAX_SEARCH_LIMIT)
+     * @return
+     */
+    @RequestMapping("/searchCSWRecords.do")
+    public ModelAndView searchCSWRecords(@RequestParam(value="westBoundLongitude", required=false) Double westBoundLongitude,
+            @RequestParam(value="eastBoundLongitude", required=false) Double eastBoundLongitude,
+            @RequestParam(value="southBoundLatitude", required=false) Double southBoundLatitude,
+            @RequestParam(value="northBoundLatitude", required=false) Double northBoundLatitude,
+            @RequestParam(value="keywords", required=false) String[] keywords,
+            @RequestParam(value="start", required=false, defaultValue="0") int start,
+            @RequestParam(value="limit", required=false, defaultValue="100") int limit) {
+        try {
+            SearchResult result = getRecordIndex().search(westBoundLongitude, eastBoundLongitude, southBoundLatitude, northBoundLatitude,
+                    keywords, Math.max(0, start), Math.max(0, Math.min(limit, MAX_SEARCH_LIMIT)));
+
+            List<ModelMap> views = new ArrayList<ModelMap>(result.getRecords().size());
+            for (CSWRecord record : result.getRecords()) {
+                views.add(viewCSWRecordFactory.toView(record));
+            }
+
+            ModelMap data = new ModelMap();
+            data.put("records", views);
+            data.put("totalResults", result.getTotalMatches());
+            return generateJSONResponseMAV(true, data, "");
+        } catch (Exception e) {
+            log.error(String.format("error searching data records: %1$s", e));
+            log.debug("Exception:", e);
+            return generateJSONResponseMAV(false, null, "Error searching data records");
+        }
     }
 
     /**
@@ -75,21 +229,32 @@ public class CSWCacheController extends BaseCSWController {
     }
 
     /**
-     * Requests every keyword as cached by
+     * Requests every keyword as cached by the CSW cache (along with a count of records for each keyword)
+     *
+     * Returns null on success (the response is written directly)
      * @return
      */
     @RequestMapping("/getCSWKeywords.do")
-    public ModelAndView getCSWKeywords() {
-        Map<String, Set<CSWRecord>> keywords = this.cswService.getKeywordCache();
-
-        List<ModelMap> response = new ArrayList<ModelMap>();
-        for (String keyword : keywords.keySet()) {
-            ModelMap modelMap = new ModelMap();
-            modelMap.put("keyword", keyword);
-            modelMap.put("count", keywords.get(keyword).size());
-            response.add(modelMap);
+    public ModelAndView getCSWKeywords(HttpServletRequest request, HttpServletResponse response) {
+        PreRenderedResponse rendered = null;
+        try {
+            rendered = getRenderedKeywords();
+        } catch (Exception e) {
+            log.error(String.format("error getting keywords: %1$s", e));
+            log.debug("Exception:", e);
+            return generateJSONResponseMAV(false, null, "Error getting keywords");
         }
 
-        return generateJSONResponseMAV(true, response, "");
+        writeRenderedResponse(rendered, request, response);
+        return null;
+    }
+
+    private void writeRenderedResponse(PreRenderedResponse rendered, HttpServletRequest request, HttpServletResponse response) {
+        try {
+            rendered.write(request, response);
+        } catch (IOException e) {
+            //Most likely the client has disconnected
+            log.debug("Unable to write response:", e);
+        }
     }
 }
@@ -1,29 +1,45 @@
 package org.auscope.portal.server.web.controllers;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
-import net.sf.json.JSONNull;
-import net.sf.json.JSONObject;
-
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
 import org.auscope.portal.core.server.controllers.BasePortalController;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
-import org.auscope.portal.core.server.http.download.DownloadResponse;
-import org.auscope.portal.core.server.http.download.ServiceDownloadManager;
 import org.auscope.portal.core.util.MimeUtil;
+import org.auscope.portal.server.util.GmlJsonEnvelopeParser;
+import org.auscope.portal.server.util.GmlJsonEnvelopeParser.Envelope;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -38,10 +54,32 @@ import org.springframework.web.bind.annotation.RequestParam;
 public class DownloadController extends BasePortalController {
     private final Log logger = LogFactory.getLog(getClass());
     private HttpServiceCaller serviceCaller;
+    /** Shared (bounded) pool for making GML download requests*/
+    private ExecutorService downloadPool;
 
     @Autowired
-    public DownloadController(HttpServiceCaller serviceCaller) {
+    public DownloadController(HttpServiceCaller serviceCaller,
+            @Qualifier(value = "gmlDownloadExecutor") ExecutorService downloadPool) {
         this.serviceCaller = serviceCaller;
+        this.downloadPool = downloadPool;
+    }
+
+    /**
+     * The outcome of downloading a single GML service URL. The GML (if any) is spooled to a temporary file
+     */
+    private static class GmlDownload {
+        final int index;
+        final String requestUrl;
+        Envelope envelope;
+        volatile File gmlFile;
+        Exception exception;
+        /** Set once the response has been abandoned - the temp file should be deleted as soon as it's closed*/
+        volatile boolean abandoned;
+
+        GmlDownload(int index, String requestUrl) {
+            this.index = index;
+            this.requestUrl = requestUrl;
+        }
     }
 
     /**
@@ -56,11 +94,19 @@ public class DownloadController extends BasePortalController {
     public void downloadGMLAsZip(
             @RequestParam("serviceUrls") final String[] serviceUrls,
             HttpServletResponse response) throws Exception {
-        ExecutorService pool = Executors.newCachedThreadPool();
-        downloadGMLAsZip(serviceUrls,response,pool);
+        downloadGMLAsZip(serviceUrls, response, downloadPool);
     }
 
-
+    /**
+     * Given a list of URls, this function will collate the responses into a zip file and send the
+     * response back to the browser. Requests are made (and their GML extracted) on threadpool, each
+     * response is written to the zip as soon as it completes.
+     *
+     * @param serviceUrls
+     * @param response
+     * @param threadpool Will NOT be shutdown by this method
+     * @throws Exception
+     */
     public void downloadGMLAsZip(
             @RequestParam("serviceUrls") final String[] serviceUrls,
             HttpServletResponse response,ExecutorService threadpool) throws Exception {
@@ -74,63 +120,138 @@ public class DownloadController extends BasePortalController {
         ZipOutputStream zout = new ZipOutputStream(response.getOutputStream());
 
         logger.trace("No. of serviceUrls: " + serviceUrls.length);
-        ServiceDownloadManager downloadManager = new ServiceDownloadManager(serviceUrls, serviceCaller,threadpool);
-        //VT: threadpool is closed within downloadAll();
-        ArrayList<DownloadResponse> gmlDownloads=downloadManager.downloadAll();
-        writeResponseToZip(gmlDownloads,zout);
+        CompletionService<GmlDownload> completionService = new ExecutorCompletionService<GmlDownload>(threadpool);
+        List<GmlDownload> downloads = new ArrayList<GmlDownload>(serviceUrls.length);
+        List<Future<GmlDownload>> futures = new ArrayList<Future<GmlDownload>>(serviceUrls.length);
+        StringBuilder errorMsg = new StringBuilder();
+        try {
+            for (int i = 0; i < serviceUrls.length; i++) {
+                final GmlDownload download = new GmlDownload(i, getRequestUrl(serviceUrls[i]));
+                final String serviceUrl = serviceUrls[i];
+                downloads.add(download);
+                futures.add(completionService.submit(new Callable<GmlDownload>() {
+                    @Override
+                    public GmlDownload call() {
+                        downloadGml(serviceUrl, download);
+                        return download;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < serviceUrls.length; i++) {
+                GmlDownload download = completionService.take().get();
+                try {
+                    writeDownloadToZip(download, zout, errorMsg);
+                } finally {
+                    deleteGmlFile(download);
+                }
+            }
+        } catch (ExecutionException ex) {
+            //downloadGml handles its own exceptions so this shouldn't occur
+            throw (Exception) ex.getCause();
+        } finally {
+            //If we didn't make it through every download (eg the client went away) stop the outstanding
+            //requests and make sure none of their temp files are left behind
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).cancel(true);
+                downloads.get(i).abandoned = true;
+                deleteGmlFile(downloads.get(i));
+            }
+        }
+
+        if(errorMsg.length()!=0){
+            zout.putNextEntry(new ZipEntry("downloadInfo.txt"));
+            zout.write(errorMsg.toString().getBytes());
+            zout.closeEntry();
+        }
 
         zout.finish();
         zout.flush();
         zout.close();
     }
 
-    private void writeResponseToZip(ArrayList<DownloadResponse> gmlDownloads,ZipOutputStream zout) throws IOException{
-        StringBuilder errorMsg=new StringBuilder();
-
-        for(int i=0;i<gmlDownloads.size();i++){
-            DownloadResponse download=gmlDownloads.get(i);
-            //Check that attempt to request is successful
-            if(!download.hasException()){
-                JSONObject jsonObject = JSONObject.fromObject(download.getResponseAsString());
-                //check that JSON reply is successful
-                if (jsonObject.get("success").toString().equals("false")) {
-                    errorMsg.append("Unsuccessful JSON reply from: " + download.getRequestURL() + "\n");
-
-                    Object messageObject = jsonObject.get("msg");
-                    if(messageObject==null || messageObject.toString().length()==0){
-                        errorMsg.append("No error message\n\n");
-                    }else{
-                        errorMsg.append(messageObject.toString() + "\n\n");
-                    }
-                }else{
-                    byte[] gmlBytes = new byte[] {};
-                    Object dataObject = jsonObject.get("data");
-                    if (dataObject != null && !JSONNull.getInstance().equals(dataObject)) {
-                        Object gmlResponseObject = JSONObject.fromObject(dataObject)
-                                .get("gml");
-
-                        if (gmlResponseObject != null) {
-                            gmlBytes = gmlResponseObject.toString().getBytes("utf-8");
-                        }
-                    }
+    private void deleteGmlFile(GmlDownload download) {
+        File gmlFile = download.gmlFile;
+        if (gmlFile != null) {
+            gmlFile.delete();
+        }
+    }
 
-                    zout.putNextEntry(new ZipEntry(new SimpleDateFormat(
-                            (i + 1) + "_yyyyMMdd_HHmmss").format(new Date())
-                            + ".xml"));
-                    zout.write(gmlBytes);
-                    zout.closeEntry();
+    /**
+     * The portal GML endpoints are all proxies - the URL reported in error messages should be the underlying service
+     */
+    private String getRequestUrl(String url) {
+        try {
+            for (NameValuePair param : new URIBuilder(url).getQueryParams()) {
+                if ("serviceUrl".equals(param.getName())) {
+                    return param.getValue();
                 }
+            }
+        } catch (Exception ex) {
+            logger.debug("Unable to parse URL: " + url);
+        }
+        return url;
+    }
+
+    /**
+     * Makes the request, streaming the GML out of the JSON envelope into a temporary file.
+     * Any exceptions are recorded against download.
+     */
+    private void downloadGml(String serviceUrl, GmlDownload download) {
+        HttpGet method = new HttpGet(serviceUrl);
+        InputStream responseStream = null;
+        Writer gmlWriter = null;
+        try {
+            HttpResponse httpResponse = serviceCaller.getMethodResponseAsHttpResponse(method);
+            responseStream = httpResponse.getEntity().getContent();
 
-            }else{
-                errorMsg.append("Exception thrown while attempting to download from: " + download.getRequestURL() + "\n");
-                errorMsg.append(download.getExceptionAsString()+ "\n\n");
+            download.gmlFile = File.createTempFile("gmlDownload", ".xml");
+            gmlWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(download.gmlFile), "UTF-8"));
+            download.envelope = new GmlJsonEnvelopeParser(new BufferedReader(new InputStreamReader(responseStream, "UTF-8"))).parse(gmlWriter);
+        } catch (Exception ex) {
+            logger.debug(String.format("Error downloading '%1$s':", serviceUrl), ex);
+            download.exception = ex;
+        } finally {
+            IOUtils.closeQuietly(gmlWriter);
+            IOUtils.closeQuietly(responseStream);
+            method.releaseConnection();
+            if (download.abandoned) {
+                deleteGmlFile(download);
             }
         }
-        if(errorMsg.length()!=0){
-            zout.putNextEntry(new ZipEntry("downloadInfo.txt"));
-            zout.write(errorMsg.toString().getBytes());
-            zout.closeEntry();
+    }
+
+    private void writeDownloadToZip(GmlDownload download, ZipOutputStream zout, StringBuilder errorMsg) throws IOException {
+        //Check that attempt to request is successful
+        if (download.exception != null) {
+            errorMsg.append("Exception thrown while attempting to download from: " + download.requestUrl + "\n");
+            errorMsg.append(download.exception.toString() + "\n\n");
+            return;
+        }
+
+        //check that JSON reply is successful
+        if (!download.envelope.isSuccess()) {
+            errorMsg.append("Unsuccessful JSON reply from: " + download.requestUrl + "\n");
+
+            String message = download.envelope.getMsg();
+            if (message == null || message.length() == 0) {
+                errorMsg.append("No error message\n\n");
+            } else {
+                errorMsg.append(message + "\n\n");
+            }
+            return;
+        }
+
+        zout.putNextEntry(new ZipEntry(new SimpleDateFormat(
+                (download.index + 1) + "_yyyyMMdd_HHmmss").format(new Date())
+                + ".xml"));
+        InputStream gmlStream = new FileInputStream(download.gmlFile);
+        try {
+            IOUtils.copy(gmlStream, zout);
+        } finally {
+            IOUtils.closeQuietly(gmlStream);
         }
+        zout.closeEntry();
     }
 
     /**
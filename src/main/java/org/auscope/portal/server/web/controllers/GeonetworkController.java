@@ -1,24 +1,19 @@
 package org.auscope.portal.server.web.controllers;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.jar.Attributes;
-import java.util.jar.Manifest;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.auscope.portal.core.cloud.CloudFileInformation;
 import org.auscope.portal.core.server.security.oauth2.PortalUser;
-import org.auscope.portal.core.services.GeonetworkService;
 import org.auscope.portal.core.services.cloud.CloudComputeService;
 import org.auscope.portal.core.services.cloud.CloudStorageService;
 import org.auscope.portal.core.services.responses.csw.CSWContact;
@@ -32,10 +27,16 @@ import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VEGLSeries;
 import org.auscope.portal.server.vegl.VGLSignature;
 import org.auscope.portal.server.vegl.VglDownload;
+import org.auscope.portal.server.web.service.BuildInfoService;
+import org.auscope.portal.server.web.service.JobRegistrationService;
+import org.auscope.portal.server.web.service.JobRegistrationService.RegistrationStatus;
+import org.auscope.portal.server.web.service.SeriesRegistrationService;
+import org.auscope.portal.server.web.service.SeriesRegistrationService.SeriesRegistrationStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.web.bind.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 
@@ -49,44 +50,46 @@ public class GeonetworkController extends BaseCloudController {
     protected final Log logger = LogFactory.getLog(getClass());
 
     private VEGLJobManager jobManager;
-    private GeonetworkService gnService;
+    private JobRegistrationService jobRegistrationService;
+    private SeriesRegistrationService seriesRegistrationService;
+    private BuildInfoService buildInfoService;
 
     @Autowired
-    public GeonetworkController(VEGLJobManager jobManager, GeonetworkService gnService, CloudStorageService[] cloudStorageServices, CloudComputeService[] cloudComputeServices) {
+    public GeonetworkController(VEGLJobManager jobManager, CloudStorageService[] cloudStorageServices,
+            CloudComputeService[] cloudComputeServices, JobRegistrationService jobRegistrationService,
+            SeriesRegistrationService seriesRegistrationService, BuildInfoService buildInfoService) {
         super(cloudStorageServices, cloudComputeServices);
         this.jobManager = jobManager;
-        this.gnService = gnService;
         this.cloudStorageServices = cloudStorageServices;
+        this.jobRegistrationService = jobRegistrationService;
+        this.seriesRegistrationService = seriesRegistrationService;
+        this.buildInfoService = buildInfoService;
     }
 
     /**
-     * Converts a job into a CSWRecord that can be stored in a registry.
-     *
-     * The record is mostly prefilled with Geoscience Australia contact information
-     * @param job
-     * @return
-     * @throws MalformedURLException
-     * @throws CloudStorageException
+     * Describes the workflow version (from the build details) for inclusion in every registered record
+     * @return null if the build details are unavailable
      */
-    private CSWRecord jobToCSWRecord(HttpServletRequest request, VEGLJob job, VEGLSeries series) throws Exception {
-        CloudStorageService cloudStorageService = getStorageService(job);
-        if (cloudStorageService == null) {
-            throw new Exception(String.format("storage service with ID %1$s DNE", job.getStorageServiceId()));
+    private String getDataQualityStatement() {
+        if (buildInfoService.getValue("specificationTitle") == null) {
+            return null;
         }
 
-        CloudFileInformation[] outputFiles =  cloudStorageService.listJobFiles(job);
-        List<CSWOnlineResourceImpl> onlineResources = new ArrayList<CSWOnlineResourceImpl>();
-
-        //Add any output files to our online resources tab
-        if (outputFiles != null) {
-            for (CloudFileInformation obj : outputFiles) {
-                onlineResources.add(new CSWOnlineResourceImpl(new URL(obj.getPublicUrl()), "WWW:DOWNLOAD-1.0-ftp--download", obj.getName(), obj.getName()));
-            }
-        }
+        return String.format(
+                "Workflow by %1$s Version %2$s.%3$s. \nProcessed by GRAV3D MPI - Version 4.0 20100108.",
+                buildInfoService.getValue("specificationTitle"),
+                buildInfoService.getValue("implementationVersion"),
+                buildInfoService.getValue("implementationBuild"));
+    }
 
-        //Add our remote service downloads to the online resources tab
-        List<VglDownload> jobDownloads = job.getJobDownloads();
-        for (VglDownload dl : jobDownloads) {
+    /**
+     * Converts the remote service downloads of a job into online resources
+     * @param job
+     * @return
+     */
+    private List<CSWOnlineResourceImpl> jobDownloadsToOnlineResources(VEGLJob job) {
+        List<CSWOnlineResourceImpl> onlineResources = new ArrayList<CSWOnlineResourceImpl>();
+        for (VglDownload dl : job.getJobDownloads()) {
             URL url = null;
             try {
                 url = new URL(dl.getUrl());
@@ -98,6 +101,19 @@ public class GeonetworkController extends BaseCloudController {
             onlineResources.add(new CSWOnlineResourceImpl(url, "WWW:LINK-1.0-http--link", dl.getName(), dl.getDescription()));
         }
 
+        return onlineResources;
+    }
+
+    /**
+     * Converts a job into a CSWRecord that can be stored in a registry. The record's online resources
+     * are left for JobRegistrationService to populate.
+     *
+     * The record is mostly prefilled with Geoscience Australia contact information
+     * @param job
+     * @return
+     * @throws MalformedURLException
+     */
+    private CSWRecord jobToCSWRecord(HttpServletRequest request, VEGLJob job, VEGLSeries series) throws MalformedURLException {
         //Generate our contact details
         CSWContact contact = new CSWContact();
         contact.setAddressAdministrativeArea(request.getParameter("administrativeArea"));
@@ -124,7 +140,7 @@ public class GeonetworkController extends BaseCloudController {
 
         //Build our bounding boxes
         List<CSWGeographicElement> geoEls = new ArrayList<CSWGeographicElement>();
-        for (VglDownload dl : jobDownloads) {
+        for (VglDownload dl : job.getJobDownloads()) {
             if ( dl.getEastBoundLongitude()!= null &&
                     dl.getWestBoundLongitude() != null &&
                     dl.getNorthBoundLatitude() != null &&
@@ -149,26 +165,15 @@ public class GeonetworkController extends BaseCloudController {
             rec.setDescriptiveKeywords(descriptiveKeywords.split("[\\s,]+"));
         }
 
-        rec.setOnlineResources(onlineResources.toArray(new CSWOnlineResourceImpl[onlineResources.size()]));
         rec.setResourceProvider(request.getParameter("organisationName"));
         rec.setServiceName(job.getName());
 
         // set by VGL
         rec.setSupplementalInformation(String.format("User: %1$s\nSeries: %2$s\nDescription: %3$s",job.getUser(), series.getName(), series.getDescription()));
 
-        String appServerHome = request.getSession().getServletContext().getRealPath("/");
-        File manifestFile = new File(appServerHome,"META-INF/MANIFEST.MF");
-        Manifest mf = new Manifest();
-        try {
-            mf.read(new FileInputStream(manifestFile));
-            Attributes atts = mf.getMainAttributes();
-            rec.setDataQualityStatement(String.format(
-                    "Workflow by %1$s Version %2$s.%3$s. \nProcessed by GRAV3D MPI - Version 4.0 20100108.",
-                    atts.getValue("Specification-Title"),
-                    atts.getValue("Implementation-Version"),
-                    atts.getValue("Implementation-Build")));
-        } catch (IOException e) {
-            logger.error("Error reading manifest file.", e);
+        String dataQualityStatement = getDataQualityStatement();
+        if (dataQualityStatement != null) {
+            rec.setDataQualityStatement(dataQualityStatement);
         }
 
         return rec;
@@ -202,10 +207,55 @@ public class GeonetworkController extends BaseCloudController {
     }
 
     /**
-     * Requests that the portal should insert details of a job into GeoNetwork
+     * Stores or updates the user signature (from the request parameters) so that the details can be re-used
+     * in subsequent registration process
+     * @return The saved signature
+     */
+    private VGLSignature saveUserSignature(HttpServletRequest request, PortalUser user) {
+        VGLSignature userSignature = jobManager.getSignatureByUser(user.getEmail());
+        if (userSignature == null) {
+            logger.debug("Create a new signature as the user doesn't have one.");
+            userSignature = new VGLSignature();
+        }
+        userSignature.setUser(user.getEmail());
+        userSignature.setIndividualName(request.getParameter("individualName"));
+        userSignature.setOrganisationName(request.getParameter("organisationName"));
+        userSignature.setPositionName(request.getParameter("positionName"));
+        userSignature.setTelephone(request.getParameter("telephone"));
+        userSignature.setFacsimile(request.getParameter("facsimile"));
+        userSignature.setDeliveryPoint(request.getParameter("deliveryPoint"));
+        userSignature.setCity(request.getParameter("city"));
+        userSignature.setAdministrativeArea(request.getParameter("administrativeArea"));
+        userSignature.setPostalCode(request.getParameter("postalCode"));
+        userSignature.setCountry(request.getParameter("country"));
+        userSignature.setOnlineContactName(request.getParameter("onlineContactName"));
+        userSignature.setOnlineContactDescription(request.getParameter("onlineContactDescription"));
+        userSignature.setOnlineContactURL(request.getParameter("onlineContactURL"));
+        userSignature.setKeywords(request.getParameter("keywords"));
+        userSignature.setConstraints(request.getParameter("constraints"));
+        jobManager.saveSignature(userSignature);
+        return userSignature;
+    }
+
+    /**
+     * Converts a registration status into a response object
+     */
+    private ModelMap statusToModel(RegistrationStatus status) {
+        ModelMap model = new ModelMap();
+        model.put("jobId", status.getJobId());
+        model.put("status", status.getStatus().toString());
+        model.put("finished", status.isFinished());
+        model.put("registeredUrl", status.getRegisteredUrl());
+        model.put("message", status.getMessage());
+        return model;
+    }
+
+    /**
+     * Requests that the portal should insert details of a job into GeoNetwork. The user's signature is
+     * updated immediately, the registration itself happens in the background (see getRegistrationStatus.do).
      * @param jobId
      * @param request
-     * @return A generic VEGL JSON response with the data element populated with the geonetwork URL string (on success)
+     * @return A generic VEGL JSON response with the data element populated with the registration status
      * @throws Exception
      */
     @RequestMapping("/secure/insertRecord.do")
@@ -230,44 +280,155 @@ public class GeonetworkController extends BaseCloudController {
                     "Please refresh this page and login again to complete the job registration.");
         }
 
+        CloudStorageService cloudStorageService = getStorageService(job);
+        if (cloudStorageService == null) {
+            logger.error(String.format("Error registering job %1$s: storage service with ID %2$s DNE", jobId, job.getStorageServiceId()));
+            return generateJSONResponseMAV(false, null, "Internal error");
+        }
+
         try {
-            //Store or update user signature so that the details can be re-used
-            //in subsequent registration process
-            VGLSignature userSignature = jobManager.getSignatureByUser(user.getEmail());
-            if (userSignature == null) {
-                logger.debug("Create a new signature as the user doesn't have one.");
-                userSignature = new VGLSignature();
-            }
-            userSignature.setUser(user.getEmail());
-            userSignature.setIndividualName(request.getParameter("individualName"));
-            userSignature.setOrganisationName(request.getParameter("organisationName"));
-            userSignature.setPositionName(request.getParameter("positionName"));
-            userSignature.setTelephone(request.getParameter("telephone"));
-            userSignature.setFacsimile(request.getParameter("facsimile"));
-            userSignature.setDeliveryPoint(request.getParameter("deliveryPoint"));
-            userSignature.setCity(request.getParameter("city"));
-            userSignature.setAdministrativeArea(request.getParameter("administrativeArea"));
-            userSignature.setPostalCode(request.getParameter("postalCode"));
-            userSignature.setCountry(request.getParameter("country"));
-            userSignature.setOnlineContactName(request.getParameter("onlineContactName"));
-            userSignature.setOnlineContactDescription(request.getParameter("onlineContactDescription"));
-            userSignature.setOnlineContactURL(request.getParameter("onlineContactURL"));
-            userSignature.setKeywords(request.getParameter("keywords"));
-            userSignature.setConstraints(request.getParameter("constraints"));
-            jobManager.saveSignature(userSignature);
-
-            //Create an instance of our CSWRecord and transform it to a <gmd:MD_Metadata> record
+            saveUserSignature(request, user);
+
+            //Create an instance of our CSWRecord (everything that depends on this request is read now)
             CSWRecord record = jobToCSWRecord(request, job, jobSeries);
+            List<CSWOnlineResourceImpl> downloadResources = jobDownloadsToOnlineResources(job);
 
-            //Lets connect to geonetwork and then send our new record
-            String metadataRecordUrl = gnService.makeCSWRecordInsertion(record);
-            job.setRegisteredUrl(metadataRecordUrl);
-            jobManager.saveJob(job);
+            //Listing outputs and sending the record to geonetwork can take a while
+            RegistrationStatus status = jobRegistrationService.register(job, record, downloadResources, cloudStorageService);
+            if (status.getStatus() == JobRegistrationService.Status.FAILED) {
+                return generateJSONResponseMAV(false, statusToModel(status), status.getMessage());
+            }
 
-            return generateJSONResponseMAV(true, metadataRecordUrl, "");
+            return generateJSONResponseMAV(true, statusToModel(status), "");
         } catch (Exception ex) {
             logger.warn("Error registering job to Geonetwork for jobId=" + jobId, ex);
             return generateJSONResponseMAV(false, null, "Internal error");
         }
     }
+
+    /**
+     * Gets the progress of a job registration started with insertRecord.do
+     * @param jobId
+     * @return A generic VEGL JSON response with the data element populated with the registration status. The registered
+     *         URL will be populated once the registration succeeds.
+     */
+    @RequestMapping("/secure/getRegistrationStatus.do")
+    public ModelAndView getRegistrationStatus(@RequestParam("jobId") final Integer jobId, @AuthenticationPrincipal PortalUser user) {
+        if (user == null) {
+            return generateJSONResponseMAV(false, null,
+                    "Your session has timed out.",
+                    "Please refresh this page and login again to complete the job registration.");
+        }
+
+        RegistrationStatus status = jobRegistrationService.getStatus(jobId);
+        if (status == null) {
+            //The registration may have finished a long time ago
+            VEGLJob job = jobManager.getJobById(jobId);
+            if (job == null || StringUtils.isEmpty(job.getRegisteredUrl())) {
+                return generateJSONResponseMAV(false, null, "The specified job is not being registered.");
+            }
+            status = new RegistrationStatus(jobId, JobRegistrationService.Status.SUCCEEDED, job.getRegisteredUrl(), null);
+        }
+
+        if (status.getStatus() == JobRegistrationService.Status.FAILED) {
+            return generateJSONResponseMAV(false, statusToModel(status), status.getMessage());
+        }
+        return generateJSONResponseMAV(true, statusToModel(status), "");
+    }
+
+    /**
+     * Converts a series registration status into a response object
+     */
+    private ModelMap statusToModel(SeriesRegistrationStatus status) {
+        ModelMap model = new ModelMap();
+        model.put("seriesId", status.getSeriesId());
+        model.put("status", status.getStatus().toString());
+        model.put("finished", status.isFinished());
+        model.put("registeredUrl", status.getRegisteredUrl());
+        model.put("jobsRegistered", status.getJobsRegistered());
+        model.put("jobsTotal", status.getJobsTotal());
+        model.put("message", status.getMessage());
+        return model;
+    }
+
+    /**
+     * Requests that the portal should insert an entire series into GeoNetwork. The series is registered as a parent
+     * record (using the contact details from this request) with a child record for each of its jobs. The registration
+     * happens in the background (see getSeriesRegistrationStatus.do).
+     * @param seriesId
+     * @param request
+     * @return A generic VEGL JSON response with the data element populated with the registration status
+     */
+    @RequestMapping("/secure/insertSeriesRecord.do")
+    public ModelAndView insertSeriesRecord(@RequestParam("seriesId") final Integer seriesId, HttpServletRequest request, @AuthenticationPrincipal PortalUser user) {
+        if (user == null) {
+            logger.debug("Unable to get user email as user session has expired.");
+            return generateJSONResponseMAV(false, null,
+                    "Your session has timed out.",
+                    "Please refresh this page and login again to complete the series registration.");
+        }
+
+        VEGLSeries series = jobManager.getSeriesById(seriesId);
+        if (series == null) {
+            return generateJSONResponseMAV(false, null, "The specified series does not exist.");
+        }
+        if (!user.getEmail().equals(series.getUser())) {
+            logger.warn(String.format("%1$s's attempt to register %2$s's series denied!", user, series.getUser()));
+            return generateJSONResponseMAV(false, null, "You do not have permission to register this series.");
+        }
+
+        List<VEGLJob> seriesJobs = jobManager.getSeriesJobs(seriesId);
+        if (seriesJobs == null || seriesJobs.isEmpty()) {
+            return generateJSONResponseMAV(false, null, "The specified series does not contain any jobs.");
+        }
+
+        Map<VEGLJob, CloudStorageService> jobs = new LinkedHashMap<VEGLJob, CloudStorageService>();
+        for (VEGLJob job : seriesJobs) {
+            CloudStorageService cloudStorageService = getStorageService(job);
+            if (cloudStorageService == null) {
+                logger.error(String.format("Error registering series %1$s: storage service with ID %2$s DNE", seriesId, job.getStorageServiceId()));
+                return generateJSONResponseMAV(false, null, "Internal error");
+            }
+            jobs.put(job, cloudStorageService);
+        }
+
+        try {
+            //The contact details are read once for the whole series
+            VGLSignature userSignature = saveUserSignature(request, user);
+
+            SeriesRegistrationStatus status = seriesRegistrationService.register(series, jobs, userSignature, getDataQualityStatement());
+            if (status.getStatus() == JobRegistrationService.Status.FAILED) {
+                return generateJSONResponseMAV(false, statusToModel(status), status.getMessage());
+            }
+
+            return generateJSONResponseMAV(true, statusToModel(status), "");
+        } catch (Exception ex) {
+            logger.warn("Error registering series to Geonetwork for seriesId=" + seriesId, ex);
+            return generateJSONResponseMAV(false, null, "Internal error");
+        }
+    }
+
+    /**
+     * Gets the progress of a series registration started with insertSeriesRecord.do
+     * @param seriesId
+     * @return A generic VEGL JSON response with the data element populated with the registration status.
+     */
+    @RequestMapping("/secure/getSeriesRegistrationStatus.do")
+    public ModelAndView getSeriesRegistrationStatus(@RequestParam("seriesId") final Integer seriesId, @AuthenticationPrincipal PortalUser user) {
+        if (user == null) {
+            return generateJSONResponseMAV(false, null,
+                    "Your session has timed out.",
+                    "Please refresh this page and login again to complete the series registration.");
+        }
+
+        SeriesRegistrationStatus status = seriesRegistrationService.getStatus(seriesId);
+        if (status == null) {
+            return generateJSONResponseMAV(false, null, "The specified series is not being registered.");
+        }
+
+        if (status.getStatus() == JobRegistrationService.Status.FAILED) {
+            return generateJSONResponseMAV(false, statusToModel(status), status.getMessage());
+        }
+        return generateJSONResponseMAV(true, statusToModel(status), "");
+    }
 }
\ No newline at end of file
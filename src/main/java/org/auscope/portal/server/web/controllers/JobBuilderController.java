@@ -10,15 +10,21 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import net.sf.json.JSONObject;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.cloud.CloudJob;
@@ -32,14 +38,17 @@ import org.auscope.portal.core.services.cloud.CloudStorageService;
 import org.auscope.portal.core.services.cloud.FileStagingService;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.server.gridjob.FileInformation;
+import org.auscope.portal.server.vegl.JobLaunchScheduler;
+import org.auscope.portal.server.vegl.JobLaunchScheduler.LaunchOutcome;
 import org.auscope.portal.server.vegl.VEGLJob;
 import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VEGLSeries;
 import org.auscope.portal.server.vegl.VGLPollingJobQueueManager;
-import org.auscope.portal.server.vegl.VGLQueueJob;
 import org.auscope.portal.server.vegl.VglDownload;
 import org.auscope.portal.server.vegl.VglMachineImage;
 import org.auscope.portal.server.vegl.VglParameter.ParameterType;
+import org.auscope.portal.server.web.service.DownloadBasketService;
+import org.auscope.portal.server.web.service.ScriptBuilderService;
 import org.auscope.portal.server.web.service.monitor.VGLJobStatusChangeHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.propertyeditors.CustomDateEditor;
@@ -71,6 +80,9 @@ public class JobBuilderController extends BaseCloudController {
     private VEGLJobManager jobManager;
     private FileStagingService fileStagingService;
     private VGLPollingJobQueueManager vglPollingJobQueueManager;
+    private JobLaunchScheduler jobLaunchScheduler;
+    private DownloadBasketService downloadBasketService;
+    private ScriptBuilderService scriptBuilderService;
 
     public static final String STATUS_PENDING = "Pending";//VT:Request accepted by compute service
     public static final String STATUS_ACTIVE = "Active";//VT:Running
@@ -84,14 +96,22 @@ public class JobBuilderController extends BaseCloudController {
     public static final String SUBMIT_DATE_FORMAT_STRING = "yyyyMMdd_HHmmss";
 
     public static final String DOWNLOAD_SCRIPT = "vl-download.sh";
+
+    /** The maximum number of jobs that can be submitted in a single submitJobs request */
+    public static final int MAX_BATCH_SUBMISSION = 5000;
+    /** The default for how long (in ms, in total) submitJobs will wait for its launches to complete before it stops reporting progress */
+    public static final long BATCH_PROGRESS_TIMEOUT = 5 * 60 * 1000L;
     VGLJobStatusChangeHandler vglJobStatusChangeHandler;
+    private long batchProgressTimeout = BATCH_PROGRESS_TIMEOUT;
 
 
 
     @Autowired
     public JobBuilderController(VEGLJobManager jobManager, FileStagingService fileStagingService,
             PortalPropertyPlaceholderConfigurer hostConfigurer, CloudStorageService[] cloudStorageServices,
-            CloudComputeService[] cloudComputeServices,VGLJobStatusChangeHandler vglJobStatusChangeHandler,VGLPollingJobQueueManager vglPollingJobQueueManager) {
+            CloudComputeService[] cloudComputeServices,VGLJobStatusChangeHandler vglJobStatusChangeHandler,VGLPollingJobQueueManager vglPollingJobQueueManager,
+            JobLaunchScheduler jobLaunchScheduler, DownloadBasketService downloadBasketService,
+            ScriptBuilderService scriptBuilderService) {
         super(cloudStorageServices, cloudComputeServices,hostConfigurer);
         this.jobManager = jobManager;
         this.fileStagingService = fileStagingService;
@@ -99,9 +119,21 @@ public class JobBuilderController extends BaseCloudController {
         this.cloudComputeServices = cloudComputeServices;
         this.vglJobStatusChangeHandler=vglJobStatusChangeHandler;
         this.vglPollingJobQueueManager = vglPollingJobQueueManager;
+        this.jobLaunchScheduler = jobLaunchScheduler;
+        this.downloadBasketService = downloadBasketService;
+        this.scriptBuilderService = scriptBuilderService;
     }
 
 
+    /**
+     * How long (in ms, in total) submitJobs will wait for its launches to complete before it stops reporting progress.
+     * Launches that haven't completed by then will continue in the background.
+     * @param batchProgressTimeout
+     */
+    public void setBatchProgressTimeout(long batchProgressTimeout) {
+        this.batchProgressTimeout = batchProgressTimeout;
+    }
+
     /**
      * Returns a JSON object containing a populated VEGLJob object.
      *
@@ -156,9 +188,10 @@ public class JobBuilderController extends BaseCloudController {
             return generateJSONResponseMAV(false, null, "Error fetching job with id " + jobId);
         }
 
-        //Get our files
+        //Get our files (including any script that is still waiting to be written)
         StagedFile[] files = null;
         try {
+            scriptBuilderService.flush(jobId);
             files = fileStagingService.listStageInDirectoryFiles(job);
         } catch (Exception ex) {
             logger.error("Error listing job stage in directory", ex);
@@ -191,6 +224,7 @@ public class JobBuilderController extends BaseCloudController {
 
         //Lookup our job and download the specified files (any exceptions will return a HTTP 503)
         VEGLJob job = jobManager.getJobById(Integer.parseInt(jobId));
+        scriptBuilderService.flush(jobId);
         fileStagingService.handleFileDownload(job, filename, response);
         return null;
     }
@@ -219,14 +253,18 @@ public class JobBuilderController extends BaseCloudController {
             return generateJSONResponseMAV(false, null, "Error fetching job with id " + jobId);
         }
 
-        //Handle incoming file
+        //Handle incoming file (a pending script write mustn't overwrite an uploaded script)
         StagedFile file = null;
         try {
+            scriptBuilderService.flush(jobId);
             file = fileStagingService.handleFileUpload(job, (MultipartHttpServletRequest) request);
         } catch (Exception ex) {
             logger.error("Error uploading file", ex);
             return generateJSONResponseMAV(false, null, "Error uploading file");
         }
+        if (ScriptBuilderService.SCRIPT_FILE_NAME.equals(file.getName())) {
+            scriptBuilderService.evict(jobId);
+        }
         FileInformation fileInfo = stagedFileToFileInformation(file);
 
         //We have to use a HTML response due to ExtJS's use of a hidden iframe for file uploads
@@ -257,6 +295,9 @@ public class JobBuilderController extends BaseCloudController {
         }
 
         for (String fileName : fileNames) {
+            if (ScriptBuilderService.SCRIPT_FILE_NAME.equals(fileName)) {
+                scriptBuilderService.evict(jobId);
+            }
             boolean success = fileStagingService.deleteStageInFile(job, fileName);
             logger.debug("Deleting " + fileName + " success=" + success);
         }
@@ -351,6 +392,7 @@ public class JobBuilderController extends BaseCloudController {
             return generateJSONResponseMAV(false, null, "Error fetching job with id " + jobId);
         }
 
+        scriptBuilderService.evict(jobId);
         boolean success = fileStagingService.deleteStageInDirectory(job);
         return generateJSONResponseMAV(success, null, "");
     }
@@ -685,13 +727,14 @@ public class JobBuilderController extends BaseCloudController {
 
                 if (permissionGranted) {
                     // Right before we submit - pump out a script file for downloading every VglDownload object when the VM starts
-                    if (!createDownloadScriptFile(curJob, DOWNLOAD_SCRIPT)) {
+                    if (!createDownloadScriptFile(curJob, DOWNLOAD_SCRIPT, renderDownloadScript(curJob))) {
                         logger.error(String.format("Error creating download script '%1$s' for job with id %2$s", DOWNLOAD_SCRIPT, jobId));
                         errorDescription = "There was a problem configuring the data download script.";
                         errorCorrection = "Please try again in a few minutes or report it to cg-admin@csiro.au.";
                     } else {
                         // copy files to S3 storage for processing
-                        // get job files from local directory
+                        // get job files from local directory (after writing any script that is still pending)
+                        scriptBuilderService.flush(jobId);
                         StagedFile[] stagedFiles = fileStagingService.listStageInDirectoryFiles(curJob);
                         if (stagedFiles.length == 0) {
                             errorDescription = "There wasn't any input files found for submitting your job for processing.";
@@ -714,8 +757,7 @@ public class JobBuilderController extends BaseCloudController {
                             jobManager.saveJob(curJob);
                             jobManager.createJobAuditTrail(oldJobStatus, curJob, "Set job to provisioning");
 
-                            ExecutorService es = Executors.newSingleThreadExecutor();
-                            es.execute(new CloudThreadedExecuteService(cloudComputeService,curJob,userDataString));
+                            jobLaunchScheduler.scheduleLaunch(cloudComputeService, curJob, userDataString, null);
                             succeeded = true;
                         }
                     }
@@ -745,52 +787,193 @@ public class JobBuilderController extends BaseCloudController {
         }
     }
 
-    private class CloudThreadedExecuteService implements Runnable{
-        CloudComputeService cloudComputeService;
-        VEGLJob curJob;
-        String userDataString;
+    /**
+     * Processes a batch submission of many jobs (eg - the jobs created by a parameter sweep).
+     *
+     * Image permissions are checked once per compute service for the entire batch. Each job is then
+     * staged and handed to the JobLaunchScheduler.
+     *
+     * Progress is streamed back as newline delimited JSON objects (one per job status change) of the
+     * form {jobId: 1, status: 'Provisioning', message: ''}. The final line is a summary of the form
+     * {finished: true, submitted: 10, failed: 2, pending: 1} where pending counts the launches that were
+     * still in progress when submitJobs stopped waiting (they will continue in the background).
+     *
+     * @param request The servlet request
+     * @param response The servlet response
+     * @param jobIds The IDs of the jobs to submit
+     * @param user The logged in user (who must own every job)
+     * @throws IOException
+     */
+    @RequestMapping("/secure/submitJobs.do")
+    public void submitJobs(HttpServletRequest request,
+            HttpServletResponse response,
+            @RequestParam("jobId") Integer[] jobIds,
+            @AuthenticationPrincipal PortalUser user) throws IOException {
+
+        response.setContentType("application/x-ndjson");
+        OutputStream os = response.getOutputStream();
 
-        public CloudThreadedExecuteService(CloudComputeService cloudComputeService,VEGLJob curJob,String userDataString ){
-            this.cloudComputeService = cloudComputeService;
-            this.curJob = curJob;
-            this.userDataString = userDataString;
+        if (jobIds.length > MAX_BATCH_SUBMISSION) {
+            writeProgress(os, progressLine(null, STATUS_ERROR, String.format("A maximum of %1$d jobs can be submitted at once.", MAX_BATCH_SUBMISSION)));
+            return;
         }
 
-        @Override
-        public void run() {
-            String instanceId = null;
-            try{
-                instanceId = cloudComputeService.executeJob(curJob, userDataString);
-                logger.info("Launched instance: " + instanceId);
-                // set reference as instanceId for use when killing a job
-                curJob.setComputeInstanceId(instanceId);
-                String oldJobStatus = curJob.getStatus();
-                curJob.setStatus(STATUS_PENDING);
-                jobManager.createJobAuditTrail(oldJobStatus, curJob, "Set job to Pending");
-                curJob.setSubmitDate(new Date());
-                jobManager.saveJob(curJob);
-
-            }catch(PortalServiceException e){
-                //only for this specific error we wanna queue the job
-                if(e.getErrorCorrection()!= null && e.getErrorCorrection().contains("Quota exceeded")){
-                    vglPollingJobQueueManager.addJobToQueue(new VGLQueueJob(jobManager,cloudComputeService,curJob,userDataString,vglJobStatusChangeHandler));
-                    String oldJobStatus = curJob.getStatus();
-                    curJob.setStatus(JobBuilderController.STATUS_INQUEUE);
-                    jobManager.saveJob(curJob);
-                    jobManager.createJobAuditTrail(oldJobStatus, curJob, "Job Placed in Queue");
+        //Launches complete on scheduler threads, only this thread writes to the response
+        final LinkedBlockingQueue<JSONObject> launchProgress = new LinkedBlockingQueue<JSONObject>();
+        JobLaunchScheduler.LaunchListener listener = new JobLaunchScheduler.LaunchListener() {
+            @Override
+            public void launchCompleted(VEGLJob job, LaunchOutcome outcome, String message) {
+                JSONObject line = progressLine(job.getId(), job.getStatus(), message);
+                line.put("outcome", outcome.toString());
+                launchProgress.add(line);
+            }
+        };
+
+        Map<String, Set<String>> authorisedImageIds = new HashMap<String, Set<String>>();
+        int scheduled = 0;
+        int failed = 0;
+        for (Integer jobId : jobIds) {
+            VEGLJob curJob = null;
+            String oldJobStatus = null;
+            String errorDescription = null;
+            try {
+                curJob = jobManager.getJobById(jobId);
+                if (curJob == null || user == null || curJob.getUser() == null || !curJob.getUser().equals(user.getEmail())) {
+                    curJob = null;
+                    errorDescription = "There was a problem retrieving your job from the database.";
+                } else {
+                    oldJobStatus = curJob.getStatus();
+                    errorDescription = stageBatchJob(request, curJob, authorisedImageIds);
+                }
 
-                }else{
-                    String oldJobStatus = curJob.getStatus();
-                    curJob.setStatus(JobBuilderController.STATUS_ERROR);
+                if (errorDescription == null) {
+                    String userDataString = createBootstrapForJob(curJob);
+
+                    curJob.setStatus(STATUS_PROVISION);
                     jobManager.saveJob(curJob);
-                    jobManager.createJobAuditTrail(oldJobStatus, curJob, e);
-                    vglJobStatusChangeHandler.handleStatusChange(curJob,curJob.getStatus(),oldJobStatus);
+                    jobManager.createJobAuditTrail(oldJobStatus, curJob, "Set job to provisioning");
+                    writeProgress(os, progressLine(jobId, STATUS_PROVISION, null));
+
+                    jobLaunchScheduler.scheduleBatchLaunch(getComputeService(curJob), curJob, userDataString, listener);
+                    scheduled++;
+                    continue;
                 }
+            } catch (PortalServiceException e) {
+                errorDescription = e.getMessage();
+            } catch (IOException e) {
+                logger.error("Job bootstrap creation failed.", e);
+                errorDescription = "There was a problem creating startup script.";
+            } catch (Exception e) {
+                logger.error("Job submission failed.", e);
+                errorDescription = "An unexpected error has occurred while submitting your job for processing.";
+            }
+
+            if (curJob != null) {
+                jobManager.createJobAuditTrail(oldJobStatus, curJob, errorDescription);
+            }
+            writeProgress(os, progressLine(jobId, STATUS_ERROR, errorDescription));
+            failed++;
+        }
+
+        //Now stream back the launch results as they complete (waiting no longer than batchProgressTimeout in total)
+        long deadline = System.currentTimeMillis() + batchProgressTimeout;
+        int submitted = 0;
+        int pending = scheduled;
+        while (pending > 0) {
+            JSONObject line = null;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                try {
+                    line = launchProgress.poll(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (line == null) {
+                logger.warn(String.format("Gave up waiting on %1$d launches. They will continue in the background.", pending));
+                break;
             }
 
+            pending--;
+            if (LaunchOutcome.FAILED.toString().equals(line.get("outcome"))) {
+                failed++;
+            } else {
+                submitted++;
+            }
+            writeProgress(os, line);
+        }
+
+        JSONObject summary = new JSONObject();
+        summary.put("finished", true);
+        summary.put("submitted", submitted);
+        summary.put("failed", failed);
+        summary.put("pending", pending);
+        writeProgress(os, summary);
+    }
+
+    /**
+     * Validates job against the (per compute service) set of authorised images and uploads its input files
+     * ready for launch.
+     * @param request The request (from a user) making the submission
+     * @param job The job to stage
+     * @param authorisedImageIds compute service id keyed to the image id's request is authorised to use. Populated as required.
+     * @return null on success or a description of the problem otherwise
+     * @throws PortalServiceException
+     */
+    private String stageBatchJob(HttpServletRequest request, VEGLJob job, Map<String, Set<String>> authorisedImageIds) throws PortalServiceException {
+        CloudStorageService cloudStorageService = getStorageService(job);
+        CloudComputeService cloudComputeService = getComputeService(job);
+        if (cloudStorageService == null || cloudComputeService == null) {
+            return "One of the specified storage/compute services cannot be found.";
+        }
+
+        Set<String> imageIds = authorisedImageIds.get(job.getComputeServiceId());
+        if (imageIds == null) {
+            imageIds = new HashSet<String>();
+            for (MachineImage image : getImagesForJobAndUser(request, job)) {
+                imageIds.add(image.getImageId());
+            }
+            authorisedImageIds.put(job.getComputeServiceId(), imageIds);
+        }
+        if (!imageIds.contains(job.getComputeVmId())) {
+            return "You do not have the permission to submit this job for processing.";
+        }
+
+        if (!createDownloadScriptFile(job, DOWNLOAD_SCRIPT, renderDownloadScript(job))) {
+            return "There was a problem configuring the data download script.";
+        }
+
+        scriptBuilderService.flush(job.getId().toString());
+        StagedFile[] stagedFiles = fileStagingService.listStageInDirectoryFiles(job);
+        if (stagedFiles.length == 0) {
+            return "There wasn't any input files found for submitting your job for processing.";
         }
 
+        File[] files = new File[stagedFiles.length];
+        for (int i = 0; i < stagedFiles.length; i++) {
+            files[i] = stagedFiles[i].getFile();
+        }
+        cloudStorageService.uploadJobFiles(job, files);
+        return null;
+    }
+
+    private JSONObject progressLine(Integer jobId, String status, String message) {
+        JSONObject line = new JSONObject();
+        if (jobId != null) {
+            line.put("jobId", jobId);
+        }
+        line.put("status", status);
+        line.put("message", message == null ? "" : message);
+        return line;
+    }
 
+    /**
+     * Writes line (and a newline) to os, flushing immediately so the client sees progress as it happens
+     */
+    private void writeProgress(OutputStream os, JSONObject line) throws IOException {
+        os.write((line.toString() + "\n").getBytes("UTF-8"));
+        os.flush();
     }
 
     /**
@@ -840,11 +1023,10 @@ public class JobBuilderController extends BaseCloudController {
         job.setStatus(STATUS_UNSUBMITTED);
 
         //Transfer the 'session downloads' into actual download objects associated with a job
-        @SuppressWarnings("unchecked")
-        List<VglDownload> erddapDownloads = (List<VglDownload>) session.getAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST);
-        session.setAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST, null); //ensure we clear the list out in case the user makes more jobs
-        if (erddapDownloads != null) {
-            job.setJobDownloads(new ArrayList<VglDownload>(erddapDownloads));
+        //(the basket is emptied in case the user makes more jobs)
+        List<VglDownload> erddapDownloads = downloadBasketService.takeDownloads(session);
+        if (!erddapDownloads.isEmpty()) {
+            job.setJobDownloads(erddapDownloads);
         } else {
             logger.warn("No downloads configured for user session!");
         }
@@ -859,6 +1041,20 @@ public class JobBuilderController extends BaseCloudController {
         return job;
     }
 
+    /**
+     * Renders the bash script for downloading every VglDownload associated with the specified job.
+     * @param job The job to generate the script for
+     * @return
+     */
+    private String renderDownloadScript(VEGLJob job) {
+        StringBuilder script = new StringBuilder();
+        for (VglDownload dl : job.getJobDownloads()) {
+            script.append(String.format("#Downloading %1$s\n", dl.getName()));
+            script.append(String.format("curl -f -L '%1$s' -o \"%2$s\"\n", dl.getUrl(), dl.getLocalPath()));
+        }
+        return script.toString();
+    }
+
     /**
      * This function creates a file "vgl_download.sh" which contains the bash script
      * for downloading every VglDownload associated with the specified job.
@@ -866,19 +1062,16 @@ public class JobBuilderController extends BaseCloudController {
      * The script file will be written to the staging area for job as
      * @param job The job to generate
      * @param fileName the file name of the generated script
+     * @param script The script contents (as rendered by renderDownloadScript)
      * @return
      */
-    private boolean createDownloadScriptFile(VEGLJob job, String fileName) {
+    private boolean createDownloadScriptFile(VEGLJob job, String fileName, String script) {
         OutputStream os = null;
         OutputStreamWriter out = null;
         try {
             os = fileStagingService.writeFile(job,  fileName);
             out = new OutputStreamWriter(os);
-
-            for (VglDownload dl : job.getJobDownloads()) {
-                out.write(String.format("#Downloading %1$s\n", dl.getName()));
-                out.write(String.format("curl -f -L '%1$s' -o \"%2$s\"\n", dl.getUrl(), dl.getLocalPath()));
-            }
+            out.write(script);
 
             return true;
         } catch (Exception e) {
@@ -994,9 +1187,10 @@ public class JobBuilderController extends BaseCloudController {
             return generateJSONResponseMAV(false, null, "Error fetching job with id " + jobId);
         }
 
-        //Get our files
+        //Get our files (including any script that is still waiting to be written)
         StagedFile[] files = null;
         try {
+            scriptBuilderService.flush(jobId.toString());
             files = fileStagingService.listStageInDirectoryFiles(job);
         } catch (Exception ex) {
             logger.error("Error listing job stage in directory", ex);
@@ -1,7 +1,6 @@
 package org.auscope.portal.server.web.controllers;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -12,8 +11,14 @@ import org.auscope.portal.core.server.PortalPropertyPlaceholderConfigurer;
 import org.auscope.portal.core.server.controllers.BasePortalController;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
 import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VglDownload;
+import org.auscope.portal.server.web.service.DownloadBasketService;
+import org.auscope.portal.server.web.service.DownloadBasketService.AddResult;
 import org.auscope.portal.server.web.service.SimpleWfsService;
+import org.auscope.portal.server.web.service.WFSHarvestService;
+import org.auscope.portal.server.web.service.WFSHarvestService.HarvestSummary;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -29,20 +34,24 @@ import org.springframework.web.servlet.ModelAndView;
 @Controller
 public class JobDownloadController extends BasePortalController {
 
-    /**
-     * Name of the session variable where a List<VglDownload> resides
-     */
-    public static final String SESSION_DOWNLOAD_LIST = "jobDownloadList";
-
+    /** The file names that can be written to a job staging area (no paths or hidden files)*/
+    private static final Pattern SAFE_FILE_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
 
     protected final Log logger = LogFactory.getLog(getClass());
     private PortalPropertyPlaceholderConfigurer hostConfigurer;
     private SimpleWfsService wfsService;
+    private WFSHarvestService wfsHarvestService;
+    private VEGLJobManager jobManager;
+    private DownloadBasketService downloadBasketService;
 
     @Autowired
-    public JobDownloadController(PortalPropertyPlaceholderConfigurer hostConfigurer, SimpleWfsService wfsService) {
+    public JobDownloadController(PortalPropertyPlaceholderConfigurer hostConfigurer, SimpleWfsService wfsService,
+            WFSHarvestService wfsHarvestService, VEGLJobManager jobManager, DownloadBasketService downloadBasketService) {
         this.hostConfigurer = hostConfigurer;
         this.wfsService = wfsService;
+        this.wfsHarvestService = wfsHarvestService;
+        this.jobManager = jobManager;
+        this.downloadBasketService = downloadBasketService;
     }
 
     private ModelMap toView(VglDownload dl) {
@@ -59,28 +68,45 @@ public class JobDownloadController extends BasePortalController {
     }
     
     /**
-     * Utility for adding a single VglDownload object to the session based array of VglDownload objects.
+     * Utility for generating the response for a newly created VglDownload, optionally adding it to the session
+     * download basket first. Downloads already in the basket (same URL and bounding box) will not be added twice,
+     * instead the stored download is returned (with a duplicate flag) as the name/description/localPath of
+     * download will have been discarded.
      * @param request
      * @param download
+     * @param saveSession Whether download should be added to the session download basket
+     * @return
      */
-    private void addDownloadToSession(HttpServletRequest request, VglDownload download) {
-        @SuppressWarnings("unchecked")
-        List<VglDownload> erddapUrlList = (List<VglDownload>) request.getSession().getAttribute(SESSION_DOWNLOAD_LIST);
-        if (erddapUrlList == null) {
-            erddapUrlList = new ArrayList<VglDownload>();
-        }
+    private ModelAndView generateDownloadResponse(HttpServletRequest request, VglDownload download, boolean saveSession) {
+        if (saveSession) {
+            AddResult result = downloadBasketService.add(request.getSession(), download);
+            if (result == AddResult.FULL) {
+                return generateBasketFullResponse();
+            }
 
-        logger.trace("Adding download: " + download.getUrl());
-        synchronized(erddapUrlList) {
-            erddapUrlList.add(download);
+            if (result == AddResult.DUPLICATE) {
+                VglDownload stored = downloadBasketService.getDownload(request.getSession(), download);
+                ModelMap view = toView(stored == null ? download : stored);
+                view.put("duplicate", true);
+                return generateJSONResponseMAV(true, view, "This dataset has already been selected.");
+            }
         }
 
-        request.getSession().setAttribute(SESSION_DOWNLOAD_LIST, erddapUrlList);
+        return generateJSONResponseMAV(true, toView(download), "");
+    }
+
+    /**
+     * Generates the response for a download that couldn't be added to a full download basket
+     * @return
+     */
+    private ModelAndView generateBasketFullResponse() {
+        return generateJSONResponseMAV(false, null, String.format("You have already selected the maximum of %1$d datasets for a single job.",
+                downloadBasketService.getMaxDownloads()));
     }
 
     /**
      * Creates a new VL Download object from a remote URL. The Download object is returned. If saveSession
-     * is true the download object will also be saved to the session wide SESSION_DOWNLOAD_LIST list.
+     * is true the download object will also be saved to the session download basket (see DownloadBasketService).
      * @return
      */
     @RequestMapping("/makeDownloadUrl.do")
@@ -105,16 +131,12 @@ public class JobDownloadController extends BasePortalController {
         newDownload.setSouthBoundLatitude(southBoundLatitude);
         newDownload.setWestBoundLongitude(westBoundLongitude);
 
-        if (saveSession) {
-            addDownloadToSession(request, newDownload);
-        }
-
-        return generateJSONResponseMAV(true, toView(newDownload), "");
+        return generateDownloadResponse(request, newDownload, saveSession);
     }
 
     /**
      * Creates a new VL Download object from a some ERDDAP parameters. The Download object is returned. If saveSession
-     * is true the download object will also be saved to the session wide SESSION_DOWNLOAD_LIST list.
+     * is true the download object will also be saved to the session download basket (see DownloadBasketService).
      * @return
      * @throws Exception
      */
@@ -147,16 +169,12 @@ public class JobDownloadController extends BasePortalController {
         newDownload.setSouthBoundLatitude(southBoundLatitude);
         newDownload.setWestBoundLongitude(westBoundLongitude);
 
-        if (saveSession) {
-            addDownloadToSession(request, newDownload);
-        }
-
-        return generateJSONResponseMAV(true, toView(newDownload), "");
+        return generateDownloadResponse(request, newDownload, saveSession);
     }
     
     /**
      * Creates a new VL Download object from some WFS parameters. The Download object is returned. If saveSession
-     * is true the download object will also be saved to the session wide SESSION_DOWNLOAD_LIST list. 
+     * is true the download object will also be saved to the session download basket (see DownloadBasketService). 
      *
      * @param serviceUrl The WFS endpoint
      * @param featureType The feature type name to query
@@ -189,8 +207,8 @@ public class JobDownloadController extends BasePortalController {
         try {
             response = wfsService.getFeatureRequestAsString(serviceUrl, featureType, bbox, maxFeatures, srsName, outputFormat);
         } catch (Exception ex) {
-            log.warn(String.format("Exception generating service request for '%2$s' from '%1$s': %3$s", serviceUrl, featureType, ex));
-            log.debug("Exception: ", ex);
+            logger.warn(String.format("Exception generating service request for '%2$s' from '%1$s': %3$s", serviceUrl, featureType, ex));
+            logger.debug("Exception: ", ex);
             return generateExceptionResponse(ex, serviceUrl);
         }
         
@@ -204,13 +222,74 @@ public class JobDownloadController extends BasePortalController {
         newDownload.setSouthBoundLatitude(southBoundLatitude);
         newDownload.setWestBoundLongitude(westBoundLongitude);
         
-        if (saveSession) {
-            addDownloadToSession(request, newDownload);
+        return generateDownloadResponse(request, newDownload, saveSession);
+    }
+    
+    /**
+     * Harvests every feature matching the specified WFS parameters (split into pages and fetched concurrently)
+     * into a single file in the staging area of the specified job. This avoids server side feature limits and
+     * request timeouts that may occur when the VM makes a single GetFeature request for a large feature set.
+     *
+     * @param jobId The job whose staging area will receive the harvested features
+     * @param serviceUrl The WFS endpoint
+     * @param featureType The feature type name to query
+     * @param outputFormat [Optional] The GetFeature outputFormat. Formats containing 'csv' will be merged as CSV otherwise GML is assumed
+     * @param maxFeatures [Optional] The maximum number of features to harvest
+     * @param sortBy [Optional] A property uniquely identifying each feature. Keeps the feature order consistent across pages
+     * @param localPath The file name to write in the job staging area. Must start with a letter or digit and only contain letters, digits, '.', '_' and '-'
+     */
+    @RequestMapping("/harvestWfsToJob.do")
+    public ModelAndView harvestWfsToJob(@RequestParam("jobId") final Integer jobId,
+                                        @RequestParam("serviceUrl") final String serviceUrl,
+                                        @RequestParam("featureType") final String featureType,
+                                        @RequestParam(required = false, value = "srsName") final String srsName,
+                                        @RequestParam(required = false, value = "crs") final String bboxCrs,
+                                        @RequestParam(required = false, value = "northBoundLatitude") final Double northBoundLatitude,
+                                        @RequestParam(required = false, value = "southBoundLatitude") final Double southBoundLatitude,
+                                        @RequestParam(required = false, value = "eastBoundLongitude") final Double eastBoundLongitude,
+                                        @RequestParam(required = false, value = "westBoundLongitude") final Double westBoundLongitude,
+                                        @RequestParam(required = false, value = "outputFormat") final String outputFormat,
+                                        @RequestParam(required = false, value = "maxFeatures") Integer maxFeatures,
+                                        @RequestParam(required = false, value = "sortBy") final String sortBy,
+                                        @RequestParam("localPath") final String localPath) throws Exception {
+
+        //Only allow writing (plain file names) to the top level of the staging directory
+        String fileName = localPath.substring(Math.max(localPath.lastIndexOf('/'), localPath.lastIndexOf('\\')) + 1);
+        if (!SAFE_FILE_NAME.matcher(fileName).matches()) {
+            return generateJSONResponseMAV(false, null, "Invalid file name: " + localPath);
+        }
+
+        VEGLJob job = null;
+        try {
+            job = jobManager.getJobById(jobId);
+        } catch (Exception ex) {
+            logger.error("Error fetching job with id " + jobId, ex);
+        }
+        if (job == null) {
+            return generateJSONResponseMAV(false, null, "Error fetching job with id " + jobId);
+        }
+
+        FilterBoundingBox bbox = null;
+        if (northBoundLatitude != null) {
+            bbox = FilterBoundingBox.parseFromValues(bboxCrs, northBoundLatitude, southBoundLatitude, eastBoundLongitude, westBoundLongitude);
         }
 
-        return generateJSONResponseMAV(true, toView(newDownload), "");
+        HarvestSummary summary = null;
+        try {
+            summary = wfsHarvestService.harvest(job, fileName, serviceUrl, featureType, bbox, srsName, outputFormat, maxFeatures, sortBy);
+        } catch (Exception ex) {
+            logger.warn(String.format("Exception harvesting '%2$s' from '%1$s': %3$s", serviceUrl, featureType, ex));
+            logger.debug("Exception: ", ex);
+            return generateExceptionResponse(ex, serviceUrl);
+        }
+
+        ModelMap data = new ModelMap();
+        data.put("localPath", summary.getFileName());
+        data.put("featureCount", summary.getFeatureCount());
+        data.put("pageCount", summary.getPageCount());
+        return generateJSONResponseMAV(true, data, "");
     }
-    
+
     /**
      * Get the number of download requests stored in user session. This method
      * will be used by VL frontend to check if any data set has been captured
@@ -221,12 +300,7 @@ public class JobDownloadController extends BasePortalController {
      */
     @RequestMapping("/getNumDownloadRequests.do")
     public ModelAndView getNumDownloadRequests(HttpServletRequest request) {
-        int size = 0;
-        List downloadList = (List)request.getSession().getAttribute(SESSION_DOWNLOAD_LIST);
-        if (downloadList != null && downloadList.size() > 0) {
-            size = downloadList.size();
-        }
-        return generateJSONResponseMAV(true, size, "");
+        return generateJSONResponseMAV(true, downloadBasketService.size(request.getSession()), "");
     }
     
     /**
@@ -6,19 +6,28 @@
  */
 package org.auscope.portal.server.web.controllers;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -34,11 +43,15 @@ import org.auscope.portal.core.services.cloud.monitor.JobStatusException;
 import org.auscope.portal.core.services.cloud.monitor.JobStatusMonitor;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobDao;
 import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VEGLSeries;
 import org.auscope.portal.server.vegl.VGLJobStatusAndLogReader;
 import org.auscope.portal.server.vegl.VGLPollingJobQueueManager;
 import org.auscope.portal.server.vegl.VGLQueueJob;
+import org.auscope.portal.server.vegl.VglParameter.ParameterType;
+import org.auscope.portal.server.web.service.ScriptBuilderService;
+import org.auscope.portal.server.web.service.http.ResponseStreamer;
 import org.auscope.portal.server.web.service.monitor.VGLJobStatusChangeHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.web.bind.annotation.AuthenticationPrincipal;
@@ -62,6 +75,9 @@ public class JobListController extends BaseCloudController  {
     /** The name of the log file that the job will use*/
     public static final String VGL_LOG_FILE = "vl.sh.log";
 
+    /** The largest number of jobs that can be created by a single parameter sweep*/
+    public static final int MAX_SWEEP_SIZE = 5000;
+
     /** Logger for this class */
     private final Log logger = LogFactory.getLog(getClass());
 
@@ -71,19 +87,24 @@ public class JobListController extends BaseCloudController  {
     private JobStatusMonitor jobStatusMonitor;
     private VGLJobStatusChangeHandler vglJobStatusChangeHandler;
     private VGLPollingJobQueueManager vglPollingJobQueueManager;
+    private ResponseStreamer responseStreamer;
+    private ScriptBuilderService scriptBuilderService;
 
     @Autowired
     public JobListController(VEGLJobManager jobManager, CloudStorageService[] cloudStorageServices,
             FileStagingService fileStagingService, CloudComputeService[] cloudComputeServices,
             VGLJobStatusAndLogReader jobStatusLogReader,
             JobStatusMonitor jobStatusMonitor,VGLJobStatusChangeHandler vglJobStatusChangeHandler,
-            PortalPropertyPlaceholderConfigurer hostConfigurer,VGLPollingJobQueueManager vglPollingJobQueueManager) {
+            PortalPropertyPlaceholderConfigurer hostConfigurer,VGLPollingJobQueueManager vglPollingJobQueueManager,
+            ResponseStreamer responseStreamer, ScriptBuilderService scriptBuilderService) {
         super(cloudStorageServices, cloudComputeServices,hostConfigurer);
         this.jobManager = jobManager;
         this.fileStagingService = fileStagingService;
         this.jobStatusLogReader = jobStatusLogReader;
         this.jobStatusMonitor = jobStatusMonitor;
         this.vglPollingJobQueueManager =  vglPollingJobQueueManager;
+        this.responseStreamer = responseStreamer;
+        this.scriptBuilderService = scriptBuilderService;
         this.initializeQueue();
     }
 
@@ -301,7 +322,8 @@ public class JobListController extends BaseCloudController  {
      */
     private void cleanupDeletedJob(VEGLJob job) {
         try {
-            // Remove files from staging directory
+            // Remove files from staging directory (a pending script write mustn't recreate them)
+            scriptBuilderService.evict(job.getId().toString());
             fileStagingService.deleteStageInDirectory(job);
             // Remove files from S3 cloud storage if the job
             // hasn't been registered in GeoNetwork
@@ -510,43 +532,49 @@ public class JobListController extends BaseCloudController  {
 
         logger.debug("Download " + key);
 
-        //Get our Input Stream
-        InputStream is = null;
+        CloudStorageService cloudStorageService = getStorageService(job);
+        if (cloudStorageService == null) {
+            logger.error(String.format("No cloud storage service with id '%1$s' for job '%2$s'. Cloud file cannot be downloaded", job.getStorageServiceId(), job.getId()));
+            return generateJSONResponseMAV(false, null, "No cloud storage service found for job");
+        }
+
         try {
-            CloudStorageService cloudStorageService = getStorageService(job);
-            if (cloudStorageService == null) {
-                logger.error(String.format("No cloud storage service with id '%1$s' for job '%2$s'. Cloud file cannot be downloaded", job.getStorageServiceId(), job.getId()));
-                return generateJSONResponseMAV(false, null, "No cloud storage service found for job");
+            if (!responseStreamer.beginTransfer(response)) {
+                return null;
             }
-            is = cloudStorageService.getJobFile(job, key);
-        } catch (Exception ex) {
-            logger.warn(String.format("Unable to access '%1$s' from the cloud", key), ex);
-            return generateJSONResponseMAV(false, null, "Unable to access file from the cloud");
+        } catch (IOException ex) {
+            logger.warn("Unable to reject download", ex);
+            return null;
         }
 
-        //start writing our output stream
         try {
-            response.setContentType("application/octet-stream");
-            response.setHeader("Content-Disposition", "attachment; filename=\""+fileName+"\"");
-
-            //Ensure that our streams get closed
-            OutputStream out = response.getOutputStream();
+            //Get our Input Stream
+            InputStream is = null;
             try {
+                is = cloudStorageService.getJobFile(job, key);
+            } catch (Exception ex) {
+                logger.warn(String.format("Unable to access '%1$s' from the cloud", key), ex);
+                return generateJSONResponseMAV(false, null, "Unable to access file from the cloud");
+            }
 
-                int n;
-                byte[] buffer = new byte[1024];
-
-                while ((n = is.read(buffer)) != -1) {
-                    out.write(buffer, 0, n);
+            //start writing our output stream
+            try {
+                response.setContentType("application/octet-stream");
+                response.setHeader("Content-Disposition", "attachment; filename=\""+fileName+"\"");
+
+                //Ensure that our streams get closed
+                OutputStream out = response.getOutputStream();
+                try {
+                    responseStreamer.copy(is, out);
+                } finally {
+                    IOUtils.closeQuietly(is);
+                    IOUtils.closeQuietly(out);
                 }
-
-                out.flush();
-            } finally {
-                IOUtils.closeQuietly(is);
-                IOUtils.closeQuietly(out);
+            } catch (Exception ex) {
+                logger.warn("Error whilst writing to output stream", ex);
             }
-        } catch (Exception ex) {
-            logger.warn("Error whilst writing to output stream", ex);
+        } finally {
+            responseStreamer.endTransfer();
         }
 
         //The output is raw data down the output stream, just return null
@@ -835,6 +863,9 @@ public class JobListController extends BaseCloudController  {
         }
 
         try {
+            //Make sure the job we are cloning has no script still waiting to be written
+            scriptBuilderService.flush(oldJob.getId().toString());
+
             //Lets setup a staging area for the input files
             fileStagingService.generateStageInDirectory(newJob);
             //Write every file to the local staging area
@@ -867,6 +898,178 @@ public class JobListController extends BaseCloudController  {
         return generateJSONResponseMAV(true, Arrays.asList(newJob), "");
     }
 
+    /**
+     * Expands a JSON object of the form {name: [value1, value2...], name2: value} into every combination
+     * of parameter values (the cartesian product). Non array values are treated as single element arrays.
+     * @param parametersJson
+     * @return
+     */
+    private List<Map<String, Object>> expandParameterGrid(String parametersJson) {
+        JSONObject grid = JSONObject.fromObject(parametersJson);
+
+        List<Map<String, Object>> combinations = new ArrayList<Map<String, Object>>();
+        combinations.add(new LinkedHashMap<String, Object>());
+        for (Object key : grid.keySet()) {
+            String name = key.toString();
+            Object value = grid.get(name);
+            JSONArray values;
+            if (value instanceof JSONArray) {
+                values = (JSONArray) value;
+            } else {
+                values = new JSONArray();
+                values.add(value);
+            }
+
+            if (values.isEmpty()) {
+                throw new IllegalArgumentException(String.format("Parameter '%1$s' has no values", name));
+            }
+            if ((long) combinations.size() * values.size() > MAX_SWEEP_SIZE) {
+                throw new IllegalArgumentException(String.format("A sweep cannot create more than %1$d jobs", MAX_SWEEP_SIZE));
+            }
+
+            List<Map<String, Object>> expanded = new ArrayList<Map<String, Object>>(combinations.size() * values.size());
+            for (Map<String, Object> combination : combinations) {
+                for (Object v : values) {
+                    Map<String, Object> newCombination = new LinkedHashMap<String, Object>(combination);
+                    newCombination.put(name, v);
+                    expanded.add(newCombination);
+                }
+            }
+            combinations = expanded;
+        }
+
+        return combinations;
+    }
+
+    /**
+     * Creates a parameter sweep - a new (unsubmitted) job for every combination of parameter values in a grid.
+     * Each job is a duplicate of a template job with its job parameters overridden by a single grid point.
+     *
+     * Every job is created in a single database transaction. The template's input files are fetched from
+     * the cloud once and then copied into each new job's local staging area.
+     *
+     * @param jobId The template job
+     * @param files [Optional] The template input files to include in every job
+     * @param parametersJson A JSON object mapping parameter names to an array of values eg {"a":[1,2,3],"b":["x","y"]} would create 6 jobs
+     * @return The IDs of the new jobs (in grid order)
+     */
+    @RequestMapping("/secure/createJobSweep.do")
+    public ModelAndView createJobSweep(HttpServletRequest request,
+            @RequestParam("jobId") Integer jobId,
+            @RequestParam(required=false, value="file") String[] files,
+            @RequestParam("parameters") String parametersJson,
+            @AuthenticationPrincipal PortalUser user) {
+
+        VEGLJob templateJob = attemptGetJob(jobId, user);
+        if (templateJob == null) {
+            return generateJSONResponseMAV(false, null, "Unable to lookup template job.");
+        }
+
+        final CloudStorageService cloudStorageService = getStorageService(templateJob);
+        if (cloudStorageService == null) {
+            logger.error(String.format("No cloud storage service with id '%1$s' for job '%2$s'. Cannot create sweep", templateJob.getStorageServiceId(), templateJob.getId()));
+            return generateJSONResponseMAV(false, null, "No cloud storage service found for job");
+        }
+
+        List<Map<String, Object>> grid;
+        try {
+            grid = expandParameterGrid(parametersJson);
+        } catch (Exception ex) {
+            logger.warn("Unable to parse sweep parameters: " + ex.getMessage());
+            logger.debug("Exception:", ex);
+            return generateJSONResponseMAV(false, null, "Unable to parse sweep parameters: " + ex.getMessage());
+        }
+
+        //Build every job before touching the database
+        List<VEGLJob> newJobs = new ArrayList<VEGLJob>(grid.size());
+        for (Map<String, Object> gridPoint : grid) {
+            VEGLJob newJob = templateJob.safeClone();
+            newJob.setSubmitDate((Date)null);
+            newJob.setStatus(JobBuilderController.STATUS_UNSUBMITTED);
+            newJob.setRegisteredUrl(null);
+            newJob.setComputeInstanceId(null);
+            newJob.setStorageBaseKey(null);
+
+            StringBuilder description = new StringBuilder();
+            for (Map.Entry<String, Object> param : gridPoint.entrySet()) {
+                ParameterType type = param.getValue() instanceof Number ? ParameterType.number : ParameterType.string;
+                newJob.setJobParameter(param.getKey(), param.getValue().toString(), type);
+                description.append(description.length() == 0 ? "" : ", ");
+                description.append(param.getKey() + "=" + param.getValue());
+            }
+            newJob.setName(String.format("%1$s (%2$s)", templateJob.getName(), description));
+            newJobs.add(newJob);
+        }
+
+        try {
+            jobManager.createJobs(newJobs, new VEGLJobDao.InsertCallback() {
+                @Override
+                public void jobInserted(VEGLJob job) {
+                    //The ID forms part of the key so this must happen after insertion
+                    job.setStorageBaseKey(cloudStorageService.generateBaseKey(job));
+                }
+            }, "Job created by parameter sweep.");
+        } catch (Exception ex) {
+            log.error("Unable to save sweep jobs to database: " + ex.getMessage(), ex);
+            return generateJSONResponseMAV(false, null, "Unable to save new jobs.");
+        }
+
+        //Fetch the shared input files once, then copy them into every job's staging area
+        List<File> sharedFiles = new ArrayList<File>();
+        try {
+            List<String> sharedFileNames = new ArrayList<String>();
+            for (CloudFileInformation cloudFile : cloudStorageService.listJobFiles(templateJob)) {
+                if (cloudFileIncluded(files, cloudFile)) {
+                    File tempFile = File.createTempFile("sweepInput", null);
+                    sharedFiles.add(tempFile);
+                    sharedFileNames.add(cloudFile.getName());
+
+                    InputStream is = cloudStorageService.getJobFile(templateJob, cloudFile.getName());
+                    OutputStream os = new FileOutputStream(tempFile);
+                    try {
+                        IOUtils.copy(is, os);
+                    } finally {
+                        FileIOUtil.closeQuietly(os);
+                        FileIOUtil.closeQuietly(is);
+                    }
+                }
+            }
+
+            for (VEGLJob newJob : newJobs) {
+                fileStagingService.generateStageInDirectory(newJob);
+                for (int i = 0; i < sharedFiles.size(); i++) {
+                    InputStream is = new FileInputStream(sharedFiles.get(i));
+                    OutputStream os = null;
+                    try {
+                        os = fileStagingService.writeFile(newJob, sharedFileNames.get(i));
+                        IOUtils.copy(is, os);
+                    } finally {
+                        FileIOUtil.closeQuietly(os);
+                        FileIOUtil.closeQuietly(is);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            log.error("Unable to stage sweep input files: " + ex.getMessage(), ex);
+            //Tidy up after ourselves
+            for (VEGLJob newJob : newJobs) {
+                jobManager.deleteJob(newJob);
+                fileStagingService.deleteStageInDirectory(newJob);
+            }
+            return generateJSONResponseMAV(false, null, "Unable to save new jobs.");
+        } finally {
+            for (File sharedFile : sharedFiles) {
+                sharedFile.delete();
+            }
+        }
+
+        List<Integer> newJobIds = new ArrayList<Integer>(newJobs.size());
+        for (VEGLJob newJob : newJobs) {
+            newJobIds.add(newJob.getId());
+        }
+        return generateJSONResponseMAV(true, newJobIds, "");
+    }
+
     /**
      * Gets a pre parsed version of the internal logs. The resulting object will
      * contain the logs sectioned into 'named sections' eg: Section for python code, section for environment etc
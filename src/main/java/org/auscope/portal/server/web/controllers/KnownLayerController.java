@@ -1,10 +1,17 @@
 package org.auscope.portal.server.web.controllers;
 
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.auscope.portal.core.server.controllers.BaseCSWController;
 import org.auscope.portal.core.services.KnownLayerService;
 import org.auscope.portal.core.view.ViewCSWRecordFactory;
 import org.auscope.portal.core.view.ViewKnownLayerFactory;
 import org.auscope.portal.core.view.knownlayer.KnownLayerGrouping;
+import org.auscope.portal.server.util.PreRenderedResponse;
+import org.auscope.portal.server.web.service.csw.IncrementalCSWCacheService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -12,6 +19,8 @@ import org.springframework.web.servlet.ModelAndView;
 
 /**
  * Contains methods for requesting the list of known feature types
+ *
+ * Known layers are only grouped (and rendered) once per CSW cache snapshot.
  * @author Josh Vote
  *
  */
@@ -22,12 +31,72 @@ public class KnownLayerController extends BaseCSWController {
     private KnownLayerService knownLayerService;
     /** Used for converting data to something the view can understand*/
     private ViewKnownLayerFactory viewKnownLayerFactory;
+    /** Used for detecting when the underlying CSWRecords have changed*/
+    private IncrementalCSWCacheService cswCacheService;
+    /** The grouping (and rendered responses) for the latest CSW cache snapshot*/
+    private volatile GroupingSnapshot groupingSnapshot;
+
+    /**
+     * The rendered responses for a KnownLayerGrouping
+     */
+    private static class GroupingSnapshot {
+        final long version;
+        final PreRenderedResponse knownLayers;
+        final PreRenderedResponse unmappedRecords;
+
+        GroupingSnapshot(long version, PreRenderedResponse knownLayers, PreRenderedResponse unmappedRecords) {
+            this.version = version;
+            this.knownLayers = knownLayers;
+            this.unmappedRecords = unmappedRecords;
+        }
+    }
 
     @Autowired
     public KnownLayerController(KnownLayerService knownLayerService,
-            ViewKnownLayerFactory viewFactory, ViewCSWRecordFactory viewCSWRecordFactory) {
+            ViewKnownLayerFactory viewFactory, ViewCSWRecordFactory viewCSWRecordFactory,
+            IncrementalCSWCacheService cswCacheService) {
         super(viewCSWRecordFactory, viewFactory);
         this.knownLayerService = knownLayerService;
+        this.cswCacheService = cswCacheService;
+    }
+
+    /**
+     * Gets the grouping for the current CSW cache snapshot, regrouping if the snapshot has changed
+     * @return
+     * @throws IOException
+     */
+    private GroupingSnapshot getGroupingSnapshot() throws IOException {
+        long version = cswCacheService.getSnapshot().getVersion();
+        GroupingSnapshot current = groupingSnapshot;
+        if (current != null && current.version == version) {
+            return current;
+        }
+
+        //Only one thread regroups, the rest wait for (and then share) its result
+        synchronized (this) {
+            current = groupingSnapshot;
+            if (current == null || current.version != version) {
+                KnownLayerGrouping grouping = knownLayerService.groupKnownLayerRecords();
+                current = new GroupingSnapshot(version,
+                        PreRenderedResponse.fromJson(version, generateKnownLayerResponse(grouping.getKnownLayers()).getModel()),
+                        PreRenderedResponse.fromJson(version, generateCSWRecordResponse(grouping.getUnmappedRecords()).getModel()));
+                groupingSnapshot = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Writes rendered to response. Returns null on success or a JSON error response
+     */
+    private ModelAndView writeRenderedResponse(PreRenderedResponse rendered, HttpServletRequest request, HttpServletResponse response) {
+        try {
+            rendered.write(request, response);
+        } catch (IOException e) {
+            //Most likely the client has disconnected
+            log.debug("Unable to write response:", e);
+        }
+        return null;
     }
 
     /**
@@ -37,10 +106,14 @@ public class KnownLayerController extends BaseCSWController {
      * @return
      */
     @RequestMapping("getKnownLayers.do")
-    public ModelAndView getKnownLayers() {
-        KnownLayerGrouping grouping = knownLayerService.groupKnownLayerRecords();
-
-        return generateKnownLayerResponse(grouping.getKnownLayers());
+    public ModelAndView getKnownLayers(HttpServletRequest request, HttpServletResponse response) {
+        try {
+            return writeRenderedResponse(getGroupingSnapshot().knownLayers, request, response);
+        } catch (Exception e) {
+            log.error(String.format("Error grouping known layers: %1$s", e));
+            log.debug("Exception:", e);
+            return generateJSONResponseMAV(false, null, "Error grouping known layers");
+        }
     }
 
     /**
@@ -50,9 +123,13 @@ public class KnownLayerController extends BaseCSWController {
      * @return
      */
     @RequestMapping("getUnmappedCSWRecords.do")
-    public ModelAndView getUnmappedCSWRecords() {
-        KnownLayerGrouping grouping = knownLayerService.groupKnownLayerRecords();
-
-        return generateCSWRecordResponse(grouping.getUnmappedRecords());
+    public ModelAndView getUnmappedCSWRecords(HttpServletRequest request, HttpServletResponse response) {
+        try {
+            return writeRenderedResponse(getGroupingSnapshot().unmappedRecords, request, response);
+        } catch (Exception e) {
+            log.error(String.format("Error grouping known layers: %1$s", e));
+            log.debug("Exception:", e);
+            return generateJSONResponseMAV(false, null, "Error grouping known layers");
+        }
     }
 }
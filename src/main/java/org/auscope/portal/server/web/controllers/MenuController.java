@@ -1,11 +1,7 @@
 package org.auscope.portal.server.web.controllers;
 
 import java.awt.Menu;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.jar.Attributes;
-import java.util.jar.Manifest;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -15,6 +11,8 @@ import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.server.PortalPropertyPlaceholderConfigurer;
+import org.auscope.portal.server.util.PreRenderedResponse;
+import org.auscope.portal.server.web.service.BuildInfoService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -32,10 +30,12 @@ public class MenuController {
    protected final Log logger = LogFactory.getLog(getClass());
 
    private PortalPropertyPlaceholderConfigurer hostConfigurer;
+   private BuildInfoService buildInfoService;
 
    @Autowired
-   public MenuController(PortalPropertyPlaceholderConfigurer hostConfigurer) {
+   public MenuController(PortalPropertyPlaceholderConfigurer hostConfigurer, BuildInfoService buildInfoService) {
        this.hostConfigurer = hostConfigurer;
+       this.buildInfoService = buildInfoService;
    }
 
    /**
@@ -53,42 +53,31 @@ public class MenuController {
    }
 
    /**
-    * Adds a number of manifest specific variables to the model
+    * Adds a number of manifest specific variables to the model (the manifest itself is only read at startup)
     * @param mav
     * @param request
     */
    private void addManifest(ModelAndView mav, HttpServletRequest request) {
-       String appServerHome = request.getSession().getServletContext().getRealPath("/");
-       File manifestFile = new File(appServerHome,"META-INF/MANIFEST.MF");
-       Manifest mf = new Manifest();
-       try {
-          mf.read(new FileInputStream(manifestFile));
-          Attributes atts = mf.getMainAttributes();
-          if (mf != null) {
-             mav.addObject("specificationTitle", atts.getValue("Specification-Title"));
-             mav.addObject("implementationVersion", atts.getValue("Implementation-Version"));
-             mav.addObject("implementationBuild", atts.getValue("Implementation-Build"));
-             mav.addObject("buildDate", atts.getValue("buildDate"));
-             mav.addObject("buildJdk", atts.getValue("Build-Jdk"));
-             mav.addObject("javaVendor", atts.getValue("javaVendor"));
-             mav.addObject("builtBy", atts.getValue("Built-By"));
-             mav.addObject("osName", atts.getValue("osName"));
-             mav.addObject("osVersion", atts.getValue("osVersion"));
-
-             mav.addObject("serverName", request.getServerName());
-             mav.addObject("serverInfo", request.getSession().getServletContext().getServerInfo());
-             mav.addObject("serverJavaVersion", System.getProperty("java.version"));
-             mav.addObject("serverJavaVendor", System.getProperty("java.vendor"));
-             mav.addObject("javaHome", System.getProperty("java.home"));
-             mav.addObject("serverOsArch", System.getProperty("os.arch"));
-             mav.addObject("serverOsName", System.getProperty("os.name"));
-             mav.addObject("serverOsVersion", System.getProperty("os.version"));
-          }
-       } catch (IOException e) {
-           /* ignore, since we'll just leave an empty form */
-           logger.info("Error accessing manifest: " + e.getMessage());
-           logger.debug("Exception:", e);
+       mav.addAllObjects(buildInfoService.getBuildInfo());
+       mav.addObject("serverName", request.getServerName());
+   }
+
+   /**
+    * Writes the manifest/runtime details as a JSON response (success, data, msg). The response is rendered
+    * once at startup and supports conditional requests via its ETag.
+    * @param request
+    * @param response
+    * @throws IOException
+    */
+   @RequestMapping("/getBuildInfo.do")
+   public void getBuildInfo(HttpServletRequest request, HttpServletResponse response) throws IOException {
+       PreRenderedResponse rendered = buildInfoService.getRenderedResponse();
+       if (rendered == null) {
+           response.sendError(HttpStatus.SC_SERVICE_UNAVAILABLE, "Build details are unavailable");
+           return;
        }
+
+       rendered.write(request, response);
    }
 
    /**
@@ -1,6 +1,9 @@
 package org.auscope.portal.server.web.controllers;
 
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -19,6 +22,8 @@ import org.auscope.portal.core.services.responses.opendap.AbstractViewVariable;
 import org.auscope.portal.core.services.responses.opendap.ViewVariableFactory;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.core.view.JSONModelAndView;
+import org.auscope.portal.server.util.SingleFlight;
+import org.auscope.portal.server.web.service.http.ResponseStreamer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -40,16 +45,23 @@ public class OPeNDAPController extends BasePortalController {
     /** The opendap service. */
     private OpendapService opendapService;
 
+    /** Bounds (and performs) streaming of downloads */
+    private ResponseStreamer responseStreamer;
+
+    /** Identical concurrent variable requests share the one upstream request */
+    private SingleFlight<List<String>, AbstractViewVariable[]> variableRequests = new SingleFlight<List<String>, AbstractViewVariable[]>();
+
     /**
      * Instantiates a new opendap controller.
      *
-     * @param serviceCaller the service caller
-     * @param getDataMethodMaker the get data method maker
+     * @param opendapService the opendap service
+     * @param responseStreamer streams downloads back to the client
      */
     @Autowired
-    public OPeNDAPController(OpendapService opendapService) {
+    public OPeNDAPController(OpendapService opendapService, ResponseStreamer responseStreamer) {
         super();
         this.opendapService = opendapService;
+        this.responseStreamer = responseStreamer;
     }
 
     /**
@@ -84,7 +96,12 @@ public class OPeNDAPController extends BasePortalController {
 
         //Attempt to parse our response
         try {
-            AbstractViewVariable[] vars = opendapService.getVariables(opendapUrl, variableName);
+            AbstractViewVariable[] vars = variableRequests.execute(Arrays.asList(opendapUrl, variableName), new Callable<AbstractViewVariable[]>() {
+                @Override
+                public AbstractViewVariable[] call() throws Exception {
+                    return opendapService.getVariables(opendapUrl, variableName);
+                }
+            });
             return generateJSONResponseMAV(true, vars, "");
         } catch (Exception ex) {
             log.error(String.format("Error parsing from '%1$s'", opendapUrl), ex);
@@ -132,28 +149,33 @@ public class OPeNDAPController extends BasePortalController {
 
 
 
-        //Make our request, push the contents to the outputstream (as a zipfile)
-        response.setContentType("application/zip");
-        response.setHeader("Content-Disposition", "inline; filename=OPeNDAPDownload.zip;");
-        ZipOutputStream zout = new ZipOutputStream(response.getOutputStream());
-        InputStream dataStream = null;
-        try {
-            zout.putNextEntry(new ZipEntry(outputFileName));
-
-            dataStream = opendapService.getData(opendapUrl, format, constraints);
+        if (!responseStreamer.beginTransfer(response)) {
+            return;
+        }
 
-            FileIOUtil.writeInputToOutputStream(dataStream, zout, 1024 * 1024, false);
-        } catch (Exception ex) {
-            log.info(String.format("Error requesting data from '%1$s'", opendapUrl));
-            log.debug("Exception...", ex);
-            FileIOUtil.writeErrorToZip(zout, String.format("Error connecting to '%1$s'", opendapUrl), ex, "error.txt");
-        } finally {
-            if (dataStream != null) {
-                dataStream.close();
-            }
-            if (zout != null) {
-                zout.close();
+        //The transfer must be released no matter how the streams below fail (eg the client aborting)
+        try {
+            //Make our request, push the contents to the outputstream (as a zipfile)
+            response.setContentType("application/zip");
+            response.setHeader("Content-Disposition", "inline; filename=OPeNDAPDownload.zip;");
+            ZipOutputStream zout = new ZipOutputStream(response.getOutputStream());
+            InputStream dataStream = null;
+            try {
+                zout.putNextEntry(new ZipEntry(outputFileName));
+
+                dataStream = opendapService.getData(opendapUrl, format, constraints);
+
+                responseStreamer.copy(dataStream, zout);
+            } catch (Exception ex) {
+                log.info(String.format("Error requesting data from '%1$s'", opendapUrl));
+                log.debug("Exception...", ex);
+                FileIOUtil.writeErrorToZip(zout, String.format("Error connecting to '%1$s'", opendapUrl), ex, "error.txt");
+            } finally {
+                FileIOUtil.closeQuietly(dataStream);
+                FileIOUtil.closeQuietly(zout);
             }
+        } finally {
+            responseStreamer.endTransfer();
         }
     }
 }
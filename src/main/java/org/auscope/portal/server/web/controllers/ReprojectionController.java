@@ -1,19 +1,19 @@
 package org.auscope.portal.server.web.controllers;
 
-import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.server.controllers.BasePortalController;
+import org.auscope.portal.server.web.service.ReprojectionService;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 
-import com.jhlabs.map.proj.Projection;
-import com.jhlabs.map.proj.ProjectionFactory;
-
 /**
  * Controller for performing simplistic BBox reprojection
  * @author Josh Vote
@@ -23,48 +23,14 @@ import com.jhlabs.map.proj.ProjectionFactory;
 public class ReprojectionController extends BasePortalController {
     protected final Log logger = LogFactory.getLog(getClass());
 
-    public ReprojectionController() {
-
-    }
-
-    /**
-     * Utility for calculating the best Mga zone for a given point
-     * (Inherited from VEGL - should be revised)
-     */
-    private int calculateIdealMgaZone(double northBoundLatitude, double southBoundLatitude, double eastBoundLongitude, double westBoundLongitude) {
-        double lngDiff = eastBoundLongitude - westBoundLongitude;
-        double lngCenter = westBoundLongitude + (lngDiff/2);
-        double latDiff = northBoundLatitude - southBoundLatitude;
-        double latCenter = southBoundLatitude + (latDiff/2);
-
-        return calculateIdealMgaZone(latCenter, lngCenter);
-    }
+    /** The maximum number of bounding boxes that can be projected in a single request*/
+    public static final int MAX_BATCH_BBOXES = 10000;
 
-    /**
-     * Utility for calculating the best Mga zone for a given point
-     * (Inherited from VEGL - should be revised)
-     */
-    private int calculateIdealMgaZone(double latitude, double longitude) {
-        if (longitude >= 108 && longitude < 114){
-            return 49;
-        } else if (longitude >= 114 && longitude < 120){
-            return 50;
-        } else if (longitude >= 120 && longitude < 126){
-            return 51;
-        } else if (longitude >= 126 && longitude < 132){
-            return 52;
-        } else if (longitude >= 132 && longitude < 138){
-            return 53;
-        } else if (longitude >= 138 && longitude < 144){
-            return 54;
-        } else if (longitude >= 144 && longitude < 150){
-            return 55;
-        } else if (longitude >= 150 && longitude < 156){
-            return 56;
-        }
+    private ReprojectionService reprojectionService;
 
-        logger.error("could not calculate MGA zone");
-        return-1;
+    @Autowired
+    public ReprojectionController(ReprojectionService reprojectionService) {
+        this.reprojectionService = reprojectionService;
     }
 
     /**
@@ -80,7 +46,7 @@ public class ReprojectionController extends BasePortalController {
                                          @RequestParam("westBoundLongitude") final double westBoundLongitude) throws Exception {
 
         // calculate likely MGA zone
-        int mgaZone = calculateIdealMgaZone(northBoundLatitude, southBoundLatitude, eastBoundLongitude, westBoundLongitude);
+        int mgaZone = reprojectionService.calculateIdealMgaZone(northBoundLatitude, southBoundLatitude, eastBoundLongitude, westBoundLongitude);
         if (mgaZone < 0) {
             logger.error("could not calculate MGA zone");
             return generateJSONResponseMAV(false, null, "Could not calculate MGA zone");
@@ -89,6 +55,20 @@ public class ReprojectionController extends BasePortalController {
         return generateJSONResponseMAV(true, mgaZone, "");
     }
 
+    /**
+     * Converts a projected extent (as returned by ReprojectionService.projectBBoxes) into a bounding box which
+     * fully encompasses it
+     */
+    private ModelMap extentToModel(double[] extents, int index, int mgaZone) {
+        ModelMap data = new ModelMap();
+        data.put("minNorthing", (int)Math.floor(extents[index * 4 + 1]));
+        data.put("maxNorthing", (int)Math.ceil(extents[index * 4 + 3]));
+        data.put("minEasting", (int)Math.floor(extents[index * 4]));
+        data.put("maxEasting", (int)Math.ceil(extents[index * 4 + 2]));
+        data.put("mgaZone", mgaZone);
+        return data;
+    }
+
     /**
      * Projects the lat/lng co-ordinates to UTM. If mga zone is not specified it will be estimated
      *
@@ -103,36 +83,74 @@ public class ReprojectionController extends BasePortalController {
                                 @RequestParam(required=false, value="mgaZone") Integer mgaZone) throws Exception {
 
         if (mgaZone == null) {
-            mgaZone = calculateIdealMgaZone(northBoundLatitude, southBoundLatitude, eastBoundLongitude, westBoundLongitude);
+            mgaZone = reprojectionService.calculateIdealMgaZone(northBoundLatitude, southBoundLatitude, eastBoundLongitude, westBoundLongitude);
             if (mgaZone < 0) {
                 logger.error("could not calculate MGA zone");
                 return generateJSONResponseMAV(false, null, "Could not calculate MGA zone");
             }
+        } else if (mgaZone < 1 || mgaZone > ReprojectionService.UTM_ZONES) {
+            return generateJSONResponseMAV(false, null, "Invalid MGA zone: " + mgaZone);
         }
 
-        // create new projection object
-        Projection projection = ProjectionFactory.fromPROJ4Specification(
-            new String[] {
-                "+proj=utm", // Projection name
-                "+zone=" + mgaZone, //UTM zone
-                "+ellps=WGS84", // Ellipsoid name
-                "+x_0=500000", // False easting
-                "+y_0=10000000", // False northing
-                "+k_0=0.99960000" // Scaling factor (new name)
+        // project the selected region into appropriate UTM projection
+        double[] bbox = new double[] {northBoundLatitude, southBoundLatitude, eastBoundLongitude, westBoundLongitude};
+        double[] approxAreaMga = reprojectionService.projectBBoxes(bbox, new int[] {mgaZone});
+
+        return generateJSONResponseMAV(true, extentToModel(approxAreaMga, 0, mgaZone), "");
+    }
+
+    /**
+     * Projects a batch of lat/lng bounding boxes to UTM. If mga zone is not specified it will be estimated
+     * (individually) for every bounding box.
+     *
+     * @param bboxes Comma separated list of north,south,east,west values (4 values per bbox)
+     * @param mgaZone [Optional] The MGA zone to project every bbox into
+     * @return An array of projected bounding boxes (in the same order as bboxes)
+     * @throws Exception
+     */
+    @RequestMapping("/projectBBoxesToUtm.do")
+    public ModelAndView projectBBoxesToUtm(@RequestParam("bboxes") String bboxes,
+                                @RequestParam(required=false, value="mgaZone") Integer mgaZone) throws Exception {
+
+        String[] values = bboxes.split(",");
+        if (values.length % 4 != 0) {
+            return generateJSONResponseMAV(false, null, "Expected 4 values (north, south, east, west) per bbox");
+        }
+        if (values.length / 4 > MAX_BATCH_BBOXES) {
+            return generateJSONResponseMAV(false, null, String.format("A maximum of %1$d bboxes can be projected in a single request", MAX_BATCH_BBOXES));
+        }
+        if (mgaZone != null && (mgaZone < 1 || mgaZone > ReprojectionService.UTM_ZONES)) {
+            return generateJSONResponseMAV(false, null, "Invalid MGA zone: " + mgaZone);
+        }
+
+        double[] bboxValues = new double[values.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                bboxValues[i] = Double.parseDouble(values[i].trim());
             }
-        );
+        } catch (NumberFormatException ex) {
+            return generateJSONResponseMAV(false, null, "Unable to parse bboxes: " + ex.getMessage());
+        }
 
-        // project the selected region into appropriate UTM projection
-        Rectangle2D rect = new Rectangle2D.Double(eastBoundLongitude, southBoundLatitude, (westBoundLongitude - eastBoundLongitude), (northBoundLatitude - southBoundLatitude));
-        Rectangle2D approxAreaMga = projection.transform(rect);
+        int[] zones = new int[values.length / 4];
+        for (int i = 0; i < zones.length; i++) {
+            if (mgaZone != null) {
+                zones[i] = mgaZone;
+            } else {
+                zones[i] = reprojectionService.calculateIdealMgaZone(bboxValues[i * 4], bboxValues[i * 4 + 1], bboxValues[i * 4 + 2], bboxValues[i * 4 + 3]);
+                if (zones[i] < 0) {
+                    logger.error("could not calculate MGA zone");
+                    return generateJSONResponseMAV(false, null, "Could not calculate MGA zone for bbox " + i);
+                }
+            }
+        }
+
+        double[] extents = reprojectionService.projectBBoxes(bboxValues, zones);
+        List<ModelMap> data = new ArrayList<ModelMap>(zones.length);
+        for (int i = 0; i < zones.length; i++) {
+            data.add(extentToModel(extents, i, zones[i]));
+        }
 
-        // Calculate bounding box which fully encompasses this polygon
-        ModelMap data = new ModelMap();
-        data.put("minNorthing", (int)Math.floor(approxAreaMga.getMinY()));
-        data.put("maxNorthing", (int)Math.ceil(approxAreaMga.getMaxY()));
-        data.put("minEasting", (int)Math.floor(approxAreaMga.getMinX()));
-        data.put("maxEasting", (int)Math.ceil(approxAreaMga.getMaxX()));
-        data.put("mgaZone", mgaZone);
         return generateJSONResponseMAV(true, data, "");
     }
 }
@@ -8,7 +8,9 @@ package org.auscope.portal.server.web.controllers;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
@@ -16,9 +18,12 @@ import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.server.controllers.BasePortalController;
 import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.server.util.LineDiff;
 import org.auscope.portal.server.web.service.ScriptBuilderService;
+import org.auscope.portal.server.web.service.ScriptRevisionHistory.Revision;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
@@ -94,6 +99,101 @@ public class ScriptBuilderController extends BasePortalController {
         return generateJSONResponseMAV(true, script, "");
     }
 
+    /**
+     * Gets the revisions of a job's script that can be compared/restored.
+     * @param jobId
+     * @return A JSON encoded response containing an array of revisions (newest first), each with
+     *         revision number, date (in ms since epoch) and length
+     */
+    @RequestMapping("/getScriptRevisions.do")
+    public ModelAndView getScriptRevisions(@RequestParam("jobId") String jobId) {
+        List<Revision> revisions = null;
+        try {
+            revisions = sbService.getRevisions(jobId);
+        } catch (PortalServiceException ex) {
+            logger.error("Unable to load script revisions for job with id " + jobId, ex);
+            return generateJSONResponseMAV(false, null, ex.getMessage(), ex.getErrorCorrection());
+        }
+
+        List<ModelMap> data = new ArrayList<ModelMap>(revisions.size());
+        for (Revision revision : revisions) {
+            ModelMap item = new ModelMap();
+            item.put("revision", revision.getNumber());
+            item.put("date", revision.getDate().getTime());
+            item.put("length", revision.getLength());
+            data.add(item);
+        }
+
+        return generateJSONResponseMAV(true, data, "");
+    }
+
+    /**
+     * Gets the contents of a job's script as it was at the specified revision
+     * @param jobId
+     * @param revision
+     * @return
+     */
+    @RequestMapping("/getScriptRevision.do")
+    public ModelAndView getScriptRevision(@RequestParam("jobId") String jobId,
+                                  @RequestParam("revision") int revision) {
+        try {
+            return generateJSONResponseMAV(true, sbService.getRevision(jobId, revision), "");
+        } catch (PortalServiceException ex) {
+            logger.warn("Unable to load script revision " + revision + " for job with id " + jobId + ": " + ex.getMessage());
+            logger.debug("error:", ex);
+            return generateJSONResponseMAV(false, null, ex.getMessage(), ex.getErrorCorrection());
+        }
+    }
+
+    /**
+     * Compares two revisions of a job's script
+     * @param jobId
+     * @param fromRevision
+     * @param toRevision
+     * @return A JSON encoded response containing an array of lines, each with an op (EQUAL, INSERT or DELETE) and text
+     */
+    @RequestMapping("/diffScriptRevisions.do")
+    public ModelAndView diffScriptRevisions(@RequestParam("jobId") String jobId,
+                                  @RequestParam("fromRevision") int fromRevision,
+                                  @RequestParam("toRevision") int toRevision) {
+        List<LineDiff.Line> lines = null;
+        try {
+            lines = sbService.diffRevisions(jobId, fromRevision, toRevision);
+        } catch (PortalServiceException ex) {
+            logger.warn("Unable to compare script revisions for job with id " + jobId + ": " + ex.getMessage());
+            logger.debug("error:", ex);
+            return generateJSONResponseMAV(false, null, ex.getMessage(), ex.getErrorCorrection());
+        }
+
+        List<ModelMap> data = new ArrayList<ModelMap>(lines.size());
+        for (LineDiff.Line line : lines) {
+            ModelMap item = new ModelMap();
+            item.put("op", line.getOperation().name());
+            item.put("text", line.getText());
+            data.add(item);
+        }
+
+        return generateJSONResponseMAV(true, data, "");
+    }
+
+    /**
+     * Saves an earlier revision of a job's script as its latest revision
+     * @param jobId
+     * @param revision
+     * @return A JSON encoded response containing the restored script
+     */
+    @RequestMapping("/secure/restoreScriptRevision.do")
+    public ModelAndView restoreScriptRevision(@RequestParam("jobId") String jobId,
+                                  @RequestParam("revision") int revision) {
+        try {
+            return generateJSONResponseMAV(true, sbService.restoreRevision(jobId, revision), "");
+        } catch (PortalServiceException ex) {
+            logger.warn("Unable to restore script revision " + revision + " for job with id " + jobId + ": " + ex.getMessage());
+            logger.debug("error:", ex);
+            return generateJSONResponseMAV(false, null, ex.getMessage(), ex.getErrorCorrection());
+        }
+    }
+
     /**
      * Gets a named script template and fills in all named placeholders with the matching key/value pairs
      * @param templateName Script name
@@ -6,9 +6,13 @@ import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -25,6 +29,10 @@ import org.auscope.portal.core.services.responses.wcs.Resolution;
 import org.auscope.portal.core.services.responses.wcs.SpatialDomain;
 import org.auscope.portal.core.services.responses.wcs.TimeConstraint;
 import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.server.util.ExpiringCache;
+import org.auscope.portal.server.util.SingleFlight;
+import org.auscope.portal.server.web.service.http.ResponseStreamer;
+import org.auscope.portal.server.web.service.wcs.CoverageGeometry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -45,11 +53,40 @@ public class WCSController extends BasePortalController {
     /** The format string view's are expected to use when working with this controller*/
     private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss z";
 
+    /** How long (in seconds) the geometry of a described coverage is cached*/
+    public static final int GEOMETRY_CACHE_TTL = 30 * 60;
+    /** The maximum number of coverage geometries that will be cached*/
+    public static final int GEOMETRY_CACHE_SIZE = 512;
+    /** The maximum number of bboxes that can be estimated in a single estimateCoverageSizes request*/
+    public static final int MAX_BATCH_ESTIMATES = 1000;
+    /** The assumed size (in bytes) of a single binary data point (eg a 32 bit float)*/
+    private static final int BINARY_BYTES_PER_POINT = 4;
+    /** The assumed size (in bytes) of a single data point in a text format (eg ASCII grid)*/
+    private static final int TEXT_BYTES_PER_POINT = 12;
+
     private WCSService wcsService;
+    private ResponseStreamer responseStreamer;
+    /** Identical concurrent DescribeCoverage requests share the one upstream request*/
+    private SingleFlight<List<String>, DescribeCoverageRecord[]> describeCoverageRequests = new SingleFlight<List<String>, DescribeCoverageRecord[]>();
+    /** The geometry of recently described coverages keyed by [serviceUrl, coverageName]*/
+    private ExpiringCache<List<String>, CoverageGeometry> geometryCache = new ExpiringCache<List<String>, CoverageGeometry>(GEOMETRY_CACHE_TTL * 1000L, GEOMETRY_CACHE_SIZE);
 
     @Autowired
-    public WCSController(WCSService wcsService) {
+    public WCSController(WCSService wcsService, ResponseStreamer responseStreamer) {
         this.wcsService = wcsService;
+        this.responseStreamer = responseStreamer;
+    }
+
+    /**
+     * Makes a DescribeCoverage request (or joins an identical request already in progress)
+     */
+    private DescribeCoverageRecord[] requestDescribeCoverage(final String serviceUrl, final String coverageName) throws Exception {
+        return describeCoverageRequests.execute(Arrays.asList(serviceUrl, coverageName), new Callable<DescribeCoverageRecord[]>() {
+            @Override
+            public DescribeCoverageRecord[] call() throws Exception {
+                return wcsService.describeCoverage(serviceUrl, coverageName);
+            }
+        });
     }
 
     private String generateOutputFilename(String layerName, String format) throws IllegalArgumentException {
@@ -227,22 +264,31 @@ public class WCSController extends BasePortalController {
 
         logger.debug(String.format("serviceUrl='%1$s' bbox='%2$s' timeString='%3$s' layerName='%4$s'", serviceUrl, bbox, timeConstraint, layerName));
 
-        InputStream dataStream = null;
+        if (!responseStreamer.beginTransfer(response)) {
+            return;
+        }
 
-        //Pipe the request into a zip
-        response.setContentType("application/zip");
-        response.setHeader("Content-Disposition","inline; filename=WCSDownload.zip;");
-        ZipOutputStream zout = new ZipOutputStream(response.getOutputStream());
+        //The transfer must be released no matter how the streams below fail (eg the client aborting)
         try {
-            //Make our request
-            dataStream = wcsService.getCoverage(serviceUrl, layerName, downloadFormat, outputSize, outputResolution, outputCrs, inputCrs, bbox, timeConstraint, customParams);
-            zout.putNextEntry(new ZipEntry(outFileName));
-            FileIOUtil.writeInputToOutputStream(dataStream, zout, 1024 * 1024, false);
-        } catch (Exception ex) {
-            FileIOUtil.writeErrorToZip(zout, "", ex, "error.txt");
+            InputStream dataStream = null;
+
+            //Pipe the request into a zip
+            response.setContentType("application/zip");
+            response.setHeader("Content-Disposition","inline; filename=WCSDownload.zip;");
+            ZipOutputStream zout = new ZipOutputStream(response.getOutputStream());
+            try {
+                //Make our request
+                dataStream = wcsService.getCoverage(serviceUrl, layerName, downloadFormat, outputSize, outputResolution, outputCrs, inputCrs, bbox, timeConstraint, customParams);
+                zout.putNextEntry(new ZipEntry(outFileName));
+                responseStreamer.copy(dataStream, zout);
+            } catch (Exception ex) {
+                FileIOUtil.writeErrorToZip(zout, "", ex, "error.txt");
+            } finally {
+                FileIOUtil.closeQuietly(dataStream);
+                FileIOUtil.closeQuietly(zout);
+            }
         } finally {
-            FileIOUtil.closeQuietly(dataStream);
-            FileIOUtil.closeQuietly(zout);
+            responseStreamer.endTransfer();
         }
     }
 
@@ -264,7 +310,7 @@ public class WCSController extends BasePortalController {
     public ModelAndView describeCoverage(String serviceUrl, String layerName) {
         DescribeCoverageRecord[] records = null;
         try {
-            records = wcsService.describeCoverage(serviceUrl, layerName);
+            records = requestDescribeCoverage(serviceUrl, layerName);
         } catch (Exception ex) {
             logger.error("Error describing coverage", ex);
             return generateJSONResponseMAV(false, null, "Error occured whilst communicating to remote service: " + ex.getMessage());
@@ -284,19 +330,8 @@ public class WCSController extends BasePortalController {
      * @return
      */
     public double[] calculate2dExtents(RectifiedGrid rg) {
-        double maxX = 0.0;
-        double maxY = 0.0;
-
-        //Assume at least 2 dimensions. The first being X, the second being Y
-        double[][] offsetVectors = rg.getOffsetVectors();
-        int[] highValues = rg.getEnvelopeHighValues();
-        int[] lowValues = rg.getEnvelopeLowValues();
-        for (int dimension = 0; dimension < 2; dimension++) {
-            maxX += offsetVectors[dimension][0] * (double) (highValues[0] - lowValues[0]);
-            maxY += offsetVectors[dimension][1] * (double) (highValues[1] - lowValues[1]);
-        }
-
-        return new double[] {maxX, maxY};
+        CoverageGeometry geometry = CoverageGeometry.fromRectifiedGrid(rg);
+        return new double[] {geometry.getExtentX(), geometry.getExtentY()};
     }
 
     /**
@@ -308,34 +343,55 @@ public class WCSController extends BasePortalController {
      * @return
      */
     public Point estimageLatLngToGridSpace(RectifiedGrid rg, double latitude, double longitude) {
-        double originX = rg.getOrigin()[0];
-        double originY = rg.getOrigin()[1];
-        double[] widthHeight = calculate2dExtents(rg);
-        double[] maxValues = new double[] {widthHeight[0] + originX, widthHeight[1] + originY};
-
-        //truncate our lat/lng so that it lies within the bounds
-        if (latitude < originY) {
-            latitude = originY;
-        } else if (latitude > maxValues[1]) {
-            latitude = maxValues[1];
+        CoverageGeometry geometry = CoverageGeometry.fromRectifiedGrid(rg);
+        return new Point(geometry.estimateGridX(longitude), geometry.estimateGridY(latitude));
+    }
+
+    /**
+     * Gets the geometry of the specified coverage (describing the coverage if it's not cached)
+     * @param serviceUrl
+     * @param coverageName
+     * @return
+     * @throws IllegalArgumentException If the coverage description has no usable rectified grid
+     * @throws Exception If the coverage can't be described
+     */
+    private CoverageGeometry getCoverageGeometry(String serviceUrl, String coverageName) throws Exception {
+        List<String> key = Arrays.asList(serviceUrl, coverageName);
+        CoverageGeometry geometry = geometryCache.get(key);
+        if (geometry != null) {
+            return geometry;
         }
-        if (longitude < originX) {
-            longitude = originX;
-        } else if (longitude > maxValues[0]) {
-            longitude = maxValues[0];
+
+        DescribeCoverageRecord[] records = requestDescribeCoverage(serviceUrl, coverageName);
+        if (records == null || records.length == 0) {
+            throw new IllegalArgumentException("No coverage description available for coverage: " + coverageName);
         }
 
-        //Get lat/lng as a proportional offset between origin and maxValues
-        double proportionalX = 1 - ((maxValues[0] - longitude) / (maxValues[0] - originX));
-        double proportionalY = 1 - ((maxValues[1] - latitude) / (maxValues[1] - originY));
+        //Check our response has a rectified grid with at least 2 dimensions
+        SpatialDomain sd = records[0].getSpatialDomain();
+        RectifiedGrid rg = null;
+        if (sd == null || (rg = sd.getRectifiedGrid()) == null) {
+            throw new IllegalArgumentException("No spatial domain with rectified grid for described coverage: " + coverageName);
+        }
+        if (rg.getDimension() < 2) {
+            throw new IllegalArgumentException("The rectified grid for coverage must have at least 2 dimensions: " + coverageName);
+        }
 
-        //Used the proportional offset as a multiplier against the data indexes
-        int[] highIndexes = rg.getEnvelopeHighValues();
-        int[] lowIndexes = rg.getEnvelopeLowValues();
-        int indexX = (int) Math.round((((double)(highIndexes[0] - lowIndexes[0])) * proportionalX));
-        int indexY = (int) Math.round((((double)(highIndexes[1] - lowIndexes[1])) * proportionalY));
+        geometry = CoverageGeometry.fromRectifiedGrid(rg);
+        geometryCache.put(key, geometry);
+        return geometry;
+    }
 
-        return new Point(indexX, indexY);
+    /**
+     * Estimates the number of bytes a single data point will occupy in the specified download format
+     */
+    private static int estimateBytesPerPoint(String format) {
+        String lowerFormat = format.toLowerCase();
+        if (lowerFormat.contains("ascii") || lowerFormat.contains("csv") ||
+                lowerFormat.contains("xyz") || lowerFormat.contains("json")) {
+            return TEXT_BYTES_PER_POINT;
+        }
+        return BINARY_BYTES_PER_POINT;
     }
 
     /**
@@ -356,39 +412,97 @@ public class WCSController extends BasePortalController {
                                  @RequestParam("serviceUrl") String serviceUrl,
                                  @RequestParam("coverageName") String coverageName) {
 
-        //Perform our calculations based on coverage description
-        DescribeCoverageRecord[] records = null;
+        //Perform our calculations based on the (cached) coverage description
+        CoverageGeometry geometry = null;
         try {
-            records = wcsService.describeCoverage(serviceUrl, coverageName);
+            geometry = getCoverageGeometry(serviceUrl, coverageName);
+        } catch (IllegalArgumentException ex) {
+            return generateJSONResponseMAV(false, null, ex.getMessage());
         } catch (Exception ex) {
             logger.error(String.format("Error describing coverage for coverage size: %1$s", ex));
             logger.debug("Exception: ", ex);
             return generateJSONResponseMAV(false, null, "Error occured whilst communicating to remote service: " + ex.getMessage());
         }
 
-        if (records == null || records.length == 0) {
-            return generateJSONResponseMAV(false, null, "No coverage description available for coverage: " + coverageName);
+        ModelMap model = new ModelMap();
+        model.put("width", geometry.estimateWidth(eastBoundLongitude, westBoundLongitude));
+        model.put("height", geometry.estimateHeight(northBoundLatitude, southBoundLatitude));
+
+        return generateJSONResponseMAV(true, model, "");
+    }
+
+    /**
+     * Estimates the size of many subsets of a given coverage in a single request. Every bbox is estimated
+     * in data units (width/height/points) as well as the approximate download size (in bytes) for every
+     * requested format.
+     *
+     * @param bboxes Comma separated list of north,south,east,west values (4 values per bbox)
+     * @param formats [Optional] The download formats to estimate byte sizes for
+     * @param serviceUrl
+     * @param coverageName
+     * @return An array of estimates (in the same order as bboxes)
+     */
+    @RequestMapping("/estimateCoverageSizes.do")
+    public ModelAndView estimateCoverageSizes(@RequestParam("bboxes") String bboxes,
+                                 @RequestParam(required=false, value="format") String[] formats,
+                                 @RequestParam("serviceUrl") String serviceUrl,
+                                 @RequestParam("coverageName") String coverageName) {
+
+        String[] values = bboxes.split(",");
+        if (values.length % 4 != 0) {
+            return generateJSONResponseMAV(false, null, "Expected 4 values (north, south, east, west) per bbox");
+        }
+        if (values.length / 4 > MAX_BATCH_ESTIMATES) {
+            return generateJSONResponseMAV(false, null, String.format("A maximum of %1$d bboxes can be estimated in a single request", MAX_BATCH_ESTIMATES));
         }
 
-        //Check our response has a rectified grid with at least 2 dimensions
-        SpatialDomain sd = records[0].getSpatialDomain();
-        RectifiedGrid rg = null;
-        if (sd == null || (rg = sd.getRectifiedGrid()) == null) {
-            return generateJSONResponseMAV(false, null, "No spatial domain with rectified grid for described coverage: " + coverageName);
+        double[] bboxValues = new double[values.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                bboxValues[i] = Double.parseDouble(values[i].trim());
+            }
+        } catch (NumberFormatException ex) {
+            return generateJSONResponseMAV(false, null, "Unable to parse bboxes: " + ex.getMessage());
         }
-        if (rg.getDimension() < 2) {
-            return generateJSONResponseMAV(false, null, "The rectified grid for coverage must have at least 2 dimensions: " + coverageName);
+
+        CoverageGeometry geometry = null;
+        try {
+            geometry = getCoverageGeometry(serviceUrl, coverageName);
+        } catch (IllegalArgumentException ex) {
+            return generateJSONResponseMAV(false, null, ex.getMessage());
+        } catch (Exception ex) {
+            logger.error(String.format("Error describing coverage for coverage sizes: %1$s", ex));
+            logger.debug("Exception: ", ex);
+            return generateJSONResponseMAV(false, null, "Error occured whilst communicating to remote service: " + ex.getMessage());
         }
 
-        //ASSUMPTIONS - the rg is in a WGS:84 compatible srs
-        //            - The axes read X, Y and then possibly Z
-        Point ne = estimageLatLngToGridSpace(rg, northBoundLatitude, eastBoundLongitude);
-        Point sw = estimageLatLngToGridSpace(rg, southBoundLatitude, westBoundLongitude);
+        if (formats == null) {
+            formats = new String[0];
+        }
+        int[] bytesPerPoint = new int[formats.length];
+        for (int i = 0; i < formats.length; i++) {
+            bytesPerPoint[i] = estimateBytesPerPoint(formats[i]);
+        }
 
-        ModelMap model = new ModelMap();
-        model.put("width", ne.x - sw.x);
-        model.put("height", ne.y - sw.y);
+        List<ModelMap> estimates = new ArrayList<ModelMap>(values.length / 4);
+        for (int i = 0; i < bboxValues.length; i += 4) {
+            int width = geometry.estimateWidth(bboxValues[i + 2], bboxValues[i + 3]);
+            int height = geometry.estimateHeight(bboxValues[i], bboxValues[i + 1]);
+            long points = Math.abs((long) width * (long) height);
 
-        return generateJSONResponseMAV(true, model, "");
+            ModelMap bytes = new ModelMap();
+            for (int j = 0; j < formats.length; j++) {
+                bytes.put(formats[j], points * bytesPerPoint[j]);
+            }
+
+            ModelMap estimate = new ModelMap();
+            estimate.put("width", width);
+            estimate.put("height", height);
+            estimate.put("points", points);
+            estimate.put("bytes", bytes);
+            estimates.add(estimate);
+        }
+
+        return generateJSONResponseMAV(true, estimates, "");
     }
 }
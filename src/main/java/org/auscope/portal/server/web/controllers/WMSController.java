@@ -1,7 +1,5 @@
 package org.auscope.portal.server.web.controllers;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
@@ -24,9 +22,11 @@ import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.services.responses.csw.CSWResponsibleParty;
 import org.auscope.portal.core.services.responses.wms.GetCapabilitiesRecord;
 import org.auscope.portal.core.services.responses.wms.GetCapabilitiesWMSLayerRecord;
-import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.core.view.ViewCSWRecordFactory;
 import org.auscope.portal.core.view.ViewKnownLayerFactory;
+import org.auscope.portal.server.web.service.WMSFeatureInfoService;
+import org.auscope.portal.server.web.service.WMSFeatureInfoService.FeatureInfoResponse;
+import org.auscope.portal.server.web.service.http.ResponseStreamer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -47,14 +47,18 @@ public class WMSController extends BaseCSWController {
     // ----------------------------------------------------- Instance variables
 
     private WMSService wmsService;
+    private WMSFeatureInfoService featureInfoService;
+    private ResponseStreamer responseStreamer;
     private final Log log = LogFactory.getLog(getClass());
 
     // ----------------------------------------------------------- Constructors
 
     @Autowired
-    public WMSController(WMSService wmsService, ViewCSWRecordFactory viewCSWRecordFactory, ViewKnownLayerFactory knownLayerFact) {
+    public WMSController(WMSService wmsService, WMSFeatureInfoService featureInfoService, ResponseStreamer responseStreamer, ViewCSWRecordFactory viewCSWRecordFactory, ViewKnownLayerFactory knownLayerFact) {
         super(viewCSWRecordFactory, knownLayerFact);
         this.wmsService = wmsService;
+        this.featureInfoService = featureInfoService;
+        this.responseStreamer = responseStreamer;
     }
 
 
@@ -222,8 +226,37 @@ public class WMSController extends BaseCSWController {
         double lat2 = Double.parseDouble(bboxParts[3]);
         String sldDecoded=URLDecoder.decode(sld,"UTF-8");
         String featureCount = ""; // Use the default in the method maker
-        String responseString = wmsService.getFeatureInfo(wmsUrl, infoFormat, queryLayers, "EPSG:3857", Math.min(lng1, lng2), Math.min(lat1, lat2), Math.max(lng1, lng2), Math.max(lat1, lat2), Integer.parseInt(width), Integer.parseInt(height), Double.parseDouble(longitude), Double.parseDouble(latitude), (int)(Double.parseDouble(x)), (int)(Double.parseDouble(y)), "",sldDecoded,postMethod,version, featureCount,false);
-        InputStream responseStream = new ByteArrayInputStream(responseString.getBytes());
-        FileIOUtil.writeInputToOutputStream(responseStream, response.getOutputStream(), 1024 * 1024, true);
+
+        //POST requests (typically large SLD bodies) still need to go via the core method makers
+        if (postMethod) {
+            String responseString = wmsService.getFeatureInfo(wmsUrl, infoFormat, queryLayers, WMSFeatureInfoService.DEFAULT_CRS, Math.min(lng1, lng2), Math.min(lat1, lat2), Math.max(lng1, lng2), Math.max(lat1, lat2), Integer.parseInt(width), Integer.parseInt(height), Double.parseDouble(longitude), Double.parseDouble(latitude), (int)(Double.parseDouble(x)), (int)(Double.parseDouble(y)), "",sldDecoded,postMethod,version, featureCount,false);
+            response.setContentType(infoFormat);
+            response.setCharacterEncoding("UTF-8");
+            response.getOutputStream().write(responseString.getBytes("UTF-8"));
+            return;
+        }
+
+        //Otherwise we stream the response straight through to the client
+        FeatureInfoResponse featureInfo = featureInfoService.getFeatureInfo(wmsUrl, infoFormat, queryLayers, WMSFeatureInfoService.DEFAULT_CRS, Math.min(lng1, lng2), Math.min(lat1, lat2), Math.max(lng1, lng2), Math.max(lat1, lat2), Integer.parseInt(width), Integer.parseInt(height), Double.parseDouble(longitude), Double.parseDouble(latitude), Double.parseDouble(x), Double.parseDouble(y), sldDecoded, version, featureCount);
+        try {
+            //Cached responses are small and already in memory - they don't need one of the download transfers
+            if (featureInfo.isCached()) {
+                response.setContentType(featureInfo.getContentType() == null ? infoFormat : featureInfo.getContentType());
+                featureInfo.writeTo(response.getOutputStream());
+                return;
+            }
+
+            if (!responseStreamer.beginTransfer(response)) {
+                return;
+            }
+            try {
+                response.setContentType(featureInfo.getContentType() == null ? infoFormat : featureInfo.getContentType());
+                featureInfo.writeTo(response.getOutputStream());
+            } finally {
+                responseStreamer.endTransfer();
+            }
+        } finally {
+            featureInfo.close();
+        }
     }
 }
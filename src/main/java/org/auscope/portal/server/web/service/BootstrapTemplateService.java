@@ -0,0 +1,146 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.server.util.PrecompiledTemplate;
+
+/**
+ * Loads and pre-parses the VM bootstrap script templates, rendering them for individual jobs.
+ *
+ * Each compute service can have its own template variant - for a resource base of 'path/vl-bootstrap' the
+ * template for compute service 'foo' will be loaded from 'path/vl-bootstrap-foo.sh' if it exists, otherwise
+ * the default 'path/vl-bootstrap.sh' will be used.
+ *
+ * Templates are loaded once and cached. With hot reload enabled (only intended for development) every render checks
+ * whether the underlying resource has changed and reloads it if so.
+ */
+public class BootstrapTemplateService {
+
+    public static final String DEFAULT_RESOURCE_BASE = "org/auscope/portal/server/web/controllers/vl-bootstrap";
+    public static final String TEMPLATE_EXTENSION = ".sh";
+
+    /** A parsed template along with where/when it was loaded from*/
+    private static class LoadedTemplate {
+        final URL url;
+        final long lastModified;
+        final PrecompiledTemplate template;
+
+        LoadedTemplate(URL url, long lastModified, PrecompiledTemplate template) {
+            this.url = url;
+            this.lastModified = lastModified;
+            this.template = template;
+        }
+    }
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private String resourceBase;
+    private boolean hotReload = false;
+    /** Compute service id (or "" for the default) keyed to the template it uses*/
+    private ConcurrentHashMap<String, LoadedTemplate> templates = new ConcurrentHashMap<String, LoadedTemplate>();
+
+    /**
+     * Creates a new instance loading templates from DEFAULT_RESOURCE_BASE
+     */
+    public BootstrapTemplateService() {
+        this(DEFAULT_RESOURCE_BASE);
+    }
+
+    /**
+     * @param resourceBase The classpath location of the templates (without the extension)
+     */
+    public BootstrapTemplateService(String resourceBase) {
+        this.resourceBase = resourceBase;
+    }
+
+    /**
+     * If set, every render will check for changes to the underlying template resource. Only intended for development.
+     * @param hotReload
+     */
+    public void setHotReload(boolean hotReload) {
+        this.hotReload = hotReload;
+    }
+
+    /**
+     * Renders the template for the specified compute service
+     * @param computeServiceId The compute service whose template variant will be used (can be null for the default template)
+     * @param arguments The values for each of the template's argument references
+     * @return
+     * @throws IOException If the template cannot be loaded
+     */
+    public String render(String computeServiceId, Object... arguments) throws IOException {
+        return getTemplate(computeServiceId).render(arguments);
+    }
+
+    /**
+     * Gets the parsed template for the specified compute service
+     * @param computeServiceId The compute service whose template variant will be returned (can be null for the default template)
+     * @return
+     * @throws IOException If the template cannot be loaded
+     */
+    public PrecompiledTemplate getTemplate(String computeServiceId) throws IOException {
+        String key = computeServiceId == null ? "" : computeServiceId;
+        LoadedTemplate loaded = templates.get(key);
+        if (loaded == null || (hotReload && isStale(key, loaded))) {
+            loaded = load(key);
+            templates.put(key, loaded);
+        }
+
+        return loaded.template;
+    }
+
+    /**
+     * Finds the template resource to use for the specified compute service
+     */
+    private URL resolve(String computeServiceId) throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        URL url = null;
+        if (!computeServiceId.isEmpty()) {
+            url = classLoader.getResource(resourceBase + "-" + computeServiceId + TEMPLATE_EXTENSION);
+        }
+        if (url == null) {
+            url = classLoader.getResource(resourceBase + TEMPLATE_EXTENSION);
+        }
+        if (url == null) {
+            throw new IOException("Unable to find bootstrap template " + resourceBase + TEMPLATE_EXTENSION);
+        }
+        return url;
+    }
+
+    private boolean isStale(String computeServiceId, LoadedTemplate loaded) throws IOException {
+        URL url = resolve(computeServiceId);
+        if (!url.toString().equals(loaded.url.toString())) {
+            return true;
+        }
+
+        URLConnection connection = url.openConnection();
+        connection.setUseCaches(false);
+        return connection.getLastModified() != loaded.lastModified;
+    }
+
+    private LoadedTemplate load(String computeServiceId) throws IOException {
+        URL url = resolve(computeServiceId);
+        URLConnection connection = url.openConnection();
+        connection.setUseCaches(false);
+        long lastModified = connection.getLastModified();
+
+        String text = null;
+        InputStream is = connection.getInputStream();
+        try {
+            text = IOUtils.toString(is);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+
+        logger.debug(String.format("Loaded bootstrap template for '%1$s' from %2$s", computeServiceId, url));
+        //Windows style file endings have a tendency to sneak in via StringWriter and the like
+        return new LoadedTemplate(url, lastModified, new PrecompiledTemplate(text.replace("\r", "")));
+    }
+}
@@ -0,0 +1,116 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.server.util.PreRenderedResponse;
+import org.springframework.web.context.ServletContextAware;
+
+/**
+ * Holds the build details (from the webapp manifest) and runtime details of this portal.
+ *
+ * Everything is read once at startup - the manifest is never touched again, and the details
+ * (along with a pre-rendered JSON response) are immutable afterwards.
+ */
+public class BuildInfoService implements ServletContextAware {
+
+    public static final String MANIFEST_PATH = "/META-INF/MANIFEST.MF";
+
+    /** Manifest attribute names keyed by the name they are published under*/
+    private static final String[][] MANIFEST_ATTRIBUTES = new String[][] {
+        {"specificationTitle", "Specification-Title"},
+        {"implementationVersion", "Implementation-Version"},
+        {"implementationBuild", "Implementation-Build"},
+        {"buildDate", "buildDate"},
+        {"buildJdk", "Build-Jdk"},
+        {"javaVendor", "javaVendor"},
+        {"builtBy", "Built-By"},
+        {"osName", "osName"},
+        {"osVersion", "osVersion"}
+    };
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private volatile Map<String, String> buildInfo = Collections.emptyMap();
+    private volatile PreRenderedResponse renderedResponse;
+
+    /**
+     * Reads the manifest and runtime details
+     */
+    @Override
+    public void setServletContext(ServletContext servletContext) {
+        Map<String, String> info = new LinkedHashMap<String, String>();
+
+        InputStream is = servletContext.getResourceAsStream(MANIFEST_PATH);
+        if (is == null) {
+            logger.info("No manifest found at " + MANIFEST_PATH + ". Build details will be unavailable.");
+        } else {
+            try {
+                Attributes atts = new Manifest(is).getMainAttributes();
+                for (String[] attribute : MANIFEST_ATTRIBUTES) {
+                    info.put(attribute[0], atts.getValue(attribute[1]));
+                }
+            } catch (IOException e) {
+                logger.info("Error accessing manifest: " + e.getMessage());
+                logger.debug("Exception:", e);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        info.put("serverInfo", servletContext.getServerInfo());
+        info.put("serverJavaVersion", System.getProperty("java.version"));
+        info.put("serverJavaVendor", System.getProperty("java.vendor"));
+        info.put("javaHome", System.getProperty("java.home"));
+        info.put("serverOsArch", System.getProperty("os.arch"));
+        info.put("serverOsName", System.getProperty("os.name"));
+        info.put("serverOsVersion", System.getProperty("os.version"));
+
+        Map<String, Object> model = new LinkedHashMap<String, Object>();
+        model.put("success", true);
+        model.put("data", info);
+        model.put("msg", "");
+        try {
+            renderedResponse = PreRenderedResponse.fromJson(1, model);
+        } catch (IOException e) {
+            logger.error("Unable to render build details", e);
+        }
+
+        buildInfo = Collections.unmodifiableMap(info);
+    }
+
+    /**
+     * Gets every build/runtime detail keyed by name (eg specificationTitle, implementationVersion, serverInfo)
+     * @return An unmodifiable map (empty before startup)
+     */
+    public Map<String, String> getBuildInfo() {
+        return buildInfo;
+    }
+
+    /**
+     * Gets a single build/runtime detail
+     * @param name eg specificationTitle
+     * @return The value or null if it's unavailable
+     */
+    public String getValue(String name) {
+        return buildInfo.get(name);
+    }
+
+    /**
+     * Gets the build details as a pre-rendered JSON response (success, data, msg)
+     * @return null before startup
+     */
+    public PreRenderedResponse getRenderedResponse() {
+        return renderedResponse;
+    }
+}
@@ -0,0 +1,274 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.server.vegl.VglDownload;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * Manages the 'download basket' - the VglDownload objects a user has selected (in their session) for
+ * inclusion in their next job.
+ *
+ * Each download is stored in a compact form under its own session attribute (keyed by a digest of its URL
+ * and bounding box) alongside a tiny index holding the basket size. This means:
+ * <ul>
+ * <li>Adding a download is O(1) and a download with the same URL/bbox is only stored once</li>
+ * <li>Adding a download only sets the new entry and the index so a replicated session only transfers the delta</li>
+ * <li>The basket is capped at a configurable maximum size</li>
+ * </ul>
+ */
+public class DownloadBasketService {
+
+    /** Name of the session attribute holding the basket index*/
+    public static final String SESSION_INDEX = "jobDownloadBasket";
+    /** Prefix of the session attributes holding the individual basket entries*/
+    public static final String SESSION_ENTRY_PREFIX = "jobDownloadBasket.";
+
+    /**
+     * The outcome of adding a download to the basket
+     */
+    public enum AddResult {
+        /** The download was added*/
+        ADDED,
+        /** A download with the same URL and bounding box is already in the basket*/
+        DUPLICATE,
+        /** The basket is full - the download was NOT added*/
+        FULL
+    }
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private int maxDownloads = 100;
+
+    /**
+     * The maximum number of downloads a single basket can hold
+     * @param maxDownloads
+     */
+    public void setMaxDownloads(int maxDownloads) {
+        this.maxDownloads = maxDownloads;
+    }
+
+    /**
+     * The maximum number of downloads a single basket can hold
+     * @return
+     */
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    /**
+     * Adds download to the basket in session (unless it is already present or the basket is full)
+     * @param session
+     * @param download
+     * @return
+     */
+    public AddResult add(HttpSession session, VglDownload download) {
+        String key = SESSION_ENTRY_PREFIX + digest(download);
+
+        synchronized (WebUtils.getSessionMutex(session)) {
+            if (session.getAttribute(key) != null) {
+                logger.trace("Download already in basket: " + download.getUrl());
+                return AddResult.DUPLICATE;
+            }
+
+            Index index = (Index) session.getAttribute(SESSION_INDEX);
+            if (index == null) {
+                index = new Index(0, 0);
+            }
+            if (index.size >= maxDownloads) {
+                logger.debug(String.format("Download basket is full (%1$d). Unable to add: %2$s", maxDownloads, download.getUrl()));
+                return AddResult.FULL;
+            }
+
+            logger.trace("Adding download: " + download.getUrl());
+            session.setAttribute(key, new Entry(index.nextSequence, download));
+            session.setAttribute(SESSION_INDEX, new Index(index.size + 1, index.nextSequence + 1));
+        }
+
+        return AddResult.ADDED;
+    }
+
+    /**
+     * Gets (a copy of) the download in the basket in session with the same URL and bounding box as download
+     * @param session
+     * @param download
+     * @return null if there is no such download in the basket
+     */
+    public VglDownload getDownload(HttpSession session, VglDownload download) {
+        Entry entry = (Entry) session.getAttribute(SESSION_ENTRY_PREFIX + digest(download));
+        return entry == null ? null : entry.toDownload();
+    }
+
+    /**
+     * Gets the number of downloads in the basket in session
+     * @param session
+     * @return
+     */
+    public int size(HttpSession session) {
+        Index index = (Index) session.getAttribute(SESSION_INDEX);
+        return index == null ? 0 : index.size;
+    }
+
+    /**
+     * Gets (copies of) every download in the basket in session in the order they were added.
+     * @param session
+     * @return
+     */
+    public List<VglDownload> getDownloads(HttpSession session) {
+        synchronized (WebUtils.getSessionMutex(session)) {
+            List<Entry> entries = new ArrayList<Entry>();
+            for (String name : getEntryNames(session)) {
+                entries.add((Entry) session.getAttribute(name));
+            }
+
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    return e1.sequence < e2.sequence ? -1 : (e1.sequence == e2.sequence ? 0 : 1);
+                }
+            });
+
+            List<VglDownload> downloads = new ArrayList<VglDownload>(entries.size());
+            for (Entry entry : entries) {
+                downloads.add(entry.toDownload());
+            }
+            return downloads;
+        }
+    }
+
+    /**
+     * Gets every download in the basket in session (in the order they were added) and then empties the basket.
+     * @param session
+     * @return
+     */
+    public List<VglDownload> takeDownloads(HttpSession session) {
+        synchronized (WebUtils.getSessionMutex(session)) {
+            List<VglDownload> downloads = getDownloads(session);
+            clear(session);
+            return downloads;
+        }
+    }
+
+    /**
+     * Empties the basket in session
+     * @param session
+     */
+    public void clear(HttpSession session) {
+        synchronized (WebUtils.getSessionMutex(session)) {
+            for (String name : getEntryNames(session)) {
+                session.removeAttribute(name);
+            }
+            session.removeAttribute(SESSION_INDEX);
+        }
+    }
+
+    private List<String> getEntryNames(HttpSession session) {
+        List<String> names = new ArrayList<String>();
+        Enumeration<?> attributeNames = session.getAttributeNames();
+        while (attributeNames.hasMoreElements()) {
+            String name = attributeNames.nextElement().toString();
+            if (name.startsWith(SESSION_ENTRY_PREFIX)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Generates a (fixed length) digest of the URL and bounding box of download
+     */
+    private static String digest(VglDownload download) {
+        String identity = String.format("%1$s\n%2$s,%3$s,%4$s,%5$s", download.getUrl(),
+                download.getNorthBoundLatitude(), download.getSouthBoundLatitude(),
+                download.getEastBoundLongitude(), download.getWestBoundLongitude());
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(identity.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is unavailable", ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is unavailable", ex);
+        }
+    }
+
+    /**
+     * The (immutable) size of a basket and the sequence number of the next entry
+     */
+    private static final class Index implements Serializable {
+        private static final long serialVersionUID = -3398271052412740137L;
+
+        private final int size;
+        private final long nextSequence;
+
+        private Index(int size, long nextSequence) {
+            this.size = size;
+            this.nextSequence = nextSequence;
+        }
+    }
+
+    /**
+     * A compact (immutable) copy of a VglDownload. Missing bounding box values are stored as NaN
+     */
+    private static final class Entry implements Serializable {
+        private static final long serialVersionUID = 8861905325342147226L;
+
+        private final long sequence;
+        private final String url;
+        private final String name;
+        private final String description;
+        private final String localPath;
+        private final double northBoundLatitude;
+        private final double southBoundLatitude;
+        private final double eastBoundLongitude;
+        private final double westBoundLongitude;
+
+        private Entry(long sequence, VglDownload download) {
+            this.sequence = sequence;
+            this.url = download.getUrl();
+            this.name = download.getName();
+            this.description = download.getDescription();
+            this.localPath = download.getLocalPath();
+            this.northBoundLatitude = pack(download.getNorthBoundLatitude());
+            this.southBoundLatitude = pack(download.getSouthBoundLatitude());
+            this.eastBoundLongitude = pack(download.getEastBoundLongitude());
+            this.westBoundLongitude = pack(download.getWestBoundLongitude());
+        }
+
+        private static double pack(Double value) {
+            return value == null ? Double.NaN : value.doubleValue();
+        }
+
+        private static Double unpack(double value) {
+            return Double.isNaN(value) ? null : Double.valueOf(value);
+        }
+
+        private VglDownload toDownload() {
+            VglDownload download = new VglDownload();
+            download.setUrl(url);
+            download.setName(name);
+            download.setDescription(description);
+            download.setLocalPath(localPath);
+            download.setNorthBoundLatitude(unpack(northBoundLatitude));
+            download.setSouthBoundLatitude(unpack(southBoundLatitude));
+            download.setEastBoundLongitude(unpack(eastBoundLongitude));
+            download.setWestBoundLongitude(unpack(westBoundLongitude));
+            return download;
+        }
+    }
+}
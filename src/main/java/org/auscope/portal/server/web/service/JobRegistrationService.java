@@ -0,0 +1,263 @@
+package org.auscope.portal.server.web.service;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.cloud.CloudFileInformation;
+import org.auscope.portal.core.services.GeonetworkService;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.cloud.CloudStorageService;
+import org.auscope.portal.core.services.responses.csw.CSWOnlineResourceImpl;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobManager;
+
+/**
+ * Registers jobs with GeoNetwork in the background.
+ *
+ * The caller prepares a CSWRecord describing everything but the job's output files. Listing the outputs
+ * (which can number in the thousands), adding them to the record and inserting it into GeoNetwork all happen
+ * on the supplied executor. The progress of each registration can be polled with getStatus.
+ */
+public class JobRegistrationService {
+
+    /**
+     * The stages of a single registration
+     */
+    public enum Status {
+        /** Waiting for an executor thread */
+        PENDING,
+        /** Output files are being listed or the record is being inserted */
+        RUNNING,
+        /** The job has been registered, the registered URL is available */
+        SUCCEEDED,
+        /** The registration failed, an error message is available */
+        FAILED
+    }
+
+    /**
+     * A snapshot of a registration's progress. Instances are immutable.
+     */
+    public static class RegistrationStatus {
+        private final Integer jobId;
+        private final Status status;
+        private final String registeredUrl;
+        private final String message;
+        private final Date lastUpdated;
+
+        public RegistrationStatus(Integer jobId, Status status, String registeredUrl, String message) {
+            this.jobId = jobId;
+            this.status = status;
+            this.registeredUrl = registeredUrl;
+            this.message = message;
+            this.lastUpdated = new Date();
+        }
+
+        public Integer getJobId() {
+            return jobId;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getRegisteredUrl() {
+            return registeredUrl;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public Date getLastUpdated() {
+            return lastUpdated;
+        }
+
+        /**
+         * Returns true if this registration has either succeeded or failed
+         * @return
+         */
+        public boolean isFinished() {
+            return status == Status.SUCCEEDED || status == Status.FAILED;
+        }
+    }
+
+    public static final String OUTPUT_PROTOCOL = "WWW:DOWNLOAD-1.0-ftp--download";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private VEGLJobManager jobManager;
+    private GeonetworkService gnService;
+    private Executor executor;
+    private int maxListAttempts = 3;
+    private long listRetryDelayMillis = 5000L;
+    private long finishedStatusTtlMillis = 60 * 60 * 1000L;
+    /** job id keyed to the status of its most recent registration*/
+    private ConcurrentHashMap<Integer, RegistrationStatus> statuses = new ConcurrentHashMap<Integer, RegistrationStatus>();
+
+    /**
+     * @param jobManager Used for saving the registered URL against each job
+     * @param gnService Used for inserting records
+     * @param executor Runs the registrations
+     */
+    public JobRegistrationService(VEGLJobManager jobManager, GeonetworkService gnService, Executor executor) {
+        this.jobManager = jobManager;
+        this.gnService = gnService;
+        this.executor = executor;
+    }
+
+    /**
+     * The number of times listing a job's output files will be attempted before the registration fails
+     * @param maxListAttempts
+     */
+    public void setMaxListAttempts(int maxListAttempts) {
+        this.maxListAttempts = maxListAttempts;
+    }
+
+    /**
+     * How long to wait between attempts at listing a job's output files
+     * @param listRetryDelayMillis
+     */
+    public void setListRetryDelayMillis(long listRetryDelayMillis) {
+        this.listRetryDelayMillis = listRetryDelayMillis;
+    }
+
+    /**
+     * How long the status of a finished registration will remain available to getStatus
+     * @param finishedStatusTtlSeconds
+     */
+    public void setFinishedStatusTtlSeconds(int finishedStatusTtlSeconds) {
+        this.finishedStatusTtlMillis = finishedStatusTtlSeconds * 1000L;
+    }
+
+    /**
+     * Gets the status of the most recent registration of the specified job
+     * @param jobId
+     * @return The status or null if the job hasn't been (recently) registered
+     */
+    public RegistrationStatus getStatus(Integer jobId) {
+        return statuses.get(jobId);
+    }
+
+    /**
+     * Begins registering job. If job is already being registered, the status of that registration will be returned
+     * and nothing new will be started.
+     *
+     * @param job The job being registered
+     * @param record A record describing job (without any online resources)
+     * @param linkResources Online resources to list after the job's output files (eg the job's remote service downloads)
+     * @param cloudStorageService The service holding the job's output files
+     * @return The status of the registration
+     */
+    public RegistrationStatus register(final VEGLJob job, final CSWRecord record, final List<CSWOnlineResourceImpl> linkResources,
+            final CloudStorageService cloudStorageService) {
+        evictFinished();
+
+        final Integer jobId = job.getId();
+        RegistrationStatus pending = new RegistrationStatus(jobId, Status.PENDING, null, null);
+        RegistrationStatus existing = statuses.putIfAbsent(jobId, pending);
+        while (existing != null) {
+            if (!existing.isFinished()) {
+                return existing;
+            }
+            if (statuses.replace(jobId, existing, pending)) {
+                break;
+            }
+            existing = statuses.putIfAbsent(jobId, pending);
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runRegistration(job, record, linkResources, cloudStorageService);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.warn("Unable to schedule registration for job " + jobId + ": " + ex.getMessage());
+            return updateStatus(jobId, Status.FAILED, null, "The registration service is unavailable.");
+        }
+
+        return statuses.get(jobId);
+    }
+
+    private void runRegistration(VEGLJob job, CSWRecord record, List<CSWOnlineResourceImpl> linkResources, CloudStorageService cloudStorageService) {
+        Integer jobId = job.getId();
+        updateStatus(jobId, Status.RUNNING, null, null);
+
+        try {
+            CloudFileInformation[] outputFiles = listOutputFiles(job, cloudStorageService);
+
+            List<CSWOnlineResourceImpl> onlineResources = new ArrayList<CSWOnlineResourceImpl>(outputFiles.length + linkResources.size());
+            for (CloudFileInformation obj : outputFiles) {
+                //A single bad output shouldn't prevent the rest of the job being registered
+                try {
+                    onlineResources.add(new CSWOnlineResourceImpl(new URL(obj.getPublicUrl()), OUTPUT_PROTOCOL, obj.getName(), obj.getName()));
+                } catch (Exception ex) {
+                    logger.warn(String.format("Unable to parse URL '%1$s' for job '%2$s'. It will be skipped", obj.getPublicUrl(), jobId));
+                }
+            }
+            onlineResources.addAll(linkResources);
+            record.setOnlineResources(onlineResources.toArray(new CSWOnlineResourceImpl[onlineResources.size()]));
+
+            String metadataRecordUrl = gnService.makeCSWRecordInsertion(record);
+            job.setRegisteredUrl(metadataRecordUrl);
+            jobManager.saveJob(job);
+
+            logger.info(String.format("Registered job %1$s (%2$d output files) at %3$s", jobId, outputFiles.length, metadataRecordUrl));
+            updateStatus(jobId, Status.SUCCEEDED, metadataRecordUrl, null);
+        } catch (Exception ex) {
+            logger.warn("Error registering job to Geonetwork for jobId=" + jobId, ex);
+            updateStatus(jobId, Status.FAILED, null, "Internal error");
+        }
+    }
+
+    /**
+     * Lists the output files of job, retrying transient failures
+     * @param job
+     * @param cloudStorageService The service holding the job's output files
+     * @return The output files (never null)
+     * @throws PortalServiceException If every attempt at listing fails
+     * @throws InterruptedException
+     */
+    public CloudFileInformation[] listOutputFiles(VEGLJob job, CloudStorageService cloudStorageService) throws PortalServiceException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                CloudFileInformation[] outputFiles = cloudStorageService.listJobFiles(job);
+                return outputFiles == null ? new CloudFileInformation[0] : outputFiles;
+            } catch (PortalServiceException ex) {
+                if (attempt >= maxListAttempts) {
+                    throw ex;
+                }
+                logger.debug(String.format("Listing outputs for job %1$s failed (attempt %2$d): %3$s", job.getId(), attempt, ex.getMessage()));
+                Thread.sleep(listRetryDelayMillis);
+            }
+        }
+    }
+
+    private RegistrationStatus updateStatus(Integer jobId, Status status, String registeredUrl, String message) {
+        RegistrationStatus newStatus = new RegistrationStatus(jobId, status, registeredUrl, message);
+        statuses.put(jobId, newStatus);
+        return newStatus;
+    }
+
+    private void evictFinished() {
+        long cutoff = System.currentTimeMillis() - finishedStatusTtlMillis;
+        Iterator<Map.Entry<Integer, RegistrationStatus>> it = statuses.entrySet().iterator();
+        while (it.hasNext()) {
+            RegistrationStatus status = it.next().getValue();
+            if (status.isFinished() && status.getLastUpdated().getTime() < cutoff) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.auscope.portal.server.web.service;
+
+import java.awt.geom.Point2D;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.jhlabs.map.proj.Projection;
+import com.jhlabs.map.proj.ProjectionFactory;
+
+/**
+ * Service for reprojecting WGS84 lat/lng co-ordinates into UTM (MGA) zones.
+ *
+ * A single Projection is created (on first use) for each UTM zone and reused for every subsequent request.
+ * Points and bounding boxes are accepted in batches as packed primitive arrays so that thousands of regions
+ * can be projected without allocating an object per co-ordinate.
+ */
+public class ReprojectionService {
+
+    /** The most western MGA zone (Australia)*/
+    public static final int MIN_MGA_ZONE = 49;
+    /** The most eastern MGA zone (Australia)*/
+    public static final int MAX_MGA_ZONE = 56;
+    /** The number of UTM zones*/
+    public static final int UTM_ZONES = 60;
+
+    /** The width (in degrees of longitude) of a single UTM zone*/
+    private static final double ZONE_WIDTH = 6.0;
+
+    /** Projections indexed by UTM zone (index 0 is unused)*/
+    private final AtomicReferenceArray<Projection> projections = new AtomicReferenceArray<Projection>(UTM_ZONES + 1);
+
+    private int edgeSegments = 8;
+
+    /**
+     * The number of segments each bounding box edge is split into when projecting a bounding box. A bounding
+     * box edge is curved after projection - more segments give a more accurate projected extent.
+     * @param edgeSegments Must be at least 1
+     */
+    public void setEdgeSegments(int edgeSegments) {
+        if (edgeSegments < 1) {
+            throw new IllegalArgumentException("edgeSegments must be at least 1");
+        }
+        this.edgeSegments = edgeSegments;
+    }
+
+    /**
+     * Calculates the MGA zone that contains the specified point
+     * @param latitude
+     * @param longitude
+     * @return The MGA zone or -1 if the point lies outside of every MGA zone
+     */
+    public int calculateIdealMgaZone(double latitude, double longitude) {
+        if (Double.isNaN(longitude)) {
+            return -1;
+        }
+
+        int zone = (int) Math.floor((longitude + 180.0) / ZONE_WIDTH) + 1;
+        if (zone < MIN_MGA_ZONE || zone > MAX_MGA_ZONE) {
+            return -1;
+        }
+        return zone;
+    }
+
+    /**
+     * Calculates the MGA zone that contains the center of the specified bounding box
+     * @return The MGA zone or -1 if the center lies outside of every MGA zone
+     */
+    public int calculateIdealMgaZone(double northBoundLatitude, double southBoundLatitude, double eastBoundLongitude, double westBoundLongitude) {
+        double latCenter = southBoundLatitude + ((northBoundLatitude - southBoundLatitude) / 2);
+        double lngCenter = westBoundLongitude + ((eastBoundLongitude - westBoundLongitude) / 2);
+
+        return calculateIdealMgaZone(latCenter, lngCenter);
+    }
+
+    /**
+     * Gets the (shared) projection for the specified UTM zone
+     * @param zone A UTM zone in the range [1, 60]
+     * @return
+     */
+    public Projection getUtmProjection(int zone) {
+        if (zone < 1 || zone > UTM_ZONES) {
+            throw new IllegalArgumentException("Invalid UTM zone: " + zone);
+        }
+
+        Projection projection = projections.get(zone);
+        if (projection == null) {
+            //Racing threads may both create a projection but only one will ever be shared
+            projection = ProjectionFactory.fromPROJ4Specification(
+                new String[] {
+                    "+proj=utm", // Projection name
+                    "+zone=" + zone, //UTM zone
+                    "+ellps=WGS84", // Ellipsoid name
+                    "+x_0=500000", // False easting
+                    "+y_0=10000000", // False northing
+                    "+k_0=0.99960000" // Scaling factor (new name)
+                }
+            );
+            if (!projections.compareAndSet(zone, null, projection)) {
+                projection = projections.get(zone);
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Projects a batch of points into the specified UTM zone.
+     *
+     * @param zone A UTM zone in the range [1, 60]
+     * @param src Packed lng/lat pairs (in degrees) ie [lng0, lat0, lng1, lat1, ...]
+     * @param srcOffset The index of the first lng in src
+     * @param dst Will receive packed easting/northing pairs. Can be the same array as src
+     * @param dstOffset The index in dst where the first easting will be written
+     * @param numPoints The number of points to project
+     */
+    public void projectPoints(int zone, double[] src, int srcOffset, double[] dst, int dstOffset, int numPoints) {
+        Projection projection = getUtmProjection(zone);
+        Point2D.Double in = new Point2D.Double();
+        Point2D.Double out = new Point2D.Double();
+        for (int i = 0; i < numPoints; i++) {
+            in.x = src[srcOffset++];
+            in.y = src[srcOffset++];
+            projection.transform(in, out);
+            dst[dstOffset++] = out.x;
+            dst[dstOffset++] = out.y;
+        }
+    }
+
+    /**
+     * Projects a batch of bounding boxes into UTM. Every bounding box edge is densified (see setEdgeSegments)
+     * so the result fully encompasses the projected region.
+     *
+     * @param bboxes Packed WGS84 bounding boxes ie [north0, south0, east0, west0, north1, ...]
+     * @param zones The UTM zone for each bounding box. Must be bboxes.length / 4 long.
+     * @return Packed projected extents ie [minEasting0, minNorthing0, maxEasting0, maxNorthing0, minEasting1, ...]
+     */
+    public double[] projectBBoxes(double[] bboxes, int[] zones) {
+        if (bboxes.length % 4 != 0 || zones.length != bboxes.length / 4) {
+            throw new IllegalArgumentException(String.format("Expected 4 values per bbox and 1 zone per bbox but got %1$d values and %2$d zones", bboxes.length, zones.length));
+        }
+
+        int segments = edgeSegments;
+        int pointsPerBBox = 4 * segments;
+        double[] perimeter = new double[pointsPerBBox * 2];
+        double[] result = new double[bboxes.length];
+
+        for (int i = 0; i < zones.length; i++) {
+            double north = bboxes[i * 4];
+            double south = bboxes[i * 4 + 1];
+            double east = bboxes[i * 4 + 2];
+            double west = bboxes[i * 4 + 3];
+
+            //Walk the perimeter (west -> east along the north edge, north -> south along the east edge etc)
+            int p = 0;
+            for (int s = 0; s < segments; s++) {
+                double t = (double) s / segments;
+                perimeter[p++] = west + (east - west) * t;
+                perimeter[p++] = north;
+            }
+            for (int s = 0; s < segments; s++) {
+                double t = (double) s / segments;
+                perimeter[p++] = east;
+                perimeter[p++] = north + (south - north) * t;
+            }
+            for (int s = 0; s < segments; s++) {
+                double t = (double) s / segments;
+                perimeter[p++] = east + (west - east) * t;
+                perimeter[p++] = south;
+            }
+            for (int s = 0; s < segments; s++) {
+                double t = (double) s / segments;
+                perimeter[p++] = west;
+                perimeter[p++] = south + (north - south) * t;
+            }
+
+            projectPoints(zones[i], perimeter, 0, perimeter, 0, pointsPerBBox);
+
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < perimeter.length; j += 2) {
+                minX = Math.min(minX, perimeter[j]);
+                maxX = Math.max(maxX, perimeter[j]);
+                minY = Math.min(minY, perimeter[j + 1]);
+                maxY = Math.max(maxY, perimeter[j + 1]);
+            }
+
+            result[i * 4] = minX;
+            result[i * 4 + 1] = minY;
+            result[i * 4 + 2] = maxX;
+            result[i * 4 + 3] = maxY;
+        }
+
+        return result;
+    }
+}
@@ -3,7 +3,18 @@ package org.auscope.portal.server.web.service;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang.text.StrSubstitutor;
 import org.apache.commons.logging.Log;
@@ -11,14 +22,24 @@ import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.services.cloud.FileStagingService;
 import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.server.util.LineDiff;
 import org.auscope.portal.server.vegl.VEGLJob;
 import org.auscope.portal.server.vegl.VEGLJobManager;
+import org.auscope.portal.server.web.service.ScriptRevisionHistory.Revision;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 /**
  * A service class for providing functionality for saving 'scripts' against a particular job.
  *
+ * The scripts of recently used jobs are held in an LRU cache so that repeated loads/saves (eg editor autosave)
+ * don't touch the database or the staging area. Saves are written to the staging area in the background
+ * (write-behind) after a short delay, with successive saves coalesced into a single write. Each cached script
+ * also keeps a (delta compressed) revision history so that earlier revisions can be compared and restored.
+ *
+ * Anything that reads the staging area directly (eg job submission) must call flush(jobId) first. Anything that
+ * replaces or removes the script file in the staging area must call evict(jobId).
+ *
  * @author Josh Vote
  *
  */
@@ -26,6 +47,15 @@ import org.springframework.stereotype.Service;
 public class ScriptBuilderService {
     public static final String SCRIPT_FILE_NAME = "vl_script.py";
 
+    /** How long (in ms) a saved script waits before being written to the staging area*/
+    public static final long DEFAULT_WRITE_BEHIND_DELAY = 2000L;
+    /** The number of job scripts that will be cached*/
+    public static final int DEFAULT_CACHE_SIZE = 100;
+    /** The number of revisions that will be kept per job script*/
+    public static final int DEFAULT_MAX_REVISIONS = 50;
+    /** The number of consecutive attempts that will be made at writing a script in the background*/
+    public static final int MAX_WRITE_ATTEMPTS = 3;
+
     private final Log logger = LogFactory.getLog(getClass());
 
     /** For saving our files to a staging area*/
@@ -33,6 +63,44 @@ public class ScriptBuilderService {
     /** For accessing a job object*/
     private VEGLJobManager jobManager;
 
+    private long writeBehindDelay = DEFAULT_WRITE_BEHIND_DELAY;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private int maxRevisions = DEFAULT_MAX_REVISIONS;
+    private ScheduledExecutorService writeExecutor;
+
+    /** Cached scripts keyed by job ID in access order. Guarded by itself*/
+    private final LinkedHashMap<Integer, ScriptEntry> cache = new LinkedHashMap<Integer, ScriptEntry>(16, 0.75f, true);
+
+    /**
+     * The cached script (and history) for a single job
+     */
+    private static class ScriptEntry {
+        final VEGLJob job;
+        final ScriptRevisionHistory history;
+        /** Held whilst writing to the staging area so writes of the same script can't overtake each other*/
+        final Object writeLock = new Object();
+
+        //The following are guarded by this entry
+        String script;
+        long version;
+        long writtenVersion;
+        boolean writeScheduled;
+        int writeAttempts;
+        /** The reason the last write failed (or null if it succeeded)*/
+        PortalServiceException writeError;
+        /** Set once this entry has been removed from the cache. Evicted entries are never written*/
+        boolean evicted;
+
+        ScriptEntry(VEGLJob job, int maxRevisions) {
+            this.job = job;
+            this.history = new ScriptRevisionHistory(maxRevisions);
+        }
+
+        synchronized boolean isClean() {
+            return version == writtenVersion && !writeScheduled;
+        }
+    }
+
     /**
      * Creates a new instance
      * @param jobFileService
@@ -44,53 +112,228 @@ public class ScriptBuilderService {
         super();
         this.jobFileService = jobFileService;
         this.jobManager = jobManager;
+        this.writeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "script-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     /**
-     * Saves the specified script text as the primary script to be run by the job with specified ID
-     * @param jobId
-     * @param scriptText
-     * @throws PortalServiceException
+     * How long (in ms) a saved script waits before being written to the staging area. If this is 0 (or less)
+     * scripts will be written as part of each save.
+     * @param writeBehindDelay
      */
-    public void saveScript(String jobId, String scriptText) throws PortalServiceException {
+    public void setWriteBehindDelay(long writeBehindDelay) {
+        this.writeBehindDelay = writeBehindDelay;
+    }
 
-        //Lookup our job
-        VEGLJob job = null;
-        try {
-            job = jobManager.getJobById(Integer.parseInt(jobId));
-        } catch (Exception ex) {
-            logger.warn("Unable to lookup job with id " + jobId + ": " + ex.getMessage());
-            logger.debug("exception:", ex);
-            throw new PortalServiceException("Unable to lookup job with id " + jobId, ex);
+    /**
+     * The number of job scripts that will be cached (scripts waiting to be written are never evicted)
+     * @param cacheSize
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * The number of revisions that will be kept per job script
+     * @param maxRevisions
+     */
+    public void setMaxRevisions(int maxRevisions) {
+        this.maxRevisions = maxRevisions;
+    }
+
+    private ScriptEntry getCachedEntry(Integer jobId) {
+        synchronized (cache) {
+            return cache.get(jobId);
+        }
+    }
+
+    /**
+     * Adds entry to the cache (unless another entry has already been cached for jobId)
+     * @return The cached entry
+     */
+    private ScriptEntry cacheEntry(Integer jobId, ScriptEntry entry) {
+        synchronized (cache) {
+            ScriptEntry existing = cache.get(jobId);
+            if (existing != null) {
+                return existing;
+            }
+            cache.put(jobId, entry);
+
+            //Evict the least recently used scripts that have been written
+            Iterator<ScriptEntry> it = cache.values().iterator();
+            while (cache.size() > cacheSize && it.hasNext()) {
+                ScriptEntry candidate = it.next();
+                if (candidate != entry && candidate.isClean()) {
+                    it.remove();
+                }
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Writes the latest version of entry's script to the staging area (if it hasn't already been written)
+     */
+    private void writeScript(ScriptEntry entry) throws PortalServiceException {
+        synchronized (entry.writeLock) {
+            String script;
+            long version;
+            synchronized (entry) {
+                if (entry.evicted || entry.version == entry.writtenVersion) {
+                    return;
+                }
+                script = entry.script;
+                version = entry.version;
+            }
+
+            //Apply text contents to job stage in directory
+            OutputStream scriptFile = null;
+            try {
+                scriptFile = jobFileService.writeFile(entry.job, SCRIPT_FILE_NAME);
+                PrintWriter writer = new PrintWriter(scriptFile);
+                writer.print(script);
+                writer.close();
+            } catch (Exception e) {
+                logger.error("Couldn't write script file: " + e.getMessage());
+                logger.debug("error: ", e);
+                PortalServiceException ex = new PortalServiceException("Couldn't write script file for job", e);
+                synchronized (entry) {
+                    entry.writeError = ex;
+                }
+                throw ex;
+            } finally {
+                FileIOUtil.closeQuietly(scriptFile);
+            }
+
+            synchronized (entry) {
+                entry.writtenVersion = version;
+                entry.writeError = null;
+            }
         }
+    }
 
-        //Apply text contents to job stage in directory
-        OutputStream scriptFile = null;
+    /**
+     * Schedules a background write of entry. The caller must hold entry's lock.
+     * @return false if the write couldn't be scheduled
+     */
+    private boolean scheduleWrite(final ScriptEntry entry) {
         try {
-            scriptFile = jobFileService.writeFile(job, SCRIPT_FILE_NAME);
-            PrintWriter writer = new PrintWriter(scriptFile);
-            writer.print(scriptText);
-            writer.close();
-        } catch (Exception e) {
-            logger.error("Couldn't write script file: " + e.getMessage());
-            logger.debug("error: ", e);
-            throw new PortalServiceException("Couldn't write script file for job with id " + jobId, e);
-        } finally {
-            FileIOUtil.closeQuietly(scriptFile);
+            writeExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (entry) {
+                        entry.writeScheduled = false;
+                    }
+
+                    try {
+                        writeScript(entry);
+                        synchronized (entry) {
+                            entry.writeAttempts = 0;
+                        }
+                    } catch (PortalServiceException ex) {
+                        synchronized (entry) {
+                            if (++entry.writeAttempts < MAX_WRITE_ATTEMPTS && !entry.writeScheduled) {
+                                entry.writeScheduled = scheduleWrite(entry);
+                            } else {
+                                logger.error("Giving up writing script file. It will be retried (and reported) on the next save or flush.");
+                                entry.writeAttempts = 0;
+                            }
+                        }
+                    }
+                }
+            }, writeBehindDelay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
         }
     }
 
     /**
-     * Loads the saved VL script source with a specified job ID
+     * Saves the specified script text as the primary script to be run by the job with specified ID. Unless
+     * write-behind is disabled the script will be written to the staging area shortly afterwards.
+     *
+     * If an earlier background write of this script failed, the script is written as part of this save so
+     * the failure is reported to the caller.
      * @param jobId
-     * @return the file contents if the script file exists otherwise an empty string if the script file doesn't exist or is empty.
+     * @param scriptText
      * @throws PortalServiceException
      */
-    public String loadScript(String jobId) throws PortalServiceException {
+    public void saveScript(String jobId, String scriptText) throws PortalServiceException {
+        boolean writeNow = false;
+        boolean raced = false;
+        ScriptEntry entry = null;
+        do {
+            //Lookup our job (unless we've already cached it)
+            try {
+                Integer id = Integer.parseInt(jobId);
+                entry = getCachedEntry(id);
+                if (entry == null) {
+                    VEGLJob job = jobManager.getJobById(id);
+                    if (job == null) {
+                        throw new IllegalArgumentException("Job does not exist");
+                    }
+                    entry = cacheEntry(id, new ScriptEntry(job, maxRevisions));
+                }
+            } catch (Exception ex) {
+                logger.warn("Unable to lookup job with id " + jobId + ": " + ex.getMessage());
+                logger.debug("exception:", ex);
+                throw new PortalServiceException("Unable to lookup job with id " + jobId, ex);
+            }
+
+            synchronized (entry) {
+                //We raced an eviction - start again with a fresh entry
+                raced = entry.evicted;
+                if (raced) {
+                    continue;
+                }
+
+                boolean changed = !scriptText.equals(entry.script);
+                if (changed) {
+                    entry.script = scriptText;
+                    entry.version++;
+                    entry.history.add(scriptText);
+                }
+
+                if (changed || entry.version != entry.writtenVersion) {
+                    if (writeBehindDelay <= 0 || entry.writeError != null) {
+                        writeNow = true;
+                    } else if (!entry.writeScheduled) {
+                        entry.writeScheduled = scheduleWrite(entry);
+                        writeNow = !entry.writeScheduled;
+                    }
+                }
+            }
+        } while (raced);
+
+        if (writeNow) {
+            try {
+                writeScript(entry);
+            } catch (PortalServiceException ex) {
+                throw new PortalServiceException("Couldn't write script file for job with id " + jobId, ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Gets the cached script for the specified job, loading it from the staging area if it isn't cached
+     */
+    private ScriptEntry loadEntry(String jobId) throws PortalServiceException {
         InputStream is = null;
         try {
+            Integer id = Integer.parseInt(jobId);
+            ScriptEntry entry = getCachedEntry(id);
+            if (entry != null) {
+                return entry;
+            }
+
             //Lookup our job
-            VEGLJob job = jobManager.getJobById(Integer.parseInt(jobId));
+            VEGLJob job = jobManager.getJobById(id);
             //Load script from VL server's filesystem
             is = jobFileService.readFile(job, SCRIPT_FILE_NAME);
             String script = null;
@@ -100,7 +343,13 @@ public class ScriptBuilderService {
             } else {
                 script = FileIOUtil.convertStreamtoString(is);
             }
-            return script;
+
+            entry = new ScriptEntry(job, maxRevisions);
+            entry.script = script;
+            if (!script.isEmpty()) {
+                entry.history.add(script);
+            }
+            return cacheEntry(id, entry);
         } catch (Exception ex) {
             logger.error("Error loading script.", ex);
             throw new PortalServiceException("There was a problem loading your script.", "Please report this error to cg_admin@csiro.au");
@@ -109,6 +358,146 @@ public class ScriptBuilderService {
         }
     }
 
+    /**
+     * Loads the saved VL script source with a specified job ID
+     * @param jobId
+     * @return the file contents if the script file exists otherwise an empty string if the script file doesn't exist or is empty.
+     * @throws PortalServiceException
+     */
+    public String loadScript(String jobId) throws PortalServiceException {
+        ScriptEntry entry = loadEntry(jobId);
+        synchronized (entry) {
+            return entry.script == null ? "" : entry.script;
+        }
+    }
+
+    /**
+     * Gets the retained revisions of the script for the specified job (newest first). Revisions are only
+     * retained whilst the job's script remains cached.
+     * @param jobId
+     * @return
+     * @throws PortalServiceException
+     */
+    public List<Revision> getRevisions(String jobId) throws PortalServiceException {
+        return loadEntry(jobId).history.getRevisions();
+    }
+
+    /**
+     * Gets the script for the specified job as it was at the specified revision
+     * @param jobId
+     * @param revision
+     * @return
+     * @throws PortalServiceException If the revision doesn't exist
+     */
+    public String getRevision(String jobId, int revision) throws PortalServiceException {
+        String script = loadEntry(jobId).history.getScript(revision);
+        if (script == null) {
+            throw new PortalServiceException("Revision " + revision + " is not available for job with id " + jobId);
+        }
+        return script;
+    }
+
+    /**
+     * Compares two revisions of the script for the specified job
+     * @param jobId
+     * @param fromRevision
+     * @param toRevision
+     * @return The line changes that turn fromRevision into toRevision
+     * @throws PortalServiceException If either revision doesn't exist
+     */
+    public List<LineDiff.Line> diffRevisions(String jobId, int fromRevision, int toRevision) throws PortalServiceException {
+        return LineDiff.diff(getRevision(jobId, fromRevision), getRevision(jobId, toRevision));
+    }
+
+    /**
+     * Saves an earlier revision of the script for the specified job as the latest revision
+     * @param jobId
+     * @param revision
+     * @return The restored script
+     * @throws PortalServiceException If the revision doesn't exist or can't be saved
+     */
+    public String restoreRevision(String jobId, int revision) throws PortalServiceException {
+        String script = getRevision(jobId, revision);
+        saveScript(jobId, script);
+        return script;
+    }
+
+    /**
+     * Writes the script for the specified job to the staging area now (if it is waiting to be written). This must
+     * be called before anything reads the job's staging area directly.
+     * @param jobId
+     * @throws PortalServiceException If the script couldn't be written
+     */
+    public void flush(String jobId) throws PortalServiceException {
+        ScriptEntry entry = null;
+        try {
+            entry = getCachedEntry(Integer.parseInt(jobId));
+        } catch (NumberFormatException ex) {
+            throw new PortalServiceException("Invalid job id " + jobId, ex);
+        }
+
+        if (entry != null) {
+            try {
+                writeScript(entry);
+            } catch (PortalServiceException ex) {
+                throw new PortalServiceException("Couldn't write script file for job with id " + jobId, ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Discards the cached script (and any write waiting to happen) for the specified job. This must be called
+     * before the job's script file is replaced or removed in the staging area (eg upload or job deletion).
+     *
+     * Any write of the script that is in progress will complete before this returns.
+     * @param jobId
+     */
+    public void evict(String jobId) {
+        ScriptEntry entry = null;
+        try {
+            synchronized (cache) {
+                entry = cache.remove(Integer.parseInt(jobId));
+            }
+        } catch (NumberFormatException ex) {
+            return;
+        }
+
+        if (entry != null) {
+            synchronized (entry.writeLock) {
+                synchronized (entry) {
+                    entry.evicted = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every cached script that is waiting to be written to the staging area
+     */
+    public void flush() {
+        List<ScriptEntry> entries;
+        synchronized (cache) {
+            entries = new ArrayList<ScriptEntry>(cache.values());
+        }
+
+        for (ScriptEntry entry : entries) {
+            try {
+                writeScript(entry);
+            } catch (PortalServiceException ex) {
+                logger.error("Unable to flush script file: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops background writing and writes every pending script
+     */
+    @PreDestroy
+    public void shutdown() {
+        writeExecutor.shutdown();
+        flush();
+    }
+
     /**
      * A string format function supporting named placeholders in the form ${key}
      *
@@ -0,0 +1,166 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A bounded history of the revisions of a single job script.
+ *
+ * Only the latest revision is held in full. Every older revision is stored as a reverse delta against
+ * the revision that replaced it (the common prefix/suffix lengths and the differing middle section) so
+ * that a long run of small editor saves costs little more than the edits themselves.
+ *
+ * Instances are thread safe.
+ */
+public class ScriptRevisionHistory {
+
+    /**
+     * Describes a single revision
+     */
+    public static class Revision {
+        private final int number;
+        private final Date date;
+        private final int length;
+
+        public Revision(int number, Date date, int length) {
+            this.number = number;
+            this.date = date;
+            this.length = length;
+        }
+
+        /**
+         * The revision number (revisions are numbered from 1)
+         * @return
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * When this revision was saved
+         * @return
+         */
+        public Date getDate() {
+            return date;
+        }
+
+        /**
+         * The length (in characters) of the script at this revision
+         * @return
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Turns a newer script into an older script
+     */
+    private static class Delta {
+        private final int prefix;
+        private final int suffix;
+        private final String middle;
+
+        private Delta(int prefix, int suffix, String middle) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.middle = middle;
+        }
+
+        private static Delta between(String newer, String older) {
+            int max = Math.min(newer.length(), older.length());
+            int prefix = 0;
+            while (prefix < max && newer.charAt(prefix) == older.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < max - prefix && newer.charAt(newer.length() - 1 - suffix) == older.charAt(older.length() - 1 - suffix)) {
+                suffix++;
+            }
+            return new Delta(prefix, suffix, older.substring(prefix, older.length() - suffix));
+        }
+
+        private String apply(String newer) {
+            StringBuilder sb = new StringBuilder(prefix + middle.length() + suffix);
+            sb.append(newer, 0, prefix);
+            sb.append(middle);
+            sb.append(newer, newer.length() - suffix, newer.length());
+            return sb.toString();
+        }
+    }
+
+    private final int maxRevisions;
+    /** Newest first*/
+    private final List<Revision> revisions = new ArrayList<Revision>();
+    /** deltas[i] turns revisions[i] into revisions[i + 1]*/
+    private final List<Delta> deltas = new ArrayList<Delta>();
+    private String latest;
+    private int nextNumber = 1;
+
+    /**
+     * @param maxRevisions The maximum number of revisions to retain (older revisions are discarded)
+     */
+    public ScriptRevisionHistory(int maxRevisions) {
+        if (maxRevisions < 1) {
+            throw new IllegalArgumentException("maxRevisions must be at least 1");
+        }
+        this.maxRevisions = maxRevisions;
+    }
+
+    /**
+     * Records script as the latest revision
+     * @param script
+     * @return The new revision
+     */
+    public synchronized Revision add(String script) {
+        if (latest != null) {
+            deltas.add(0, Delta.between(script, latest));
+        }
+
+        Revision revision = new Revision(nextNumber++, new Date(), script.length());
+        revisions.add(0, revision);
+        latest = script;
+
+        while (revisions.size() > maxRevisions) {
+            revisions.remove(revisions.size() - 1);
+            deltas.remove(deltas.size() - 1);
+        }
+
+        return revision;
+    }
+
+    /**
+     * Gets every retained revision (newest first)
+     * @return
+     */
+    public synchronized List<Revision> getRevisions() {
+        return new ArrayList<Revision>(revisions);
+    }
+
+    /**
+     * Gets the latest revision (or null if there are none)
+     * @return
+     */
+    public synchronized Revision getLatestRevision() {
+        return revisions.isEmpty() ? null : revisions.get(0);
+    }
+
+    /**
+     * Reconstructs the script at the specified revision
+     * @param number The revision number
+     * @return The script or null if the revision doesn't exist (or is no longer retained)
+     */
+    public synchronized String getScript(int number) {
+        String script = latest;
+        for (int i = 0; i < revisions.size(); i++) {
+            if (revisions.get(i).getNumber() == number) {
+                return script;
+            }
+            if (i < deltas.size()) {
+                script = deltas.get(i).apply(script);
+            }
+        }
+        return null;
+    }
+}
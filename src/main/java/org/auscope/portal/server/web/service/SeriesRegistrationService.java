@@ -0,0 +1,484 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.cloud.CloudFileInformation;
+import org.auscope.portal.core.services.cloud.CloudStorageService;
+import org.auscope.portal.server.util.PlaceholderTemplate;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobManager;
+import org.auscope.portal.server.vegl.VEGLSeries;
+import org.auscope.portal.server.vegl.VGLSignature;
+import org.auscope.portal.server.vegl.VglDownload;
+import org.auscope.portal.server.web.service.JobRegistrationService.Status;
+import org.auscope.portal.server.web.service.csw.BatchGeonetworkService;
+
+/**
+ * Registers an entire series with GeoNetwork in the background.
+ *
+ * The series becomes a parent ISO 19139 record (carrying the contact details) and each of its jobs becomes a child
+ * record referencing it. The records are based on the iso19139-parent/child templates in scripts/data-conversion.
+ * Rather than making a round trip per record, records are sent in batches, each batch being a single CSW
+ * Transaction (see BatchGeonetworkService).
+ *
+ * Registrations can safely be retried. Record identifiers are derived from the series/job ids, jobs that already
+ * have a registered URL are skipped and an existing parent record is reused rather than inserted again.
+ */
+public class SeriesRegistrationService {
+
+    /**
+     * A snapshot of a series registration's progress. Instances are immutable.
+     */
+    public static class SeriesRegistrationStatus {
+        private final Integer seriesId;
+        private final Status status;
+        private final String registeredUrl;
+        private final int jobsRegistered;
+        private final int jobsTotal;
+        private final String message;
+        private final Date lastUpdated;
+
+        public SeriesRegistrationStatus(Integer seriesId, Status status, String registeredUrl, int jobsRegistered, int jobsTotal, String message) {
+            this.seriesId = seriesId;
+            this.status = status;
+            this.registeredUrl = registeredUrl;
+            this.jobsRegistered = jobsRegistered;
+            this.jobsTotal = jobsTotal;
+            this.message = message;
+            this.lastUpdated = new Date();
+        }
+
+        public Integer getSeriesId() {
+            return seriesId;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * The URL of the parent (series) record. Available once the first batch has been inserted.
+         * @return
+         */
+        public String getRegisteredUrl() {
+            return registeredUrl;
+        }
+
+        public int getJobsRegistered() {
+            return jobsRegistered;
+        }
+
+        public int getJobsTotal() {
+            return jobsTotal;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public Date getLastUpdated() {
+            return lastUpdated;
+        }
+
+        /**
+         * Returns true if this registration has either succeeded or failed
+         * @return
+         */
+        public boolean isFinished() {
+            return status == Status.SUCCEEDED || status == Status.FAILED;
+        }
+    }
+
+    public static final String PARENT_TEMPLATE = "org/auscope/portal/server/web/service/iso19139/series-parent.xml";
+    public static final String CHILD_TEMPLATE = "org/auscope/portal/server/web/service/iso19139/job-child.xml";
+    /** The number of keywords the templates have room for (not including the fixed VGL/GA keywords)*/
+    private static final int TEMPLATE_KEYWORDS = 5;
+    private static final FastDateFormat DATE_FORMAT = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss");
+    private static final PlaceholderTemplate ONLINE_RESOURCE = new PlaceholderTemplate(
+            "               <gmd:onLine>\n" +
+            "                  <gmd:CI_OnlineResource>\n" +
+            "                     <gmd:linkage>\n" +
+            "                        <gmd:URL>{URL}</gmd:URL>\n" +
+            "                     </gmd:linkage>\n" +
+            "                     <gmd:protocol>\n" +
+            "                        <gco:CharacterString>{PROTOCOL}</gco:CharacterString>\n" +
+            "                     </gmd:protocol>\n" +
+            "                     <gmd:name>\n" +
+            "                        <gco:CharacterString>{NAME}</gco:CharacterString>\n" +
+            "                     </gmd:name>\n" +
+            "                     <gmd:description>\n" +
+            "                        <gco:CharacterString>{DESCRIPTION}</gco:CharacterString>\n" +
+            "                     </gmd:description>\n" +
+            "                  </gmd:CI_OnlineResource>\n" +
+            "               </gmd:onLine>\n");
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private VEGLJobManager jobManager;
+    private JobRegistrationService jobRegistrationService;
+    private BatchGeonetworkService gnService;
+    private Executor executor;
+    private PlaceholderTemplate parentTemplate;
+    private PlaceholderTemplate childTemplate;
+    private int batchSize = 50;
+    private long finishedStatusTtlMillis = 60 * 60 * 1000L;
+    /** series id keyed to the status of its most recent registration*/
+    private ConcurrentHashMap<Integer, SeriesRegistrationStatus> statuses = new ConcurrentHashMap<Integer, SeriesRegistrationStatus>();
+
+    /**
+     * @param jobManager Used for saving the registered URL against each job
+     * @param jobRegistrationService Used for listing job output files
+     * @param gnService Used for inserting (and publishing) the records
+     * @param executor Runs the registrations
+     * @throws IOException If the record templates cannot be loaded
+     */
+    public SeriesRegistrationService(VEGLJobManager jobManager, JobRegistrationService jobRegistrationService,
+            BatchGeonetworkService gnService, Executor executor) throws IOException {
+        this.jobManager = jobManager;
+        this.jobRegistrationService = jobRegistrationService;
+        this.gnService = gnService;
+        this.executor = executor;
+        this.parentTemplate = loadTemplate(PARENT_TEMPLATE);
+        this.childTemplate = loadTemplate(CHILD_TEMPLATE);
+    }
+
+    private PlaceholderTemplate loadTemplate(String resource) throws IOException {
+        InputStream is = getClass().getClassLoader().getResourceAsStream(resource);
+        if (is == null) {
+            throw new IOException("Unable to find record template " + resource);
+        }
+        try {
+            return new PlaceholderTemplate(IOUtils.toString(is, "UTF-8"));
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * The maximum number of records sent in a single CSW Transaction
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * How long the status of a finished registration will remain available to getStatus
+     * @param finishedStatusTtlSeconds
+     */
+    public void setFinishedStatusTtlSeconds(int finishedStatusTtlSeconds) {
+        this.finishedStatusTtlMillis = finishedStatusTtlSeconds * 1000L;
+    }
+
+    /**
+     * Gets the status of the most recent registration of the specified series
+     * @param seriesId
+     * @return The status or null if the series hasn't been (recently) registered
+     */
+    public SeriesRegistrationStatus getStatus(Integer seriesId) {
+        return statuses.get(seriesId);
+    }
+
+    /**
+     * Begins registering series. If series is already being registered, the status of that registration will
+     * be returned and nothing new will be started.
+     *
+     * @param series The series being registered
+     * @param jobs The jobs in series (in the order they should be registered) keyed to the service holding their outputs
+     * @param signature The contact details for the parent record
+     * @param lineage A data quality (lineage) statement for each job record. Can be null
+     * @return The status of the registration
+     */
+    public SeriesRegistrationStatus register(final VEGLSeries series, final Map<VEGLJob, CloudStorageService> jobs,
+            final VGLSignature signature, final String lineage) {
+        evictFinished();
+
+        final Integer seriesId = series.getId();
+        SeriesRegistrationStatus pending = new SeriesRegistrationStatus(seriesId, Status.PENDING, null, 0, jobs.size(), null);
+        SeriesRegistrationStatus existing = statuses.putIfAbsent(seriesId, pending);
+        while (existing != null) {
+            if (!existing.isFinished()) {
+                return existing;
+            }
+            if (statuses.replace(seriesId, existing, pending)) {
+                break;
+            }
+            existing = statuses.putIfAbsent(seriesId, pending);
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runRegistration(series, jobs, signature, lineage);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.warn("Unable to schedule registration for series " + seriesId + ": " + ex.getMessage());
+            SeriesRegistrationStatus failed = new SeriesRegistrationStatus(seriesId, Status.FAILED, null, 0, jobs.size(), "The registration service is unavailable.");
+            statuses.put(seriesId, failed);
+            return failed;
+        }
+
+        return statuses.get(seriesId);
+    }
+
+    private void runRegistration(VEGLSeries series, Map<VEGLJob, CloudStorageService> jobs, VGLSignature signature, String lineage) {
+        Integer seriesId = series.getId();
+        String parentUuid = seriesUuid(series);
+        String parentUrl = null;
+        String sessionCookie = null;
+        int registered = 0;
+
+        //Jobs registered by an earlier attempt (or individually) are left as they are
+        Map<VEGLJob, CloudStorageService> unregistered = new LinkedHashMap<VEGLJob, CloudStorageService>();
+        for (Map.Entry<VEGLJob, CloudStorageService> entry : jobs.entrySet()) {
+            if (StringUtils.isEmpty(entry.getKey().getRegisteredUrl())) {
+                unregistered.put(entry.getKey(), entry.getValue());
+            } else {
+                registered++;
+            }
+        }
+        statuses.put(seriesId, new SeriesRegistrationStatus(seriesId, Status.RUNNING, null, registered, jobs.size(), null));
+
+        try {
+            sessionCookie = gnService.login();
+
+            //If the parent record exists this is a retry - the previous attempt may have inserted children it never recorded
+            boolean retry = gnService.recordExists(parentUuid, sessionCookie);
+            List<String> batch = new ArrayList<String>(batchSize);
+            List<String> batchUuids = new ArrayList<String>(batchSize);
+            List<VEGLJob> batchJobs = new ArrayList<VEGLJob>(batchSize);
+            if (retry) {
+                gnService.makeRecordPublic(parentUuid, sessionCookie);
+                parentUrl = gnService.getRecordUrl(parentUuid);
+            } else {
+                //The parent record goes out with the first batch of children
+                batch.add(renderParent(parentUuid, series, jobs.keySet(), signature));
+                batchUuids.add(parentUuid);
+            }
+
+            for (Map.Entry<VEGLJob, CloudStorageService> entry : unregistered.entrySet()) {
+                VEGLJob job = entry.getKey();
+                String childUuid = jobUuid(job);
+                if (retry && gnService.recordExists(childUuid, sessionCookie)) {
+                    gnService.makeRecordPublic(childUuid, sessionCookie);
+                    saveRegisteredUrl(job);
+                    registered++;
+                    continue;
+                }
+
+                CloudFileInformation[] outputFiles = jobRegistrationService.listOutputFiles(job, entry.getValue());
+                batch.add(renderChild(childUuid, parentUuid, series, job, outputFiles, signature, lineage));
+                batchUuids.add(childUuid);
+                batchJobs.add(job);
+
+                if (batch.size() >= batchSize) {
+                    registered += insertBatch(batch, batchUuids, batchJobs, sessionCookie);
+                    parentUrl = gnService.getRecordUrl(parentUuid);
+                    statuses.put(seriesId, new SeriesRegistrationStatus(seriesId, Status.RUNNING, parentUrl, registered, jobs.size(), null));
+                }
+            }
+            if (!batch.isEmpty()) {
+                registered += insertBatch(batch, batchUuids, batchJobs, sessionCookie);
+            }
+            parentUrl = gnService.getRecordUrl(parentUuid);
+
+            logger.info(String.format("Registered series %1$s (%2$d jobs) at %3$s", seriesId, registered, parentUrl));
+            statuses.put(seriesId, new SeriesRegistrationStatus(seriesId, Status.SUCCEEDED, parentUrl, registered, jobs.size(), null));
+        } catch (Exception ex) {
+            logger.warn("Error registering series to Geonetwork for seriesId=" + seriesId, ex);
+            statuses.put(seriesId, new SeriesRegistrationStatus(seriesId, Status.FAILED, parentUrl, registered, jobs.size(), "Internal error"));
+        } finally {
+            if (sessionCookie != null) {
+                gnService.logout(sessionCookie);
+            }
+        }
+    }
+
+    /**
+     * The identifier of the parent record for series. The same series will always get the same identifier.
+     */
+    private static String seriesUuid(VEGLSeries series) {
+        return UUID.nameUUIDFromBytes(("series:" + series.getUser() + ":" + series.getId()).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * The identifier of the child record for job. The same job will always get the same identifier.
+     */
+    private static String jobUuid(VEGLJob job) {
+        return UUID.nameUUIDFromBytes(("job:" + job.getUser() + ":" + job.getId()).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private void saveRegisteredUrl(VEGLJob job) {
+        job.setRegisteredUrl(gnService.getRecordUrl(jobUuid(job)));
+        jobManager.saveJob(job);
+    }
+
+    /**
+     * Inserts every record in batch as a single CSW Transaction, makes them public and updates the registered URL
+     * of each job. The batch lists are emptied afterwards.
+     * @return The number of jobs registered
+     */
+    private int insertBatch(List<String> batch, List<String> batchUuids, List<VEGLJob> batchJobs, String sessionCookie) throws Exception {
+        gnService.insertRecords(batch, sessionCookie);
+        for (String uuid : batchUuids) {
+            gnService.makeRecordPublic(uuid, sessionCookie);
+        }
+        for (VEGLJob job : batchJobs) {
+            saveRegisteredUrl(job);
+        }
+
+        int inserted = batchJobs.size();
+        batch.clear();
+        batchUuids.clear();
+        batchJobs.clear();
+        return inserted;
+    }
+
+    private void evictFinished() {
+        long cutoff = System.currentTimeMillis() - finishedStatusTtlMillis;
+        Iterator<Map.Entry<Integer, SeriesRegistrationStatus>> it = statuses.entrySet().iterator();
+        while (it.hasNext()) {
+            SeriesRegistrationStatus status = it.next().getValue();
+            if (status.isFinished() && status.getLastUpdated().getTime() < cutoff) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : StringEscapeUtils.escapeXml(value);
+    }
+
+    /**
+     * Adds the (escaped) keywords to values, padding with empty strings so that every template keyword is filled
+     */
+    private void putKeywords(Map<String, String> values, VGLSignature signature) {
+        String[] keywords = StringUtils.isEmpty(signature.getKeywords()) ? new String[0] : signature.getKeywords().split("[\\s,]+");
+        for (int i = 0; i < TEMPLATE_KEYWORDS; i++) {
+            values.put("KEYWORD" + (i + 1), i < keywords.length ? escape(keywords[i]) : "");
+        }
+    }
+
+    /**
+     * Adds the (union) bounding box of every download in jobs to values. Defaults to the whole world if there are no bounded downloads.
+     */
+    private void putBounds(Map<String, String> values, Iterable<VEGLJob> jobs) {
+        double west = Double.POSITIVE_INFINITY, east = Double.NEGATIVE_INFINITY;
+        double south = Double.POSITIVE_INFINITY, north = Double.NEGATIVE_INFINITY;
+        for (VEGLJob job : jobs) {
+            for (VglDownload dl : job.getJobDownloads()) {
+                if (dl.getEastBoundLongitude() != null && dl.getWestBoundLongitude() != null &&
+                        dl.getNorthBoundLatitude() != null && dl.getSouthBoundLatitude() != null) {
+                    west = Math.min(west, dl.getWestBoundLongitude());
+                    east = Math.max(east, dl.getEastBoundLongitude());
+                    south = Math.min(south, dl.getSouthBoundLatitude());
+                    north = Math.max(north, dl.getNorthBoundLatitude());
+                }
+            }
+        }
+
+        if (west > east) {
+            west = -180; east = 180; south = -90; north = 90;
+        }
+        values.put("WEST", Double.toString(west));
+        values.put("EAST", Double.toString(east));
+        values.put("SOUTH", Double.toString(south));
+        values.put("NORTH", Double.toString(north));
+    }
+
+    private String renderParent(String uuid, VEGLSeries series, Iterable<VEGLJob> jobs, VGLSignature signature) {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("PARENTUUID", uuid);
+        values.put("TITLE", escape(series.getName()));
+        values.put("ALTTITLE", escape(series.getName()));
+        values.put("ABSTRACT", escape(series.getDescription()));
+        values.put("DATE", DATE_FORMAT.format(new Date()));
+        values.put("SUPPINFO", escape(String.format("User: %1$s\nSeries: %2$s\nDescription: %3$s", series.getUser(), series.getName(), series.getDescription())));
+
+        values.put("CONTACTNAME", escape(signature.getIndividualName()));
+        values.put("CONTACTORG", escape(signature.getOrganisationName()));
+        values.put("CONTACTPOSITION", escape(signature.getPositionName()));
+        values.put("CONTACTPHONE", escape(signature.getTelephone()));
+        values.put("CONTACTFAX", escape(signature.getFacsimile()));
+        values.put("CONTACTDP", escape(signature.getDeliveryPoint()));
+        values.put("CONTACTCITY", escape(signature.getCity()));
+        values.put("CONTACTSTATE", escape(signature.getAdministrativeArea()));
+        values.put("CONTACTPOSTCODE", escape(signature.getPostalCode()));
+        values.put("CONTACTCOUNTRY", escape(signature.getCountry()));
+        values.put("CONTACTEMAIL", escape(signature.getUser()));
+        values.put("CONTACTURL", escape(signature.getOnlineContactURL()));
+
+        //The processing roles all belong to the registering organisation
+        String organisation = escape(signature.getOrganisationName());
+        values.put("ROLEOPERATOR", organisation);
+        values.put("ROLECONTRACTOR", organisation);
+        values.put("ROLEPROCESSOR", organisation);
+        values.put("ROLECLIENT", organisation);
+        values.put("ROLEOWNER", organisation);
+
+        putKeywords(values, signature);
+        putBounds(values, jobs);
+        return parentTemplate.render(values);
+    }
+
+    private String renderChild(String uuid, String parentUuid, VEGLSeries series, VEGLJob job, CloudFileInformation[] outputFiles,
+            VGLSignature signature, String lineage) {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("UUID", uuid);
+        values.put("PARENTUUID", parentUuid);
+        values.put("TITLE", escape(job.getName()));
+        values.put("ALTTITLE", escape(series.getName()));
+        values.put("ABSTRACT", escape(job.getDescription()));
+        values.put("DATE", DATE_FORMAT.format(job.getSubmitDate() == null ? new Date() : job.getSubmitDate()));
+        values.put("SUPPINFO", escape(String.format("User: %1$s\nSeries: %2$s\nDescription: %3$s", job.getUser(), series.getName(), series.getDescription())));
+        values.put("REFSYSTEM", "WGS 84");
+        values.put("LICENCE", escape(signature.getConstraints()));
+        values.put("LINEAGE", escape(lineage));
+        putKeywords(values, signature);
+
+        List<VEGLJob> jobList = new ArrayList<VEGLJob>(1);
+        jobList.add(job);
+        putBounds(values, jobList);
+
+        StringBuilder resources = new StringBuilder(outputFiles.length * 640);
+        Map<String, String> resourceValues = new LinkedHashMap<String, String>();
+        for (CloudFileInformation obj : outputFiles) {
+            resourceValues.put("URL", escape(obj.getPublicUrl()));
+            resourceValues.put("PROTOCOL", JobRegistrationService.OUTPUT_PROTOCOL);
+            resourceValues.put("NAME", escape(obj.getName()));
+            resourceValues.put("DESCRIPTION", escape(obj.getName()));
+            ONLINE_RESOURCE.render(resources, resourceValues);
+        }
+        for (VglDownload dl : job.getJobDownloads()) {
+            resourceValues.put("URL", escape(dl.getUrl()));
+            resourceValues.put("PROTOCOL", "WWW:LINK-1.0-http--link");
+            resourceValues.put("NAME", escape(dl.getName()));
+            resourceValues.put("DESCRIPTION", escape(dl.getDescription()));
+            ONLINE_RESOURCE.render(resources, resourceValues);
+        }
+        values.put("ONLINERESOURCES", resources.toString());
+
+        return childTemplate.render(values);
+    }
+}
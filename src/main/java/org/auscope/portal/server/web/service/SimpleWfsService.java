@@ -1,12 +1,19 @@
 package org.auscope.portal.server.web.service;
 
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
-import javax.xml.namespace.NamespaceContext;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
@@ -15,13 +22,10 @@ import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
 import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker.ResultType;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
-import org.auscope.portal.core.services.namespaces.XsdNamespace;
 import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
 import org.auscope.portal.core.services.responses.wfs.WFSCountResponse;
-import org.auscope.portal.core.util.DOMUtil;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.auscope.portal.server.util.ExpiringCache;
+import org.auscope.portal.server.util.SingleFlight;
 
 /**
  * Minimal implementation of the core BaseWFSService
@@ -30,15 +34,43 @@ import org.w3c.dom.NodeList;
  */
 public class SimpleWfsService extends BaseWFSService {
 
+    /** The (XSD namespace) local names leading to each simple feature property definition*/
+    private static final String[] PROPERTY_ELEMENT_PATH = {"schema", "complexType", "complexContent", "extension", "sequence", "element"};
+
+    /** How long (in seconds) a parsed DescribeFeatureType response is cached for by default*/
+    public static final int DEFAULT_DESCRIBE_CACHE_TTL = 600;
+    /** The maximum number of parsed DescribeFeatureType responses cached at any time*/
+    public static final int DEFAULT_DESCRIBE_CACHE_SIZE = 256;
+
+    private XMLInputFactory xmlInputFactory;
+    private ExpiringCache<String, List<SimpleFeatureProperty>> describeCache;
+    /** Identical concurrent DescribeFeatureType requests share the one upstream request*/
+    private SingleFlight<String, List<SimpleFeatureProperty>> describeRequests = new SingleFlight<String, List<SimpleFeatureProperty>>();
+    /** Identical concurrent feature count requests share the one upstream request*/
+    private SingleFlight<List<Object>, WFSCountResponse> countRequests = new SingleFlight<List<Object>, WFSCountResponse>();
+
     public SimpleWfsService(HttpServiceCaller httpServiceCaller,
             WFSGetFeatureMethodMaker wfsMethodMaker) {
         super(httpServiceCaller, wfsMethodMaker);
+        this.xmlInputFactory = XMLInputFactory.newInstance();
+        this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        this.describeCache = new ExpiringCache<String, List<SimpleFeatureProperty>>(DEFAULT_DESCRIBE_CACHE_TTL * 1000L, DEFAULT_DESCRIBE_CACHE_SIZE);
+    }
+
+    /**
+     * Sets how long (in seconds) parsed DescribeFeatureType responses are cached for. 0 will disable caching.
+     * @param ttlSeconds
+     */
+    public void setDescribeCacheTtlSeconds(int ttlSeconds) {
+        this.describeCache = new ExpiringCache<String, List<SimpleFeatureProperty>>(ttlSeconds * 1000L, DEFAULT_DESCRIBE_CACHE_SIZE);
     }
 
     /**
      * Makes a WFS GetFeature request constrained by the specified parameters. Instead
      * of returning the full response only the count of features will be returned.
      *
+     * Identical concurrent requests will share the same upstream request (and response).
+     *
      * @param wfsUrl the web feature service url
      * @param featureType the type name
      * @param filterString A OGC filter string to constrain the request
@@ -49,8 +81,20 @@ public class SimpleWfsService extends BaseWFSService {
      * @throws URISyntaxException
      */
     public WFSCountResponse getWfsFeatureCount(String wfsUrl, String featureType, String filterString, Integer maxFeatures, String srsName) throws PortalServiceException, URISyntaxException {
-        HttpRequestBase method = generateWFSRequest(wfsUrl, featureType, null, filterString, maxFeatures, srsName, ResultType.Hits);
-        return getWfsFeatureCount(method);
+        final HttpRequestBase method = generateWFSRequest(wfsUrl, featureType, null, filterString, maxFeatures, srsName, ResultType.Hits);
+        List<Object> key = Arrays.asList((Object) wfsUrl, featureType, filterString, maxFeatures, srsName);
+        try {
+            return countRequests.execute(key, new Callable<WFSCountResponse>() {
+                @Override
+                public WFSCountResponse call() throws Exception {
+                    return getWfsFeatureCount(method);
+                }
+            });
+        } catch (PortalServiceException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new PortalServiceException(method, ex);
+        }
     }
 
     /**
@@ -102,13 +146,40 @@ public class SimpleWfsService extends BaseWFSService {
     /**
      * Utility for making a DescribeFeatureType request for a SF0 feature. The resulting
      * simple schema will be parsed into a collection of SimpleFeatureProperty elements
+     *
+     * Results are cached per serviceUrl/featureType for a short period and identical concurrent requests
+     * share the same upstream request. The returned list is unmodifiable.
      * @param serviceUrl The WFS endpoint to query
      * @param featureType The feature type name to describe
      * @return
      * @throws PortalServiceException
      */
-    public List<SimpleFeatureProperty> describeSimpleFeature(String serviceUrl, String featureType) throws PortalServiceException {
+    public List<SimpleFeatureProperty> describeSimpleFeature(final String serviceUrl, final String featureType) throws PortalServiceException {
+        final String cacheKey = serviceUrl + "|" + featureType;
+        List<SimpleFeatureProperty> featureTypes = describeCache.get(cacheKey);
+        if (featureTypes != null) {
+            return featureTypes;
+        }
 
+        try {
+            return describeRequests.execute(cacheKey, new Callable<List<SimpleFeatureProperty>>() {
+                @Override
+                public List<SimpleFeatureProperty> call() throws Exception {
+                    return requestSimpleFeature(cacheKey, serviceUrl, featureType);
+                }
+            });
+        } catch (PortalServiceException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new PortalServiceException("Error making/handling DescribeFeatureType request", ex);
+        }
+    }
+
+    /**
+     * Makes (and parses) a DescribeFeatureType request, caching the result against cacheKey
+     */
+    private List<SimpleFeatureProperty> requestSimpleFeature(String cacheKey, String serviceUrl, String featureType) throws PortalServiceException {
+        List<SimpleFeatureProperty> featureTypes;
         HttpRequestBase request = null;
         String wfsDescribeFeatureResponse = null;
         try {
@@ -119,30 +190,61 @@ public class SimpleWfsService extends BaseWFSService {
             OWSExceptionParser.checkForExceptionResponse(wfsDescribeFeatureResponse);
 
             //Parse our response
-            Document doc = DOMUtil.buildDomFromString(wfsDescribeFeatureResponse);
-
-            NamespaceContext nc = new XsdNamespace();
-            XPathExpression expr = DOMUtil.compileXPathExpr(String.format("xsd:schema/xsd:complexType/xsd:complexContent/xsd:extension/xsd:sequence/xsd:element", featureType), nc);
-            NodeList elementNodes = (NodeList) expr.evaluate(doc, XPathConstants.NODESET);
-
-            List<SimpleFeatureProperty> featureTypes = new ArrayList<SimpleFeatureProperty>();
-            for (int i = 0; i < elementNodes.getLength(); i++) {
-                Node n = elementNodes.item(i);
-
-                SimpleFeatureProperty sft = new SimpleFeatureProperty(
-                        Integer.parseInt(n.getAttributes().getNamedItem("maxOccurs").getTextContent()),
-                        Integer.parseInt(n.getAttributes().getNamedItem("minOccurs").getTextContent()),
-                        n.getAttributes().getNamedItem("name").getTextContent(),
-                        Boolean.parseBoolean(n.getAttributes().getNamedItem("nillable").getTextContent()),
-                        n.getAttributes().getNamedItem("type").getTextContent(),
-                        i + 1);
-
-                featureTypes.add(sft);
-            }
-
+            featureTypes = Collections.unmodifiableList(parseSimpleFeatureProperties(new StringReader(wfsDescribeFeatureResponse)));
+            describeCache.put(cacheKey, featureTypes);
             return featureTypes;
         } catch (Exception ex) {
             throw new PortalServiceException(request, "Error making/handling DescribeFeatureType request");
         }
     }
+
+    /**
+     * Streams through a DescribeFeatureType response extracting every
+     * xsd:schema/xsd:complexType/xsd:complexContent/xsd:extension/xsd:sequence/xsd:element
+     * as a SimpleFeatureProperty. No DOM is built.
+     * @param describeFeatureTypeResponse
+     * @return
+     * @throws XMLStreamException
+     */
+    protected List<SimpleFeatureProperty> parseSimpleFeatureProperties(Reader describeFeatureTypeResponse) throws XMLStreamException {
+        List<SimpleFeatureProperty> featureTypes = new ArrayList<SimpleFeatureProperty>();
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(describeFeatureTypeResponse);
+        try {
+            int depth = 0; //depth of the current element
+            int matched = 0; //how many ancestors (inclusive) match PROPERTY_ELEMENT_PATH
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (matched == depth && depth < PROPERTY_ELEMENT_PATH.length &&
+                            XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(reader.getNamespaceURI()) &&
+                            PROPERTY_ELEMENT_PATH[depth].equals(reader.getLocalName())) {
+                        matched++;
+                        if (matched == PROPERTY_ELEMENT_PATH.length) {
+                            featureTypes.add(new SimpleFeatureProperty(
+                                    Integer.parseInt(reader.getAttributeValue(null, "maxOccurs")),
+                                    Integer.parseInt(reader.getAttributeValue(null, "minOccurs")),
+                                    reader.getAttributeValue(null, "name"),
+                                    Boolean.parseBoolean(reader.getAttributeValue(null, "nillable")),
+                                    reader.getAttributeValue(null, "type"),
+                                    featureTypes.size() + 1));
+                        }
+                    }
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (matched == depth) {
+                        matched--;
+                    }
+                    depth--;
+                    break;
+                default:
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return featureTypes;
+    }
 }
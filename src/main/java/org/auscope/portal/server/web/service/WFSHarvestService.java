@@ -0,0 +1,571 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.cloud.FileStagingService;
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.core.services.methodmakers.filter.SimpleBBoxFilter;
+import org.auscope.portal.core.services.responses.wfs.WFSCountResponse;
+import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.web.service.http.PooledHttpClient;
+
+/**
+ * Harvests an entire WFS feature set into a single file in a job's staging area.
+ *
+ * The feature count is requested up front and the feature set is split into startIndex/maxFeatures
+ * pages. Pages are fetched concurrently (spooled to temporary files) and merged, in order, into a single
+ * GML FeatureCollection (or CSV file) as they complete without ever holding a full page in memory. At most
+ * maxConcurrentPages pages of a single harvest are downloading (or waiting on disk to be merged) at once.
+ * This avoids server side feature limits and single request timeouts that occur when a large feature set
+ * is requested in one shot.
+ *
+ * Paging is only consistent if every page request sees the features in the same order. Callers should
+ * supply a sortBy property that uniquely identifies each feature - without one the service's natural
+ * order is relied upon and a multi page harvest may contain duplicated (or missing) features.
+ */
+public class WFSHarvestService {
+
+    /** The element local names that wrap features in a WFS FeatureCollection*/
+    private static final String[] MEMBER_ELEMENTS = new String[] {"featureMember", "featureMembers", "member"};
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private SimpleWfsService wfsService;
+    private PooledHttpClient httpClient;
+    private FileStagingService fileStagingService;
+    private ExecutorService executor;
+    private int maxConcurrentPages;
+    private int pageSize = 5000;
+
+    /**
+     * A summary of a completed harvest
+     */
+    public static class HarvestSummary {
+        private String fileName;
+        private int featureCount;
+        private int pageCount;
+
+        public HarvestSummary(String fileName, int featureCount, int pageCount) {
+            this.fileName = fileName;
+            this.featureCount = featureCount;
+            this.pageCount = pageCount;
+        }
+
+        /**
+         * The name of the file written to the job staging area
+         * @return
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * The number of features requested (as reported by the service)
+         * @return
+         */
+        public int getFeatureCount() {
+            return featureCount;
+        }
+
+        /**
+         * The number of pages that the feature set was split into
+         * @return
+         */
+        public int getPageCount() {
+            return pageCount;
+        }
+    }
+
+    /**
+     * @param wfsService Used for counting features and generating GetFeature requests
+     * @param httpClient Used for making the page requests
+     * @param fileStagingService Used for writing the merged file to the job staging area
+     * @param maxConcurrentPages The maximum number of pages that will be requested at the same time (across all harvests)
+     */
+    public WFSHarvestService(SimpleWfsService wfsService, PooledHttpClient httpClient,
+            FileStagingService fileStagingService, int maxConcurrentPages) {
+        this.wfsService = wfsService;
+        this.httpClient = httpClient;
+        this.fileStagingService = fileStagingService;
+        this.maxConcurrentPages = maxConcurrentPages;
+        this.executor = Executors.newFixedThreadPool(maxConcurrentPages);
+    }
+
+    /**
+     * The maximum number of features requested in a single GetFeature request
+     * @return
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * The maximum number of features requested in a single GetFeature request
+     * @param pageSize
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Shuts down the page request pool. Intended to be called on application shutdown
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns true if outputFormat describes a CSV response
+     * @param outputFormat
+     * @return
+     */
+    private static boolean isCsv(String outputFormat) {
+        return outputFormat != null && outputFormat.toLowerCase().contains("csv");
+    }
+
+    /**
+     * Downloads a single page into a temporary file
+     */
+    private class PageDownloader implements Callable<File> {
+        private String url;
+
+        public PageDownloader(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public File call() throws Exception {
+            HttpGet method = new HttpGet(url);
+            CloseableHttpResponse response = httpClient.execute(method);
+            File tmpFile = null;
+            OutputStream os = null;
+            try {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != HttpStatus.SC_OK) {
+                    throw new PortalServiceException(method, "Remote service returned status " + statusCode);
+                }
+
+                tmpFile = File.createTempFile("wfs-harvest", ".page");
+                os = new FileOutputStream(tmpFile);
+                FileIOUtil.writeInputToOutputStream(response.getEntity().getContent(), os, BUFFER_SIZE, false);
+                return tmpFile;
+            } catch (Exception ex) {
+                if (tmpFile != null) {
+                    tmpFile.delete();
+                }
+                throw ex;
+            } finally {
+                FileIOUtil.closeQuietly(os);
+                IOUtils.closeQuietly(response);
+            }
+        }
+    }
+
+    /**
+     * The pages of a single harvest. Pages are handed out in order and only maxConcurrentPages pages are
+     * downloading (or downloaded but not yet handed out) at any one time - taking a page starts the download
+     * of the next one.
+     */
+    private class PageQueue {
+        private List<String> urls;
+        private LinkedList<Future<File>> inFlight = new LinkedList<Future<File>>();
+        private int nextPage = 0;
+
+        public PageQueue(List<String> urls) {
+            this.urls = urls;
+            fill();
+        }
+
+        private void fill() {
+            while (nextPage < urls.size() && inFlight.size() < maxConcurrentPages) {
+                inFlight.add(executor.submit(new PageDownloader(urls.get(nextPage++))));
+            }
+        }
+
+        /**
+         * The total number of pages
+         */
+        public int size() {
+            return urls.size();
+        }
+
+        /**
+         * Waits for the next page (in order) to download. The caller is responsible for deleting the returned file.
+         */
+        public File take() throws Exception {
+            File page = waitForPage(inFlight.removeFirst());
+            try {
+                fill();
+            } catch (RuntimeException ex) {
+                page.delete();
+                throw ex;
+            }
+            return page;
+        }
+
+        /**
+         * Cancels any outstanding pages and cleans up any that have already downloaded
+         */
+        public void cancelAll() {
+            for (Future<File> page : inFlight) {
+                if (!page.cancel(true) && page.isDone()) {
+                    try {
+                        page.get().delete();
+                    } catch (Exception ex) {
+                        //Failed downloads have nothing to clean up
+                    }
+                }
+            }
+            inFlight.clear();
+            nextPage = urls.size();
+        }
+    }
+
+    /**
+     * Generates the GetFeature URL for the page starting at startIndex
+     */
+    private String makePageUrl(String serviceUrl, String featureType, FilterBoundingBox bbox, String srsName, String outputFormat,
+            String sortBy, int startIndex, int count) throws Exception {
+        String url = wfsService.getFeatureRequestAsString(serviceUrl, featureType, bbox, count, srsName, outputFormat);
+        URIBuilder builder = new URIBuilder(url);
+        builder.setParameter("startIndex", Integer.toString(startIndex));
+        if (sortBy != null && !sortBy.isEmpty()) {
+            builder.setParameter("sortBy", sortBy);
+        }
+        return builder.build().toString();
+    }
+
+    /**
+     * Queries a WFS for the number of features matching the specified constraints, splits the request into pages,
+     * fetches the pages concurrently and then writes them (merged into a single file) into the staging area of job.
+     *
+     * @param job The job whose staging area will receive the file
+     * @param fileName The file name to write
+     * @param serviceUrl The WFS endpoint
+     * @param featureType The feature type to harvest
+     * @param bbox [Optional] Spatial constraint
+     * @param srsName [Optional] SRS for the response
+     * @param outputFormat [Optional] The GetFeature outputFormat. Any format containing 'csv' will be merged as CSV otherwise GML is assumed.
+     * @param maxFeatures [Optional] Upper bound on the number of features to harvest
+     * @param sortBy [Optional] A property uniquely identifying each feature (eg gml:name). Used to keep the order of features consistent across pages
+     * @return
+     * @throws PortalServiceException
+     */
+    public HarvestSummary harvest(VEGLJob job, String fileName, String serviceUrl, String featureType,
+            FilterBoundingBox bbox, String srsName, String outputFormat, Integer maxFeatures, String sortBy) throws PortalServiceException {
+
+        //Start by figuring out how much data we're dealing with
+        int featureCount;
+        try {
+            SimpleBBoxFilter filter = new SimpleBBoxFilter();
+            String filterString = bbox == null ? filter.getFilterStringAllRecords() : filter.getFilterStringBoundingBox(bbox);
+            WFSCountResponse countResponse = wfsService.getWfsFeatureCount(serviceUrl, featureType, filterString, null, srsName);
+            featureCount = countResponse.getNumberOfFeatures();
+        } catch (PortalServiceException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new PortalServiceException("Unable to count features for " + featureType, ex);
+        }
+
+        if (maxFeatures != null && maxFeatures > 0 && maxFeatures < featureCount) {
+            featureCount = maxFeatures;
+        }
+        int pageCount = Math.max(1, (featureCount + pageSize - 1) / pageSize);
+        logger.debug(String.format("Harvesting %1$d features of '%2$s' from '%3$s' in %4$d pages", featureCount, featureType, serviceUrl, pageCount));
+        if (pageCount > 1 && (sortBy == null || sortBy.isEmpty())) {
+            logger.warn(String.format("Harvesting '%1$s' in %2$d pages without sortBy - pages may overlap if '%3$s' doesn't return features in a stable order", featureType, pageCount, serviceUrl));
+        }
+
+        List<String> pageUrls = new ArrayList<String>(pageCount);
+        try {
+            for (int i = 0; i < pageCount; i++) {
+                int startIndex = i * pageSize;
+                int count = Math.max(1, Math.min(pageSize, featureCount - startIndex));
+                pageUrls.add(makePageUrl(serviceUrl, featureType, bbox, srsName, outputFormat, sortBy, startIndex, count));
+            }
+        } catch (Exception ex) {
+            throw new PortalServiceException("Unable to generate GetFeature request for " + featureType, ex);
+        }
+
+        //Start the first pages downloading and merge them (in order) as they complete
+        PageQueue pages = null;
+        OutputStream os = null;
+        try {
+            os = fileStagingService.writeFile(job, fileName);
+            pages = new PageQueue(pageUrls);
+            if (isCsv(outputFormat)) {
+                mergeCsv(pages, os);
+            } else {
+                mergeGml(pages, os);
+            }
+        } catch (PortalServiceException ex) {
+            if (pages != null) {
+                pages.cancelAll();
+            }
+            throw ex;
+        } catch (Exception ex) {
+            if (pages != null) {
+                pages.cancelAll();
+            }
+            throw new PortalServiceException("Error harvesting features for " + featureType, ex);
+        } finally {
+            FileIOUtil.closeQuietly(os);
+        }
+
+        return new HarvestSummary(fileName, featureCount, pageCount);
+    }
+
+    /**
+     * Waits for a page to download, unwrapping any failure
+     */
+    private File waitForPage(Future<File> page) throws Exception {
+        try {
+            return page.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Concatenates CSV pages, skipping the header line of every page after the first
+     */
+    private void mergeCsv(PageQueue pages, OutputStream os) throws Exception {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int i = 0; i < pages.size(); i++) {
+            File page = pages.take();
+            InputStream is = null;
+            try {
+                is = new FileInputStream(page);
+                if (i > 0) {
+                    int b;
+                    while ((b = is.read()) >= 0 && b != '\n') {
+                        //Skip the header
+                    }
+                }
+
+                int read;
+                while ((read = is.read(buffer)) >= 0) {
+                    os.write(buffer, 0, read);
+                }
+            } finally {
+                FileIOUtil.closeQuietly(is);
+                page.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the specified local name wraps a feature
+     */
+    private static boolean isMemberElement(String localName) {
+        for (String member : MEMBER_ELEMENTS) {
+            if (member.equals(localName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tracks the prefix used in the merged document for each namespace URI. Services aren't obliged to use
+     * the same prefixes in every response so names copied from later pages are matched by namespace URI.
+     */
+    private static class NamespaceMapper {
+        private XMLEventFactory eventFactory;
+        /** URI keyed to the prefix bound on the merged document element*/
+        private Map<String, String> rootPrefixes = new HashMap<String, String>();
+        /** URI keyed to the prefix for namespaces that only the current page declares on its document element*/
+        private Map<String, String> pagePrefixes = new HashMap<String, String>();
+        /** Declarations that must be repeated on every feature member copied from the current page*/
+        private List<Namespace> pageNamespaces = new ArrayList<Namespace>();
+
+        public NamespaceMapper(XMLEventFactory eventFactory) {
+            this.eventFactory = eventFactory;
+        }
+
+        /**
+         * Records the namespaces declared on the merged document element (the first page's document element)
+         */
+        public void setRoot(StartElement root) {
+            for (Iterator<?> it = root.getNamespaces(); it.hasNext();) {
+                Namespace ns = (Namespace) it.next();
+                rootPrefixes.put(ns.getNamespaceURI(), ns.getPrefix());
+            }
+        }
+
+        /**
+         * Records the namespaces declared on a subsequent page's document element. Any that aren't declared on the
+         * merged document element get a prefix that won't clash with it.
+         */
+        public void setPageRoot(StartElement pageRoot) {
+            pagePrefixes.clear();
+            pageNamespaces.clear();
+            for (Iterator<?> it = pageRoot.getNamespaces(); it.hasNext();) {
+                Namespace ns = (Namespace) it.next();
+                if (rootPrefixes.containsKey(ns.getNamespaceURI())) {
+                    continue;
+                }
+
+                String prefix = ns.getPrefix();
+                for (int i = 0; prefix.isEmpty() || rootPrefixes.containsValue(prefix) || pagePrefixes.containsValue(prefix); i++) {
+                    prefix = "ns" + i;
+                }
+                pagePrefixes.put(ns.getNamespaceURI(), prefix);
+                pageNamespaces.add(eventFactory.createNamespace(prefix, ns.getNamespaceURI()));
+            }
+        }
+
+        private QName map(QName name) {
+            String uri = name.getNamespaceURI();
+            String prefix = rootPrefixes.get(uri);
+            if (prefix == null) {
+                prefix = pagePrefixes.get(uri);
+            }
+            if (uri.isEmpty() || prefix == null || prefix.equals(name.getPrefix())) {
+                return name; //Unqualified, declared within the feature or already correct
+            }
+            return new QName(uri, name.getLocalPart(), prefix);
+        }
+
+        /**
+         * Rewrites an event copied from a subsequent page so that its names use the merged document's prefixes
+         * @param memberStart Whether event begins a feature member (and should declare the page's extra namespaces)
+         */
+        public XMLEvent map(XMLEvent event, boolean memberStart) {
+            if (event.isStartElement()) {
+                StartElement start = event.asStartElement();
+                List<Attribute> attributes = new ArrayList<Attribute>();
+                for (Iterator<?> it = start.getAttributes(); it.hasNext();) {
+                    Attribute attribute = (Attribute) it.next();
+                    attributes.add(eventFactory.createAttribute(map(attribute.getName()), attribute.getValue()));
+                }
+                List<Namespace> namespaces = new ArrayList<Namespace>();
+                if (memberStart) {
+                    namespaces.addAll(pageNamespaces);
+                }
+                for (Iterator<?> it = start.getNamespaces(); it.hasNext();) {
+                    namespaces.add((Namespace) it.next());
+                }
+                return eventFactory.createStartElement(map(start.getName()), attributes.iterator(), namespaces.iterator());
+            } else if (event.isEndElement()) {
+                return eventFactory.createEndElement(map(event.asEndElement().getName()), null);
+            }
+            return event;
+        }
+    }
+
+    /**
+     * Merges a number of FeatureCollection pages into a single FeatureCollection. The document element (and
+     * any non feature content such as gml:boundedBy) is taken from the first page, every subsequent page only
+     * contributes its feature members.
+     */
+    private void mergeGml(PageQueue pages, OutputStream os) throws Exception {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(os, "UTF-8");
+        NamespaceMapper namespaces = new NamespaceMapper(XMLEventFactory.newInstance());
+        XMLEvent rootEnd = null;
+
+        for (int i = 0; i < pages.size(); i++) {
+            File page = pages.take();
+            InputStream is = null;
+            XMLEventReader reader = null;
+            try {
+                is = new FileInputStream(page);
+                reader = inputFactory.createXMLEventReader(is);
+                int depth = 0;
+                boolean copying = false;
+                while (reader.hasNext()) {
+                    XMLEvent event = reader.nextEvent();
+
+                    boolean memberStart = false;
+                    if (event.isStartElement()) {
+                        depth++;
+                        String localName = event.asStartElement().getName().getLocalPart();
+                        if (depth == 1 && localName.contains("Exception")) {
+                            throw new PortalServiceException("Service returned an exception response for page " + (i + 1));
+                        }
+                        if (depth == 1) {
+                            if (i == 0) {
+                                namespaces.setRoot(event.asStartElement());
+                            } else {
+                                namespaces.setPageRoot(event.asStartElement());
+                            }
+                        }
+                        if (depth == 2 && i > 0) {
+                            copying = isMemberElement(localName);
+                            memberStart = copying;
+                        }
+                    } else if (event.isEndElement() && depth-- == 1) {
+                        if (i == 0) {
+                            rootEnd = event;
+                        }
+                        continue;
+                    }
+
+                    if (i == 0) {
+                        if (!event.isEndDocument()) {
+                            writer.add(event);
+                        }
+                    } else if (copying && (depth >= 2 || (event.isEndElement() && depth == 1))) {
+                        writer.add(namespaces.map(event, memberStart)); //This is part of (or closing) a feature member
+                    }
+                }
+            } catch (XMLStreamException ex) {
+                throw new PortalServiceException("Unable to parse GML response for page " + (i + 1), ex);
+            } finally {
+                if (reader != null) {
+                    reader.close();
+                }
+                FileIOUtil.closeQuietly(is);
+                page.delete();
+            }
+        }
+
+        if (rootEnd != null) {
+            writer.add(rootEnd);
+        }
+        writer.flush();
+        writer.close();
+    }
+}
@@ -0,0 +1,278 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.methodmakers.WMSMethodMakerInterface;
+import org.auscope.portal.server.util.ExpiringCache;
+import org.auscope.portal.server.web.service.http.PooledHttpClient;
+
+/**
+ * Proxies WMS GetFeatureInfo requests, streaming the upstream response body (with its original
+ * content type and charset) rather than buffering it as a String.
+ *
+ * Map clicks tend to cluster heavily (users clicking the same feature repeatedly) so small
+ * responses are held in a short lived cache keyed by the request parameters and the clicked
+ * pixel (rounded to pixelTolerance). The rounding only applies to the cache key, the upstream
+ * request is generated by the core WMS method makers using the pixel that was actually clicked.
+ */
+public class WMSFeatureInfoService {
+
+    /** The CRS that the portal map requests GetFeatureInfo in*/
+    public static final String DEFAULT_CRS = "EPSG:3857";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private PooledHttpClient httpClient;
+    private List<WMSMethodMakerInterface> methodMakers;
+    private ExpiringCache<List<Object>, CachedFeatureInfo> cache;
+    private int maxCacheableBytes;
+    private int pixelTolerance = 1;
+
+    /**
+     * An immutable copy of a small GetFeatureInfo response
+     */
+    private static class CachedFeatureInfo {
+        final String contentType;
+        final byte[] body;
+
+        CachedFeatureInfo(String contentType, byte[] body) {
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A GetFeatureInfo response ready for writing. Instances must be closed after use.
+     */
+    public class FeatureInfoResponse {
+        private String contentType;
+        private CachedFeatureInfo cached;
+        private CloseableHttpResponse upstream;
+        private List<Object> cacheKey;
+
+        private FeatureInfoResponse(CachedFeatureInfo cached) {
+            this.cached = cached;
+            this.contentType = cached.contentType;
+        }
+
+        private FeatureInfoResponse(CloseableHttpResponse upstream, String contentType, List<Object> cacheKey) {
+            this.upstream = upstream;
+            this.contentType = contentType;
+            this.cacheKey = cacheKey;
+        }
+
+        /**
+         * The content type (including charset if the remote service reported one) of the response. Can be null
+         * @return
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Whether this response was served from the local cache
+         * @return
+         */
+        public boolean isCached() {
+            return cached != null;
+        }
+
+        /**
+         * Copies the response body to output. Responses small enough will be cached as they are written.
+         * @param output
+         * @return The number of bytes written
+         * @throws IOException
+         */
+        public long writeTo(OutputStream output) throws IOException {
+            if (cached != null) {
+                output.write(cached.body);
+                return cached.body.length;
+            }
+
+            HttpEntity entity = upstream.getEntity();
+            if (entity == null) {
+                return 0;
+            }
+
+            InputStream input = entity.getContent();
+            ByteArrayOutputStream copy = maxCacheableBytes > 0 ? new ByteArrayOutputStream() : null;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+                total += read;
+                if (copy != null) {
+                    if (total <= maxCacheableBytes) {
+                        copy.write(buffer, 0, read);
+                    } else {
+                        copy = null; //Too large to bother caching
+                    }
+                }
+            }
+            output.flush();
+
+            if (copy != null) {
+                cache.put(cacheKey, new CachedFeatureInfo(contentType, copy.toByteArray()));
+            }
+
+            return total;
+        }
+
+        /**
+         * Releases the underlying connection (if any)
+         */
+        public void close() {
+            if (upstream != null) {
+                EntityUtils.consumeQuietly(upstream.getEntity());
+                IOUtils.closeQuietly(upstream);
+            }
+        }
+    }
+
+    /**
+     * @param httpClient Used for making the (keep alive) upstream requests
+     * @param methodMakers Used for generating the GetFeatureInfo requests (one per supported WMS version)
+     * @param cacheTtlSeconds How long a response will be cached for
+     * @param maxCacheEntries The maximum number of responses to cache at any point in time
+     * @param maxCacheableBytes Responses larger than this will not be cached
+     */
+    public WMSFeatureInfoService(PooledHttpClient httpClient, List<WMSMethodMakerInterface> methodMakers, int cacheTtlSeconds, int maxCacheEntries, int maxCacheableBytes) {
+        this.httpClient = httpClient;
+        this.methodMakers = methodMakers;
+        this.cache = new ExpiringCache<List<Object>, CachedFeatureInfo>(cacheTtlSeconds * 1000L, maxCacheEntries);
+        this.maxCacheableBytes = maxCacheableBytes;
+    }
+
+    /**
+     * The size (in pixels) of the grid that clicked pixels are snapped to. Clicks within the same grid cell
+     * will be treated as identical requests.
+     * @return
+     */
+    public int getPixelTolerance() {
+        return pixelTolerance;
+    }
+
+    /**
+     * The size (in pixels) of the grid that clicked pixels are snapped to. Clicks within the same grid cell
+     * will be treated as identical requests.
+     * @param pixelTolerance
+     */
+    public void setPixelTolerance(int pixelTolerance) {
+        this.pixelTolerance = Math.max(1, pixelTolerance);
+    }
+
+    /**
+     * Snaps a pixel coordinate to the pixelTolerance grid
+     * @param pixel
+     * @return
+     */
+    private int roundPixel(double pixel) {
+        int rounded = (int) Math.round(pixel);
+        return (rounded / pixelTolerance) * pixelTolerance;
+    }
+
+    /**
+     * Gets the first method maker that supports the specified WMS version
+     * @param wmsUrl
+     * @param version
+     * @return
+     * @throws PortalServiceException If no method maker supports version
+     */
+    private WMSMethodMakerInterface getSupportedMethodMaker(String wmsUrl, String version) throws PortalServiceException {
+        List<String> errorMessages = new ArrayList<String>();
+        for (WMSMethodMakerInterface methodMaker : methodMakers) {
+            if (methodMaker.accepts(wmsUrl, version, errorMessages)) {
+                return methodMaker;
+            }
+        }
+
+        throw new PortalServiceException("No WMS method maker supports version '" + version + "' at " + wmsUrl + " " + errorMessages);
+    }
+
+    /**
+     * Makes a WMS GetFeatureInfo request (via GET). The response is NOT read by this method, instead it's returned
+     * for streaming via FeatureInfoResponse.writeTo. The returned response must be closed.
+     *
+     * @param wmsUrl The WMS endpoint
+     * @param infoFormat The INFO_FORMAT to request
+     * @param queryLayers The layers to query
+     * @param crs The CRS of the bbox
+     * @param minX bbox lower x
+     * @param minY bbox lower y
+     * @param maxX bbox upper x
+     * @param maxY bbox upper y
+     * @param width The map width in pixels
+     * @param height The map height in pixels
+     * @param pointLng The clicked longitude
+     * @param pointLat The clicked latitude
+     * @param pointX The clicked pixel (x)
+     * @param pointY The clicked pixel (y)
+     * @param sld [Optional] SLD body to include in the request
+     * @param version The WMS version to use
+     * @param featureCount [Optional] The FEATURE_COUNT to request
+     * @return
+     * @throws PortalServiceException
+     */
+    public FeatureInfoResponse getFeatureInfo(String wmsUrl, String infoFormat, String queryLayers, String crs,
+            double minX, double minY, double maxX, double maxY, int width, int height,
+            double pointLng, double pointLat, double pointX, double pointY, String sld, String version, String featureCount) throws PortalServiceException {
+
+        //The clicked location is identified by the snapped pixel alone (pointLng/pointLat are derived from it)
+        List<Object> cacheKey = Arrays.<Object>asList(wmsUrl, infoFormat, queryLayers, crs, minX, minY, maxX, maxY,
+                width, height, roundPixel(pointX), roundPixel(pointY), sld, version, featureCount);
+        CachedFeatureInfo cached = cache.get(cacheKey);
+        if (cached != null) {
+            return new FeatureInfoResponse(cached);
+        }
+
+        WMSMethodMakerInterface methodMaker = getSupportedMethodMaker(wmsUrl, version);
+        HttpRequestBase method = null;
+        CloseableHttpResponse response = null;
+        try {
+            method = methodMaker.getFeatureInfo(wmsUrl, infoFormat, queryLayers, crs, minX, minY, maxX, maxY, width, height,
+                    pointLng, pointLat, (int) pointX, (int) pointY, "", sld, featureCount);
+            response = httpClient.execute(method);
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK) {
+                throw new PortalServiceException(method, "Remote service returned status " + statusCode);
+            }
+
+            Header contentType = response.getEntity() == null ? null : response.getEntity().getContentType();
+            return new FeatureInfoResponse(response, contentType == null ? null : contentType.getValue(), cacheKey);
+        } catch (PortalServiceException ex) {
+            close(response);
+            throw ex;
+        } catch (Exception ex) {
+            close(response);
+            logger.debug("Exception:", ex);
+            throw new PortalServiceException(method, ex);
+        }
+    }
+
+    private void close(CloseableHttpResponse response) {
+        if (response != null) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            IOUtils.closeQuietly(response);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.auscope.portal.server.web.service.csw;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.util.EntityUtils;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.GeonetworkService;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.services.methodmakers.GeonetworkMethodMaker;
+import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
+import org.auscope.portal.core.util.DOMUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A GeonetworkService that can also insert many (already rendered ISO 19139) records at once.
+ *
+ * Batches are made with the same GeonetworkMethodMaker requests as makeCSWRecordInsertion. The caller logs in,
+ * inserts any number of batches (each a single CSW Transaction), makes each inserted record public and
+ * finally logs out.
+ */
+public class BatchGeonetworkService extends GeonetworkService {
+    public static final String CSW_NAMESPACE = "http://www.opengis.net/cat/csw/2.0.2";
+    public static final String GEONET_NAMESPACE = "http://www.fao.org/geonetwork";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private HttpServiceCaller serviceCaller;
+    private GeonetworkMethodMaker gnMethodMaker;
+    private CSWServiceItem cswServiceItem;
+
+    public BatchGeonetworkService(HttpServiceCaller serviceCaller, GeonetworkMethodMaker gnMethodMaker, CSWServiceItem cswServiceItem) {
+        super(serviceCaller, gnMethodMaker, cswServiceItem);
+        this.serviceCaller = serviceCaller;
+        this.gnMethodMaker = gnMethodMaker;
+        this.cswServiceItem = cswServiceItem;
+    }
+
+    /**
+     * Gets the URL of the record with the specified uuid
+     * @param uuid
+     * @return
+     */
+    public String getRecordUrl(String uuid) {
+        if (cswServiceItem.getRecordInformationUrl() == null) {
+            return uuid;
+        }
+        return String.format(cswServiceItem.getRecordInformationUrl(), uuid);
+    }
+
+    /**
+     * Logs in with the configured credentials
+     * @return The session cookie to pass to the other methods
+     * @throws Exception
+     */
+    public String login() throws Exception {
+        HttpRequestBase method = gnMethodMaker.makeUserLoginMethod(cswServiceItem.getServiceUrl(), cswServiceItem.getUserName(), cswServiceItem.getPassword());
+        try {
+            HttpResponse response = serviceCaller.getMethodResponseAsHttpResponse(method);
+            EntityUtils.consumeQuietly(response.getEntity());
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                throw new PortalServiceException(method, "Unable to login to GeoNetwork: " + response.getStatusLine());
+            }
+
+            StringBuilder sessionCookie = new StringBuilder();
+            for (Header header : response.getHeaders("Set-Cookie")) {
+                String cookie = header.getValue();
+                int end = cookie.indexOf(';');
+                if (sessionCookie.length() > 0) {
+                    sessionCookie.append("; ");
+                }
+                sessionCookie.append(end < 0 ? cookie : cookie.substring(0, end));
+            }
+            return sessionCookie.toString();
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Ends a session started by login. Failures are logged (not thrown)
+     * @param sessionCookie
+     */
+    public void logout(String sessionCookie) {
+        HttpRequestBase method = null;
+        try {
+            method = gnMethodMaker.makeUserLogoutMethod(cswServiceItem.getServiceUrl(), sessionCookie);
+            serviceCaller.getMethodResponseAsString(method);
+        } catch (Exception ex) {
+            logger.debug("Unable to logout of GeoNetwork: " + ex.getMessage());
+        } finally {
+            if (method != null) {
+                method.releaseConnection();
+            }
+        }
+    }
+
+    /**
+     * Returns true if a record with the specified uuid exists (and is visible to the session)
+     * @param uuid
+     * @param sessionCookie
+     * @return
+     * @throws Exception
+     */
+    public boolean recordExists(String uuid, String sessionCookie) throws Exception {
+        HttpGet method = new HttpGet(new URIBuilder(cswServiceItem.getServiceUrl())
+                .setParameter("service", "CSW")
+                .setParameter("version", "2.0.2")
+                .setParameter("request", "GetRecordById")
+                .setParameter("elementSetName", "brief")
+                .setParameter("id", uuid)
+                .build());
+        method.setHeader("Cookie", sessionCookie);
+        try {
+            String response = serviceCaller.getMethodResponseAsString(method);
+            OWSExceptionParser.checkForExceptionResponse(response);
+
+            Document doc = DOMUtil.buildDomFromString(response);
+            NodeList records = doc.getDocumentElement().getChildNodes();
+            for (int i = 0; i < records.getLength(); i++) {
+                if (records.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Inserts every record as a single CSW Transaction
+     * @param records ISO 19139 records (each with or without an XML declaration)
+     * @param sessionCookie
+     * @throws Exception If the transaction fails or doesn't insert every record
+     */
+    public void insertRecords(List<String> records, String sessionCookie) throws Exception {
+        StringBuilder mdMetadataXml = new StringBuilder(records.size() * 16384);
+        for (String record : records) {
+            //Each record has its own XML declaration which can't appear mid document
+            int start = record.indexOf("<gmd:MD_Metadata");
+            mdMetadataXml.append(start < 0 ? record : record.substring(start));
+        }
+
+        HttpRequestBase method = gnMethodMaker.makeInsertRecordMethod(cswServiceItem.getServiceUrl(), mdMetadataXml.toString(), sessionCookie);
+        try {
+            String response = serviceCaller.getMethodResponseAsString(method);
+            OWSExceptionParser.checkForExceptionResponse(response);
+
+            Document doc = DOMUtil.buildDomFromString(response);
+            NodeList totalInserted = doc.getElementsByTagNameNS(CSW_NAMESPACE, "totalInserted");
+            if (totalInserted.getLength() == 0 || Integer.parseInt(totalInserted.item(0).getTextContent().trim()) != records.size()) {
+                throw new PortalServiceException(method, String.format("Transaction didn't insert all %1$d records", records.size()));
+            }
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Makes the record with the specified uuid visible to everyone
+     * @param uuid
+     * @param sessionCookie
+     * @throws Exception
+     */
+    public void makeRecordPublic(String uuid, String sessionCookie) throws Exception {
+        HttpRequestBase method = gnMethodMaker.makeRecordMetadataGetMethod(cswServiceItem.getServiceUrl(), uuid, sessionCookie);
+        String recordId;
+        try {
+            recordId = extractRecordId(method, serviceCaller.getMethodResponseAsString(method));
+        } finally {
+            method.releaseConnection();
+        }
+
+        method = gnMethodMaker.makeRecordPublicMethod(cswServiceItem.getServiceUrl(), recordId, sessionCookie);
+        try {
+            serviceCaller.getMethodResponseAsString(method);
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Extracts the GeoNetwork (internal) id from the geonet:info element of a metadata response
+     */
+    private String extractRecordId(HttpRequestBase method, String response) throws Exception {
+        Document doc = DOMUtil.buildDomFromString(response);
+        NodeList infos = doc.getElementsByTagNameNS(GEONET_NAMESPACE, "info");
+        for (int i = 0; i < infos.getLength(); i++) {
+            NodeList children = infos.item(i).getChildNodes();
+            for (int j = 0; j < children.getLength(); j++) {
+                Node child = children.item(j);
+                if (child instanceof Element && "id".equals(child.getLocalName())) {
+                    return child.getTextContent().trim();
+                }
+            }
+        }
+        throw new PortalServiceException(method, "Unable to find the record id in the metadata response");
+    }
+}
@@ -0,0 +1,302 @@
+package org.auscope.portal.server.web.service.csw;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicElement;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+
+/**
+ * An immutable, in memory index over a list of CSWRecords supporting bounding box and keyword queries.
+ *
+ * Bounding boxes are held in a Sort-Tile-Recursive (STR) packed R-tree, keywords (case insensitive)
+ * in an inverted index. Matches are always returned in the order of the original record list.
+ */
+public class CSWRecordIndex {
+
+    /** The maximum number of children for each R-tree node*/
+    private static final int NODE_CAPACITY = 16;
+
+    private final long version;
+    private final List<CSWRecord> records;
+    private final Map<String, BitSet> keywordIndex;
+    private final Node root;
+
+    /**
+     * A node in the R-tree. Leaf entries reference a record, all other nodes reference children
+     */
+    private static class Node {
+        final double minX, minY, maxX, maxY;
+        final int recordId;
+        final Node[] children;
+
+        /** Creates a leaf entry*/
+        Node(int recordId, double minX, double minY, double maxX, double maxY) {
+            this.recordId = recordId;
+            this.children = null;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        /** Creates a node bounding all of children*/
+        Node(List<Node> children) {
+            this.recordId = -1;
+            this.children = children.toArray(new Node[children.size()]);
+
+            double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE, x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE;
+            for (Node child : children) {
+                x1 = Math.min(x1, child.minX);
+                y1 = Math.min(y1, child.minY);
+                x2 = Math.max(x2, child.maxX);
+                y2 = Math.max(y2, child.maxY);
+            }
+            this.minX = x1;
+            this.minY = y1;
+            this.maxX = x2;
+            this.maxY = y2;
+        }
+
+        boolean intersects(double x1, double y1, double x2, double y2) {
+            return minX <= x2 && maxX >= x1 && minY <= y2 && maxY >= y1;
+        }
+    }
+
+    private static final Comparator<Node> X_COMPARATOR = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return Double.compare(a.minX + a.maxX, b.minX + b.maxX);
+        }
+    };
+
+    private static final Comparator<Node> Y_COMPARATOR = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return Double.compare(a.minY + a.maxY, b.minY + b.maxY);
+        }
+    };
+
+    /**
+     * The results of a search
+     */
+    public static class SearchResult {
+        private final List<CSWRecord> records;
+        private final int totalMatches;
+
+        SearchResult(List<CSWRecord> records, int totalMatches) {
+            this.records = records;
+            this.totalMatches = totalMatches;
+        }
+
+        /**
+         * The requested page of matching records
+         * @return
+         */
+        public List<CSWRecord> getRecords() {
+            return records;
+        }
+
+        /**
+         * The total number of matching records (across all pages)
+         * @return
+         */
+        public int getTotalMatches() {
+            return totalMatches;
+        }
+    }
+
+    /**
+     * Builds an index over the specified records
+     * @param version An arbitrary version number describing records
+     * @param records Will be copied
+     */
+    public CSWRecordIndex(long version, List<CSWRecord> records) {
+        this.version = version;
+        this.records = Collections.unmodifiableList(new ArrayList<CSWRecord>(records));
+
+        Map<String, BitSet> keywords = new HashMap<String, BitSet>();
+        List<Node> entries = new ArrayList<Node>();
+        for (int i = 0; i < this.records.size(); i++) {
+            CSWRecord record = this.records.get(i);
+
+            String[] descriptiveKeywords = record.getDescriptiveKeywords();
+            if (descriptiveKeywords != null) {
+                for (String keyword : descriptiveKeywords) {
+                    if (keyword == null) {
+                        continue;
+                    }
+                    String key = keyword.toLowerCase();
+                    BitSet ids = keywords.get(key);
+                    if (ids == null) {
+                        ids = new BitSet();
+                        keywords.put(key, ids);
+                    }
+                    ids.set(i);
+                }
+            }
+
+            CSWGeographicElement[] geoEls = record.getCSWGeographicElements();
+            if (geoEls != null) {
+                for (CSWGeographicElement geoEl : geoEls) {
+                    if (geoEl instanceof CSWGeographicBoundingBox) {
+                        addEntries(entries, i, (CSWGeographicBoundingBox) geoEl);
+                    }
+                }
+            }
+        }
+
+        this.keywordIndex = keywords;
+        this.root = pack(entries);
+    }
+
+    /**
+     * Adds a leaf entry for bbox (2 entries if bbox crosses the anti meridian)
+     */
+    private static void addEntries(List<Node> entries, int recordId, CSWGeographicBoundingBox bbox) {
+        double west = bbox.getWestBoundLongitude();
+        double east = bbox.getEastBoundLongitude();
+        double south = bbox.getSouthBoundLatitude();
+        double north = bbox.getNorthBoundLatitude();
+
+        if (west > east) {
+            entries.add(new Node(recordId, west, south, 180.0, north));
+            entries.add(new Node(recordId, -180.0, south, east, north));
+        } else {
+            entries.add(new Node(recordId, west, south, east, north));
+        }
+    }
+
+    /**
+     * Bulk loads an R-tree using Sort-Tile-Recursive packing
+     * @param entries
+     * @return The root node or null if there are no entries
+     */
+    private static Node pack(List<Node> entries) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+
+        List<Node> level = entries;
+        do {
+            int nodeCount = (int) Math.ceil(level.size() / (double) NODE_CAPACITY);
+            int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+            int sliceSize = sliceCount * NODE_CAPACITY;
+
+            List<Node> sorted = new ArrayList<Node>(level);
+            Collections.sort(sorted, X_COMPARATOR);
+
+            List<Node> parents = new ArrayList<Node>(nodeCount);
+            for (int i = 0; i < sorted.size(); i += sliceSize) {
+                List<Node> slice = new ArrayList<Node>(sorted.subList(i, Math.min(i + sliceSize, sorted.size())));
+                Collections.sort(slice, Y_COMPARATOR);
+                for (int j = 0; j < slice.size(); j += NODE_CAPACITY) {
+                    parents.add(new Node(slice.subList(j, Math.min(j + NODE_CAPACITY, slice.size()))));
+                }
+            }
+            level = parents;
+        } while (level.size() > 1);
+
+        return level.get(0);
+    }
+
+    /**
+     * Sets every record whose bounding box intersects the specified region
+     */
+    private void searchTree(double x1, double y1, double x2, double y2, BitSet matches) {
+        if (root == null) {
+            return;
+        }
+
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            if (!node.intersects(x1, y1, x2, y2)) {
+                continue;
+            }
+
+            if (node.children == null) {
+                matches.set(node.recordId);
+            } else {
+                for (Node child : node.children) {
+                    stack.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * The version number of the records this index was built from
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * The number of records in this index
+     * @return
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Finds every record that intersects a bounding box AND has every one of the specified keywords.
+     *
+     * @param west [Optional] The west bound longitude of the region to search. If any bound is null the region is ignored
+     * @param east [Optional] The east bound longitude. May be less than west (if the region crosses the anti meridian)
+     * @param south [Optional] The south bound latitude
+     * @param north [Optional] The north bound latitude
+     * @param keywords [Optional] Matching records must have ALL of these keywords (case insensitive)
+     * @param start The index of the first match to return
+     * @param limit The maximum number of matches to return
+     * @return
+     */
+    public SearchResult search(Double west, Double east, Double south, Double north, String[] keywords, int start, int limit) {
+        BitSet matches = new BitSet(records.size());
+        matches.set(0, records.size());
+
+        if (west != null && east != null && south != null && north != null) {
+            BitSet spatialMatches = new BitSet(records.size());
+            if (west > east) {
+                searchTree(west, south, 180.0, north, spatialMatches);
+                searchTree(-180.0, south, east, north, spatialMatches);
+            } else {
+                searchTree(west, south, east, north, spatialMatches);
+            }
+            matches.and(spatialMatches);
+        }
+
+        if (keywords != null) {
+            for (String keyword : keywords) {
+                if (keyword == null || keyword.isEmpty()) {
+                    continue;
+                }
+                BitSet keywordMatches = keywordIndex.get(keyword.toLowerCase());
+                if (keywordMatches == null) {
+                    matches.clear();
+                    break;
+                }
+                matches.and(keywordMatches);
+            }
+        }
+
+        List<CSWRecord> page = new ArrayList<CSWRecord>();
+        int matchIndex = 0;
+        for (int i = matches.nextSetBit(0); i >= 0 && page.size() < limit; i = matches.nextSetBit(i + 1)) {
+            if (matchIndex++ >= start) {
+                page.add(records.get(i));
+            }
+        }
+
+        return new SearchResult(page, matches.cardinality());
+    }
+}
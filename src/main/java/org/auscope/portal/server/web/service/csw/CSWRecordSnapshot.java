@@ -0,0 +1,133 @@
+package org.auscope.portal.server.web.service.csw;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+
+/**
+ * An immutable view of every CSWRecord harvested from a set of registries at a point in time.
+ *
+ * Snapshots are never modified after construction, instead a replacement snapshot is built and
+ * swapped in. Consumers can use getVersion to detect when the underlying records have changed.
+ */
+public class CSWRecordSnapshot {
+
+    private final long version;
+    private final Date created;
+    private final Map<String, Map<String, CSWRecord>> recordsByService;
+    private final Map<String, Date> harvestTimes;
+    private final List<CSWRecord> records;
+    private final Map<String, Set<CSWRecord>> keywords;
+
+    /**
+     * Creates an empty snapshot with version 0
+     */
+    public CSWRecordSnapshot() {
+        this(0, new HashMap<String, Map<String, CSWRecord>>(), new HashMap<String, Date>());
+    }
+
+    /**
+     * @param version Must increase with each new snapshot
+     * @param recordsByService The records (keyed by file identifier) for each CSW service ID. Will be copied.
+     * @param harvestTimes When each CSW service ID was last successfully harvested. Will be copied.
+     */
+    public CSWRecordSnapshot(long version, Map<String, Map<String, CSWRecord>> recordsByService, Map<String, Date> harvestTimes) {
+        this.version = version;
+        this.created = new Date();
+
+        Map<String, Map<String, CSWRecord>> byService = new LinkedHashMap<String, Map<String, CSWRecord>>();
+        List<CSWRecord> allRecords = new ArrayList<CSWRecord>();
+        Map<String, Set<CSWRecord>> keywordMap = new HashMap<String, Set<CSWRecord>>();
+        for (Map.Entry<String, Map<String, CSWRecord>> entry : recordsByService.entrySet()) {
+            byService.put(entry.getKey(), Collections.unmodifiableMap(new LinkedHashMap<String, CSWRecord>(entry.getValue())));
+
+            for (CSWRecord record : entry.getValue().values()) {
+                allRecords.add(record);
+
+                String[] descriptiveKeywords = record.getDescriptiveKeywords();
+                if (descriptiveKeywords == null) {
+                    continue;
+                }
+                for (String keyword : descriptiveKeywords) {
+                    Set<CSWRecord> keywordRecords = keywordMap.get(keyword);
+                    if (keywordRecords == null) {
+                        keywordRecords = new HashSet<CSWRecord>();
+                        keywordMap.put(keyword, keywordRecords);
+                    }
+                    keywordRecords.add(record);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Set<CSWRecord>> entry : keywordMap.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+
+        this.recordsByService = Collections.unmodifiableMap(byService);
+        this.harvestTimes = Collections.unmodifiableMap(new HashMap<String, Date>(harvestTimes));
+        this.records = Collections.unmodifiableList(allRecords);
+        this.keywords = Collections.unmodifiableMap(keywordMap);
+    }
+
+    /**
+     * A number that increases every time the cache is updated
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * When this snapshot was built
+     * @return
+     */
+    public Date getCreated() {
+        return new Date(created.getTime());
+    }
+
+    /**
+     * Every record in this snapshot (unmodifiable)
+     * @return
+     */
+    public List<CSWRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Every descriptive keyword mapped to the records that carry it (unmodifiable)
+     * @return
+     */
+    public Map<String, Set<CSWRecord>> getKeywords() {
+        return keywords;
+    }
+
+    /**
+     * The records (keyed by file identifier) harvested from the CSW service with the specified ID. Never null.
+     * @param serviceId
+     * @return
+     */
+    public Map<String, CSWRecord> getRecordsForService(String serviceId) {
+        Map<String, CSWRecord> serviceRecords = recordsByService.get(serviceId);
+        if (serviceRecords == null) {
+            return Collections.emptyMap();
+        }
+        return serviceRecords;
+    }
+
+    /**
+     * When the CSW service with the specified ID was last successfully harvested (or null if it never has been)
+     * @param serviceId
+     * @return
+     */
+    public Date getHarvestTime(String serviceId) {
+        return harvestTimes.get(serviceId);
+    }
+}
@@ -1,19 +1,29 @@
 package org.auscope.portal.server.web.service.csw;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.xml.xpath.XPathExpressionException;
 
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.services.responses.csw.CSWRecordTransformer;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * CSWRecord parser that also considers
+ *
+ * The gridded extensions are extracted by walking the gmd:MD_Metadata children directly (a single pass
+ * over the relevant elements) rather than evaluating an XPath per field per record. The base CSWRecord
+ * fields are still populated (via XPath) by the portal-core CSWRecordTransformer.
  * @author Josh Vote
  *
  */
 public class GriddedCSWRecordTransformer extends CSWRecordTransformer {
 
+    private static final String GMD = "http://www.isotc211.org/2005/gmd";
+    private static final String GCO = "http://www.isotc211.org/2005/gco";
+    private static final String GML = "http://www.opengis.net/gml";
+
     public GriddedCSWRecordTransformer() throws Exception {
         super();
     }
@@ -28,22 +38,97 @@ public class GriddedCSWRecordTransformer extends CSWRecordTransformer {
         GriddedCSWRecord cswRecord = new GriddedCSWRecord(null);
         super.transformToCSWRecord(cswRecord);
         
-        //Extract Date as a string
-        cswRecord.setDateStamp(evalXPathString(this.mdMetadataNode, "gmd:dateStamp/gco:DateTime"));
+        parseGriddedExtensions(cswRecord);
         
-        //Extract gridded positional data
-        NodeList posAccuracyEls = evalXPathNodeList(this.mdMetadataNode, "gmd:dataQualityInfo/gmd:DQ_DataQuality/gmd:report/gmd:DQ_GriddedDataPositionalAccuracy");
-        GriddedDataPositionalAccuracy[] posAccuracyObjs = new GriddedDataPositionalAccuracy[posAccuracyEls.getLength()];
-        for (int i = 0; i < posAccuracyEls.getLength(); i++) {
-            posAccuracyObjs[i] = new GriddedDataPositionalAccuracy();
-            
-            posAccuracyObjs[i].setNameOfMeasure(evalXPathString(posAccuracyEls.item(i), "gmd:nameOfMeasure/gco:CharacterString"));
-            posAccuracyObjs[i].setUnitOfMeasure(evalXPathString(posAccuracyEls.item(i), "gmd:result/gmd:DQ_QuantitativeResult/gmd:valueUnit/gml:UnitDefinition/gml:identifier"));
-            posAccuracyObjs[i].setValue(evalXPathString(posAccuracyEls.item(i), "gmd:result/gmd:DQ_QuantitativeResult/gmd:value/gco:Record"));
+        return cswRecord;
+    }
+
+    /**
+     * Populates the gridded extensions of cswRecord with a single pass over the top level elements
+     */
+    void parseGriddedExtensions(GriddedCSWRecord cswRecord) {
+        String dateStamp = "";
+        List<GriddedDataPositionalAccuracy> posAccuracyObjs = new ArrayList<GriddedDataPositionalAccuracy>();
+        for (Node child = this.mdMetadataNode.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (isElement(child, GMD, "dateStamp")) {
+                //Extract Date as a string
+                dateStamp = textContent(child, GCO, "DateTime");
+            } else if (isElement(child, GMD, "dataQualityInfo")) {
+                //Extract gridded positional data
+                for (Node dqDataQuality : childElements(child, GMD, "DQ_DataQuality")) {
+                    for (Node report : childElements(dqDataQuality, GMD, "report")) {
+                        for (Node posAccuracyEl : childElements(report, GMD, "DQ_GriddedDataPositionalAccuracy")) {
+                            posAccuracyObjs.add(parsePositionalAccuracy(posAccuracyEl));
+                        }
+                    }
+                }
+            }
         }
-        cswRecord.setGriddedInfo(posAccuracyObjs);
         
-        return cswRecord;
+        cswRecord.setDateStamp(dateStamp);
+        cswRecord.setGriddedInfo(posAccuracyObjs.toArray(new GriddedDataPositionalAccuracy[posAccuracyObjs.size()]));
+    }
+
+    /**
+     * Parses a gmd:DQ_GriddedDataPositionalAccuracy element
+     */
+    private GriddedDataPositionalAccuracy parsePositionalAccuracy(Node posAccuracyEl) {
+        GriddedDataPositionalAccuracy posAccuracy = new GriddedDataPositionalAccuracy();
+        posAccuracy.setNameOfMeasure(textContent(posAccuracyEl, GMD, "nameOfMeasure", GCO, "CharacterString"));
+
+        String unitOfMeasure = "";
+        String value = "";
+        for (Node result : childElements(posAccuracyEl, GMD, "result")) {
+            for (Node quantitativeResult : childElements(result, GMD, "DQ_QuantitativeResult")) {
+                if (unitOfMeasure.isEmpty()) {
+                    unitOfMeasure = textContent(quantitativeResult, GMD, "valueUnit", GML, "UnitDefinition", GML, "identifier");
+                }
+                if (value.isEmpty()) {
+                    value = textContent(quantitativeResult, GMD, "value", GCO, "Record");
+                }
+            }
+        }
+        posAccuracy.setUnitOfMeasure(unitOfMeasure);
+        posAccuracy.setValue(value);
+
+        return posAccuracy;
+    }
+
+    private static boolean isElement(Node node, String namespaceUri, String localName) {
+        return node.getNodeType() == Node.ELEMENT_NODE &&
+                localName.equals(node.getLocalName()) &&
+                namespaceUri.equals(node.getNamespaceURI());
+    }
+
+    /**
+     * Gets every direct child element of parent with the specified name
+     */
+    private static List<Node> childElements(Node parent, String namespaceUri, String localName) {
+        List<Node> children = new ArrayList<Node>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (isElement(child, namespaceUri, localName)) {
+                children.add(child);
+            }
+        }
+        return children;
     }
 
+    /**
+     * Gets the text content of the first element matching a path (of namespace/local name pairs) relative to parent.
+     * Returns an empty string if there is no such element (matching XPath string() semantics).
+     */
+    private static String textContent(Node parent, String... path) {
+        Node current = parent;
+        for (int i = 0; i < path.length && current != null; i += 2) {
+            Node match = null;
+            for (Node child = current.getFirstChild(); child != null && match == null; child = child.getNextSibling()) {
+                if (isElement(child, path[i], path[i + 1])) {
+                    match = child;
+                }
+            }
+            current = match;
+        }
+
+        return current == null ? "" : current.getTextContent();
+    }
 }
@@ -0,0 +1,459 @@
+package org.auscope.portal.server.web.service.csw;
+
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.CSWCacheService;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.services.responses.csw.CSWRecordTransformerFactory;
+import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
+import org.auscope.portal.core.util.DOMUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A CSWCacheService that avoids re-harvesting the entire catalogue on every update.
+ *
+ * Each registry is asked only for the records modified since it was last harvested, with pages
+ * of records being requested and transformed in parallel. Changed records are merged into a
+ * copy of the current CSWRecordSnapshot which is then swapped in atomically, so readers never
+ * see a partially updated cache.
+ *
+ * Deltas cannot report deleted records so every fullHarvestInterval'th update is a full harvest.
+ *
+ * The snapshot version is only incremented when the harvested content differs from the current
+ * snapshot (compared using a digest of each record's source XML) so that full harvests and the
+ * overlap of delta harvests don't invalidate responses rendered from an unchanged snapshot.
+ */
+public class IncrementalCSWCacheService extends CSWCacheService {
+
+    public static final String CSW_NAMESPACE = "http://www.opengis.net/cat/csw/2.0.2";
+    public static final String GMD_NAMESPACE = "http://www.isotc211.org/2005/gmd";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private Executor executor;
+    private ExecutorService pagePool;
+    private HttpServiceCaller serviceCaller;
+    private List<CSWServiceItem> cswServiceItems;
+    private CSWRecordTransformerFactory transformerFactory;
+
+    private final AtomicReference<CSWRecordSnapshot> snapshot = new AtomicReference<CSWRecordSnapshot>(new CSWRecordSnapshot());
+    private final AtomicBoolean updateRunning = new AtomicBoolean(false);
+    private int updateCount = 0;
+    /** Digests of each record's source XML keyed by service id then file identifier. Only used by harvest */
+    private volatile Map<String, Map<String, String>> recordDigests = new HashMap<String, Map<String, String>>();
+
+    private int pageSize = 100;
+    private int fullHarvestInterval = 24;
+    private int harvestOverlapSeconds = 300;
+
+    /**
+     * A single page of records from a GetRecords response
+     */
+    private static class HarvestedPage {
+        final int recordsMatched;
+        final List<CSWRecord> records;
+        final Map<String, String> digests;
+
+        HarvestedPage(int recordsMatched, List<CSWRecord> records, Map<String, String> digests) {
+            this.recordsMatched = recordsMatched;
+            this.records = records;
+            this.digests = digests;
+        }
+    }
+
+    /**
+     * Every record harvested from a single registry along with the digests of their source XML
+     */
+    private static class HarvestedRecords {
+        final List<CSWRecord> records = new ArrayList<CSWRecord>();
+        final Map<String, String> digests = new HashMap<String, String>();
+
+        void add(HarvestedPage page) {
+            records.addAll(page.records);
+            digests.putAll(page.digests);
+        }
+    }
+
+    /**
+     * @param executor Used for running the (background) cache updates
+     * @param serviceCaller Used for making GetRecords requests
+     * @param cswServiceList A list of CSWServiceItem objects to harvest
+     * @param transformerFactory Used for transforming gmd:MD_Metadata elements into CSWRecords
+     * @param maxConcurrentPages The maximum number of pages that will be requested/transformed at once
+     */
+    @SuppressWarnings("rawtypes")
+    public IncrementalCSWCacheService(Executor executor, HttpServiceCaller serviceCaller, List cswServiceList,
+            CSWRecordTransformerFactory transformerFactory, int maxConcurrentPages) {
+        super(executor, serviceCaller, cswServiceList, transformerFactory);
+        this.executor = executor;
+        this.serviceCaller = serviceCaller;
+        this.transformerFactory = transformerFactory;
+        this.pagePool = Executors.newFixedThreadPool(maxConcurrentPages);
+        this.cswServiceItems = new ArrayList<CSWServiceItem>();
+        for (Object item : cswServiceList) {
+            this.cswServiceItems.add((CSWServiceItem) item);
+        }
+    }
+
+    /**
+     * The number of records requested in each GetRecords request
+     * @return
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * The number of records requested in each GetRecords request
+     * @param pageSize
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Every N'th update will be a full harvest (to remove deleted records). 0 will disable periodic full harvests.
+     * @return
+     */
+    public int getFullHarvestInterval() {
+        return fullHarvestInterval;
+    }
+
+    /**
+     * Every N'th update will be a full harvest (to remove deleted records). 0 will disable periodic full harvests.
+     * @param fullHarvestInterval
+     */
+    public void setFullHarvestInterval(int fullHarvestInterval) {
+        this.fullHarvestInterval = fullHarvestInterval;
+    }
+
+    /**
+     * How far (in seconds) before the previous harvest a delta harvest will start from. Allows for clock differences
+     * between the portal and the registry.
+     * @return
+     */
+    public int getHarvestOverlapSeconds() {
+        return harvestOverlapSeconds;
+    }
+
+    /**
+     * How far (in seconds) before the previous harvest a delta harvest will start from. Allows for clock differences
+     * between the portal and the registry.
+     * @param harvestOverlapSeconds
+     */
+    public void setHarvestOverlapSeconds(int harvestOverlapSeconds) {
+        this.harvestOverlapSeconds = harvestOverlapSeconds;
+    }
+
+    /**
+     * Gets the current (immutable) snapshot of the cache
+     * @return
+     */
+    public CSWRecordSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Returns whether an update is currently running
+     * @return
+     */
+    public boolean isUpdateRunning() {
+        return updateRunning.get();
+    }
+
+    @Override
+    public List<CSWRecord> getRecordCache() {
+        return snapshot.get().getRecords();
+    }
+
+    @Override
+    public Map<String, Set<CSWRecord>> getKeywordCache() {
+        return snapshot.get().getKeywords();
+    }
+
+    /**
+     * Starts a (background) update of the cache. The update will be a delta harvest unless a full
+     * harvest is due.
+     * @return true if an update was started, false if one is already running
+     */
+    @Override
+    public boolean updateCache() {
+        return updateCache(false);
+    }
+
+    /**
+     * Starts a (background) update of the cache.
+     * @param forceFullHarvest If true, every record will be re-harvested (regardless of modification date)
+     * @return true if an update was started, false if one is already running
+     */
+    public boolean updateCache(boolean forceFullHarvest) {
+        if (!updateRunning.compareAndSet(false, true)) {
+            return false;
+        }
+
+        final boolean fullHarvest = forceFullHarvest || (fullHarvestInterval > 0 && updateCount % fullHarvestInterval == 0);
+        updateCount++;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        harvest(fullHarvest);
+                    } catch (Exception ex) {
+                        log.error("Error updating CSW cache: " + ex.getMessage());
+                        log.debug("Exception:", ex);
+                    } finally {
+                        updateRunning.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            updateRunning.set(false);
+            throw ex;
+        }
+
+        return true;
+    }
+
+    /**
+     * Releases the page harvesting threads. Intended to be called on application shutdown
+     */
+    public void shutdown() {
+        pagePool.shutdownNow();
+    }
+
+    /**
+     * Harvests every registry, merging the results into a new snapshot.
+     * @param fullHarvest
+     */
+    private void harvest(boolean fullHarvest) {
+        CSWRecordSnapshot current = snapshot.get();
+        Map<String, Map<String, CSWRecord>> recordsByService = new LinkedHashMap<String, Map<String, CSWRecord>>();
+        Map<String, Date> harvestTimes = new HashMap<String, Date>();
+        Map<String, Map<String, String>> digestsByService = new HashMap<String, Map<String, String>>();
+        boolean changed = false;
+
+        for (CSWServiceItem item : cswServiceItems) {
+            String serviceId = item.getId();
+            Map<String, CSWRecord> serviceRecords = new LinkedHashMap<String, CSWRecord>(current.getRecordsForService(serviceId));
+            Map<String, String> previousDigests = recordDigests.get(serviceId);
+            if (previousDigests == null) {
+                previousDigests = Collections.emptyMap();
+            }
+            Map<String, String> serviceDigests = new HashMap<String, String>(previousDigests);
+            Date lastHarvest = current.getHarvestTime(serviceId);
+            Date since = (fullHarvest || lastHarvest == null) ? null : new Date(lastHarvest.getTime() - harvestOverlapSeconds * 1000L);
+            Date harvestStart = new Date();
+
+            try {
+                HarvestedRecords harvested = harvestService(item, since);
+                Set<String> previousIds = new HashSet<String>(serviceRecords.keySet());
+                if (since == null) {
+                    serviceRecords.clear();
+                    serviceDigests.clear();
+                }
+                for (CSWRecord record : harvested.records) {
+                    String fileIdentifier = record.getFileIdentifier();
+                    String digest = harvested.digests.get(fileIdentifier);
+                    if (digest == null || !digest.equals(previousDigests.get(fileIdentifier))) {
+                        changed = true;
+                    }
+                    serviceRecords.put(fileIdentifier, record);
+                    serviceDigests.put(fileIdentifier, digest);
+                }
+                if (since == null && !previousIds.equals(serviceRecords.keySet())) {
+                    //Records were deleted from the registry
+                    changed = true;
+                }
+                harvestTimes.put(serviceId, harvestStart);
+                log.debug(String.format("Harvested %1$d records from '%2$s' (since %3$s)", harvested.records.size(), item.getServiceUrl(), since));
+            } catch (Exception ex) {
+                //Keep whatever we had for this registry
+                log.warn(String.format("Unable to harvest '%1$s': %2$s", item.getServiceUrl(), ex));
+                log.debug("Exception:", ex);
+                if (lastHarvest != null) {
+                    harvestTimes.put(serviceId, lastHarvest);
+                }
+            }
+
+            recordsByService.put(serviceId, serviceRecords);
+            digestsByService.put(serviceId, serviceDigests);
+        }
+
+        long version = changed ? current.getVersion() + 1 : current.getVersion();
+        recordDigests = digestsByService;
+        snapshot.set(new CSWRecordSnapshot(version, recordsByService, harvestTimes));
+    }
+
+    /**
+     * Harvests every record (modified since the specified date) from a single registry. The first page
+     * is requested to discover the total record count, the remaining pages are requested in parallel.
+     * @param item
+     * @param since If null, all records will be harvested
+     * @return
+     * @throws Exception
+     */
+    private HarvestedRecords harvestService(final CSWServiceItem item, final Date since) throws Exception {
+        HarvestedPage firstPage = harvestPage(item, since, 1);
+        HarvestedRecords records = new HarvestedRecords();
+        records.add(firstPage);
+
+        List<Future<HarvestedPage>> futures = new ArrayList<Future<HarvestedPage>>();
+        try {
+            for (int startPosition = 1 + pageSize; startPosition <= firstPage.recordsMatched; startPosition += pageSize) {
+                final int pageStart = startPosition;
+                futures.add(pagePool.submit(new Callable<HarvestedPage>() {
+                    @Override
+                    public HarvestedPage call() throws Exception {
+                        return harvestPage(item, since, pageStart);
+                    }
+                }));
+            }
+
+            for (Future<HarvestedPage> future : futures) {
+                records.add(future.get());
+            }
+        } catch (ExecutionException ex) {
+            for (Future<HarvestedPage> future : futures) {
+                future.cancel(true);
+            }
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+
+        return records;
+    }
+
+    /**
+     * Requests a single page of records, transforming each gmd:MD_Metadata into a CSWRecord.
+     * @param item
+     * @param since If null, all records will be harvested
+     * @param startPosition The 1 based index of the first record to request
+     * @return
+     * @throws Exception
+     */
+    private HarvestedPage harvestPage(CSWServiceItem item, Date since, int startPosition) throws Exception {
+        HttpGet method = makeGetRecordsMethod(item.getServiceUrl(), since, startPosition);
+        String responseString = serviceCaller.getMethodResponseAsString(method);
+        OWSExceptionParser.checkForExceptionResponse(responseString);
+
+        Document doc = DOMUtil.buildDomFromString(responseString);
+        Element searchResults = (Element) doc.getElementsByTagNameNS(CSW_NAMESPACE, "SearchResults").item(0);
+        if (searchResults == null) {
+            throw new PortalServiceException(method, "GetRecords response is missing csw:SearchResults");
+        }
+
+        List<CSWRecord> records = new ArrayList<CSWRecord>();
+        Map<String, String> digests = new HashMap<String, String>();
+        Transformer serializer = TransformerFactory.newInstance().newTransformer();
+        serializer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        for (Node child = searchResults.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE ||
+                !GMD_NAMESPACE.equals(child.getNamespaceURI()) ||
+                !"MD_Metadata".equals(child.getLocalName())) {
+                continue;
+            }
+
+            CSWRecord record = transformerFactory.newCSWRecordTransformer(child).transformToCSWRecord();
+            if (record.getFileIdentifier() == null) {
+                log.debug(String.format("Skipping record without a file identifier from '%1$s'", item.getServiceUrl()));
+                continue;
+            }
+            if (item.getRecordInformationUrl() != null) {
+                record.setRecordInfoUrl(String.format(item.getRecordInformationUrl(), record.getFileIdentifier()));
+            }
+            records.add(record);
+            digests.put(record.getFileIdentifier(), digest(serializer, child));
+        }
+
+        int recordsMatched = Integer.parseInt(searchResults.getAttribute("numberOfRecordsMatched"));
+        return new HarvestedPage(recordsMatched, Collections.unmodifiableList(records), digests);
+    }
+
+    /**
+     * Generates a (hex encoded) MD5 digest of the serialised XML of node
+     * @param serializer
+     * @param node
+     * @return
+     * @throws Exception
+     */
+    private static String digest(Transformer serializer, Node node) throws Exception {
+        StringWriter xml = new StringWriter();
+        serializer.transform(new DOMSource(node), new StreamResult(xml));
+
+        byte[] digest = MessageDigest.getInstance("MD5").digest(xml.toString().getBytes("UTF-8"));
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates a CSW 2.0.2 GetRecords (KVP) request for full ISO19139 records.
+     * @param serviceUrl
+     * @param since If not null, only records modified on or after this date will be requested
+     * @param startPosition The 1 based index of the first record to request
+     * @return
+     * @throws URISyntaxException
+     */
+    protected HttpGet makeGetRecordsMethod(String serviceUrl, Date since, int startPosition) throws URISyntaxException {
+        URIBuilder builder = new URIBuilder(serviceUrl);
+        builder.setParameter("service", "CSW");
+        builder.setParameter("version", "2.0.2");
+        builder.setParameter("request", "GetRecords");
+        builder.setParameter("typeNames", "gmd:MD_Metadata");
+        builder.setParameter("namespace", "xmlns(gmd=" + GMD_NAMESPACE + ")");
+        builder.setParameter("outputSchema", GMD_NAMESPACE);
+        builder.setParameter("elementSetName", "full");
+        builder.setParameter("resultType", "results");
+        builder.setParameter("startPosition", Integer.toString(startPosition));
+        builder.setParameter("maxRecords", Integer.toString(pageSize));
+
+        if (since != null) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+            builder.setParameter("constraintLanguage", "CQL_TEXT");
+            builder.setParameter("constraint_language_version", "1.1.0");
+            builder.setParameter("constraint", String.format("Modified >= '%1$s'", format.format(since)));
+        }
+
+        return new HttpGet(builder.build());
+    }
+}
@@ -0,0 +1,26 @@
+package org.auscope.portal.server.web.service.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is refused without contacting the remote host, either because the host's circuit
+ * breaker is open or because too many requests to the host are already in progress.
+ */
+public class HostUnavailableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private String host;
+
+    public HostUnavailableException(String host, String message) {
+        super(message);
+        this.host = host;
+    }
+
+    /**
+     * The host that was unavailable
+     * @return
+     */
+    public String getHost() {
+        return host;
+    }
+}
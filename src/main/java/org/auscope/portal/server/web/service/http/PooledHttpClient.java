@@ -0,0 +1,85 @@
+package org.auscope.portal.server.web.service.http;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * A long lived HTTP client backed by a pool of keep-alive connections.
+ *
+ * Unlike the core HttpServiceCaller (which establishes a new connection per request) this
+ * is intended for high frequency proxying where the same remote hosts are contacted
+ * repeatedly and the response is streamed straight back to the browser.
+ *
+ * Callers are responsible for closing the returned responses (which releases the connection
+ * back into the pool).
+ */
+public class PooledHttpClient {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+
+    /**
+     * @param maxTotalConnections The maximum number of open connections across all hosts
+     * @param maxConnectionsPerHost The maximum number of open connections to any single host
+     * @param connectTimeoutSeconds How long to wait for a connection to establish
+     * @param socketTimeoutSeconds How long to wait for data before aborting
+     */
+    public PooledHttpClient(int maxTotalConnections, int maxConnectionsPerHost, int connectTimeoutSeconds, int socketTimeoutSeconds) {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutSeconds * 1000)
+                .setConnectionRequestTimeout(connectTimeoutSeconds * 1000)
+                .setSocketTimeout(socketTimeoutSeconds * 1000)
+                .build();
+
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .build();
+    }
+
+    /**
+     * Executes the specified method, returning the (unconsumed) response. The response
+     * MUST be closed by the caller.
+     * @param method
+     * @return
+     * @throws IOException
+     */
+    public CloseableHttpResponse execute(HttpRequestBase method) throws IOException {
+        return client.execute(method);
+    }
+
+    /**
+     * Gets the current usage of the connection pool (across all hosts)
+     * @return
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Releases all pooled connections. Intended to be called on application shutdown
+     */
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException ex) {
+            logger.warn("Error closing pooled HTTP client: " + ex.getMessage());
+            logger.debug("Exception:", ex);
+        }
+    }
+}
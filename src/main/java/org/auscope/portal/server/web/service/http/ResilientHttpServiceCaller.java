@@ -0,0 +1,634 @@
+package org.auscope.portal.server.web.service.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+
+/**
+ * A HttpServiceCaller that isolates every upstream host from every other upstream host.
+ *
+ * Each host gets its own keep-alive connection pool, a bulkhead limiting how many requests can be in
+ * progress at once and a circuit breaker. After failureThreshold consecutive failures (connection errors,
+ * timeouts or 5xx responses) the breaker opens and requests to that host fail immediately with a
+ * HostUnavailableException. Once openCircuitSeconds have elapsed a single trial request is let through - if
+ * it succeeds the breaker closes.
+ *
+ * Buffered requests (string/byte responses) get a socket timeout that adapts to the latency observed for the
+ * same operation (eg WMS GetCapabilities) on the same host, bounded by minTimeoutSeconds/maxTimeoutSeconds. The
+ * configured timeout is a ceiling - no adaptive timeout is ever longer. Streamed requests (which may legitimately
+ * stall for a long time mid transfer) always use the configured timeout and are not sampled.
+ *
+ * At most maxHosts hosts are tracked - the least recently used idle host is discarded to make room for a new one.
+ *
+ * A single hung server can therefore only ever tie up maxConcurrentRequestsPerHost threads.
+ */
+public class ResilientHttpServiceCaller extends HttpServiceCaller {
+
+    /** The number of recent latencies used for calculating adaptive timeouts*/
+    private static final int LATENCY_SAMPLES = 100;
+    /** Adaptive timeouts will not be used until at least this many latencies have been observed*/
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    /** The most operations tracked separately for a single host. Any others share a single set of latencies*/
+    private static final int MAX_OPERATIONS_PER_HOST = 32;
+    /** The operation name shared by operations beyond MAX_OPERATIONS_PER_HOST*/
+    private static final String OTHER_OPERATION = "*";
+
+    /** The possible states of a host's circuit breaker*/
+    public enum CircuitState {
+        /** Requests are made as normal*/
+        CLOSED,
+        /** Requests fail immediately*/
+        OPEN,
+        /** A single trial request is in progress*/
+        HALF_OPEN
+    }
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private Map<String, HostState> hosts = new ConcurrentHashMap<String, HostState>();
+
+    private int maxConnectionsPerHost = 20;
+    private int maxConcurrentRequestsPerHost = 20;
+    private long bulkheadWaitMillis = 2000;
+    private int failureThreshold = 5;
+    private int openCircuitSeconds = 30;
+    private int connectTimeoutSeconds = 90;
+    private int minTimeoutSeconds = 10;
+    private int maxTimeoutSeconds = 90;
+    private double timeoutPercentile = 0.99;
+    private double timeoutMultiplier = 3.0;
+    private int maxHosts = 256;
+    /** The socket timeout (in ms) passed to the constructor*/
+    private int configuredTimeoutMillis;
+
+    /**
+     * A point in time description of the health of a single host
+     */
+    public static class HostStatus {
+        private String host;
+        private CircuitState state;
+        private int consecutiveFailures;
+        private int activeRequests;
+        private long totalRequests;
+        private long totalFailures;
+        private long totalRejected;
+        private int timeoutMillis;
+        private long medianLatencyMillis;
+        private long percentileLatencyMillis;
+        private int leasedConnections;
+        private int availableConnections;
+
+        public String getHost() {
+            return host;
+        }
+        public CircuitState getState() {
+            return state;
+        }
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+        public int getActiveRequests() {
+            return activeRequests;
+        }
+        public long getTotalRequests() {
+            return totalRequests;
+        }
+        public long getTotalFailures() {
+            return totalFailures;
+        }
+        /** The number of requests refused (open circuit or full bulkhead)*/
+        public long getTotalRejected() {
+            return totalRejected;
+        }
+        /** The socket timeout currently applied to requests*/
+        public int getTimeoutMillis() {
+            return timeoutMillis;
+        }
+        public long getMedianLatencyMillis() {
+            return medianLatencyMillis;
+        }
+        /** The latency at the configured timeout percentile*/
+        public long getPercentileLatencyMillis() {
+            return percentileLatencyMillis;
+        }
+        public int getLeasedConnections() {
+            return leasedConnections;
+        }
+        public int getAvailableConnections() {
+            return availableConnections;
+        }
+    }
+
+    /**
+     * The recent latencies (and resulting adaptive timeout) of a single operation against a single host
+     */
+    private class LatencyStats {
+        final long[] latencies = new long[LATENCY_SAMPLES];
+        int latencyCount;
+        int latencyIndex;
+        int timeoutMillis = getInitialTimeoutMillis();
+        long medianLatency;
+        long percentileLatency;
+
+        void record(long latency) {
+            latencies[latencyIndex] = latency;
+            latencyIndex = (latencyIndex + 1) % latencies.length;
+            latencyCount = Math.min(latencyCount + 1, latencies.length);
+
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            medianLatency = sorted[sorted.length / 2];
+            percentileLatency = sorted[Math.min(sorted.length - 1, (int) (sorted.length * timeoutPercentile))];
+            if (latencyCount >= MIN_LATENCY_SAMPLES) {
+                long adaptive = (long) (percentileLatency * timeoutMultiplier);
+                adaptive = Math.max(minTimeoutSeconds * 1000L, Math.min(maxTimeoutSeconds * 1000L, adaptive));
+                timeoutMillis = (int) Math.min(configuredTimeoutMillis, adaptive);
+            }
+        }
+    }
+
+    /**
+     * All of the state held for a single host
+     */
+    private class HostState {
+        final String host;
+        final PooledHttpClient client;
+        final Semaphore bulkhead;
+        volatile long lastUsed;
+
+        CircuitState state = CircuitState.CLOSED;
+        long openUntil;
+        int consecutiveFailures;
+        long totalRequests;
+        long totalFailures;
+        long totalRejected;
+
+        /** Latencies keyed by operation*/
+        final Map<String, LatencyStats> operations = new HashMap<String, LatencyStats>();
+
+        HostState(String host) {
+            this.host = host;
+            this.client = new PooledHttpClient(maxConnectionsPerHost, maxConnectionsPerHost, connectTimeoutSeconds, maxTimeoutSeconds);
+            this.bulkhead = new Semaphore(maxConcurrentRequestsPerHost, true);
+        }
+
+        /**
+         * Checks the circuit breaker, moving an expired OPEN breaker into HALF_OPEN (and allowing a single trial)
+         */
+        synchronized boolean allowRequest() {
+            switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) {
+                    totalRejected++;
+                    return false;
+                }
+                state = CircuitState.HALF_OPEN;
+                return true;
+            case HALF_OPEN:
+                totalRejected++;
+                return false;
+            default:
+                return true;
+            }
+        }
+
+        synchronized void rejected() {
+            totalRejected++;
+        }
+
+        /**
+         * The socket timeout for the specified buffered operation
+         */
+        synchronized int getTimeoutMillis(String operation) {
+            LatencyStats stats = operations.get(operation);
+            if (stats == null) {
+                stats = operations.get(OTHER_OPERATION);
+            }
+            return stats == null ? getInitialTimeoutMillis() : stats.timeoutMillis;
+        }
+
+        /**
+         * Records a successful request.
+         * @param operation The buffered operation (or null if the request was streamed and shouldn't be sampled)
+         * @param latency How long (in ms) it took to receive the response headers
+         */
+        synchronized void recordSuccess(String operation, long latency) {
+            totalRequests++;
+            consecutiveFailures = 0;
+            if (state != CircuitState.CLOSED) {
+                logger.info(String.format("Circuit for '%1$s' has closed", host));
+                state = CircuitState.CLOSED;
+            }
+
+            if (operation == null) {
+                return;
+            }
+
+            LatencyStats stats = operations.get(operation);
+            if (stats == null) {
+                if (operations.size() >= MAX_OPERATIONS_PER_HOST) {
+                    operation = OTHER_OPERATION;
+                    stats = operations.get(operation);
+                }
+                if (stats == null) {
+                    stats = new LatencyStats();
+                    operations.put(operation, stats);
+                }
+            }
+            stats.record(latency);
+        }
+
+        synchronized void recordFailure() {
+            totalRequests++;
+            totalFailures++;
+            consecutiveFailures++;
+            if (state == CircuitState.HALF_OPEN || (state == CircuitState.CLOSED && consecutiveFailures >= failureThreshold)) {
+                logger.warn(String.format("Circuit for '%1$s' has opened after %2$d consecutive failure(s)", host, consecutiveFailures));
+                state = CircuitState.OPEN;
+                openUntil = System.currentTimeMillis() + openCircuitSeconds * 1000L;
+            }
+        }
+
+        /**
+         * Whether this host has no requests (or streamed responses) in progress
+         */
+        boolean isIdle() {
+            return bulkhead.availablePermits() == maxConcurrentRequestsPerHost && client.getPoolStats().getLeased() == 0;
+        }
+
+        synchronized HostStatus getStatus() {
+            HostStatus status = new HostStatus();
+            status.host = host;
+            status.state = state;
+            status.consecutiveFailures = consecutiveFailures;
+            status.activeRequests = maxConcurrentRequestsPerHost - bulkhead.availablePermits();
+            status.totalRequests = totalRequests;
+            status.totalFailures = totalFailures;
+            status.totalRejected = totalRejected;
+
+            //Report the slowest operation
+            status.timeoutMillis = getInitialTimeoutMillis();
+            for (LatencyStats stats : operations.values()) {
+                if (stats.percentileLatency >= status.percentileLatencyMillis) {
+                    status.timeoutMillis = stats.timeoutMillis;
+                    status.medianLatencyMillis = stats.medianLatency;
+                    status.percentileLatencyMillis = stats.percentileLatency;
+                }
+            }
+
+            PoolStats poolStats = client.getPoolStats();
+            status.leasedConnections = poolStats.getLeased();
+            status.availableConnections = poolStats.getAvailable();
+            return status;
+        }
+    }
+
+    /**
+     * @param connectionTimeOut Passed to the underlying HttpServiceCaller. Also the socket timeout (in ms) of
+     *                          every streamed request and the upper bound of every adaptive timeout.
+     */
+    public ResilientHttpServiceCaller(int connectionTimeOut) {
+        super(connectionTimeOut);
+        this.configuredTimeoutMillis = connectionTimeOut;
+    }
+
+    /**
+     * The socket timeout used for an operation until enough of its latencies have been observed
+     */
+    private int getInitialTimeoutMillis() {
+        return Math.min(configuredTimeoutMillis, maxTimeoutSeconds * 1000);
+    }
+
+    /** The maximum number of pooled connections to any one host (default 20)*/
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /** The maximum number of requests that can be in progress to any one host (default 20)*/
+    public void setMaxConcurrentRequestsPerHost(int maxConcurrentRequestsPerHost) {
+        this.maxConcurrentRequestsPerHost = maxConcurrentRequestsPerHost;
+    }
+
+    /** How long a request will wait for a busy host before being refused (default 2000)*/
+    public void setBulkheadWaitMillis(long bulkheadWaitMillis) {
+        this.bulkheadWaitMillis = bulkheadWaitMillis;
+    }
+
+    /** The number of consecutive failures that will open a host's circuit (default 5)*/
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /** How long an open circuit stays open before a trial request is allowed (default 30)*/
+    public void setOpenCircuitSeconds(int openCircuitSeconds) {
+        this.openCircuitSeconds = openCircuitSeconds;
+    }
+
+    /** How long to wait for a connection to establish (default 90)*/
+    public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+    }
+
+    /** The lower bound on adaptive socket timeouts (default 10)*/
+    public void setMinTimeoutSeconds(int minTimeoutSeconds) {
+        this.minTimeoutSeconds = minTimeoutSeconds;
+    }
+
+    /** The upper bound on adaptive socket timeouts (the configured timeout is used if it is shorter). Also used until enough latencies have been observed (default 90)*/
+    public void setMaxTimeoutSeconds(int maxTimeoutSeconds) {
+        this.maxTimeoutSeconds = maxTimeoutSeconds;
+    }
+
+    /** The latency percentile (0 to 1) that adaptive timeouts are based on (default 0.99)*/
+    public void setTimeoutPercentile(double timeoutPercentile) {
+        this.timeoutPercentile = timeoutPercentile;
+    }
+
+    /** Adaptive timeouts are the latency percentile multiplied by this (default 3)*/
+    public void setTimeoutMultiplier(double timeoutMultiplier) {
+        this.timeoutMultiplier = timeoutMultiplier;
+    }
+
+    /** The maximum number of hosts that will be tracked at once (default 256)*/
+    public void setMaxHosts(int maxHosts) {
+        this.maxHosts = maxHosts;
+    }
+
+    /**
+     * Gets the status of every host that has been contacted (sorted by host name)
+     * @return
+     */
+    public List<HostStatus> getHostStatuses() {
+        List<String> names = new ArrayList<String>(hosts.keySet());
+        Collections.sort(names);
+
+        List<HostStatus> statuses = new ArrayList<HostStatus>(names.size());
+        for (String name : names) {
+            statuses.add(hosts.get(name).getStatus());
+        }
+        return statuses;
+    }
+
+    /**
+     * Releases all pooled connections. Intended to be called on application shutdown
+     */
+    public void shutdown() {
+        for (HostState host : hosts.values()) {
+            host.client.close();
+        }
+        hosts.clear();
+    }
+
+    /**
+     * Gets the socket timeout (in ms) that would currently be applied to method (if it was a buffered request)
+     * @param method
+     * @return
+     */
+    public int getTimeoutMillis(HttpRequestBase method) {
+        HostState host = hosts.get(getHostKey(method));
+        return host == null ? getInitialTimeoutMillis() : host.getTimeoutMillis(getOperation(method));
+    }
+
+    private static String getHostKey(HttpRequestBase method) {
+        URI uri = method.getURI();
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("Request URI has no host: " + uri);
+        }
+        return uri.getPort() < 0 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+    }
+
+    private HostState getHostState(HttpRequestBase method) {
+        String key = getHostKey(method);
+        HostState host = hosts.get(key);
+        if (host == null) {
+            synchronized (hosts) {
+                host = hosts.get(key);
+                if (host == null) {
+                    if (hosts.size() >= maxHosts) {
+                        evictIdleHost();
+                    }
+                    host = new HostState(key);
+                    hosts.put(key, host);
+                }
+            }
+        }
+        host.lastUsed = System.nanoTime();
+        return host;
+    }
+
+    /**
+     * Discards the least recently used host that has nothing in progress. Must be called whilst holding the hosts lock.
+     */
+    private void evictIdleHost() {
+        HostState oldest = null;
+        for (HostState candidate : hosts.values()) {
+            if ((oldest == null || candidate.lastUsed < oldest.lastUsed) && candidate.isIdle()) {
+                oldest = candidate;
+            }
+        }
+
+        if (oldest == null) {
+            logger.warn(String.format("All %1$d tracked hosts are busy - tracking an extra host", hosts.size()));
+            return;
+        }
+
+        hosts.remove(oldest.host);
+        oldest.client.close();
+    }
+
+    /**
+     * Gets the name that latencies of a buffered request are tracked under - the HTTP method, path and
+     * (if present) the OGC 'request' parameter
+     */
+    private static String getOperation(HttpRequestBase method) {
+        URI uri = method.getURI();
+        String operation = method.getMethod() + " " + uri.getPath();
+
+        String query = uri.getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0 && param.substring(0, eq).equalsIgnoreCase("request")) {
+                    return operation + "?request=" + param.substring(eq + 1).toLowerCase();
+                }
+            }
+        }
+        return operation;
+    }
+
+    /**
+     * Enters the host's bulkhead (which must be released by the caller) checking its circuit breaker
+     */
+    private void acquire(HostState host) throws HostUnavailableException {
+        if (!host.allowRequest()) {
+            throw new HostUnavailableException(host.host, String.format("'%1$s' is unavailable (too many recent failures)", host.host));
+        }
+
+        boolean acquired = false;
+        try {
+            acquired = host.bulkhead.tryAcquire(bulkheadWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!acquired) {
+            host.rejected();
+            //A half open trial that can't proceed must not leave the breaker stuck
+            synchronized (host) {
+                if (host.state == CircuitState.HALF_OPEN) {
+                    host.state = CircuitState.OPEN;
+                    host.openUntil = System.currentTimeMillis();
+                }
+            }
+            throw new HostUnavailableException(host.host, String.format("'%1$s' is unavailable (too many requests in progress)", host.host));
+        }
+    }
+
+    /**
+     * Makes the request (inside an acquired bulkhead) recording the outcome against host
+     * @param streamed If true the configured timeout is used (and the latency isn't sampled), otherwise the adaptive timeout is used
+     */
+    private CloseableHttpResponse execute(HostState host, HttpRequestBase method, boolean streamed) throws IOException {
+        String operation = streamed ? null : getOperation(method);
+        RequestConfig config = method.getConfig() == null ? RequestConfig.DEFAULT : method.getConfig();
+        method.setConfig(RequestConfig.copy(config)
+                .setSocketTimeout(streamed ? configuredTimeoutMillis : host.getTimeoutMillis(operation))
+                .build());
+
+        long start = System.currentTimeMillis();
+        CloseableHttpResponse response;
+        try {
+            response = host.client.execute(method);
+        } catch (IOException ex) {
+            host.recordFailure();
+            throw ex;
+        } catch (RuntimeException ex) {
+            host.recordFailure();
+            throw ex;
+        }
+
+        if (response.getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            host.recordFailure();
+        } else {
+            host.recordSuccess(operation, System.currentTimeMillis() - start);
+        }
+        return response;
+    }
+
+    /**
+     * Throws a HttpException (closing response) if response isn't a HTTP 200
+     */
+    private void checkStatus(HttpRequestBase method, CloseableHttpResponse response) throws HttpException, IOException {
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            String errorMessage = String.format("Error requesting data from '%1$s' - %2$s", method.getURI(), response.getStatusLine());
+            response.close();
+            logger.debug(errorMessage);
+            throw new HttpException(errorMessage);
+        }
+    }
+
+    /**
+     * Makes a request, returning the response body as a string
+     */
+    @Override
+    public String getMethodResponseAsString(HttpRequestBase method) throws Exception {
+        HostState host = getHostState(method);
+        acquire(host);
+        try {
+            CloseableHttpResponse response = execute(host, method, false);
+            try {
+                checkStatus(method, response);
+                HttpEntity entity = response.getEntity();
+                return entity == null ? "" : EntityUtils.toString(entity, "UTF-8");
+            } finally {
+                response.close();
+            }
+        } finally {
+            host.bulkhead.release();
+        }
+    }
+
+    /**
+     * Makes a request, returning the response body as a byte array
+     */
+    @Override
+    public byte[] getMethodResponseAsBytes(HttpRequestBase method) throws Exception {
+        HostState host = getHostState(method);
+        acquire(host);
+        try {
+            CloseableHttpResponse response = execute(host, method, false);
+            try {
+                checkStatus(method, response);
+                HttpEntity entity = response.getEntity();
+                return entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+            } finally {
+                response.close();
+            }
+        } finally {
+            host.bulkhead.release();
+        }
+    }
+
+    /**
+     * Makes a request, returning the response body as a stream. The stream MUST be closed by the caller
+     * (which returns the connection to the host's pool).
+     *
+     * The host's bulkhead is only held until the response headers have been received.
+     */
+    @Override
+    public InputStream getMethodResponseAsStream(HttpRequestBase method) throws Exception {
+        HostState host = getHostState(method);
+        acquire(host);
+        try {
+            CloseableHttpResponse response = execute(host, method, true);
+            checkStatus(method, response);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                response.close();
+                throw new HttpException(String.format("Empty response from '%1$s'", method.getURI()));
+            }
+            return entity.getContent();
+        } finally {
+            host.bulkhead.release();
+        }
+    }
+
+    /**
+     * Makes a request, returning the unconsumed response (regardless of status code). The response entity
+     * MUST be consumed (or its content closed) by the caller.
+     *
+     * The host's bulkhead is only held until the response headers have been received.
+     */
+    @Override
+    public HttpResponse getMethodResponseAsHttpResponse(HttpRequestBase method) throws Exception {
+        HostState host = getHostState(method);
+        acquire(host);
+        try {
+            return execute(host, method, true);
+        } finally {
+            host.bulkhead.release();
+        }
+    }
+}
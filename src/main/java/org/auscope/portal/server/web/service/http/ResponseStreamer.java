@@ -0,0 +1,135 @@
+package org.auscope.portal.server.web.service.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Shared plumbing for streaming (potentially very large) upstream responses back to the browser.
+ *
+ * Each transfer holds a container thread for its duration so the number of concurrent transfers is
+ * bounded - requests beyond that limit wait briefly and are then rejected with a 503 before any of the
+ * response is committed, leaving the remaining container threads free for ordinary requests.
+ *
+ * Copy buffers are recycled between transfers and data is flushed to the client whenever the upstream
+ * server stalls (so nothing sits in a buffer waiting on a slow server). Writes block when the client is
+ * slower than the upstream server which pushes back on reading from the upstream connection.
+ */
+public class ResponseStreamer {
+
+    /** How long (in seconds) clients are told to wait when all transfers are in use*/
+    public static final int RETRY_AFTER_SECONDS = 10;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private Semaphore transfers;
+    private int maxTransfers;
+    private int bufferSize;
+    private long acquireTimeoutMillis;
+    private BlockingQueue<byte[]> buffers;
+
+    /**
+     * @param maxTransfers The maximum number of concurrent transfers
+     * @param bufferSize The size (in bytes) of each copy buffer
+     * @param acquireTimeoutMillis How long a request will wait for a transfer to become available before being rejected
+     */
+    public ResponseStreamer(int maxTransfers, int bufferSize, long acquireTimeoutMillis) {
+        this.maxTransfers = maxTransfers;
+        this.bufferSize = bufferSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.transfers = new Semaphore(maxTransfers, true);
+        this.buffers = new LinkedBlockingQueue<byte[]>(maxTransfers);
+    }
+
+    /**
+     * The maximum number of concurrent transfers
+     * @return
+     */
+    public int getMaxTransfers() {
+        return maxTransfers;
+    }
+
+    /**
+     * The number of transfers currently in progress
+     * @return
+     */
+    public int getActiveTransfers() {
+        return maxTransfers - transfers.availablePermits();
+    }
+
+    /**
+     * Attempts to start a new transfer. If no transfer becomes available in time a 503 (with a Retry-After header)
+     * is sent using response. Must be called before anything is written to response.
+     *
+     * Every successful call MUST be matched by a call to endTransfer
+     *
+     * @param response The response that will receive the transfer
+     * @return true if the transfer can proceed, false if response has been rejected
+     * @throws IOException
+     */
+    public boolean beginTransfer(HttpServletResponse response) throws IOException {
+        boolean acquired;
+        try {
+            acquired = transfers.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if (!acquired) {
+            logger.warn(String.format("All %1$d transfers are in use. Rejecting request.", maxTransfers));
+            response.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent downloads. Please try again shortly.");
+        }
+        return acquired;
+    }
+
+    /**
+     * Releases a transfer started with beginTransfer
+     */
+    public void endTransfer() {
+        transfers.release();
+    }
+
+    /**
+     * Copies input to output using a recycled buffer. output is flushed whenever input has no more data immediately
+     * available and at the end of the copy. Neither stream will be closed.
+     * @param input
+     * @param output
+     * @return The number of bytes copied
+     * @throws IOException
+     */
+    public long copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new byte[bufferSize];
+        }
+
+        try {
+            long total = 0;
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+                total += read;
+
+                //Don't sit on data whilst waiting for a slow upstream server
+                if (input.available() == 0) {
+                    output.flush();
+                }
+            }
+            output.flush();
+            return total;
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+}
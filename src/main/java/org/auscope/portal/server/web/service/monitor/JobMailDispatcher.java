@@ -0,0 +1,43 @@
+package org.auscope.portal.server.web.service.monitor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.server.vegl.mail.JobMailOutbox;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.springframework.scheduling.quartz.QuartzJobBean;
+
+/**
+ * A task that sends any job notification emails waiting in
+ * the JobMailOutbox.
+ *
+ * The timing for running this task is configured in
+ * applicationContext.xml file.
+ */
+@DisallowConcurrentExecution
+public class JobMailDispatcher extends QuartzJobBean {
+    private final Log LOG = LogFactory.getLog(getClass());
+
+    private JobMailOutbox jobMailOutbox;
+
+    /**
+     * Sets the outbox whose notifications will be sent
+     * @param jobMailOutbox
+     */
+    public void setJobMailOutbox(JobMailOutbox jobMailOutbox) {
+        this.jobMailOutbox = jobMailOutbox;
+    }
+
+    @Override
+    protected void executeInternal(JobExecutionContext ctx)
+            throws JobExecutionException {
+        try {
+            jobMailOutbox.dispatch();
+        } catch (Exception ex) {
+            LOG.info(String.format("Error dispatching job notifications: %1$s", ex.getMessage()));
+            LOG.debug("Exception:", ex);
+            throw new JobExecutionException(ex);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.auscope.portal.server.web.service.wcs;
+
+import org.auscope.portal.core.services.responses.wcs.RectifiedGrid;
+
+/**
+ * The (immutable) 2D geometry of a coverage's RectifiedGrid - its origin, extents and grid envelope - reduced
+ * to primitives so that estimating the grid space of a lat/lng region requires no allocation.
+ *
+ * ASSUMPTIONS - the grid is in a WGS:84 compatible srs
+ *             - The axes read X, Y and then possibly Z
+ */
+public class CoverageGeometry {
+
+    private final double originX;
+    private final double originY;
+    private final double maxX;
+    private final double maxY;
+    private final int gridWidth;
+    private final int gridHeight;
+
+    /**
+     * @param originX The longitude of the grid origin
+     * @param originY The latitude of the grid origin
+     * @param extentX The width of the grid in degrees longitude
+     * @param extentY The height of the grid in degrees latitude
+     * @param gridWidth The number of data points (minus 1) along the X axis
+     * @param gridHeight The number of data points (minus 1) along the Y axis
+     */
+    public CoverageGeometry(double originX, double originY, double extentX, double extentY, int gridWidth, int gridHeight) {
+        this.originX = originX;
+        this.originY = originY;
+        this.maxX = originX + extentX;
+        this.maxY = originY + extentY;
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+    }
+
+    /**
+     * Extracts the geometry of a rectified grid. The WGS84 extents are calculated by multiplying the grid
+     * envelope high values against the offset vectors.
+     * @param rg Must contain at least 2 dimensions
+     * @return
+     */
+    public static CoverageGeometry fromRectifiedGrid(RectifiedGrid rg) {
+        double[][] offsetVectors = rg.getOffsetVectors();
+        int[] highValues = rg.getEnvelopeHighValues();
+        int[] lowValues = rg.getEnvelopeLowValues();
+        int gridWidth = highValues[0] - lowValues[0];
+        int gridHeight = highValues[1] - lowValues[1];
+
+        //Assume at least 2 dimensions. The first being X, the second being Y
+        double extentX = 0.0;
+        double extentY = 0.0;
+        for (int dimension = 0; dimension < 2; dimension++) {
+            extentX += offsetVectors[dimension][0] * (double) gridWidth;
+            extentY += offsetVectors[dimension][1] * (double) gridHeight;
+        }
+
+        double[] origin = rg.getOrigin();
+        return new CoverageGeometry(origin[0], origin[1], extentX, extentY, gridWidth, gridHeight);
+    }
+
+    /**
+     * The width of the grid in degrees longitude
+     * @return
+     */
+    public double getExtentX() {
+        return maxX - originX;
+    }
+
+    /**
+     * The height of the grid in degrees latitude
+     * @return
+     */
+    public double getExtentY() {
+        return maxY - originY;
+    }
+
+    /**
+     * Estimates the X index of a longitude within the grid. Longitudes outside the grid are 'truncated'
+     * to the nearest point inside the grid.
+     * @param longitude
+     * @return
+     */
+    public int estimateGridX(double longitude) {
+        if (longitude < originX) {
+            longitude = originX;
+        } else if (longitude > maxX) {
+            longitude = maxX;
+        }
+
+        double proportionalX = 1 - ((maxX - longitude) / (maxX - originX));
+        return (int) Math.round(((double) gridWidth) * proportionalX);
+    }
+
+    /**
+     * Estimates the Y index of a latitude within the grid. Latitudes outside the grid are 'truncated'
+     * to the nearest point inside the grid.
+     * @param latitude
+     * @return
+     */
+    public int estimateGridY(double latitude) {
+        if (latitude < originY) {
+            latitude = originY;
+        } else if (latitude > maxY) {
+            latitude = maxY;
+        }
+
+        double proportionalY = 1 - ((maxY - latitude) / (maxY - originY));
+        return (int) Math.round(((double) gridHeight) * proportionalY);
+    }
+
+    /**
+     * Estimates the number of data points horizontally in a subset of this grid
+     * @return
+     */
+    public int estimateWidth(double eastBoundLongitude, double westBoundLongitude) {
+        return estimateGridX(eastBoundLongitude) - estimateGridX(westBoundLongitude);
+    }
+
+    /**
+     * Estimates the number of data points vertically in a subset of this grid
+     * @return
+     */
+    public int estimateHeight(double northBoundLatitude, double southBoundLatitude) {
+        return estimateGridY(northBoundLatitude) - estimateGridY(southBoundLatitude);
+    }
+}
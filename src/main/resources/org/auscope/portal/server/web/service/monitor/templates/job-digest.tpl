@@ -0,0 +1,14 @@
+Dear ${userName},
+
+${jobCount} of your VGL jobs have been processed.
+
+Job details:
+------------
+#foreach( $job in $jobs )
+Job id: ${job.jobId}, Status: ${job.status}, Series: ${job.seriesName}, Name: ${job.jobName}, Processed (est.): ${job.dateProcessed}
+#end
+
+Go to http://vgl.csiro.au to download or publish your job results.
+
+Yours sincerely,
+cg-admin@csiro.au
\ No newline at end of file
@@ -170,7 +170,7 @@ Ext.define('vegl.widgets.JobRegisterPanel', {
             return;
         }
         
-        var selectedJob = this.job;
+        var me = this;
 
 
         Ext.getBody().mask('Registering Job...');
@@ -181,17 +181,13 @@ Ext.define('vegl.widgets.JobRegisterPanel', {
                 jobId : this.jobId
             },
             success: function(form, action) {
-                Ext.getBody().unmask();
                 if (!action.result.success) {
+                    Ext.getBody().unmask();
                     Ext.Msg.alert('Failure', 'Job registration failed. Please try again in a few minutes or report this error to cg_admin@csiro.au.');
                     return;
                 }
-                responseObj = Ext.JSON.decode(action.response.responseText);
-                //Set current selected job 'registeredUrl' attribute so that 
-                //the user can see the url upon successfully registration.
-                selectedJob.set('registeredUrl', responseObj.data);
-                popupWin = Ext.getCmp('jobRegisterWin');
-                popupWin.close();
+                //The registration continues on the server, wait for it to finish
+                me.pollRegistrationStatus(me.jobId, me.job);
             },
             failure: function(form, action) {
                 Ext.getBody().unmask();
@@ -201,5 +197,38 @@ Ext.define('vegl.widgets.JobRegisterPanel', {
                 portal.widgets.window.ErrorWindow.showText('Failure', errorMsg, errorInfo);
             }
         });
+    },
+
+    /**
+     * Polls the server until the registration of the specified job finishes.
+     * Closes the window that loaded this form on success
+     */
+    pollRegistrationStatus : function(jobId, selectedJob) {
+        var me = this;
+        Ext.Ajax.request({
+            url: 'secure/getRegistrationStatus.do',
+            params: {
+                jobId : jobId
+            },
+            callback : function(options, success, response) {
+                var responseObj = success ? Ext.JSON.decode(response.responseText) : null;
+                if (responseObj && responseObj.success && !responseObj.data.finished) {
+                    Ext.defer(me.pollRegistrationStatus, 2000, me, [jobId, selectedJob]);
+                    return;
+                }
+
+                Ext.getBody().unmask();
+                if (!responseObj || !responseObj.success) {
+                    Ext.Msg.alert('Failure', 'Job registration failed. Please try again in a few minutes or report this error to cg_admin@csiro.au.');
+                    return;
+                }
+
+                //Set current selected job 'registeredUrl' attribute so that
+                //the user can see the url upon successfully registration.
+                selectedJob.set('registeredUrl', responseObj.data.registeredUrl);
+                popupWin = Ext.getCmp('jobRegisterWin');
+                popupWin.close();
+            }
+        });
     }
 });
\ No newline at end of file
@@ -1,5 +1,6 @@
 package org.auscope.portal.server.domain.xml;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,4 +36,25 @@ public class TestXMLStreamAttributeExtractor {
     	
     	Assert.assertArrayEquals(expectation.toArray(), list.toArray());
     }
+    
+    /**
+     * Tests that prefixed element/attribute names are matched exactly
+     */
+    @Test
+    public void testPrefixedNames() throws Exception {
+    	String xml = "<gml:FeatureCollection xmlns:gml=\"http://www.opengis.net/gml\">" +
+    			"<gml:featureMember gml:id=\"id-1\"/>" +
+    			"<gml:featureMembers gml:id=\"not-me\"/>" +
+    			"<featureMember gml:id=\"not-me-either\"/>" +
+    			"<gml:featureMember id=\"wrong-attribute\" gml:id=\"id-2\"/>" +
+    			"</gml:FeatureCollection>";
+    	
+    	XMLStreamAttributeExtractor gmlExtractor = new XMLStreamAttributeExtractor("gml:featureMember", "gml:id", new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    	
+    	Assert.assertTrue(gmlExtractor.hasNext());
+    	Assert.assertEquals("id-1", gmlExtractor.next());
+    	Assert.assertEquals("id-2", gmlExtractor.next());
+    	Assert.assertFalse(gmlExtractor.hasNext());
+    	Assert.assertNull(gmlExtractor.next());
+    }
 }
@@ -0,0 +1,204 @@
+package org.auscope.portal.server.domain.xml;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the StAX based XMLStreamAttributeExtractor against the Scanner/regex implementation it replaced
+ * by extracting gml:id attributes from a synthetic GML stream.
+ *
+ * The dense benchmarks extract the id of every gml:featureMember (from a stream of StreamSize megabytes). The sparse
+ * benchmarks extract gml:boundedBy which only appears at the start and end of the stream - the Scanner implementation
+ * buffers (and rescans) everything between consecutive matches, making it quadratic, so these use a fixed 16MB stream.
+ *
+ * The stream is generated as it is read so the only significant heap use is that of the extractor. Run with
+ * -prof gc to compare allocations.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class XMLStreamAttributeExtractorBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] HEADER = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" " +
+			"xmlns:gsml=\"urn:cgi:xmlns:CGI:GeoSciML:2.0\">\n" +
+			"<gml:boundedBy gml:id=\"bounds.1\"><gml:Envelope srsName=\"EPSG:4326\"/></gml:boundedBy>\n").getBytes(UTF8);
+	private static final byte[] FEATURE = ("<gml:featureMember gml:id=\"mf.1\"><gsml:MappedFeature>" +
+			"<gml:name>A mapped feature</gml:name><gsml:shape><gml:Point srsName=\"EPSG:4326\">" +
+			"<gml:pos>-31.9 115.8</gml:pos></gml:Point></gsml:shape></gsml:MappedFeature></gml:featureMember>\n").getBytes(UTF8);
+	private static final byte[] FOOTER = ("<gml:boundedBy gml:id=\"bounds.2\"><gml:Envelope srsName=\"EPSG:4326\"/></gml:boundedBy>\n" +
+			"</wfs:FeatureCollection>\n").getBytes(UTF8);
+
+	private static final int SPARSE_STREAM_SIZE_MB = 16;
+
+	/**
+	 * The size of the stream (in megabytes) used by the dense benchmarks
+	 */
+	@State(Scope.Benchmark)
+	public static class StreamSize {
+		@Param({"16", "256"})
+		public int megabytes;
+	}
+
+	/**
+	 * A GML FeatureCollection made up of FEATURE repeated until the stream is (approximately) the requested size
+	 */
+	private static class SyntheticGmlStream extends InputStream {
+		private long featuresRemaining;
+		private byte[] current = HEADER;
+		private int offset = 0;
+		private boolean footerRead = false;
+
+		public SyntheticGmlStream(int sizeMb) {
+			featuresRemaining = (sizeMb * 1024L * 1024L) / FEATURE.length;
+		}
+
+		/**
+		 * Moves on to the next chunk if the current one is exhausted, returns false at the end of the stream
+		 */
+		private boolean nextChunk() {
+			if (offset < current.length) {
+				return true;
+			}
+			if (featuresRemaining > 0) {
+				featuresRemaining--;
+				current = FEATURE;
+			} else if (!footerRead) {
+				footerRead = true;
+				current = FOOTER;
+			} else {
+				return false;
+			}
+			offset = 0;
+			return true;
+		}
+
+		@Override
+		public int read() {
+			if (!nextChunk()) {
+				return -1;
+			}
+			return current[offset++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int read = 0;
+			while (read < len && nextChunk()) {
+				int count = Math.min(len - read, current.length - offset);
+				System.arraycopy(current, offset, b, off + read, count);
+				offset += count;
+				read += count;
+			}
+			return read == 0 ? -1 : read;
+		}
+	}
+
+	/**
+	 * The extractor as it was prior to the StAX implementation
+	 */
+	private static class ScannerAttributeExtractor implements Iterator<String> {
+		private Scanner scanner;
+		private Pattern compiledPattern;
+		private Pattern compiledAttributeToFind;
+		private String nextValue;
+
+		public ScannerAttributeExtractor(String elementToMatch, String attributeToFind, InputStream xmlStream, String xmlStreamCharset) {
+			this.scanner = new Scanner(xmlStream, xmlStreamCharset);
+			this.compiledAttributeToFind = Pattern.compile(String.format(".*%1$s=\"([^\"]*)\".*", attributeToFind));
+			this.compiledPattern = Pattern.compile(String.format("<%1$s[^\\\\>]*>", elementToMatch));
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (nextValue == null) {
+				do {
+					nextValue = scanner.findWithinHorizon(this.compiledPattern, 0);
+					if (nextValue == null) {
+						return false;
+					}
+				} while(!this.compiledAttributeToFind.matcher(nextValue).matches());
+			}
+
+			return true;
+		}
+
+		@Override
+		public String next() {
+			if (nextValue == null) {
+				nextValue = scanner.findWithinHorizon(this.compiledPattern, 0);
+				if (nextValue == null) {
+					return null;
+				}
+			}
+
+			try {
+				Matcher attrMatcher = this.compiledAttributeToFind.matcher(nextValue);
+				if (attrMatcher.matches()) {
+					return attrMatcher.group(1);
+				} else {
+					throw new IllegalStateException();
+				}
+			} finally {
+				nextValue = null;
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static long countValues(Iterator<String> extractor) {
+		long count = 0;
+		while (extractor.hasNext()) {
+			if (extractor.next() != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public long extractDenseStax(StreamSize size) {
+		return countValues(new XMLStreamAttributeExtractor("gml:featureMember", "gml:id", new SyntheticGmlStream(size.megabytes), "UTF-8"));
+	}
+
+	@Benchmark
+	public long extractDenseScanner(StreamSize size) {
+		return countValues(new ScannerAttributeExtractor("gml:featureMember", "gml:id", new SyntheticGmlStream(size.megabytes), "UTF-8"));
+	}
+
+	@Benchmark
+	public long extractSparseStax() {
+		return countValues(new XMLStreamAttributeExtractor("gml:boundedBy", "gml:id", new SyntheticGmlStream(SPARSE_STREAM_SIZE_MB), "UTF-8"));
+	}
+
+	@Benchmark
+	public long extractSparseScanner() {
+		return countValues(new ScannerAttributeExtractor("gml:boundedBy", "gml:id", new SyntheticGmlStream(SPARSE_STREAM_SIZE_MB), "UTF-8"));
+	}
+}
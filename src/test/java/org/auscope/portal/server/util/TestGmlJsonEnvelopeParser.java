@@ -0,0 +1,106 @@
+package org.auscope.portal.server.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.util.GmlJsonEnvelopeParser.Envelope;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for GmlJsonEnvelopeParser
+ */
+public class TestGmlJsonEnvelopeParser extends PortalTestClass {
+
+    private StringWriter gml;
+
+    private Envelope parse(String json) throws IOException {
+        gml = new StringWriter();
+        return new GmlJsonEnvelopeParser(new StringReader(json)).parse(gml);
+    }
+
+    /**
+     * Tests that the GML is extracted from a successful envelope
+     */
+    @Test
+    public void testParseEnvelope() throws Exception {
+        Envelope envelope = parse("{\"success\":true, \"msg\":\"\", \"data\":{\"gml\":\"<wfs:FeatureCollection/>\", \"kml\":\"<kml/>\"}}");
+
+        Assert.assertTrue(envelope.isSuccess());
+        Assert.assertTrue(envelope.isGmlFound());
+        Assert.assertEquals("", envelope.getMsg());
+        Assert.assertEquals("<wfs:FeatureCollection/>", gml.toString());
+    }
+
+    /**
+     * Tests that an unsuccessful envelope reports its message
+     */
+    @Test
+    public void testParseFailure() throws Exception {
+        Envelope envelope = parse("{ \"data\" : null, \"success\" : false, \"msg\" : \"Service unavailable\" }");
+
+        Assert.assertFalse(envelope.isSuccess());
+        Assert.assertFalse(envelope.isGmlFound());
+        Assert.assertEquals("Service unavailable", envelope.getMsg());
+        Assert.assertEquals("", gml.toString());
+    }
+
+    /**
+     * Tests that GML which isn't wrapped in an envelope is rejected
+     */
+    @Test(expected = IOException.class)
+    public void testParseBareGml() throws Exception {
+        parse("<?xml version=\"1.0\"?><wfs:FeatureCollection/>");
+    }
+
+    /**
+     * Tests that escape sequences (including unicode and escaped quotes) are decoded
+     */
+    @Test
+    public void testParseEscapedStrings() throws Exception {
+        Envelope envelope = parse("{'success':'true', msg:'It\\'s \\\"quoted\\\"', \"data\":{\"gml\":\"<a b=\\\"c\\\">\\u00e9\\n\\t<\\/a>\"}}");
+
+        Assert.assertTrue(envelope.isSuccess());
+        Assert.assertEquals("It's \"quoted\"", envelope.getMsg());
+        Assert.assertEquals("<a b=\"c\">\u00e9\n\t</a>", gml.toString());
+    }
+
+    /**
+     * Tests that nested objects/arrays (including ones containing braces in strings) are skipped
+     */
+    @Test
+    public void testParseNestedObjects() throws Exception {
+        Envelope envelope = parse("{\"extra\":{\"a\":[1, {\"b\":\"}]\"}], \"gml\":\"not this\"}, " +
+                "\"data\":{\"other\":{\"gml\":\"nor this\"}, \"list\":[[], {}], \"gml\":\"<gml/>\"}, \"success\":true}");
+
+        Assert.assertTrue(envelope.isSuccess());
+        Assert.assertTrue(envelope.isGmlFound());
+        Assert.assertNull(envelope.getMsg());
+        Assert.assertEquals("<gml/>", gml.toString());
+    }
+
+    /**
+     * Tests that truncated input is reported as an error rather than returning partial results
+     */
+    @Test
+    public void testParseTruncated() throws Exception {
+        String[] truncated = new String[] {
+                "",
+                "{\"success\":true, \"data\":{\"gml\":\"<wfs:FeatureCollection>",
+                "{\"success\":true, \"data\":{\"gml\":\"<a/>\"",
+                "{\"success\":true, \"data\":{\"gml\":\"\\u00",
+                "{\"extra\":[{\"a\":1}"
+        };
+
+        for (String json : truncated) {
+            try {
+                parse(json);
+                Assert.fail("Expected an IOException for: " + json);
+            } catch (IOException ex) {
+                //expected
+            }
+        }
+    }
+}
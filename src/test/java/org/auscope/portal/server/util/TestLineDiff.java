@@ -0,0 +1,53 @@
+package org.auscope.portal.server.util;
+
+import java.util.List;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.util.LineDiff.Line;
+import org.auscope.portal.server.util.LineDiff.Operation;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for LineDiff
+ */
+public class TestLineDiff extends PortalTestClass {
+
+    private void assertLine(Line line, Operation operation, String text) {
+        Assert.assertEquals(operation, line.getOperation());
+        Assert.assertEquals(text, line.getText());
+    }
+
+    /**
+     * Tests a diff with changes in the middle of the strings
+     */
+    @Test
+    public void testDiff() {
+        List<Line> diff = LineDiff.diff("a\nb\nc\nd\ne", "a\nc\nx\nd\ne");
+
+        Assert.assertEquals(6, diff.size());
+        assertLine(diff.get(0), Operation.EQUAL, "a");
+        assertLine(diff.get(1), Operation.DELETE, "b");
+        assertLine(diff.get(2), Operation.EQUAL, "c");
+        assertLine(diff.get(3), Operation.INSERT, "x");
+        assertLine(diff.get(4), Operation.EQUAL, "d");
+        assertLine(diff.get(5), Operation.EQUAL, "e");
+    }
+
+    /**
+     * Tests diffs against empty/null strings
+     */
+    @Test
+    public void testDiffEmpty() {
+        Assert.assertTrue(LineDiff.diff(null, "").isEmpty());
+
+        List<Line> diff = LineDiff.diff("", "a\r\nb");
+        Assert.assertEquals(2, diff.size());
+        assertLine(diff.get(0), Operation.INSERT, "a");
+        assertLine(diff.get(1), Operation.INSERT, "b");
+
+        diff = LineDiff.diff("a", null);
+        Assert.assertEquals(1, diff.size());
+        assertLine(diff.get(0), Operation.DELETE, "a");
+    }
+}
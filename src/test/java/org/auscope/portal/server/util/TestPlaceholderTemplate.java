@@ -0,0 +1,45 @@
+package org.auscope.portal.server.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPlaceholderTemplate extends PortalTestClass {
+
+    /**
+     * Tests that named placeholders are replaced and everything else is left untouched
+     */
+    @Test
+    public void testRender() {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("A", "1");
+        values.put("B_2", "two");
+
+        Assert.assertEquals("", new PlaceholderTemplate("").render(values));
+        Assert.assertEquals("1two1", new PlaceholderTemplate("{A}{B_2}{A}").render(values));
+        Assert.assertEquals("x 1 y", new PlaceholderTemplate("x {A} y").render(values));
+
+        //Missing values render as empty
+        Assert.assertEquals("[]", new PlaceholderTemplate("[{MISSING}]").render(values));
+
+        //Anything that isn't a placeholder is literal text
+        Assert.assertEquals("{a} { A} {} {A 1", new PlaceholderTemplate("{a} { A} {} {A {A}").render(values));
+        Assert.assertEquals("{1}", new PlaceholderTemplate("{{A}}").render(values));
+    }
+
+    /**
+     * Tests that rendering into an existing builder appends
+     */
+    @Test
+    public void testRenderAppends() {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("A", "1");
+
+        StringBuilder sb = new StringBuilder("start ");
+        new PlaceholderTemplate("{A} end").render(sb, values);
+        Assert.assertEquals("start 1 end", sb.toString());
+    }
+}
@@ -0,0 +1,48 @@
+package org.auscope.portal.server.util;
+
+import java.text.MessageFormat;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPrecompiledTemplate extends PortalTestClass {
+
+    private void assertMatchesMessageFormat(String template, Object... arguments) {
+        Assert.assertEquals(MessageFormat.format(template, arguments), new PrecompiledTemplate(template).render(arguments));
+    }
+
+    /**
+     * Tests that rendering matches MessageFormat for simple argument references and quoting
+     */
+    @Test
+    public void testMatchesMessageFormat() {
+        assertMatchesMessageFormat("");
+        assertMatchesMessageFormat("no arguments");
+        assertMatchesMessageFormat("{0}", "a");
+        assertMatchesMessageFormat("x{1}y{0}z{1}", "a", "b");
+        assertMatchesMessageFormat("it''s '{quoted}' {0}", "a");
+        assertMatchesMessageFormat("missing {2} {0}", "a");
+        assertMatchesMessageFormat("null {0}", (Object) null);
+        assertMatchesMessageFormat("close } brace {0}", "a");
+    }
+
+    /**
+     * Tests that the job bootstrap renders identically to MessageFormat
+     * @throws Exception
+     */
+    @Test
+    public void testBootstrap() throws Exception {
+        String contents = ResourceUtil.loadResourceAsString("org/auscope/portal/server/web/controllers/vl-bootstrap.sh");
+        assertMatchesMessageFormat(contents, "bucket", "base/key", "access", "secret", "http://example.org/vl.sh", "http://example.org", "swift", "", "region");
+    }
+
+    /**
+     * Tests that unsupported formats are rejected when parsing
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnsupportedFormat() {
+        new PrecompiledTemplate("{0,number,integer}");
+    }
+}
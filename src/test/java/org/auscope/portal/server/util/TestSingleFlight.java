@@ -0,0 +1,96 @@
+package org.auscope.portal.server.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSingleFlight extends PortalTestClass {
+
+    /**
+     * Runs flight.execute on a new thread storing the result/exception
+     */
+    private static class Caller extends Thread {
+        private SingleFlight<String, String> flight;
+        private String key;
+        private Callable<String> call;
+        volatile String result;
+        volatile Exception exception;
+
+        Caller(SingleFlight<String, String> flight, String key, Callable<String> call) {
+            this.flight = flight;
+            this.key = key;
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = flight.execute(key, call);
+            } catch (Exception ex) {
+                exception = ex;
+            }
+        }
+    }
+
+    /**
+     * Tests that a concurrent identical call shares the in flight call's result
+     * @throws Exception
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<String> call = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                return "result";
+            }
+        };
+
+        Caller first = new Caller(flight, "key", call);
+        first.start();
+        while (flight.getInFlightCount() == 0) {
+            Thread.sleep(5);
+        }
+
+        Caller second = new Caller(flight, "key", call);
+        second.start();
+        while (second.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals("result", first.result);
+        Assert.assertEquals("result", second.result);
+        Assert.assertEquals(0, flight.getInFlightCount());
+
+        //Nothing is retained once complete
+        Assert.assertEquals("result", flight.execute("key", call));
+        Assert.assertEquals(2, calls.get());
+    }
+
+    /**
+     * Tests that exceptions are passed to the caller unwrapped
+     * @throws Exception
+     */
+    @Test(expected=IllegalStateException.class)
+    public void testException() throws Exception {
+        new SingleFlight<String, String>().execute("key", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new IllegalStateException("expected");
+            }
+        });
+    }
+}
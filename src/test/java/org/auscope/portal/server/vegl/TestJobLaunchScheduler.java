@@ -0,0 +1,144 @@
+package org.auscope.portal.server.vegl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.auscope.portal.core.services.cloud.CloudComputeService;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.vegl.JobLaunchScheduler.LaunchListener;
+import org.auscope.portal.server.vegl.JobLaunchScheduler.LaunchOutcome;
+import org.auscope.portal.server.web.controllers.JobBuilderController;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for JobLaunchScheduler
+ */
+public class TestJobLaunchScheduler extends PortalTestClass {
+    private VEGLJobManager mockJobManager = context.mock(VEGLJobManager.class);
+    private CloudComputeService mockCloudComputeService = context.mock(CloudComputeService.class);
+    private VGLPollingJobQueueManager queueManager;
+    private JobLaunchScheduler scheduler;
+
+    /** The ids of the jobs launched (in order)*/
+    private List<Integer> launched = new ArrayList<Integer>();
+    /** Launching the job with id 1 will wait on this*/
+    private CountDownLatch firstLaunchBlocker = new CountDownLatch(1);
+
+    @Before
+    public void setup() {
+        queueManager = new VGLPollingJobQueueManager();
+    }
+
+    @After
+    public void tearDown() {
+        firstLaunchBlocker.countDown();
+        queueManager.getQueue().clear();
+        scheduler.shutdown();
+    }
+
+    private void expectLaunches() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockCloudComputeService).getId();will(returnValue("compute-id"));
+            allowing(mockCloudComputeService).executeJob(with(any(VEGLJob.class)), with(any(String.class)));
+            will(new CustomAction("Launch job") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    VEGLJob job = (VEGLJob) invocation.getParameter(0);
+                    if (job.getId() == 1) {
+                        firstLaunchBlocker.await(10, TimeUnit.SECONDS);
+                    }
+                    synchronized (launched) {
+                        launched.add(job.getId());
+                    }
+                    return "instance-" + job.getId();
+                }
+            });
+
+            allowing(mockJobManager).saveJob(with(any(VEGLJob.class)));
+            allowing(mockJobManager).createJobAuditTrail(with(any(String.class)), with(any(VEGLJob.class)), with(any(String.class)));
+        }});
+    }
+
+    private VEGLJob makeJob(int id) {
+        VEGLJob job = new VEGLJob(id);
+        job.setStatus(JobBuilderController.STATUS_PROVISION);
+        return job;
+    }
+
+    /**
+     * A listener that records every outcome and counts down a latch
+     */
+    private static class RecordingListener implements LaunchListener {
+        final List<LaunchOutcome> outcomes = new ArrayList<LaunchOutcome>();
+        final CountDownLatch completed;
+
+        RecordingListener(int expectedLaunches) {
+            completed = new CountDownLatch(expectedLaunches);
+        }
+
+        @Override
+        public void launchCompleted(VEGLJob job, LaunchOutcome outcome, String message) {
+            synchronized (outcomes) {
+                outcomes.add(outcome);
+            }
+            completed.countDown();
+        }
+    }
+
+    /**
+     * Tests that single submissions are launched ahead of waiting batch launches
+     * @throws Exception
+     */
+    @Test
+    public void testSingleSubmissionsFirst() throws Exception {
+        scheduler = new JobLaunchScheduler(mockJobManager, queueManager, null, 1, 10);
+        RecordingListener listener = new RecordingListener(5);
+        expectLaunches();
+
+        //Job 1 occupies the only launch thread while the rest are scheduled
+        scheduler.scheduleBatchLaunch(mockCloudComputeService, makeJob(1), "", listener);
+        scheduler.scheduleBatchLaunch(mockCloudComputeService, makeJob(2), "", listener);
+        scheduler.scheduleBatchLaunch(mockCloudComputeService, makeJob(3), "", listener);
+        scheduler.scheduleLaunch(mockCloudComputeService, makeJob(4), "", listener);
+        scheduler.scheduleLaunch(mockCloudComputeService, makeJob(5), "", listener);
+        firstLaunchBlocker.countDown();
+
+        Assert.assertTrue(listener.completed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(1, 4, 5, 2, 3), launched);
+        Assert.assertEquals(Arrays.asList(LaunchOutcome.LAUNCHED, LaunchOutcome.LAUNCHED, LaunchOutcome.LAUNCHED, LaunchOutcome.LAUNCHED, LaunchOutcome.LAUNCHED), listener.outcomes);
+    }
+
+    /**
+     * Tests that single submissions that don't fit in the launch queue are placed into the polling queue
+     * @throws Exception
+     */
+    @Test
+    public void testSingleSubmissionOverflow() throws Exception {
+        scheduler = new JobLaunchScheduler(mockJobManager, queueManager, null, 1, 1);
+        RecordingListener listener = new RecordingListener(2);
+        expectLaunches();
+
+        VEGLJob overflowJob = makeJob(2);
+        scheduler.scheduleLaunch(mockCloudComputeService, makeJob(1), "", listener);
+        scheduler.scheduleLaunch(mockCloudComputeService, overflowJob, "", listener);
+
+        //The overflow is reported immediately
+        Assert.assertEquals(1, listener.completed.getCount());
+        Assert.assertEquals(Arrays.asList(LaunchOutcome.QUEUED), listener.outcomes);
+        Assert.assertEquals(JobBuilderController.STATUS_INQUEUE, overflowJob.getStatus());
+        Assert.assertTrue(queueManager.getQueue().hasJob());
+
+        firstLaunchBlocker.countDown();
+        Assert.assertTrue(listener.completed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(1), launched);
+    }
+}
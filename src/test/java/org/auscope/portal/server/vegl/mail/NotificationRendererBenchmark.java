@@ -0,0 +1,93 @@
+package org.auscope.portal.server.vegl.mail;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.auscope.portal.core.util.DateUtil;
+import org.auscope.portal.server.vegl.mail.NotificationRenderer.Format;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.ui.velocity.VelocityEngineFactoryBean;
+import org.springframework.ui.velocity.VelocityEngineUtils;
+
+/**
+ * Compares rendering a burst of NOTIFICATION_COUNT job completion notifications with NotificationRenderer
+ * against the approach it replaced (VelocityEngineUtils.mergeTemplateIntoString and DateUtil.formatDate
+ * for every email). The velocity engine is configured as per applicationContext.xml.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NotificationRendererBenchmark {
+
+    private static final String TEMPLATE = "org/auscope/portal/server/web/service/monitor/templates/job-completion.tpl";
+    private static final String DATE_FORMAT = "EEE, d MMM yyyy HH:mm:ss";
+    private static final int NOTIFICATION_COUNT = 10000;
+
+    private VelocityEngine velocityEngine;
+    private NotificationRenderer renderer;
+    private Date submitDate = new Date(System.currentTimeMillis() - 3600000L);
+    private Date processDate = new Date();
+
+    @Setup
+    public void setup() throws Exception {
+        VelocityEngineFactoryBean vecEngFBean = new VelocityEngineFactoryBean();
+        Properties p = new Properties();
+        p.put("resource.loader", "class");
+        p.put("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+        vecEngFBean.setVelocityProperties(p);
+        velocityEngine = vecEngFBean.createVelocityEngine();
+
+        renderer = new NotificationRenderer(velocityEngine);
+    }
+
+    private Map<String, Object> model(int i, String dateSubmitted, String dateProcessed) {
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("userName", "user" + i);
+        model.put("seriesName", "series");
+        model.put("status", "Done");
+        model.put("jobId", Integer.toString(i));
+        model.put("jobName", "job-" + i);
+        model.put("jobDescription", "A job description");
+        model.put("dateSubmitted", dateSubmitted);
+        model.put("dateProcessed", dateProcessed);
+        model.put("timeElapsed", "0 day(s) 1 hour(s) 0 minute(s) 0 second(s)");
+        model.put("jobExecLogSnippet", "line 1\nline 2\nline 3\nline 4\nline 5");
+        return model;
+    }
+
+    @Benchmark
+    public void renderCached(Blackhole bh) {
+        for (int i = 0; i < NOTIFICATION_COUNT; i++) {
+            Map<String, Object> model = model(i, renderer.formatDate(submitDate, DATE_FORMAT), renderer.formatDate(processDate, DATE_FORMAT));
+            bh.consume(renderer.render(TEMPLATE, Format.TEXT, model));
+        }
+    }
+
+    /**
+     * The rendering as it was prior to NotificationRenderer
+     */
+    @Benchmark
+    public void renderUncached(Blackhole bh) {
+        for (int i = 0; i < NOTIFICATION_COUNT; i++) {
+            Map<String, Object> model = model(i, DateUtil.formatDate(submitDate, DATE_FORMAT), DateUtil.formatDate(processDate, DATE_FORMAT));
+            bh.consume(VelocityEngineUtils.mergeTemplateIntoString(velocityEngine, TEMPLATE, model));
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package org.auscope.portal.server.vegl.mail;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Properties;
 
 import junit.framework.Assert;
@@ -209,4 +211,42 @@ public class TestJobCompletionMailSender extends PortalTestClass {
 
         jobCompMailSender.sendMail(mockJob);
     }
+
+    /**
+     * Tests that a job that can't be rendered doesn't prevent the other
+     * jobs' notifications being constructed.
+     */
+    @Test
+    public void testCreateMailMessages_BadJob() {
+        final String user = "user@test.com";
+        final VEGLJob mockBadJob = context.mock(VEGLJob.class, "mockBadJob");
+        final String jobStatus="Done";
+
+        context.checking(new Expectations() {{
+            //The bad job's series no longer exists
+            allowing(mockBadJob).getSeriesId();will(returnValue(2));
+            allowing(mockBadJob).getName();will(returnValue("BadJob"));
+            allowing(mockBadJob).getId();will(returnValue(456));
+            oneOf(mockJobManager).getSeriesById(2);will(returnValue(null));
+
+            allowing(mockJob).getSeriesId();will(returnValue(1));
+            oneOf(mockJobManager).getSeriesById(1);will(returnValue(mockSeries));
+            allowing(mockSeries).getName();will(returnValue("TestSeries#1"));
+            allowing(mockJob).getName();will(returnValue("TestJob#1"));
+            allowing(mockJob).getEmailAddress();will(returnValue(user));
+            allowing(mockJob).getSubmitDate();will(returnValue(dateSubmitted));
+            allowing(mockJob).getProcessDate();will(returnValue(dateProcessed));
+            allowing(mockJob).getUser();will(returnValue(user));
+            allowing(mockJob).getStatus();will(returnValue(jobStatus));
+            allowing(mockJob).getId();will(returnValue(123));
+            allowing(mockJob).getDescription();will(returnValue("Job#1Description"));
+            oneOf(mockJobStatLogReader).getSectionedLog(mockJob, "Python");will(returnValue("Line1"));
+        }});
+
+        List<SimpleMailMessage> messages = jobCompMailSender.createMailMessages(Arrays.asList(mockBadJob, mockJob));
+        Assert.assertEquals(2, messages.size());
+        Assert.assertNull(messages.get(0));
+        Assert.assertEquals("VL Job (TestSeries#1/TestJob#1)", messages.get(1).getSubject());
+        Assert.assertTrue(messages.get(1).getText().contains("TestJob#1"));
+    }
 }
\ No newline at end of file
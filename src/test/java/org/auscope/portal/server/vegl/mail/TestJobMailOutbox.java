@@ -0,0 +1,170 @@
+package org.auscope.portal.server.vegl.mail;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobManager;
+import org.auscope.portal.server.vegl.VGLJobNotification;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.MailSender;
+import org.springframework.mail.SimpleMailMessage;
+
+/**
+ * Unit tests for JobMailOutbox
+ */
+public class TestJobMailOutbox extends PortalTestClass {
+    private static final String EMAIL = "user@test.com";
+
+    private VEGLJobManager mockJobManager;
+    private JobCompletionMailSender mockCompletionMailSender;
+    private MailSender mockMailSender;
+    private JobMailOutbox outbox;
+
+    @Before
+    public void init() {
+        mockJobManager = context.mock(VEGLJobManager.class);
+        mockCompletionMailSender = context.mock(JobCompletionMailSender.class);
+        mockMailSender = context.mock(MailSender.class);
+
+        outbox = new JobMailOutbox(mockJobManager, mockCompletionMailSender, mockMailSender);
+        outbox.setQuietPeriodSeconds(60);
+        outbox.setRetryDelaySeconds(60);
+        outbox.setMaxAttempts(3);
+    }
+
+    private VGLJobNotification notification(int jobId, long ageMillis) {
+        VGLJobNotification notification = new VGLJobNotification(jobId, EMAIL);
+        notification.setQueuedDate(new Date(System.currentTimeMillis() - ageMillis));
+        return notification;
+    }
+
+    /**
+     * Tests that sendMail only queues a notification
+     */
+    @Test
+    public void testSendMailQueues() {
+        final VEGLJob job = new VEGLJob(1);
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).queueJobNotification(job);
+        }});
+
+        outbox.sendMail(job);
+    }
+
+    /**
+     * Tests that many notifications for the same recipient are sent as a single digest
+     */
+    @Test
+    public void testDispatchDigest() {
+        final VEGLJob job1 = new VEGLJob(1);
+        final VEGLJob job2 = new VEGLJob(2);
+        final VGLJobNotification n1 = notification(1, 120000);
+        final VGLJobNotification n2 = notification(2, 120000);
+        final SimpleMailMessage digest = new SimpleMailMessage();
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getDueJobNotifications(with(any(Date.class)));will(returnValue(Arrays.asList(n1, n2)));
+            oneOf(mockJobManager).getJobById(1);will(returnValue(job1));
+            oneOf(mockJobManager).getJobById(2);will(returnValue(job2));
+
+            oneOf(mockCompletionMailSender).createDigestMailMessage(EMAIL, Arrays.asList(job1, job2));will(returnValue(digest));
+            oneOf(mockMailSender).send(new SimpleMailMessage[] {digest});
+
+            oneOf(mockJobManager).deleteJobNotification(n1);
+            oneOf(mockJobManager).deleteJobNotification(n2);
+        }});
+
+        outbox.dispatch();
+    }
+
+    /**
+     * Tests that a recipient whose notifications are still arriving isn't sent anything
+     */
+    @Test
+    public void testDispatchQuietPeriod() {
+        final VGLJobNotification n1 = notification(1, 120000);
+        final VGLJobNotification n2 = notification(2, 0);
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getDueJobNotifications(with(any(Date.class)));will(returnValue(Arrays.asList(n1, n2)));
+        }});
+
+        outbox.dispatch();
+    }
+
+    /**
+     * Tests that failed sends are retried later with backoff
+     */
+    @Test
+    public void testDispatchRetry() {
+        final VEGLJob job1 = new VEGLJob(1);
+        final VGLJobNotification n1 = notification(1, 120000);
+        final SimpleMailMessage message = new SimpleMailMessage();
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getDueJobNotifications(with(any(Date.class)));will(returnValue(Arrays.asList(n1)));
+            oneOf(mockJobManager).getJobById(1);will(returnValue(job1));
+
+            oneOf(mockCompletionMailSender).createMailMessages(Arrays.asList(job1));will(returnValue(Arrays.asList(message)));
+            oneOf(mockMailSender).send(new SimpleMailMessage[] {message});will(throwException(new MailSendException("relay down")));
+
+            oneOf(mockJobManager).saveJobNotification(n1);
+        }});
+
+        outbox.dispatch();
+
+        Assert.assertEquals(1, n1.getAttempts());
+        Assert.assertTrue(n1.getNextAttemptDate().getTime() > System.currentTimeMillis() + 30000);
+    }
+
+    /**
+     * Tests that a job that can't be rendered (or is rejected from the batch) only delays its own notification
+     */
+    @Test
+    public void testDispatchPartialFailure() {
+        final VEGLJob job1 = new VEGLJob(1);
+        final VEGLJob job2 = new VEGLJob(2);
+        final VEGLJob job3 = new VEGLJob(3);
+        final VGLJobNotification n1 = new VGLJobNotification(1, "user1@test.com");
+        final VGLJobNotification n2 = new VGLJobNotification(2, "user2@test.com");
+        final VGLJobNotification n3 = new VGLJobNotification(3, "user3@test.com");
+        for (VGLJobNotification n : Arrays.asList(n1, n2, n3)) {
+            n.setQueuedDate(new Date(System.currentTimeMillis() - 120000));
+        }
+        final SimpleMailMessage message2 = new SimpleMailMessage();
+        message2.setTo("user2@test.com");
+        final SimpleMailMessage message3 = new SimpleMailMessage();
+        message3.setTo("user3@test.com");
+        final Map<Object, Exception> failedMessages = new HashMap<Object, Exception>();
+        failedMessages.put(message2, new Exception("mailbox unavailable"));
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getDueJobNotifications(with(any(Date.class)));will(returnValue(Arrays.asList(n1, n2, n3)));
+            oneOf(mockJobManager).getJobById(1);will(returnValue(job1));
+            oneOf(mockJobManager).getJobById(2);will(returnValue(job2));
+            oneOf(mockJobManager).getJobById(3);will(returnValue(job3));
+
+            oneOf(mockCompletionMailSender).createMailMessages(Arrays.asList(job1, job2, job3));will(returnValue(Arrays.asList(null, message2, message3)));
+            oneOf(mockMailSender).send(new SimpleMailMessage[] {message2, message3});will(throwException(new MailSendException(failedMessages)));
+
+            oneOf(mockJobManager).saveJobNotification(n1);
+            oneOf(mockJobManager).saveJobNotification(n2);
+            oneOf(mockJobManager).deleteJobNotification(n3);
+        }});
+
+        outbox.dispatch();
+
+        Assert.assertEquals(1, n1.getAttempts());
+        Assert.assertEquals(1, n2.getAttempts());
+        Assert.assertEquals(0, n3.getAttempts());
+    }
+}
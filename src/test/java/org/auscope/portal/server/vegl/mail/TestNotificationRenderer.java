@@ -0,0 +1,86 @@
+package org.auscope.portal.server.vegl.mail;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.vegl.mail.NotificationRenderer.Format;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ui.velocity.VelocityEngineFactoryBean;
+
+/**
+ * Unit tests for NotificationRenderer
+ */
+public class TestNotificationRenderer extends PortalTestClass {
+    private static final String TEXT_TEMPLATE = "org/auscope/portal/server/web/service/monitor/templates/job-completion.tpl";
+    private static final String HTML_TEMPLATE = "job-completion-html.tpl";
+
+    private NotificationRenderer renderer;
+
+    @Before
+    public void init() throws Exception {
+        VelocityEngineFactoryBean vecEngFBean = new VelocityEngineFactoryBean();
+        Properties p = new Properties();
+        p.put("resource.loader", "class");
+        p.put("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+        vecEngFBean.setVelocityProperties(p);
+        VelocityEngine velocityEngine = vecEngFBean.createVelocityEngine();
+
+        renderer = new NotificationRenderer(velocityEngine);
+    }
+
+    private Map<String, Object> model(String jobName) {
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("userName", "user");
+        model.put("jobId", "123");
+        model.put("jobName", jobName);
+        model.put("jobExecLogSnippet", "a < b");
+        return model;
+    }
+
+    /**
+     * Tests that templates are only parsed once
+     */
+    @Test
+    public void testTemplateCached() {
+        Assert.assertSame(renderer.getTemplate(TEXT_TEMPLATE), renderer.getTemplate(TEXT_TEMPLATE));
+    }
+
+    /**
+     * Tests that model values aren't escaped for the plain text variant (and that a cached template renders each model)
+     */
+    @Test
+    public void testRenderText() {
+        String first = renderer.render(TEXT_TEMPLATE, Format.TEXT, model("job-one"));
+        String second = renderer.render(TEXT_TEMPLATE, Format.TEXT, model("job-two"));
+
+        Assert.assertTrue(first.contains("job-one"));
+        Assert.assertTrue(second.contains("job-two"));
+        Assert.assertTrue(second.contains("a < b"));
+    }
+
+    /**
+     * Tests that model values are escaped for the HTML variant
+     */
+    @Test
+    public void testHtmlEscaping() {
+        String result = renderer.render(HTML_TEMPLATE, Format.HTML, model("<b>job</b>"));
+        Assert.assertTrue(result.contains("&lt;b&gt;job&lt;/b&gt;"));
+        Assert.assertTrue(result.contains("a &lt; b"));
+    }
+
+    /**
+     * Tests date formatting
+     */
+    @Test
+    public void testFormatDate() {
+        Calendar cal = new GregorianCalendar(2013, 2, 5, 12, 0, 45);
+        Assert.assertEquals("20130305_120045", renderer.formatDate(cal.getTime(), "yyyyMMdd_HHmmss"));
+    }
+}
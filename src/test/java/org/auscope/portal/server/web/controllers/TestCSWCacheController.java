@@ -3,11 +3,10 @@ package org.auscope.portal.server.web.controllers;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -16,11 +15,14 @@ import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.auscope.portal.core.server.PortalPropertyPlaceholderConfigurer;
-import org.auscope.portal.core.services.CSWCacheService;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
 import org.auscope.portal.core.view.ViewCSWRecordFactory;
 import org.auscope.portal.core.view.ViewKnownLayerFactory;
+import org.auscope.portal.server.util.PreRenderedResponse;
+import org.auscope.portal.server.web.service.csw.CSWRecordSnapshot;
+import org.auscope.portal.server.web.service.csw.IncrementalCSWCacheService;
 import org.jmock.Expectations;
 import org.junit.Assert;
 import org.junit.Before;
@@ -41,7 +43,7 @@ public class TestCSWCacheController extends PortalTestClass {
     private static final String SUCCESSJSON = "success";
 
     /** The mock csw service. */
-    private CSWCacheService mockCSWService = context.mock(CSWCacheService.class);
+    private IncrementalCSWCacheService mockCSWService = context.mock(IncrementalCSWCacheService.class);
 
     /** The mock property configurer. */
     private PortalPropertyPlaceholderConfigurer mockPropertyConfigurer = context.mock(PortalPropertyPlaceholderConfigurer.class);
@@ -58,11 +60,11 @@ public class TestCSWCacheController extends PortalTestClass {
     /** The mock view known layer factory. */
     private ViewKnownLayerFactory mockViewKnownLayerFactory = context.mock(ViewKnownLayerFactory.class);
 
-    /** The mock csw record1. */
-    private CSWRecord mockCSWRecord1 = context.mock(CSWRecord.class, "mockCSWRecord1");
+    /** The csw record1. */
+    private CSWRecord cswRecord1 = new CSWRecord("rec1");
 
-    /** The mock csw record2. */
-    private CSWRecord mockCSWRecord2 = context.mock(CSWRecord.class, "mockCSWRecord2");
+    /** The csw record2. */
+    private CSWRecord cswRecord2 = new CSWRecord("rec2");
 
     /** The csw controller. */
     private CSWCacheController cswController;
@@ -84,39 +86,59 @@ public class TestCSWCacheController extends PortalTestClass {
     }
 
     /**
-     * Test get record response_ success.
+     * Creates a snapshot containing cswRecord1 and cswRecord2
+     */
+    private CSWRecordSnapshot makeSnapshot(long version) {
+        Map<String, CSWRecord> records = new LinkedHashMap<String, CSWRecord>();
+        records.put(cswRecord1.getFileIdentifier(), cswRecord1);
+        records.put(cswRecord2.getFileIdentifier(), cswRecord2);
+
+        Map<String, Map<String, CSWRecord>> recordsByService = new HashMap<String, Map<String, CSWRecord>>();
+        recordsByService.put("service", records);
+        return new CSWRecordSnapshot(version, recordsByService, new HashMap<String, Date>());
+    }
+
+    /**
+     * Test get record response_ success. The rendered response should be reused while the snapshot is unchanged
      *
      * @throws Exception the exception
      */
     @Test
     public void testGetRecordResponse_Success() throws Exception {
-        final StringWriter actualJSONResponse = new StringWriter();
+        final ReadableServletOutputStream outStream1 = new ReadableServletOutputStream();
+        final ReadableServletOutputStream outStream2 = new ReadableServletOutputStream();
         final ModelMap viewCSWRecord1 = new ModelMap();
         final ModelMap viewCSWRecord2 = new ModelMap();
+        final CSWRecordSnapshot snapshot = makeSnapshot(3);
 
         viewCSWRecord1.put("rec1", "val1");
         viewCSWRecord2.put("rec2", "val2");
 
         context.checking(new Expectations() {{
-            oneOf(mockCSWService).getRecordCache();
-            will(returnValue(Arrays.asList(mockCSWRecord1, mockCSWRecord2)));
+            allowing(mockCSWService).getSnapshot();
+            will(returnValue(snapshot));
 
-            oneOf(mockViewCSWRecordFactory).toView(mockCSWRecord1);
+            //The views should only be generated once
+            oneOf(mockViewCSWRecordFactory).toView(cswRecord1);
             will(returnValue(viewCSWRecord1));
-            oneOf(mockViewCSWRecordFactory).toView(mockCSWRecord2);
+            oneOf(mockViewCSWRecordFactory).toView(cswRecord2);
             will(returnValue(viewCSWRecord2));
 
-            //check that the correct response is getting output
-            oneOf(mockHttpResponse).setContentType(with(any(String.class)));
-            oneOf(mockHttpResponse).getWriter();
-            will(returnValue(new PrintWriter(actualJSONResponse)));
+            allowing(mockHttpRequest).getHeader(with(any(String.class)));
+            will(returnValue(null));
+            allowing(mockHttpResponse).setHeader(with(any(String.class)), with(any(String.class)));
+            exactly(2).of(mockHttpResponse).setContentType(with(any(String.class)));
+            exactly(2).of(mockHttpResponse).setContentLength(with(any(Integer.class)));
+            exactly(2).of(mockHttpResponse).getOutputStream();
+            will(onConsecutiveCalls(returnValue(outStream1), returnValue(outStream2)));
         }});
 
-        //Run the method, get our response rendered as a JSONObject
-        ModelAndView mav = cswController.getCSWRecords();
-        ((AbstractView) mav.getView()).setExposePathVariables(false);
-        mav.getView().render(mav.getModel(), mockHttpRequest, mockHttpResponse);
-        JSONObject jsonObj = JSONObject.fromObject(actualJSONResponse.toString());
+        //Returns null on success
+        Assert.assertNull(cswController.getCSWRecords(mockHttpRequest, mockHttpResponse));
+        Assert.assertNull(cswController.getCSWRecords(mockHttpRequest, mockHttpResponse));
+        Assert.assertArrayEquals(outStream1.getDataWritten(), outStream2.getDataWritten());
+
+        JSONObject jsonObj = JSONObject.fromObject(new String(outStream1.getDataWritten(), "UTF-8"));
 
         //Check our response contains useful info...
         Assert.assertEquals(true, jsonObj.getBoolean(SUCCESSJSON));
@@ -131,6 +153,93 @@ public class TestCSWCacheController extends PortalTestClass {
         Assert.assertEquals("val2", jsonRec2.get("rec2"));
     }
 
+    /**
+     * Tests that a conditional request with a matching ETag receives a 304
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void testGetRecordResponse_NotModified() throws Exception {
+        final ReadableServletOutputStream outStream = new ReadableServletOutputStream();
+        final CSWRecordSnapshot snapshot = makeSnapshot(1);
+
+        //This is what the controller should be rendering
+        final ModelMap expectedModel = new ModelMap();
+        expectedModel.put("success", true);
+        expectedModel.put("data", Arrays.asList(new ModelMap(), new ModelMap()));
+        expectedModel.put("msg", "");
+        final String expectedETag = PreRenderedResponse.fromJson(1, expectedModel).getETag();
+
+        context.checking(new Expectations() {{
+            allowing(mockCSWService).getSnapshot();
+            will(returnValue(snapshot));
+
+            allowing(mockViewCSWRecordFactory).toView(with(any(CSWRecord.class)));
+            will(returnValue(new ModelMap()));
+
+            allowing(mockHttpRequest).getHeader("Accept-Encoding");
+            will(returnValue(null));
+            oneOf(mockHttpRequest).getHeader("If-None-Match");
+            will(returnValue(null));
+            oneOf(mockHttpRequest).getHeader("If-None-Match");
+            will(returnValue("\"some-other-tag\", " + expectedETag));
+
+            allowing(mockHttpResponse).setHeader(with(any(String.class)), with(any(String.class)));
+            oneOf(mockHttpResponse).setContentType(with(any(String.class)));
+            oneOf(mockHttpResponse).setContentLength(with(any(Integer.class)));
+            oneOf(mockHttpResponse).getOutputStream();
+            will(returnValue(outStream));
+            oneOf(mockHttpResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }});
+
+        Assert.assertNull(cswController.getCSWRecords(mockHttpRequest, mockHttpResponse));
+        Assert.assertNull(cswController.getCSWRecords(mockHttpRequest, mockHttpResponse));
+    }
+
+    /**
+     * Tests that the gzipped response has its own ETag (the identity ETag shouldn't validate it)
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void testGetRecordResponse_GzipETag() throws Exception {
+        final ReadableServletOutputStream outStream = new ReadableServletOutputStream();
+        final CSWRecordSnapshot snapshot = makeSnapshot(1);
+
+        final ModelMap expectedModel = new ModelMap();
+        expectedModel.put("success", true);
+        expectedModel.put("data", Arrays.asList(new ModelMap(), new ModelMap()));
+        expectedModel.put("msg", "");
+        final PreRenderedResponse expected = PreRenderedResponse.fromJson(1, expectedModel);
+        Assert.assertFalse(expected.getETag().equals(expected.getGzipETag()));
+
+        context.checking(new Expectations() {{
+            allowing(mockCSWService).getSnapshot();
+            will(returnValue(snapshot));
+
+            allowing(mockViewCSWRecordFactory).toView(with(any(CSWRecord.class)));
+            will(returnValue(new ModelMap()));
+
+            allowing(mockHttpRequest).getHeader("Accept-Encoding");
+            will(returnValue("gzip, deflate"));
+            oneOf(mockHttpRequest).getHeader("If-None-Match");
+            will(returnValue(expected.getETag()));
+            oneOf(mockHttpRequest).getHeader("If-None-Match");
+            will(returnValue(expected.getGzipETag()));
+
+            exactly(2).of(mockHttpResponse).setHeader("ETag", expected.getGzipETag());
+            exactly(2).of(mockHttpResponse).setHeader("Vary", "Accept-Encoding");
+            allowing(mockHttpResponse).setHeader(with(any(String.class)), with(any(String.class)));
+            oneOf(mockHttpResponse).setContentType(with(any(String.class)));
+            oneOf(mockHttpResponse).setContentLength(with(any(Integer.class)));
+            oneOf(mockHttpResponse).getOutputStream();
+            will(returnValue(outStream));
+            oneOf(mockHttpResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }});
+
+        Assert.assertNull(cswController.getCSWRecords(mockHttpRequest, mockHttpResponse));
+        Assert.assertNull(cswController.getCSWRecords(mockHttpRequest, mockHttpResponse));
+    }
 
     /**
      * Test get record response_ transform error.
@@ -147,12 +256,12 @@ public class TestCSWCacheController extends PortalTestClass {
         viewCSWRecord2.put("rec2", "val2");
 
         context.checking(new Expectations() {{
-            oneOf(mockCSWService).getRecordCache();
-            will(returnValue(Arrays.asList(mockCSWRecord1, mockCSWRecord2)));
+            oneOf(mockCSWService).getSnapshot();
+            will(returnValue(makeSnapshot(1)));
 
-            oneOf(mockViewCSWRecordFactory).toView(mockCSWRecord1);
+            oneOf(mockViewCSWRecordFactory).toView(cswRecord1);
             will(returnValue(viewCSWRecord1));
-            oneOf(mockViewCSWRecordFactory).toView(mockCSWRecord2);
+            oneOf(mockViewCSWRecordFactory).toView(cswRecord2);
             will(throwException(new Exception()));
 
             //check that the correct response is getting output
@@ -162,7 +271,7 @@ public class TestCSWCacheController extends PortalTestClass {
         }});
 
         //Run the method, get our response rendered as a JSONObject
-        ModelAndView mav = cswController.getCSWRecords();
+        ModelAndView mav = cswController.getCSWRecords(mockHttpRequest, mockHttpResponse);
         ((AbstractView) mav.getView()).setExposePathVariables(false);
         mav.getView().render(mav.getModel(), mockHttpRequest, mockHttpResponse);
         JSONObject jsonObj = JSONObject.fromObject(actualJSONResponse.toString());
@@ -179,35 +288,38 @@ public class TestCSWCacheController extends PortalTestClass {
      * is transformed into an appropriate format.
      */
     @Test
-    public void testGetKeywords() {
-        final Map<String, Set<CSWRecord>> expectedKeywords = new HashMap<String, Set<CSWRecord>>();
-        expectedKeywords.put("keyword1", new HashSet<CSWRecord>(Arrays.asList(new CSWRecord("a"), new CSWRecord("b"))));
-        expectedKeywords.put("keyword1", new HashSet<CSWRecord>(Arrays.asList(new CSWRecord("c"), new CSWRecord("b"), new CSWRecord("a"))));
-
-        ModelMap kw1 = new ModelMap();
-        kw1.put("keyword", "keyword1");
-        kw1.put("count", 2);
-        ModelMap kw2 = new ModelMap();
-        kw2.put("keyword", "keyword2");
-        kw2.put("count", 3);
+    public void testGetKeywords() throws Exception {
+        final ReadableServletOutputStream outStream = new ReadableServletOutputStream();
+        cswRecord1.setDescriptiveKeywords(new String[] {"keyword1", "keyword2"});
+        cswRecord2.setDescriptiveKeywords(new String[] {"keyword2"});
 
         context.checking(new Expectations() {{
-            oneOf(mockCSWService).getKeywordCache();
-            will(returnValue(expectedKeywords));
+            oneOf(mockCSWService).getSnapshot();
+            will(returnValue(makeSnapshot(1)));
+
+            allowing(mockHttpRequest).getHeader(with(any(String.class)));
+            will(returnValue(null));
+            allowing(mockHttpResponse).setHeader(with(any(String.class)), with(any(String.class)));
+            oneOf(mockHttpResponse).setContentType(with(any(String.class)));
+            oneOf(mockHttpResponse).setContentLength(with(any(Integer.class)));
+            oneOf(mockHttpResponse).getOutputStream();
+            will(returnValue(outStream));
         }});
 
-        ModelAndView mav = cswController.getCSWKeywords();
-        Assert.assertNotNull(mav);
-        Assert.assertTrue((Boolean)mav.getModel().get(SUCCESSJSON));
+        Assert.assertNull(cswController.getCSWKeywords(mockHttpRequest, mockHttpResponse));
 
-        List<ModelMap> data = (List<ModelMap>) mav.getModel().get("data");
-        Assert.assertEquals(expectedKeywords.size(), data.size());
-        for (ModelMap kwResponse : data) {
+        JSONObject jsonObj = JSONObject.fromObject(new String(outStream.getDataWritten(), "UTF-8"));
+        Assert.assertTrue(jsonObj.getBoolean(SUCCESSJSON));
 
-            String keyword = (String) kwResponse.get("keyword");
-            Integer count = (Integer)kwResponse.get("count");
+        Map<String, Integer> expectedCounts = new HashMap<String, Integer>();
+        expectedCounts.put("keyword1", 1);
+        expectedCounts.put("keyword2", 2);
 
-            Assert.assertEquals(expectedKeywords.get(keyword).size(), count.intValue());
+        JSONArray data = jsonObj.getJSONArray("data");
+        Assert.assertEquals(expectedCounts.size(), data.size());
+        for (int i = 0; i < data.size(); i++) {
+            JSONObject kwResponse = data.getJSONObject(i);
+            Assert.assertEquals(expectedCounts.get(kwResponse.getString("keyword")).intValue(), kwResponse.getInt("count"));
         }
     }
 
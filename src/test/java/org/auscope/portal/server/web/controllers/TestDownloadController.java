@@ -59,7 +59,6 @@ public class TestDownloadController extends PortalTestClass {
 
     @Before
     public void setUp() {
-        downloadController = new DownloadController(httpServiceCaller);
         // TODO : VT jmock 2.5.1 doesn't have great support for testing multi
         // threading. Currently if we allow more then 1 thread to run, I get
         // erratic test errors. 2.6.0 will provide greater support with
@@ -68,6 +67,7 @@ public class TestDownloadController extends PortalTestClass {
         // Note: DeterministicExecutor is not needed as threadpool will
         // awaitTermination
         threadPool = Executors.newSingleThreadExecutor();
+        downloadController = new DownloadController(httpServiceCaller, threadPool);
 
     }
 
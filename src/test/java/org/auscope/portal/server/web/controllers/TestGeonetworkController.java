@@ -3,14 +3,12 @@ package org.auscope.portal.server.web.controllers;
 import java.util.Arrays;
 import java.util.Date;
 
-import javax.servlet.ServletContext;
+import java.util.List;
+import java.util.Map;
+
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
 
-import org.auscope.portal.core.cloud.CloudFileInformation;
 import org.auscope.portal.core.server.security.oauth2.PortalUser;
-import org.auscope.portal.core.services.GeonetworkService;
-import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.services.cloud.CloudComputeService;
 import org.auscope.portal.core.services.cloud.CloudStorageService;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
@@ -19,13 +17,19 @@ import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VEGLSeries;
 import org.auscope.portal.server.vegl.VGLSignature;
 import org.auscope.portal.server.vegl.VglDownload;
+import org.auscope.portal.server.web.service.BuildInfoService;
+import org.auscope.portal.server.web.service.JobRegistrationService;
+import org.auscope.portal.server.web.service.JobRegistrationService.RegistrationStatus;
+import org.auscope.portal.server.web.service.JobRegistrationService.Status;
+import org.auscope.portal.server.web.service.SeriesRegistrationService;
+import org.auscope.portal.server.web.service.SeriesRegistrationService.SeriesRegistrationStatus;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
-import org.jmock.Sequence;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.ui.ModelMap;
 import org.springframework.web.servlet.ModelAndView;
 
 /**
@@ -39,7 +43,9 @@ public class TestGeonetworkController {
     }};
 
     private VEGLJobManager mockJobManager;
-    private GeonetworkService mockGNService;
+    private JobRegistrationService mockRegistrationService;
+    private SeriesRegistrationService mockSeriesRegistrationService;
+    private BuildInfoService mockBuildInfoService;
     private PortalUser mockPortalUser;
     private CloudStorageService[] cloudStorageServices;
     private CloudComputeService[] cloudComputeServices;
@@ -52,7 +58,9 @@ public class TestGeonetworkController {
     @Before
     public void init() {
         mockJobManager = context.mock(VEGLJobManager.class);
-        mockGNService = context.mock(GeonetworkService.class);
+        mockRegistrationService = context.mock(JobRegistrationService.class);
+        mockSeriesRegistrationService = context.mock(SeriesRegistrationService.class);
+        mockBuildInfoService = context.mock(BuildInfoService.class);
         mockPortalUser = context.mock(PortalUser.class);
         cloudStorageServices = new CloudStorageService[] {context.mock(CloudStorageService.class)};
         cloudComputeServices = new CloudComputeService[] {context.mock(CloudComputeService.class)};
@@ -60,9 +68,13 @@ public class TestGeonetworkController {
         context.checking(new Expectations() {{
             allowing(cloudStorageServices[0]).getId();will(returnValue(storageServiceId));
             allowing(cloudComputeServices[0]).getId();will(returnValue(computeServiceId));
+
+            allowing(mockBuildInfoService).getValue("specificationTitle");will(returnValue("VGL"));
+            allowing(mockBuildInfoService).getValue("implementationVersion");will(returnValue("1.0"));
+            allowing(mockBuildInfoService).getValue("implementationBuild");will(returnValue("abc123"));
         }});
 
-        controller = new GeonetworkController(mockJobManager, mockGNService, cloudStorageServices, cloudComputeServices);
+        controller = new GeonetworkController(mockJobManager, cloudStorageServices, cloudComputeServices, mockRegistrationService, mockSeriesRegistrationService, mockBuildInfoService);
     }
 
     /**
@@ -126,26 +138,10 @@ public class TestGeonetworkController {
     }
 
     /**
-     * Tests that the insertRecord function correctly uses all dependencies on success.
-     * @throws Exception
+     * Builds a mock job/series pair along with a request containing the registration parameters
      */
-    @Test
-    public void testInsertRecord() throws Exception {
-        final Integer jobId = 1235;
-        final Integer seriesId = 5432;
-        final VEGLJob mockJob = context.mock(VEGLJob.class);
-        final VEGLSeries mockSeries = context.mock(VEGLSeries.class);
-        final String registeredUrl  = "http://example.csw.url/";
-        final HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
-        final HttpSession mockSession = context.mock(HttpSession.class);
-        final ServletContext mockContext = context.mock(ServletContext.class);
-        final String userEmail = "user@test.au";
-        final VGLSignature userSignature = new VGLSignature(1, userEmail);
-        final CloudFileInformation[] outputFileInfo = new CloudFileInformation[] {
-                new CloudFileInformation("my/key1", 100L, "http://public.url1"),
-                new CloudFileInformation("my/key2", 200L, "http://public.url2"),
-                new CloudFileInformation("my/key3", 300L, "http://public.url3")
-        };
+    private void expectRegistrationRequest(final Integer jobId, final Integer seriesId, final VEGLJob mockJob,
+            final VEGLSeries mockSeries, final HttpServletRequest mockRequest, final VGLSignature userSignature) {
         final VglDownload download = new VglDownload(5341);
         download.setNorthBoundLatitude(4.0);
         download.setSouthBoundLatitude(3.0);
@@ -156,11 +152,9 @@ public class TestGeonetworkController {
         download.setName("name");
         download.setUrl("http://example.org/5432");
 
-        //We want to ensure our job is set values BEFORE saving it
-        final Sequence jobSavingSequence = context.sequence("jobSavingSequence");
-
         context.checking(new Expectations() {{
             //Our mock job configuration
+            allowing(mockJob).getId();will(returnValue(jobId));
             allowing(mockJob).getDescription();will(returnValue("description"));
             allowing(mockJob).getSubmitDate();will(returnValue(new Date()));
             allowing(mockJob).getName();will(returnValue("name"));
@@ -180,18 +174,14 @@ public class TestGeonetworkController {
             oneOf(mockJobManager).getSeriesById(seriesId);will(returnValue(mockSeries));
 
             //We should have a call to http request session to get user's email
-            allowing(mockPortalUser).getEmail();will(returnValue(userEmail));
+            allowing(mockPortalUser).getEmail();will(returnValue(userSignature.getUser()));
 
             //We should have a single call to the database for user signature object
-            oneOf(mockJobManager).getSignatureByUser(userEmail);will(returnValue(userSignature));
+            oneOf(mockJobManager).getSignatureByUser(userSignature.getUser());will(returnValue(userSignature));
 
             //We should have a call to the job manager to store user signature object
             oneOf(mockJobManager).saveSignature(userSignature);
 
-            //Only 1 call to the job storage service for files
-            oneOf(cloudStorageServices[0]).listJobFiles(mockJob);will(returnValue(outputFileInfo));
-            allowing(cloudStorageServices[0]).getBucket();will(returnValue("s3-output-bucket"));
-
             //We should have calls to HttpServletRequest to get parameters needed for registering job to Geonetwork
             allowing(mockRequest).getParameter("organisationName");will(returnValue("organisationName"));
             allowing(mockRequest).getParameter("administrativeArea");will(returnValue("administrativeArea"));
@@ -209,23 +199,38 @@ public class TestGeonetworkController {
             allowing(mockRequest).getParameter("positionName");will(returnValue("positionName"));
             allowing(mockRequest).getParameter("constraints");will(returnValue("constraints"));
             allowing(mockRequest).getParameter("keywords");will(returnValue("keyword1, keyword2"));
+        }});
+    }
 
-            //Only 1 call to save our newly created record
-            oneOf(mockGNService).makeCSWRecordInsertion(with(any(CSWRecord.class)));will(returnValue(registeredUrl));
-
-            //This must occur in sequence (set our value before saving it)
-            oneOf(mockJob).setRegisteredUrl(registeredUrl);inSequence(jobSavingSequence);
-            oneOf(mockJobManager).saveJob(mockJob);inSequence(jobSavingSequence);
+    /**
+     * Tests that the insertRecord function correctly uses all dependencies on success.
+     * @throws Exception
+     */
+    @Test
+    public void testInsertRecord() throws Exception {
+        final Integer jobId = 1235;
+        final Integer seriesId = 5432;
+        final VEGLJob mockJob = context.mock(VEGLJob.class);
+        final VEGLSeries mockSeries = context.mock(VEGLSeries.class);
+        final HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+        final VGLSignature userSignature = new VGLSignature(1, "user@test.au");
+        final RegistrationStatus pendingStatus = new RegistrationStatus(jobId, Status.PENDING, null, null);
 
-            allowing(mockRequest).getSession();will(returnValue(mockSession));
-            allowing(mockSession).getServletContext();will(returnValue(mockContext));
-            allowing(mockContext).getRealPath("/");will(returnValue("src/main/webapp"));
+        expectRegistrationRequest(jobId, seriesId, mockJob, mockSeries, mockRequest, userSignature);
+        context.checking(new Expectations() {{
+            //The slow parts of the registration are handed off to the registration service
+            oneOf(mockRegistrationService).register(with(same(mockJob)), with(any(CSWRecord.class)), with(any(List.class)), with(same(cloudStorageServices[0])));
+            will(returnValue(pendingStatus));
         }});
 
         ModelAndView mav = controller.insertRecord(jobId, mockRequest, mockPortalUser);
         Assert.assertNotNull(mav);
         Assert.assertTrue((Boolean) mav.getModel().get("success"));
-        Assert.assertEquals(registeredUrl, mav.getModel().get("data"));
+
+        ModelMap data = (ModelMap) mav.getModel().get("data");
+        Assert.assertEquals(jobId, data.get("jobId"));
+        Assert.assertEquals(Status.PENDING.toString(), data.get("status"));
+        Assert.assertEquals(false, data.get("finished"));
     }
 
     /**
@@ -273,155 +278,146 @@ public class TestGeonetworkController {
     }
 
     /**
-     * Tests that the insertRecord function correctly fails when there is a failure to lookup S3 output files.
+     * Tests that the insertRecord function correctly fails when the registration can't be started
      * @throws Exception
      */
     @Test
-    public void testInsertRecordS3Failure() throws Exception {
+    public void testInsertRecordRegistrationFailure() throws Exception {
         final Integer jobId = 1235;
         final Integer seriesId = 5432;
         final VEGLJob mockJob = context.mock(VEGLJob.class);
         final VEGLSeries mockSeries = context.mock(VEGLSeries.class);
         final HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
-        final HttpSession mockSession = context.mock(HttpSession.class);
-        final String userEmail = "user@test.au";
-        final VGLSignature userSignature = new VGLSignature(1, userEmail);
+        final VGLSignature userSignature = new VGLSignature(1, "user@test.au");
+        final RegistrationStatus failedStatus = new RegistrationStatus(jobId, Status.FAILED, null, "error");
 
+        expectRegistrationRequest(jobId, seriesId, mockJob, mockSeries, mockRequest, userSignature);
         context.checking(new Expectations() {{
-            //Our mock job configuration
-            allowing(mockJob).getSeriesId();will(returnValue(seriesId));
-            allowing(mockJob).getComputeServiceId();will(returnValue(computeServiceId));
-            allowing(mockJob).getStorageServiceId();will(returnValue(storageServiceId));
+            oneOf(mockRegistrationService).register(with(same(mockJob)), with(any(CSWRecord.class)), with(any(List.class)), with(same(cloudStorageServices[0])));
+            will(returnValue(failedStatus));
+        }});
 
-            //We should have calls to HttpServletRequest to get parameters needed for registering job to Geonetwork
-            allowing(mockRequest).getParameter("organisationName");will(returnValue("organisationName"));
-            allowing(mockRequest).getParameter("administrativeArea");will(returnValue("administrativeArea"));
-            allowing(mockRequest).getParameter("city");will(returnValue("city"));
-            allowing(mockRequest).getParameter("deliveryPoint");will(returnValue("deliveryPoint"));
-            allowing(mockRequest).getParameter("postalCode");will(returnValue("postalCode"));
-            allowing(mockRequest).getParameter("country");will(returnValue("country"));
-            allowing(mockRequest).getParameter("telephone");will(returnValue("telephone"));
-            allowing(mockRequest).getParameter("facsimile");will(returnValue("facsimile"));
-            allowing(mockRequest).getParameter("onlineContactURL");will(returnValue("http://localhost"));
-            allowing(mockRequest).getParameter("onlineContactName");will(returnValue("onlineContactName"));
-            allowing(mockRequest).getParameter("onlineContactDescription");will(returnValue("onlineContactDescription"));
-            allowing(mockRequest).getParameter("individualName");will(returnValue("individualName"));
-            allowing(mockRequest).getParameter("organisationName");will(returnValue("organisationName"));
-            allowing(mockRequest).getParameter("positionName");will(returnValue("positionName"));
-            allowing(mockRequest).getParameter("constraints");will(returnValue("constraints"));
-            allowing(mockRequest).getParameter("keywords");will(returnValue("keyword1, keyword2"));
+        ModelAndView mav = controller.insertRecord(jobId, mockRequest, mockPortalUser);
+        Assert.assertNotNull(mav);
+        Assert.assertFalse((Boolean) mav.getModel().get("success"));
+    }
 
-            //We should make a single call to the database for job objects
-            oneOf(mockJobManager).getJobById(jobId);will(returnValue(mockJob));
-            oneOf(mockJobManager).getSeriesById(seriesId);will(returnValue(mockSeries));
+    /**
+     * Tests that the status of an in progress registration is correctly reported
+     */
+    @Test
+    public void testGetRegistrationStatus() {
+        final Integer jobId = 1235;
+        final RegistrationStatus status = new RegistrationStatus(jobId, Status.SUCCEEDED, "http://example.csw.url/", null);
 
-            //We should have a call to http request session to get user's email
-            allowing(mockPortalUser).getEmail();will(returnValue(userEmail));
+        context.checking(new Expectations() {{
+            oneOf(mockRegistrationService).getStatus(jobId);will(returnValue(status));
+        }});
 
-            //We should have a single call to the database for user signature object
-            oneOf(mockJobManager).getSignatureByUser(userEmail);will(returnValue(userSignature));
+        ModelAndView mav = controller.getRegistrationStatus(jobId, mockPortalUser);
+        Assert.assertNotNull(mav);
+        Assert.assertTrue((Boolean) mav.getModel().get("success"));
 
-            //We should have a call to the job manager to store user signature object
-            oneOf(mockJobManager).saveSignature(userSignature);
+        ModelMap data = (ModelMap) mav.getModel().get("data");
+        Assert.assertEquals(true, data.get("finished"));
+        Assert.assertEquals("http://example.csw.url/", data.get("registeredUrl"));
+    }
 
-            //Only 1 call to the job storage service for files
-            oneOf(cloudStorageServices[0]).listJobFiles(mockJob);will(throwException(new PortalServiceException("")));
+    /**
+     * Tests that a registration that is no longer tracked falls back to the job's registered URL
+     */
+    @Test
+    public void testGetRegistrationStatusExpired() {
+        final Integer jobId = 1235;
+        final VEGLJob mockJob = context.mock(VEGLJob.class);
+
+        context.checking(new Expectations() {{
+            oneOf(mockRegistrationService).getStatus(jobId);will(returnValue(null));
+            oneOf(mockJobManager).getJobById(jobId);will(returnValue(mockJob));
+            allowing(mockJob).getRegisteredUrl();will(returnValue("http://example.csw.url/"));
         }});
 
-        ModelAndView mav = controller.insertRecord(jobId, mockRequest, mockPortalUser);
+        ModelAndView mav = controller.getRegistrationStatus(jobId, mockPortalUser);
         Assert.assertNotNull(mav);
-        Assert.assertFalse((Boolean) mav.getModel().get("success"));
+        Assert.assertTrue((Boolean) mav.getModel().get("success"));
+        Assert.assertEquals("http://example.csw.url/", ((ModelMap) mav.getModel().get("data")).get("registeredUrl"));
     }
 
     /**
-     * Tests that the insertRecord function correctly fails when registration to geonetwork fails
-     * @throws Exception
+     * Tests that polling a job that was never registered fails
      */
     @Test
-    public void testInsertRecordGNServiceError() throws Exception {
+    public void testGetRegistrationStatusUnknown() {
         final Integer jobId = 1235;
-        final Integer seriesId = 5432;
         final VEGLJob mockJob = context.mock(VEGLJob.class);
+
+        context.checking(new Expectations() {{
+            oneOf(mockRegistrationService).getStatus(jobId);will(returnValue(null));
+            oneOf(mockJobManager).getJobById(jobId);will(returnValue(mockJob));
+            allowing(mockJob).getRegisteredUrl();will(returnValue(null));
+        }});
+
+        ModelAndView mav = controller.getRegistrationStatus(jobId, mockPortalUser);
+        Assert.assertNotNull(mav);
+        Assert.assertFalse((Boolean) mav.getModel().get("success"));
+    }
+
+    /**
+     * Tests that a series registration passes every job in the series (and a single signature) to the registration service
+     */
+    @Test
+    public void testInsertSeriesRecord() {
+        final Integer seriesId = 5432;
         final VEGLSeries mockSeries = context.mock(VEGLSeries.class);
+        final VEGLJob mockJob1 = context.mock(VEGLJob.class, "mockJob1");
+        final VEGLJob mockJob2 = context.mock(VEGLJob.class, "mockJob2");
         final HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
-        final HttpSession mockSession = context.mock(HttpSession.class);
-        final ServletContext mockContext = context.mock(ServletContext.class);
         final String userEmail = "user@test.au";
         final VGLSignature userSignature = new VGLSignature(1, userEmail);
-        final CloudFileInformation[] outputFileInfo = new CloudFileInformation[] {
-                new CloudFileInformation("my/key1", 100L, "http://public.url1"),
-                new CloudFileInformation("my/key2", 200L, "http://public.url2"),
-                new CloudFileInformation("my/key3", 300L, "http://public.url3")
-        };
-        final VglDownload download = new VglDownload(5341);
-        download.setNorthBoundLatitude(4.0);
-        download.setSouthBoundLatitude(3.0);
-        download.setEastBoundLongitude(2.0);
-        download.setWestBoundLongitude(1.0);
+        final SeriesRegistrationStatus pendingStatus = new SeriesRegistrationStatus(seriesId, Status.PENDING, null, 0, 2, null);
 
-        download.setDescription("desc");
-        download.setName("name");
-        download.setUrl("http://example.org/5432");
         context.checking(new Expectations() {{
-            //Our mock job configuration
-            allowing(mockJob).getDescription();will(returnValue("description"));
-            allowing(mockJob).getSubmitDate();will(returnValue("20110713_105730"));
-            allowing(mockJob).getName();will(returnValue("name"));
-            allowing(mockJob).getUser();will(returnValue("user"));
-            allowing(mockJob).getSeriesId();will(returnValue(seriesId));
-            allowing(mockJob).getEmailAddress();will(returnValue("email@address"));
-            allowing(mockJob).getJobDownloads();will(returnValue(Arrays.asList(download)));
-            allowing(mockJob).getComputeServiceId();will(returnValue(computeServiceId));
-            allowing(mockJob).getStorageServiceId();will(returnValue(storageServiceId));
-
-            //Our series configuration
-            allowing(mockSeries).getName();will(returnValue("seriesName"));
-            allowing(mockSeries).getDescription();will(returnValue("seriesDescription"));
-
-            //We should make a single call to the database for job objects
-            oneOf(mockJobManager).getJobById(jobId);will(returnValue(mockJob));
-            oneOf(mockJobManager).getSeriesById(seriesId);will(returnValue(mockSeries));
-
-            //We should have a call to http request session to get user's email
             allowing(mockPortalUser).getEmail();will(returnValue(userEmail));
+            allowing(mockSeries).getUser();will(returnValue(userEmail));
+            allowing(mockJob1).getStorageServiceId();will(returnValue(storageServiceId));
+            allowing(mockJob2).getStorageServiceId();will(returnValue(storageServiceId));
+            allowing(mockRequest).getParameter(with(any(String.class)));will(returnValue("value"));
 
-            //We should have a single call to the database for user signature object
+            oneOf(mockJobManager).getSeriesById(seriesId);will(returnValue(mockSeries));
+            oneOf(mockJobManager).getSeriesJobs(seriesId);will(returnValue(Arrays.asList(mockJob1, mockJob2)));
             oneOf(mockJobManager).getSignatureByUser(userEmail);will(returnValue(userSignature));
-
-            //We should have a call to the job manager to store user signature object
             oneOf(mockJobManager).saveSignature(userSignature);
 
-            //Only 1 call to the job storage service for files
-            oneOf(cloudStorageServices[0]).listJobFiles(mockJob);will(returnValue(outputFileInfo));
-            allowing(cloudStorageServices[0]).getBucket();will(returnValue("s3-output-bucket"));
+            oneOf(mockSeriesRegistrationService).register(with(same(mockSeries)), with(any(Map.class)), with(same(userSignature)), with(any(String.class)));
+            will(returnValue(pendingStatus));
+        }});
 
-            //We should have calls to HttpServletRequest to get parameters needed for registering job to Geonetwork
-            allowing(mockRequest).getParameter("organisationName");will(returnValue("organisationName"));
-            allowing(mockRequest).getParameter("administrativeArea");will(returnValue("administrativeArea"));
-            allowing(mockRequest).getParameter("city");will(returnValue("city"));
-            allowing(mockRequest).getParameter("deliveryPoint");will(returnValue("deliveryPoint"));
-            allowing(mockRequest).getParameter("postalCode");will(returnValue("postalCode"));
-            allowing(mockRequest).getParameter("country");will(returnValue("country"));
-            allowing(mockRequest).getParameter("telephone");will(returnValue("telephone"));
-            allowing(mockRequest).getParameter("facsimile");will(returnValue("facsimile"));
-            allowing(mockRequest).getParameter("onlineContactURL");will(returnValue("http://localhost"));
-            allowing(mockRequest).getParameter("onlineContactName");will(returnValue("onlineContactName"));
-            allowing(mockRequest).getParameter("onlineContactDescription");will(returnValue("onlineContactDescription"));
-            allowing(mockRequest).getParameter("individualName");will(returnValue("individualName"));
-            allowing(mockRequest).getParameter("organisationName");will(returnValue("organisationName"));
-            allowing(mockRequest).getParameter("positionName");will(returnValue("positionName"));
-            allowing(mockRequest).getParameter("constraints");will(returnValue("constraints"));
-            allowing(mockRequest).getParameter("keywords");will(returnValue("keyword1, keyword2"));
+        ModelAndView mav = controller.insertSeriesRecord(seriesId, mockRequest, mockPortalUser);
+        Assert.assertNotNull(mav);
+        Assert.assertTrue((Boolean) mav.getModel().get("success"));
 
-            //Only 1 call to save our newly created record
-            oneOf(mockGNService).makeCSWRecordInsertion(with(any(CSWRecord.class)));will(throwException(new Exception()));
+        ModelMap data = (ModelMap) mav.getModel().get("data");
+        Assert.assertEquals(seriesId, data.get("seriesId"));
+        Assert.assertEquals(2, data.get("jobsTotal"));
+    }
 
-            allowing(mockRequest).getSession();will(returnValue(mockSession));
-            allowing(mockSession).getServletContext();will(returnValue(mockContext));
-            allowing(mockContext).getRealPath("/");will(returnValue("src/main/webapp"));
+    /**
+     * Tests that users cannot register another user's series
+     */
+    @Test
+    public void testInsertSeriesRecordNotOwner() {
+        final Integer seriesId = 5432;
+        final VEGLSeries mockSeries = context.mock(VEGLSeries.class);
+        final HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+
+        context.checking(new Expectations() {{
+            allowing(mockPortalUser).getEmail();will(returnValue("user@test.au"));
+            allowing(mockSeries).getUser();will(returnValue("another@test.au"));
+
+            oneOf(mockJobManager).getSeriesById(seriesId);will(returnValue(mockSeries));
         }});
 
-        ModelAndView mav = controller.insertRecord(jobId, mockRequest, mockPortalUser);
+        ModelAndView mav = controller.insertSeriesRecord(seriesId, mockRequest, mockPortalUser);
         Assert.assertNotNull(mav);
         Assert.assertFalse((Boolean) mav.getModel().get("success"));
     }
@@ -16,6 +16,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import junit.framework.Assert;
+import net.sf.json.JSONObject;
 
 import org.apache.commons.collections.iterators.IteratorEnumeration;
 import org.auscope.portal.core.cloud.ComputeType;
@@ -28,6 +29,8 @@ import org.auscope.portal.core.services.cloud.CloudComputeService;
 import org.auscope.portal.core.services.cloud.CloudStorageService;
 import org.auscope.portal.core.services.cloud.FileStagingService;
 import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
+import org.auscope.portal.server.vegl.JobLaunchScheduler;
 import org.auscope.portal.server.vegl.VEGLJob;
 import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VEGLSeries;
@@ -37,6 +40,8 @@ import org.auscope.portal.server.vegl.VglDownload;
 import org.auscope.portal.server.vegl.VglMachineImage;
 import org.auscope.portal.server.vegl.VglParameter;
 import org.auscope.portal.server.vegl.mail.JobMailSender;
+import org.auscope.portal.server.web.service.DownloadBasketService;
+import org.auscope.portal.server.web.service.ScriptBuilderService;
 import org.auscope.portal.server.web.service.monitor.VGLJobStatusChangeHandler;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -72,6 +77,9 @@ public class TestJobBuilderController {
     private PortalUser mockPortalUser;
     private VGLPollingJobQueueManager vglPollingJobQueueManager;
     private VGLJobStatusChangeHandler vglJobStatusChangeHandler;
+    private JobLaunchScheduler jobLaunchScheduler;
+    private DownloadBasketService mockDownloadBasketService;
+    private ScriptBuilderService scriptBuilderService;
 
 
 
@@ -93,6 +101,7 @@ public class TestJobBuilderController {
         mockRequest = context.mock(HttpServletRequest.class);
         mockResponse = context.mock(HttpServletResponse.class);
         mockSession = context.mock(HttpSession.class);
+        mockDownloadBasketService = context.mock(DownloadBasketService.class);
 
 
         mockJobMailSender = context.mock(JobMailSender.class);
@@ -101,13 +110,19 @@ public class TestJobBuilderController {
 
         vglJobStatusChangeHandler = new VGLJobStatusChangeHandler(mockJobManager,mockJobMailSender,mockVGLJobStatusAndLogReader);
         vglPollingJobQueueManager = new VGLPollingJobQueueManager();
+        jobLaunchScheduler = new JobLaunchScheduler(mockJobManager, vglPollingJobQueueManager, vglJobStatusChangeHandler, 2);
+        //Nothing is cached unless a test saves a script so this won't touch the staging area by itself
+        scriptBuilderService = new ScriptBuilderService(mockFileStagingService, mockJobManager);
+        scriptBuilderService.setWriteBehindDelay(60000);
         //Object Under Test
-        controller = new JobBuilderController(mockJobManager, mockFileStagingService, mockHostConfigurer, mockCloudStorageServices, mockCloudComputeServices, vglJobStatusChangeHandler,vglPollingJobQueueManager);
+        controller = new JobBuilderController(mockJobManager, mockFileStagingService, mockHostConfigurer, mockCloudStorageServices, mockCloudComputeServices, vglJobStatusChangeHandler,vglPollingJobQueueManager,jobLaunchScheduler, mockDownloadBasketService, scriptBuilderService);
     }
 
     @After
     public void destroy(){
         vglPollingJobQueueManager.getQueue().clear();
+        jobLaunchScheduler.shutdown();
+        scriptBuilderService.shutdown();
     }
 
 
@@ -988,6 +1003,97 @@ public class TestJobBuilderController {
     }
 
 
+    /**
+     * Tests that batch job submission validates, stages and launches every job streaming back the progress
+     * @throws Exception
+     */
+    @Test
+    public void testSubmitJobs() throws Exception {
+        final String userEmail = "user@example.org";
+        final VEGLJob jobObj = new VEGLJob(13);
+        final VEGLJob otherUsersJob = new VEGLJob(14);
+        final String computeServiceId = "compute-service-id";
+        final String storageServiceId = "storage-service-id";
+        final String instanceId = "new-instance-id";
+        final File mockFile1 = context.mock(File.class, "MockFile1");
+        final StagedFile[] stageInFiles = new StagedFile[] {new StagedFile(jobObj, "mockFile1", mockFile1)};
+        final OutputStream mockOutputStream = context.mock(OutputStream.class);
+        final VglMachineImage[] mockImages = new VglMachineImage[] {context.mock(VglMachineImage.class)};
+        final ReadableServletOutputStream responseStream = new ReadableServletOutputStream();
+
+        jobObj.setUser(userEmail);
+        jobObj.setComputeVmId("compute-vmi-id");
+        jobObj.setStatus(JobBuilderController.STATUS_UNSUBMITTED);
+        jobObj.setStorageBaseKey("base/key");
+        jobObj.setComputeServiceId(computeServiceId);
+        jobObj.setStorageServiceId(storageServiceId);
+        otherUsersJob.setUser("someone@else.org");
+
+        context.checking(new Expectations() {{
+            allowing(mockPortalUser).getEmail();will(returnValue(userEmail));
+
+            oneOf(mockResponse).setContentType("application/x-ndjson");
+            oneOf(mockResponse).getOutputStream();will(returnValue(responseStream));
+
+            oneOf(mockJobManager).getJobById(jobObj.getId());will(returnValue(jobObj));
+            oneOf(mockJobManager).getJobById(otherUsersJob.getId());will(returnValue(otherUsersJob));
+
+            //Permissions are checked once per compute service
+            oneOf(mockCloudComputeServices[0]).getAvailableImages();will(returnValue(mockImages));
+            oneOf(mockImages[0]).getImageId();will(returnValue("compute-vmi-id"));
+            oneOf(mockImages[0]).getPermissions();will(returnValue(null));
+
+            oneOf(mockFileStagingService).writeFile(jobObj, JobBuilderController.DOWNLOAD_SCRIPT);will(returnValue(mockOutputStream));
+            allowing(mockOutputStream).close();
+            oneOf(mockFileStagingService).listStageInDirectoryFiles(jobObj);will(returnValue(stageInFiles));
+
+            allowing(mockHostConfigurer).resolvePlaceholder(with(any(String.class)));
+            allowing(mockCloudStorageServices[0]).getId();will(returnValue(storageServiceId));
+            allowing(mockCloudStorageServices[0]).getBucket();will(returnValue("bucket"));
+            allowing(mockCloudStorageServices[0]).getAccessKey();will(returnValue("access"));
+            allowing(mockCloudStorageServices[0]).getSecretKey();will(returnValue("secret"));
+            allowing(mockCloudStorageServices[0]).getProvider();will(returnValue("provider"));
+            allowing(mockCloudStorageServices[0]).getAuthVersion();will(returnValue(null));
+            allowing(mockCloudStorageServices[0]).getEndpoint();will(returnValue("http://example.org"));
+            allowing(mockCloudStorageServices[0]).getRegionName();will(returnValue(null));
+            allowing(mockCloudComputeServices[0]).getId();will(returnValue(computeServiceId));
+
+            oneOf(mockCloudStorageServices[0]).uploadJobFiles(with(equal(jobObj)), with(equal(new File[] {mockFile1})));
+            oneOf(mockCloudComputeServices[0]).executeJob(with(equal(jobObj)), with(any(String.class)));will(returnValue(instanceId));
+
+            allowing(mockJobManager).saveJob(jobObj);
+            oneOf(mockJobManager).createJobAuditTrail(JobBuilderController.STATUS_UNSUBMITTED, jobObj, "Set job to provisioning");
+            oneOf(mockJobManager).createJobAuditTrail(JobBuilderController.STATUS_PROVISION, jobObj, "Set job to Pending");
+        }});
+
+        controller.submitJobs(mockRequest, mockResponse, new Integer[] {jobObj.getId(), otherUsersJob.getId()}, mockPortalUser);
+
+        String[] lines = new String(responseStream.getDataWritten(), "UTF-8").split("\n");
+        Assert.assertEquals(4, lines.length);
+
+        JSONObject line = JSONObject.fromObject(lines[0]);
+        Assert.assertEquals(13, line.getInt("jobId"));
+        Assert.assertEquals(JobBuilderController.STATUS_PROVISION, line.getString("status"));
+
+        line = JSONObject.fromObject(lines[1]);
+        Assert.assertEquals(14, line.getInt("jobId"));
+        Assert.assertEquals(JobBuilderController.STATUS_ERROR, line.getString("status"));
+
+        line = JSONObject.fromObject(lines[2]);
+        Assert.assertEquals(13, line.getInt("jobId"));
+        Assert.assertEquals(JobBuilderController.STATUS_PENDING, line.getString("status"));
+        Assert.assertEquals(JobLaunchScheduler.LaunchOutcome.LAUNCHED.toString(), line.getString("outcome"));
+
+        line = JSONObject.fromObject(lines[3]);
+        Assert.assertTrue(line.getBoolean("finished"));
+        Assert.assertEquals(1, line.getInt("submitted"));
+        Assert.assertEquals(1, line.getInt("failed"));
+        Assert.assertEquals(0, line.getInt("pending"));
+
+        Assert.assertEquals(instanceId, jobObj.getComputeInstanceId());
+        Assert.assertEquals(JobBuilderController.STATUS_PENDING, jobObj.getStatus());
+    }
+
     /**
      * Tests that job submission fails correctly when user specifies a storage service that DNE
      */
@@ -1293,8 +1399,7 @@ public class TestJobBuilderController {
             allowing(mockSession).getAttribute("doubleValue");will(returnValue(sessionVariables.get("doubleValue")));
             allowing(mockSession).getAttribute("intValue");will(returnValue(sessionVariables.get("intValue")));;
             allowing(mockSession).getAttribute("notExtracted");will(returnValue(sessionVariables.get("notExtracted")));
-            allowing(mockSession).getAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST);will(returnValue(null));
-            allowing(mockSession).setAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST, null);
+            oneOf(mockDownloadBasketService).takeDownloads(mockSession);will(returnValue(new ArrayList<VglDownload>()));
 
             allowing(mockPortalUser).getEmail();will(returnValue("email@example.org"));
 
@@ -1836,4 +1941,58 @@ public class TestJobBuilderController {
         Assert.assertFalse((Boolean)mav.getModel().get("success"));
     }
 
+    /**
+     * Tests that a script still waiting to be written is written before the staging area is listed
+     * @throws Exception
+     */
+    @Test
+    public void testListJobFiles_FlushesPendingScript() throws Exception {
+        final String jobId = "1";
+        final VEGLJob jobObj = new VEGLJob(new Integer(jobId));
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final Sequence flushSequence = context.sequence("flushSequence");
+
+        context.checking(new Expectations() {{
+            allowing(mockJobManager).getJobById(jobObj.getId());
+            will(returnValue(jobObj));
+
+            oneOf(mockFileStagingService).writeFile(jobObj, ScriptBuilderService.SCRIPT_FILE_NAME);
+            inSequence(flushSequence);
+            will(returnValue(bos));
+            oneOf(mockFileStagingService).listStageInDirectoryFiles(jobObj);
+            inSequence(flushSequence);
+            will(returnValue(new StagedFile[0]));
+        }});
+
+        scriptBuilderService.saveScript(jobId, "print 'pending'");
+        ModelAndView mav = controller.listJobFiles(jobId);
+        Assert.assertTrue((Boolean)mav.getModel().get("success"));
+        Assert.assertEquals("print 'pending'", new String(bos.toByteArray()));
+    }
+
+    /**
+     * Tests that deleting the script file discards any pending write (so the file isn't recreated)
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteFiles_DiscardsPendingScript() throws Exception {
+        final String jobId = "1";
+        final VEGLJob jobObj = new VEGLJob(new Integer(jobId));
+
+        context.checking(new Expectations() {{
+            allowing(mockJobManager).getJobById(jobObj.getId());
+            will(returnValue(jobObj));
+
+            oneOf(mockFileStagingService).deleteStageInFile(jobObj, ScriptBuilderService.SCRIPT_FILE_NAME);
+            will(returnValue(true));
+            never(mockFileStagingService).writeFile(jobObj, ScriptBuilderService.SCRIPT_FILE_NAME);
+        }});
+
+        scriptBuilderService.saveScript(jobId, "print 'pending'");
+        ModelAndView mav = controller.deleteFiles(jobId, new String[] {ScriptBuilderService.SCRIPT_FILE_NAME});
+        Assert.assertTrue((Boolean)mav.getModel().get("success"));
+
+        scriptBuilderService.flush();
+    }
+
 }
\ No newline at end of file
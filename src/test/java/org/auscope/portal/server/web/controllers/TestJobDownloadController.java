@@ -13,9 +13,17 @@ import org.auscope.portal.core.server.PortalPropertyPlaceholderConfigurer;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
 import org.auscope.portal.core.services.responses.wfs.WFSGetCapabilitiesResponse;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VglDownload;
+import org.auscope.portal.server.web.service.DownloadBasketService;
+import org.auscope.portal.server.web.service.DownloadBasketService.AddResult;
 import org.auscope.portal.server.web.service.SimpleWfsService;
+import org.auscope.portal.server.web.service.WFSHarvestService;
+import org.auscope.portal.server.web.service.WFSHarvestService.HarvestSummary;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.ui.ModelMap;
@@ -32,11 +40,27 @@ public class TestJobDownloadController extends PortalTestClass {
     private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
     private HttpSession mockSession = context.mock(HttpSession.class);
     private SimpleWfsService mockWfsService = context.mock(SimpleWfsService.class);
+    private WFSHarvestService mockHarvestService = context.mock(WFSHarvestService.class);
+    private VEGLJobManager mockJobManager = context.mock(VEGLJobManager.class);
+    private DownloadBasketService mockDownloadBasketService = context.mock(DownloadBasketService.class);
     private JobDownloadController controller;
 
     @Before
     public void setup() {
-        controller = new JobDownloadController(mockHostConfigurer, mockWfsService);
+        controller = new JobDownloadController(mockHostConfigurer, mockWfsService, mockHarvestService, mockJobManager, mockDownloadBasketService);
+    }
+
+    /**
+     * Records every download added to the basket in downloads
+     */
+    private static CustomAction addTo(final List<VglDownload> downloads) {
+        return new CustomAction("Add to basket") {
+            @Override
+            public Object invoke(Invocation invocation) throws Throwable {
+                downloads.add((VglDownload) invocation.getParameter(1));
+                return AddResult.ADDED;
+            }
+        };
     }
 
     @Test
@@ -59,8 +83,7 @@ public class TestJobDownloadController extends PortalTestClass {
 
             allowing(mockRequest).getSession();will(returnValue(mockSession));
 
-            oneOf(mockSession).getAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST);will(returnValue(downloads));
-            oneOf(mockSession).setAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST, downloads);
+            oneOf(mockDownloadBasketService).add(with(same(mockSession)), with(any(VglDownload.class)));will(addTo(downloads));
         }});
 
         ModelAndView mav = controller.makeErddapUrl(northBoundLatitude, eastBoundLongitude, southBoundLatitude, westBoundLongitude, format, layerName, name, description, localPath, true, mockRequest, mockResponse);
@@ -142,8 +165,7 @@ public class TestJobDownloadController extends PortalTestClass {
         context.checking(new Expectations() {{
             allowing(mockRequest).getSession();will(returnValue(mockSession));
 
-            oneOf(mockSession).getAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST);will(returnValue(downloads));
-            oneOf(mockSession).setAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST, downloads);
+            oneOf(mockDownloadBasketService).add(with(same(mockSession)), with(any(VglDownload.class)));will(addTo(downloads));
         }});
 
         ModelAndView mav = controller.makeDownloadUrl(serviceUrl, name, description, localPath, northBoundLatitude, eastBoundLongitude, southBoundLatitude, westBoundLongitude, true, mockRequest);
@@ -173,6 +195,52 @@ public class TestJobDownloadController extends PortalTestClass {
         Assert.assertEquals(serviceUrl, download.getUrl());
     }
     
+    /**
+     * Tests that a download that doesn't fit in the basket is reported as a failure
+     */
+    @Test
+    public void testMakeDownloadUrlBasketFull() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getSession();will(returnValue(mockSession));
+
+            oneOf(mockDownloadBasketService).add(with(same(mockSession)), with(any(VglDownload.class)));will(returnValue(AddResult.FULL));
+            allowing(mockDownloadBasketService).getMaxDownloads();will(returnValue(100));
+        }});
+
+        ModelAndView mav = controller.makeDownloadUrl("http://example.org/service", "name", "desc", "localPath", 2.0, 4.0, 1.0, 3.0, true, mockRequest);
+        Assert.assertNotNull(mav);
+        Assert.assertFalse(((Boolean) mav.getModel().get("success")));
+    }
+
+    /**
+     * Tests that a download already in the basket responds with the stored download (and a duplicate flag)
+     */
+    @Test
+    public void testMakeDownloadUrlDuplicate() throws Exception {
+        final VglDownload stored = new VglDownload();
+        stored.setUrl("http://example.org/service");
+        stored.setName("original-name");
+        stored.setDescription("original-desc");
+        stored.setLocalPath("original-path");
+
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getSession();will(returnValue(mockSession));
+
+            oneOf(mockDownloadBasketService).add(with(same(mockSession)), with(any(VglDownload.class)));will(returnValue(AddResult.DUPLICATE));
+            oneOf(mockDownloadBasketService).getDownload(with(same(mockSession)), with(any(VglDownload.class)));will(returnValue(stored));
+        }});
+
+        ModelAndView mav = controller.makeDownloadUrl("http://example.org/service", "name", "desc", "localPath", 2.0, 4.0, 1.0, 3.0, true, mockRequest);
+        Assert.assertNotNull(mav);
+        Assert.assertTrue(((Boolean) mav.getModel().get("success")));
+
+        ModelMap data = (ModelMap) mav.getModel().get("data");
+        Assert.assertEquals(Boolean.TRUE, data.get("duplicate"));
+        Assert.assertEquals("original-name", data.get("name"));
+        Assert.assertEquals("original-desc", data.get("description"));
+        Assert.assertEquals("original-path", data.get("localPath"));
+    }
+
     @Test
     public void testMakeDownloadUrlNotSaveSession() throws Exception {
         final Double northBoundLatitude = 2.0;
@@ -232,8 +300,7 @@ public class TestJobDownloadController extends PortalTestClass {
             
             allowing(mockResponse).getGetFeatureOutputFormats();will(returnValue(expectedFormats));
             
-            oneOf(mockSession).getAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST);will(returnValue(downloads));
-            oneOf(mockSession).setAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST, downloads);
+            oneOf(mockDownloadBasketService).add(with(same(mockSession)), with(any(VglDownload.class)));will(addTo(downloads));
         }});
 
         ModelAndView mav = controller.makeWfsUrl(serviceUrl, featureType, srsName, bboxSrs, 
@@ -317,15 +384,9 @@ public class TestJobDownloadController extends PortalTestClass {
      */
     @Test
     public void testGetNumDownloadRequests() {
-        final List<VglDownload> vglDownloads = new ArrayList<VglDownload>();
-        final VglDownload d1 = new VglDownload(1);
-        final VglDownload d2 = new VglDownload(2);
-        vglDownloads.add(d1);
-        vglDownloads.add(d2);
-        
         context.checking(new Expectations() {{
             allowing(mockRequest).getSession();will(returnValue(mockSession));
-            allowing(mockSession).getAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST);will(returnValue(vglDownloads));
+            allowing(mockDownloadBasketService).size(mockSession);will(returnValue(2));
         }});
 
         ModelAndView mav = controller.getNumDownloadRequests(mockRequest);
@@ -344,12 +405,63 @@ public class TestJobDownloadController extends PortalTestClass {
     public void testGetNumDownloadRequests_NullJobDownloadList() {
         context.checking(new Expectations() {{
             allowing(mockRequest).getSession();will(returnValue(mockSession));
-            allowing(mockSession).getAttribute(JobDownloadController.SESSION_DOWNLOAD_LIST);will(returnValue(null));
+            allowing(mockDownloadBasketService).size(mockSession);will(returnValue(0));
         }});
         
         ModelAndView mav = controller.getNumDownloadRequests(mockRequest);
         Assert.assertTrue((Boolean) mav.getModel().get("success"));
         Integer numDownloads = (Integer) mav.getModel().get("data");
         Assert.assertEquals(new Integer(0), numDownloads);
-    }    
+    }
+
+    /**
+     * Tests that harvesting a WFS into a job passes the sanitised file name to the harvest service
+     */
+    @Test
+    public void testHarvestWfsToJob() throws Exception {
+        final Integer jobId = 42;
+        final VEGLJob job = new VEGLJob(jobId);
+        final String serviceUrl = "http://example.org/wfs";
+        final String featureType = "ft:type";
+        final String outputFormat = "csv";
+        final HarvestSummary summary = new HarvestSummary("output.csv", 12000, 3);
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getJobById(jobId);will(returnValue(job));
+            oneOf(mockHarvestService).harvest(job, "output.csv", serviceUrl, featureType, null, null, outputFormat, null, "gml:name");will(returnValue(summary));
+        }});
+
+        ModelAndView mav = controller.harvestWfsToJob(jobId, serviceUrl, featureType, null, null, null, null, null, null, outputFormat, null, "gml:name", "../output.csv");
+        Assert.assertTrue((Boolean) mav.getModel().get("success"));
+        ModelMap data = (ModelMap) mav.getModel().get("data");
+        Assert.assertEquals("output.csv", data.get("localPath"));
+        Assert.assertEquals(12000, data.get("featureCount"));
+        Assert.assertEquals(3, data.get("pageCount"));
+    }
+
+    /**
+     * Tests that harvesting into a job that DNE fails gracefully
+     */
+    @Test
+    public void testHarvestWfsToJob_NoJob() throws Exception {
+        final Integer jobId = 42;
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getJobById(jobId);will(returnValue(null));
+        }});
+
+        ModelAndView mav = controller.harvestWfsToJob(jobId, "http://example.org/wfs", "ft:type", null, null, null, null, null, null, null, null, null, "output.xml");
+        Assert.assertFalse((Boolean) mav.getModel().get("success"));
+    }
+
+    /**
+     * Tests that file names that aren't plain file names are rejected (without harvesting anything)
+     */
+    @Test
+    public void testHarvestWfsToJob_InvalidFileName() throws Exception {
+        for (String localPath : new String[] {"", "../", "dir/..", ".hidden", "out put.xml", "out\u0000put.xml", "data/"}) {
+            ModelAndView mav = controller.harvestWfsToJob(42, "http://example.org/wfs", "ft:type", null, null, null, null, null, null, null, null, null, localPath);
+            Assert.assertFalse(localPath, (Boolean) mav.getModel().get("success"));
+        }
+    }
 }
\ No newline at end of file
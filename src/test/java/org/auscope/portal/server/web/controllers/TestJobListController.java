@@ -28,11 +28,16 @@ import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
 import org.auscope.portal.jmock.VEGLJobMatcher;
 import org.auscope.portal.jmock.VEGLSeriesMatcher;
 import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobDao;
 import org.auscope.portal.server.vegl.VEGLJobManager;
 import org.auscope.portal.server.vegl.VEGLSeries;
 import org.auscope.portal.server.vegl.VGLJobStatusAndLogReader;
 import org.auscope.portal.server.vegl.VGLPollingJobQueueManager;
+import org.auscope.portal.server.web.service.ScriptBuilderService;
+import org.auscope.portal.server.web.service.http.ResponseStreamer;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -61,6 +66,8 @@ public class TestJobListController extends PortalTestClass {
     private HttpSession mockSession;
     private JobListController controller;
     private VGLPollingJobQueueManager vglPollingJobQueueManager;
+    private ResponseStreamer responseStreamer = new ResponseStreamer(4, 1024, 0);
+    private ScriptBuilderService mockScriptBuilderService;
 
 
     /**
@@ -79,6 +86,7 @@ public class TestJobListController extends PortalTestClass {
         mockRequest = context.mock(HttpServletRequest.class);
         mockSession = context.mock(HttpSession.class);
         mockPortalUser = context.mock(PortalUser.class);
+        mockScriptBuilderService = context.mock(ScriptBuilderService.class);
         final List<VEGLJob> mockJobs=new ArrayList<VEGLJob>();
         vglPollingJobQueueManager = new VGLPollingJobQueueManager();
 
@@ -90,7 +98,7 @@ public class TestJobListController extends PortalTestClass {
 
         controller = new JobListController(mockJobManager,
                 mockCloudStorageServices, mockFileStagingService,
-                mockCloudComputeServices, mockVGLJobStatusAndLogReader, mockJobStatusMonitor,null,mockHostConfigurer,vglPollingJobQueueManager);
+                mockCloudComputeServices, mockVGLJobStatusAndLogReader, mockJobStatusMonitor,null,mockHostConfigurer,vglPollingJobQueueManager,responseStreamer,mockScriptBuilderService);
     }
 
     @After
@@ -174,7 +182,7 @@ public class TestJobListController extends PortalTestClass {
 
         JobListController myController = new JobListController(queueMockJobManager,
                 mockCloudStorageServices, mockFileStagingService,
-                mockCloudComputeServices, mockVGLJobStatusAndLogReader, mockJobStatusMonitor,null,mockHostConfigurer,vglPollingJobQueueManager);
+                mockCloudComputeServices, mockVGLJobStatusAndLogReader, mockJobStatusMonitor,null,mockHostConfigurer,vglPollingJobQueueManager,responseStreamer,mockScriptBuilderService);
 
 
 
@@ -256,6 +264,8 @@ public class TestJobListController extends PortalTestClass {
             oneOf(mockJobManager).saveJob(mockJob);
             oneOf(mockJobManager).createJobAuditTrail("old mock job status", mockJob, "Job deleted.");
 
+            allowing(mockJob).getId();will(returnValue(jobId));
+            oneOf(mockScriptBuilderService).evict(Integer.toString(jobId));
             oneOf(mockFileStagingService).deleteStageInDirectory(mockJob);
             oneOf(mockJob).getRegisteredUrl();will(returnValue("geonetwork url"));
         }});
@@ -288,6 +298,8 @@ public class TestJobListController extends PortalTestClass {
             oneOf(mockJobManager).saveJob(mockJob);
             oneOf(mockJobManager).createJobAuditTrail("old mock job status", mockJob, "Job deleted.");
 
+            allowing(mockJob).getId();will(returnValue(jobId));
+            oneOf(mockScriptBuilderService).evict(Integer.toString(jobId));
             oneOf(mockFileStagingService).deleteStageInDirectory(mockJob);
             oneOf(mockJob).getRegisteredUrl();will(returnValue(null)); //the job isn't registered
             oneOf(mockCloudStorageServices[0]).deleteJobFiles(mockJob); //this must occur if the job isnt registered
@@ -362,6 +374,8 @@ public class TestJobListController extends PortalTestClass {
             oneOf(mockJobs.get(0)).setStatus(JobBuilderController.STATUS_DELETED);
             oneOf(mockJobManager).saveJob(mockJobs.get(0));
             oneOf(mockJobManager).createJobAuditTrail(JobBuilderController.STATUS_PENDING, mockJobs.get(0), "Job deleted.");
+            allowing(mockJobs.get(0)).getId();will(returnValue(1));
+            oneOf(mockScriptBuilderService).evict("1");
             oneOf(mockFileStagingService).deleteStageInDirectory(mockJobs.get(0));
             oneOf(mockJobs.get(0)).getRegisteredUrl();will(returnValue("geonetwork url"));
 
@@ -369,6 +383,8 @@ public class TestJobListController extends PortalTestClass {
             oneOf(mockJobs.get(1)).setStatus(JobBuilderController.STATUS_DELETED);
             oneOf(mockJobManager).saveJob(mockJobs.get(1));
             oneOf(mockJobManager).createJobAuditTrail(JobBuilderController.STATUS_DONE, mockJobs.get(1), "Job deleted.");
+            allowing(mockJobs.get(1)).getId();will(returnValue(2));
+            oneOf(mockScriptBuilderService).evict("2");
             oneOf(mockFileStagingService).deleteStageInDirectory(mockJobs.get(1));
             oneOf(mockJobs.get(1)).getRegisteredUrl();will(returnValue("geonetwork url"));
 
@@ -1192,6 +1208,7 @@ public class TestJobListController extends PortalTestClass {
             oneOf(mockJobManager).getJobById(jobId);will(returnValue(existingJob));
             allowing(mockJobManager).saveJob(with(aNonMatchingVeglJob(jobId)));
 
+            oneOf(mockScriptBuilderService).flush(jobId.toString());
             oneOf(mockFileStagingService).generateStageInDirectory(with(aNonMatchingVeglJob(jobId)));
             oneOf(mockFileStagingService).writeFile(with(aNonMatchingVeglJob(jobId)), with(cloudFiles[0].getName()));will(returnValue(bos1));
             oneOf(mockFileStagingService).writeFile(with(aNonMatchingVeglJob(jobId)), with(cloudFiles[1].getName()));will(returnValue(bos2));
@@ -1214,4 +1231,90 @@ public class TestJobListController extends PortalTestClass {
         Assert.assertArrayEquals(data1, fis1Data);
         Assert.assertArrayEquals(data2, fis2Data);
     }
+
+    /**
+     * Tests that a parameter sweep creates a job for every grid point, fetching shared inputs only once
+     */
+    @Test
+    public void testCreateJobSweep() throws Exception {
+        final Integer jobId = 1234;
+        final String userEmail = "exampleuser@email.com";
+        final String[] files = new String[] {"file1.txt"};
+        final byte[] data1 = new byte[] {1,3,4};
+        final CloudFileInformation[] cloudFiles = new CloudFileInformation[] {
+                new CloudFileInformation("long/key/file1.txt", data1.length, "http://example.org/file1"),
+                new CloudFileInformation("long/key/file2.txt", 5L, "http://example.org/file2") //this will not be downloaded
+        };
+
+        final VEGLJob templateJob = new VEGLJob(jobId);
+        templateJob.setName("template");
+        templateJob.setUser(userEmail);
+        templateJob.setComputeServiceId(computeServiceId);
+        templateJob.setStorageServiceId(storageServiceId);
+
+        final ByteArrayOutputStream[] staged = new ByteArrayOutputStream[] {new ByteArrayOutputStream(), new ByteArrayOutputStream(), new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+
+        context.checking(new Expectations() {{
+            allowing(mockPortalUser).getEmail();will(returnValue(userEmail));
+            oneOf(mockJobManager).getJobById(jobId);will(returnValue(templateJob));
+
+            //All jobs are created at once (we simulate the ID allocation)
+            oneOf(mockJobManager).createJobs(with(any(List.class)), with(any(VEGLJobDao.InsertCallback.class)), with(any(String.class)));
+            will(new CustomAction("Insert jobs") {
+                @SuppressWarnings("unchecked")
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    List<VEGLJob> jobs = (List<VEGLJob>) invocation.getParameter(0);
+                    VEGLJobDao.InsertCallback callback = (VEGLJobDao.InsertCallback) invocation.getParameter(1);
+                    for (int i = 0; i < jobs.size(); i++) {
+                        jobs.get(i).setId(100 + i);
+                        callback.jobInserted(jobs.get(i));
+                    }
+                    return null;
+                }
+            });
+            exactly(4).of(mockCloudStorageServices[0]).generateBaseKey(with(aNonMatchingVeglJob(jobId)));will(returnValue("base-key"));
+
+            //Shared input is fetched once but staged for every job
+            oneOf(mockCloudStorageServices[0]).listJobFiles(with(aVeglJob(jobId)));will(returnValue(cloudFiles));
+            oneOf(mockCloudStorageServices[0]).getJobFile(with(aVeglJob(jobId)), with(cloudFiles[0].getName()));will(returnValue(new ByteArrayInputStream(data1)));
+            exactly(4).of(mockFileStagingService).generateStageInDirectory(with(aNonMatchingVeglJob(jobId)));
+            exactly(4).of(mockFileStagingService).writeFile(with(aNonMatchingVeglJob(jobId)), with(cloudFiles[0].getName()));
+            will(onConsecutiveCalls(returnValue(staged[0]), returnValue(staged[1]), returnValue(staged[2]), returnValue(staged[3])));
+        }});
+
+        ModelAndView mav = controller.createJobSweep(mockRequest, jobId, files, "{\"a\":[1,2],\"b\":[\"x\",\"y\"]}", mockPortalUser);
+        Assert.assertTrue((Boolean) mav.getModel().get("success"));
+        Assert.assertEquals(Arrays.asList(100, 101, 102, 103), mav.getModel().get("data"));
+
+        for (ByteArrayOutputStream bos : staged) {
+            Assert.assertArrayEquals(data1, bos.toByteArray());
+        }
+    }
+
+    /**
+     * Tests that sweeps that are too large are rejected
+     */
+    @Test
+    public void testCreateJobSweepTooLarge() throws Exception {
+        final Integer jobId = 1234;
+        final String userEmail = "exampleuser@email.com";
+        final VEGLJob templateJob = new VEGLJob(jobId);
+        templateJob.setUser(userEmail);
+        templateJob.setStorageServiceId(storageServiceId);
+
+        StringBuilder values = new StringBuilder("[0");
+        for (int i = 1; i < 100; i++) {
+            values.append("," + i);
+        }
+        values.append("]");
+
+        context.checking(new Expectations() {{
+            allowing(mockPortalUser).getEmail();will(returnValue(userEmail));
+            oneOf(mockJobManager).getJobById(jobId);will(returnValue(templateJob));
+        }});
+
+        ModelAndView mav = controller.createJobSweep(mockRequest, jobId, null, String.format("{\"a\":%1$s,\"b\":%1$s}", values), mockPortalUser);
+        Assert.assertFalse((Boolean) mav.getModel().get("success"));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package org.auscope.portal.server.web.controllers;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONObject;
+
+import org.auscope.portal.core.services.KnownLayerService;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
+import org.auscope.portal.core.view.ViewCSWRecordFactory;
+import org.auscope.portal.core.view.ViewKnownLayerFactory;
+import org.auscope.portal.core.view.knownlayer.KnownLayerAndRecords;
+import org.auscope.portal.core.view.knownlayer.KnownLayerGrouping;
+import org.auscope.portal.server.web.service.csw.CSWRecordSnapshot;
+import org.auscope.portal.server.web.service.csw.IncrementalCSWCacheService;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestKnownLayerController extends PortalTestClass {
+    private KnownLayerService mockKnownLayerService = context.mock(KnownLayerService.class);
+    private ViewKnownLayerFactory mockViewKnownLayerFactory = context.mock(ViewKnownLayerFactory.class);
+    private ViewCSWRecordFactory mockViewCSWRecordFactory = context.mock(ViewCSWRecordFactory.class);
+    private IncrementalCSWCacheService mockCSWCacheService = context.mock(IncrementalCSWCacheService.class);
+    private KnownLayerGrouping mockGrouping = context.mock(KnownLayerGrouping.class);
+    private HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+
+    private KnownLayerController controller;
+
+    @Before
+    public void setup() {
+        controller = new KnownLayerController(mockKnownLayerService, mockViewKnownLayerFactory, mockViewCSWRecordFactory, mockCSWCacheService);
+    }
+
+    private CSWRecordSnapshot makeSnapshot(long version) {
+        return new CSWRecordSnapshot(version, new HashMap<String, Map<String, CSWRecord>>(), new HashMap<String, Date>());
+    }
+
+    /**
+     * Tests that known layers are only grouped once per CSW cache snapshot
+     * @throws Exception
+     */
+    @Test
+    public void testGroupingReused() throws Exception {
+        final ReadableServletOutputStream knownLayersStream = new ReadableServletOutputStream();
+        final ReadableServletOutputStream unmappedStream = new ReadableServletOutputStream();
+        final ReadableServletOutputStream regroupedStream = new ReadableServletOutputStream();
+
+        context.checking(new Expectations() {{
+            exactly(2).of(mockCSWCacheService).getSnapshot();will(returnValue(makeSnapshot(1)));
+            oneOf(mockCSWCacheService).getSnapshot();will(returnValue(makeSnapshot(2)));
+
+            //Only one grouping per snapshot
+            exactly(2).of(mockKnownLayerService).groupKnownLayerRecords();will(returnValue(mockGrouping));
+            allowing(mockGrouping).getKnownLayers();will(returnValue(new ArrayList<KnownLayerAndRecords>()));
+            allowing(mockGrouping).getUnmappedRecords();will(returnValue(new ArrayList<CSWRecord>()));
+
+            allowing(mockRequest).getHeader(with(any(String.class)));will(returnValue(null));
+            allowing(mockResponse).setHeader(with(any(String.class)), with(any(String.class)));
+            allowing(mockResponse).setContentType(with(any(String.class)));
+            allowing(mockResponse).setContentLength(with(any(Integer.class)));
+            exactly(3).of(mockResponse).getOutputStream();
+            will(onConsecutiveCalls(returnValue(knownLayersStream), returnValue(unmappedStream), returnValue(regroupedStream)));
+        }});
+
+        Assert.assertNull(controller.getKnownLayers(mockRequest, mockResponse));
+        Assert.assertNull(controller.getUnmappedCSWRecords(mockRequest, mockResponse));
+        Assert.assertNull(controller.getKnownLayers(mockRequest, mockResponse));
+
+        JSONObject knownLayers = JSONObject.fromObject(new String(knownLayersStream.getDataWritten(), "UTF-8"));
+        Assert.assertTrue(knownLayers.getBoolean("success"));
+        Assert.assertEquals(0, knownLayers.getJSONArray("data").size());
+
+        JSONObject unmapped = JSONObject.fromObject(new String(unmappedStream.getDataWritten(), "UTF-8"));
+        Assert.assertTrue(unmapped.getBoolean("success"));
+    }
+}
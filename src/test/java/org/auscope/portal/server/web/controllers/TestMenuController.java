@@ -1,5 +1,8 @@
 package org.auscope.portal.server.web.controllers;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
@@ -8,6 +11,8 @@ import junit.framework.Assert;
 
 import org.auscope.portal.core.server.PortalPropertyPlaceholderConfigurer;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.util.PreRenderedResponse;
+import org.auscope.portal.server.web.service.BuildInfoService;
 import org.jmock.Expectations;
 import org.junit.Before;
 import org.junit.Test;
@@ -23,13 +28,14 @@ public class TestMenuController extends PortalTestClass {
     private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
     private PortalPropertyPlaceholderConfigurer hostConfigurer = context.mock(PortalPropertyPlaceholderConfigurer.class);
     private HttpSession mockSession = context.mock(HttpSession.class);
+    private BuildInfoService mockBuildInfoService = context.mock(BuildInfoService.class);
 
 
     private MenuController mc = null;
 
     @Before
     public void setup() {
-        mc = new MenuController(hostConfigurer);
+        mc = new MenuController(hostConfigurer, mockBuildInfoService);
     }
 
     /**
@@ -150,4 +156,67 @@ public class TestMenuController extends PortalTestClass {
         Assert.assertNotNull(mav);
         Assert.assertEquals(mav.getModel().get("isNewSession"), false);
     }
+
+    /**
+     * Tests that the about page is populated from the (startup loaded) build details
+     * @throws Exception
+     */
+    @Test
+    public void testHandleHtmlToView_About() throws Exception {
+        final String uri = "/context/about.html";
+        final Map<String, String> buildInfo = new HashMap<String, String>();
+        buildInfo.put("specificationTitle", "VGL");
+        buildInfo.put("implementationVersion", "1.2.3");
+
+        context.checking(new Expectations() {{
+            oneOf(mockRequest).getRequestURI();will(returnValue(uri));
+            allowing(mockRequest).getServerName();will(returnValue("example.org"));
+
+            allowing(mockRequest).getSession();will(returnValue(mockSession));
+            oneOf(mockSession).getAttribute("existingSession");will(returnValue(true));
+            oneOf(mockSession).setAttribute("existingSession", true);
+
+            allowing(hostConfigurer).resolvePlaceholder(with(any(String.class)));will(returnValue(null));
+
+            oneOf(mockBuildInfoService).getBuildInfo();will(returnValue(buildInfo));
+        }});
+
+        ModelAndView mav = mc.handleHtmlToView(mockRequest, mockResponse);
+
+        Assert.assertNotNull(mav);
+        Assert.assertEquals("about", mav.getViewName());
+        Assert.assertEquals("VGL", mav.getModel().get("specificationTitle"));
+        Assert.assertEquals("1.2.3", mav.getModel().get("implementationVersion"));
+        Assert.assertEquals("example.org", mav.getModel().get("serverName"));
+    }
+
+    /**
+     * Tests that the build details are served from the pre rendered response
+     * @throws Exception
+     */
+    @Test
+    public void testGetBuildInfo() throws Exception {
+        final PreRenderedResponse mockRendered = context.mock(PreRenderedResponse.class);
+
+        context.checking(new Expectations() {{
+            allowing(mockBuildInfoService).getRenderedResponse();will(returnValue(mockRendered));
+            oneOf(mockRendered).write(mockRequest, mockResponse);
+        }});
+
+        mc.getBuildInfo(mockRequest, mockResponse);
+    }
+
+    /**
+     * Tests that missing build details are reported as an error
+     * @throws Exception
+     */
+    @Test
+    public void testGetBuildInfoUnavailable() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockBuildInfoService).getRenderedResponse();will(returnValue(null));
+            oneOf(mockResponse).sendError(with(equal(503)), with(any(String.class)));
+        }});
+
+        mc.getBuildInfo(mockRequest, mockResponse);
+    }
 }
@@ -1,14 +1,17 @@
 package org.auscope.portal.server.web.controllers;
 
+import java.util.List;
+
 import junit.framework.Assert;
 
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.web.service.ReprojectionService;
 import org.junit.Test;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.servlet.ModelAndView;
 
 public class TestReprojectionController extends PortalTestClass {
-    ReprojectionController cont = new ReprojectionController();
+    ReprojectionController cont = new ReprojectionController(new ReprojectionService());
 
     /**
      * Simple test with dataset that will return MGA Zone of 49.
@@ -213,4 +216,37 @@ public class TestReprojectionController extends PortalTestClass {
         Assert.assertFalse((Boolean) mav.getModel().get("success"));
         Assert.assertNull(mav.getModel().get("data"));        
     }
+
+    /**
+     * Tests that a batch of bboxes are projected in order (with individually estimated zones)
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBBoxesReproject() throws Exception {
+        ModelAndView mav = cont.projectBBoxesToUtm("-30,-32,125,110, -30,-32,150,110", null);
+        Assert.assertNotNull(mav);
+        Assert.assertTrue((Boolean) mav.getModel().get("success"));
+
+        List<ModelMap> data = (List<ModelMap>) mav.getModel().get("data");
+        Assert.assertEquals(2, data.size());
+        Assert.assertEquals(50, data.get(0).get("mgaZone"));
+        Assert.assertEquals(52, data.get(1).get("mgaZone"));
+
+        //The single bbox endpoint should agree with the batch endpoint
+        ModelMap single = (ModelMap) cont.projectBBoxToUtm(-30, -32, 125, 110, null).getModel().get("data");
+        Assert.assertEquals(single, data.get(0));
+    }
+
+    /**
+     * Tests that malformed batches fail gracefully
+     * @throws Exception
+     */
+    @Test
+    public void testBBoxesReproject_Invalid() throws Exception {
+        Assert.assertFalse((Boolean) cont.projectBBoxesToUtm("-30,-32,125", null).getModel().get("success"));
+        Assert.assertFalse((Boolean) cont.projectBBoxesToUtm("-30,-32,125,abc", null).getModel().get("success"));
+        Assert.assertFalse((Boolean) cont.projectBBoxesToUtm("-30,-32,125,110", 61).getModel().get("success"));
+        Assert.assertFalse((Boolean) cont.projectBBoxesToUtm("-30,-32,100,50", null).getModel().get("success"));
+    }
 }
\ No newline at end of file
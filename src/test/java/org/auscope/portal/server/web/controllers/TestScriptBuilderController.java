@@ -1,6 +1,9 @@
 package org.auscope.portal.server.web.controllers;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.Assert;
@@ -8,11 +11,14 @@ import junit.framework.Assert;
 import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.test.PortalTestClass;
 import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.server.util.LineDiff;
 import org.auscope.portal.server.web.service.ScriptBuilderService;
+import org.auscope.portal.server.web.service.ScriptRevisionHistory.Revision;
 import org.jmock.Expectations;
 import org.junit.Before;
 import org.junit.Test;
 import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.springframework.ui.ModelMap;
 import org.springframework.web.servlet.ModelAndView;
 
 @PrepareForTest({FileIOUtil.class})
@@ -135,4 +141,71 @@ public class TestScriptBuilderController extends PortalTestClass {
 
         controller.getTemplatedScript(templateName, keys, values);
     }
+
+    /**
+     * Tests that script revisions are listed
+     * @throws Exception
+     */
+    @Test
+    public void testGetScriptRevisions() throws Exception {
+        final String jobId = "1";
+        final List<Revision> revisions = Arrays.asList(new Revision(2, new Date(2000L), 15), new Revision(1, new Date(1000L), 10));
+
+        context.checking(new Expectations() {{
+            oneOf(mockSbService).getRevisions(jobId);
+            will(returnValue(revisions));
+        }});
+
+        ModelAndView mav = controller.getScriptRevisions(jobId);
+        Assert.assertTrue((Boolean)mav.getModel().get("success"));
+
+        List<ModelMap> data = (List<ModelMap>) mav.getModel().get("data");
+        Assert.assertEquals(2, data.size());
+        Assert.assertEquals(2, data.get(0).get("revision"));
+        Assert.assertEquals(2000L, data.get(0).get("date"));
+        Assert.assertEquals(15, data.get(0).get("length"));
+        Assert.assertEquals(1, data.get(1).get("revision"));
+    }
+
+    /**
+     * Tests that script revisions are compared
+     * @throws Exception
+     */
+    @Test
+    public void testDiffScriptRevisions() throws Exception {
+        final String jobId = "1";
+        final List<LineDiff.Line> lines = Arrays.asList(new LineDiff.Line(LineDiff.Operation.EQUAL, "a"), new LineDiff.Line(LineDiff.Operation.INSERT, "b"));
+
+        context.checking(new Expectations() {{
+            oneOf(mockSbService).diffRevisions(jobId, 1, 2);
+            will(returnValue(lines));
+        }});
+
+        ModelAndView mav = controller.diffScriptRevisions(jobId, 1, 2);
+        Assert.assertTrue((Boolean)mav.getModel().get("success"));
+
+        List<ModelMap> data = (List<ModelMap>) mav.getModel().get("data");
+        Assert.assertEquals(2, data.size());
+        Assert.assertEquals("EQUAL", data.get(0).get("op"));
+        Assert.assertEquals("a", data.get(0).get("text"));
+        Assert.assertEquals("INSERT", data.get(1).get("op"));
+        Assert.assertEquals("b", data.get(1).get("text"));
+    }
+
+    /**
+     * Tests that restoring a missing revision fails
+     * @throws Exception
+     */
+    @Test
+    public void testRestoreScriptRevision_Exception() throws Exception {
+        final String jobId = "1";
+
+        context.checking(new Expectations() {{
+            oneOf(mockSbService).restoreRevision(jobId, 5);
+            will(throwException(new PortalServiceException("")));
+        }});
+
+        ModelAndView mav = controller.restoreScriptRevision(jobId, 5);
+        Assert.assertFalse((Boolean)mav.getModel().get("success"));
+    }
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -21,6 +22,7 @@ import org.auscope.portal.core.services.responses.wcs.Resolution;
 import org.auscope.portal.core.services.responses.wcs.SpatialDomain;
 import org.auscope.portal.core.services.responses.wcs.TimeConstraint;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.web.service.http.ResponseStreamer;
 import org.jmock.Expectations;
 import org.junit.Assert;
 import org.junit.Test;
@@ -30,6 +32,7 @@ import org.springframework.web.servlet.ModelAndView;
 public class TestWCSController extends PortalTestClass {
 
     private WCSService wcsService = context.mock(WCSService.class);
+    private ResponseStreamer responseStreamer = new ResponseStreamer(4, 1024, 0);
     private MyServletOutputStream outStream;
 
     private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
@@ -55,14 +58,14 @@ public class TestWCSController extends PortalTestClass {
     public void testBadTimePositions() throws Exception {
         try {
             final String[] timePositions = new String[] {"1986-10-09 12:34:56 FAIL"};
-            WCSController controller = new WCSController(wcsService);
+            WCSController controller = new WCSController(wcsService, responseStreamer);
             controller.downloadWCSAsZip("url", "layer", "GeoTIFF", "inputCrs", 1, 1, null, null, "outputCrs", 1, 2, 3, 4, timePositions, null, null, null, null , mockResponse);
             Assert.fail("Should've failed to parse time");
         } catch (ParseException ex) { }
 
         try {
             final String[] timePositions = new String[] {"1986-10-09 12:99:56"};
-            WCSController controller = new WCSController(wcsService);
+            WCSController controller = new WCSController(wcsService, responseStreamer);
             controller.downloadWCSAsZip("url", "layer", "GeoTIFF", "inputCrs", 1, 1, null, null, "outputCrs", 1, 2, 3, 4, timePositions, null, null, null, null , mockResponse);
             Assert.fail("Should've failed to parse time");
         } catch (ParseException ex) { }
@@ -72,21 +75,21 @@ public class TestWCSController extends PortalTestClass {
     public void testBadCustomParams() throws Exception {
         try {
             final String[] customParamValue = new String[] {"param1=1/a/3", "param2=4", "param1=5"};
-            WCSController controller = new WCSController(wcsService);
+            WCSController controller = new WCSController(wcsService, responseStreamer);
             controller.downloadWCSAsZip("url", "layer", "GeoTIFF", "inputCrs", 1, 1, null, null, "outputCrs", 1, 2, 3, 4, null, null, null, null, customParamValue , mockResponse);
             Assert.fail("Should've failed to parse custom params");
         } catch (IllegalArgumentException ex) { }
 
         try {
             final String[] customParamValue = new String[] {"param1=1/2/3", "param2=a", "param1=5"};
-            WCSController controller = new WCSController(wcsService);
+            WCSController controller = new WCSController(wcsService, responseStreamer);
             controller.downloadWCSAsZip("url", "layer", "GeoTIFF", "inputCrs", 1, 1, null, null, "outputCrs", 1, 2, 3, 4, null, null, null, null, customParamValue , mockResponse);
             Assert.fail("Should've failed to parse custom params");
         } catch (IllegalArgumentException ex) { }
 
         try {
             final String[] customParamValue = new String[] {"param1=a/2/3", "param2=2", "param1=5"};
-            WCSController controller = new WCSController(wcsService);
+            WCSController controller = new WCSController(wcsService, responseStreamer);
             controller.downloadWCSAsZip("url", "layer", "GeoTIFF", "inputCrs", 1, 1, null, null, "outputCrs", 1, 2, 3, 4, null, null, null, null, customParamValue , mockResponse);
             Assert.fail("Should've failed to parse custom params");
         } catch (IllegalArgumentException ex) { }
@@ -137,7 +140,7 @@ public class TestWCSController extends PortalTestClass {
             allowing(mockResponse).setHeader(with(any(String.class)), with(any(String.class)));
          }});
 
-        WCSController controller = new WCSController(wcsService);
+        WCSController controller = new WCSController(wcsService, responseStreamer);
         controller.downloadWCSAsZip(serviceUrl, layerName, format, inputCrs, outputWidth, outputHeight, outputResX, outputResY, outputCrs, northBoundLat, southBoundLat, eastBoundLng, westBoundLng, timePositions, timePeriodFrom, timePeriodTo,timePeriodResolution, customParamValue , mockResponse);
     }
 
@@ -189,7 +192,7 @@ public class TestWCSController extends PortalTestClass {
             allowing(mockResponse).setHeader(with(any(String.class)), with(any(String.class)));
          }});
 
-        WCSController controller = new WCSController(wcsService);
+        WCSController controller = new WCSController(wcsService, responseStreamer);
         controller.downloadWCSAsZip(serviceUrl, layerName, format, inputCrs, outputWidth, outputHeight, outputResX, outputResY, outputCrs, northBoundLat, southBoundLat, eastBoundLng, westBoundLng, timePositions, timePeriodFrom, timePeriodTo,timePeriodResolution, customParams , mockResponse);
 
         ZipInputStream zip = outStream.getZipInputStream();
@@ -215,7 +218,7 @@ public class TestWCSController extends PortalTestClass {
             will(returnValue(records));
          }});
 
-        WCSController controller = new WCSController(wcsService);
+        WCSController controller = new WCSController(wcsService, responseStreamer);
         ModelAndView mav = controller.describeCoverage(serviceUrl, layerName);
 
         Assert.assertNotNull(mav);
@@ -254,7 +257,7 @@ public class TestWCSController extends PortalTestClass {
             will(returnValue(new DescribeCoverageRecord[] {record}));
          }});
 
-        WCSController controller = new WCSController(wcsService);
+        WCSController controller = new WCSController(wcsService, responseStreamer);
         ModelAndView mav = controller.estimateCoverageSize(north, south, east, west, serviceUrl, layerName);
         Assert.assertNotNull(mav);
         Assert.assertEquals(true, mav.getModel().get("success"));
@@ -283,9 +286,99 @@ public class TestWCSController extends PortalTestClass {
             will(throwException(new PortalServiceException("err")));
          }});
 
-        WCSController controller = new WCSController(wcsService);
+        WCSController controller = new WCSController(wcsService, responseStreamer);
         ModelAndView mav = controller.estimateCoverageSize(north, south, east, west, serviceUrl, layerName);
         Assert.assertNotNull(mav);
         Assert.assertEquals(false, mav.getModel().get("success"));
     }
+
+    private DescribeCoverageRecord makeGriddedRecord(String layerName) {
+        final double[][] offsetVectors = new double[][] {new double[] {2, 0 ,0},
+                new double[] {0, 1, 0},
+                new double[] {0, 0, 0.5}};
+
+        final RectifiedGrid rg = new RectifiedGrid("wgs:84", 2, new int[] {10, 10, 10}, new int[] {110, 110, 110}, new double[] {0, -80, 0},offsetVectors, new String[] {"x", "y", "z"});
+        final SpatialDomain sd = new SpatialDomain(null, rg);
+        return new DescribeCoverageRecord("", layerName, "", null, null, null, null, null, sd, null, null);
+    }
+
+    /**
+     * Tests that the coverage geometry is only described once for repeated estimates
+     * @throws Exception
+     */
+    @Test
+    public void testEstimateCoverageSizeCached() throws Exception {
+        final String serviceUrl = "http://example.com/test";
+        final String layerName = "layer_name";
+        final DescribeCoverageRecord record = makeGriddedRecord(layerName);
+
+        context.checking(new Expectations() {{
+            oneOf(wcsService).describeCoverage(serviceUrl, layerName);
+            will(returnValue(new DescribeCoverageRecord[] {record}));
+         }});
+
+        WCSController controller = new WCSController(wcsService, responseStreamer);
+        ModelAndView mav = controller.estimateCoverageSize(10, -50, 60, 10, serviceUrl, layerName);
+        Assert.assertEquals(true, mav.getModel().get("success"));
+        Assert.assertEquals(25, ((ModelMap) mav.getModel().get("data")).get("width"));
+
+        mav = controller.estimateCoverageSize(10, -50, 110, 10, serviceUrl, layerName);
+        Assert.assertEquals(true, mav.getModel().get("success"));
+        Assert.assertEquals(50, ((ModelMap) mav.getModel().get("data")).get("width"));
+        Assert.assertEquals(60, ((ModelMap) mav.getModel().get("data")).get("height"));
+    }
+
+    /**
+     * Tests that many bboxes/formats can be estimated in a single request
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testEstimateCoverageSizes() throws Exception {
+        final String serviceUrl = "http://example.com/test";
+        final String layerName = "layer_name";
+        final DescribeCoverageRecord record = makeGriddedRecord(layerName);
+
+        context.checking(new Expectations() {{
+            oneOf(wcsService).describeCoverage(serviceUrl, layerName);
+            will(returnValue(new DescribeCoverageRecord[] {record}));
+         }});
+
+        WCSController controller = new WCSController(wcsService, responseStreamer);
+        ModelAndView mav = controller.estimateCoverageSizes("10,-50,60,10, 10,-50,110,10", new String[] {"GeoTIFF", "ASCII"}, serviceUrl, layerName);
+        Assert.assertEquals(true, mav.getModel().get("success"));
+
+        List<ModelMap> estimates = (List<ModelMap>) mav.getModel().get("data");
+        Assert.assertEquals(2, estimates.size());
+        Assert.assertEquals(25, estimates.get(0).get("width"));
+        Assert.assertEquals(60, estimates.get(0).get("height"));
+        Assert.assertEquals(1500L, estimates.get(0).get("points"));
+        Assert.assertEquals(6000L, ((ModelMap) estimates.get(0).get("bytes")).get("GeoTIFF"));
+        Assert.assertEquals(18000L, ((ModelMap) estimates.get(0).get("bytes")).get("ASCII"));
+        Assert.assertEquals(3000L, estimates.get(1).get("points"));
+
+        //Malformed bboxes should fail without contacting the service
+        mav = controller.estimateCoverageSizes("10,-50,60", null, serviceUrl, layerName);
+        Assert.assertEquals(false, mav.getModel().get("success"));
+    }
+
+    /**
+     * Tests that the download transfer is released even if the response can't be written (eg client abort)
+     */
+    @Test
+    public void testDownloadReleasesTransferOnAbort() throws Exception {
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).getOutputStream(); will(throwException(new IOException("client aborted")));
+            oneOf(mockResponse).setContentType("application/zip");
+            allowing(mockResponse).setHeader(with(any(String.class)), with(any(String.class)));
+        }});
+
+        WCSController controller = new WCSController(wcsService, responseStreamer);
+        try {
+            controller.downloadWCSAsZip("serviceUrl", "layerName", "GeoTIFF", "inputCrs", 1, 2, null, null, "outputCrs", 0.1, -0.2, 0.3, -0.4, null, null, null, null, null, mockResponse);
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertEquals(0, responseStreamer.getActiveTransfers());
+        }
+    }
 }
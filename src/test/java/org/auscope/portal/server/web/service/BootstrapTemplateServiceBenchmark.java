@@ -0,0 +1,75 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares rendering the job bootstrap with BootstrapTemplateService against the approach it replaced
+ * (reading vl-bootstrap.sh and formatting it with MessageFormat for every job).
+ *
+ * renderMessageFormatOnly excludes the resource loading to show the cost of re-parsing the template alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BootstrapTemplateServiceBenchmark {
+
+    private static final String BOOTSTRAP_RESOURCE = BootstrapTemplateService.DEFAULT_RESOURCE_BASE + BootstrapTemplateService.TEMPLATE_EXTENSION;
+
+    private BootstrapTemplateService service;
+    private String bootstrapTemplate;
+    private Object[] arguments;
+
+    @Setup
+    public void setup() throws Exception {
+        service = new BootstrapTemplateService();
+        bootstrapTemplate = ResourceUtil.loadResourceAsString(BOOTSTRAP_RESOURCE).replaceAll("\r", "");
+        arguments = new Object[] {"bucket", "job-user-1/job-1", "access", "secret", "http://example.org/vl.sh",
+                "http://example.org/storage", "swift", "", "region"};
+
+        //Load (and parse) the template up front
+        service.render(null, arguments);
+    }
+
+    @Benchmark
+    public String renderPrecompiled() throws Exception {
+        return service.render(null, arguments);
+    }
+
+    /**
+     * The bootstrap rendering as it was prior to BootstrapTemplateService
+     */
+    @Benchmark
+    public String renderMessageFormat() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream(BOOTSTRAP_RESOURCE);
+        String template;
+        try {
+            template = IOUtils.toString(is);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return MessageFormat.format(template.replaceAll("\r", ""), arguments);
+    }
+
+    @Benchmark
+    public String renderMessageFormatOnly() {
+        return MessageFormat.format(bootstrapTemplate, arguments);
+    }
+}
@@ -0,0 +1,85 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.auscope.portal.core.services.namespaces.XsdNamespace;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares the streaming DescribeFeatureType parsing in SimpleWfsService against the DOM/XPath parsing
+ * it replaced using DescribeFeatureTypeResponse-SF0.xml.
+ *
+ * Run with -prof gc to compare allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimpleWfsServiceBenchmark {
+
+    private SimpleWfsService service;
+    private String describeFeatureTypeResponse;
+
+    @Setup
+    public void setup() throws Exception {
+        service = new SimpleWfsService(null, null);
+        describeFeatureTypeResponse = ResourceUtil.loadResourceAsString("DescribeFeatureTypeResponse-SF0.xml");
+    }
+
+    @Benchmark
+    public List<SimpleFeatureProperty> parseStax() throws Exception {
+        return service.parseSimpleFeatureProperties(new StringReader(describeFeatureTypeResponse));
+    }
+
+    /**
+     * The parsing as it was prior to the StAX implementation
+     */
+    @Benchmark
+    public List<SimpleFeatureProperty> parseDomXPath() throws Exception {
+        Document doc = DOMUtil.buildDomFromString(describeFeatureTypeResponse);
+
+        NamespaceContext nc = new XsdNamespace();
+        XPathExpression expr = DOMUtil.compileXPathExpr("xsd:schema/xsd:complexType/xsd:complexContent/xsd:extension/xsd:sequence/xsd:element", nc);
+        NodeList elementNodes = (NodeList) expr.evaluate(doc, XPathConstants.NODESET);
+
+        List<SimpleFeatureProperty> featureTypes = new ArrayList<SimpleFeatureProperty>();
+        for (int i = 0; i < elementNodes.getLength(); i++) {
+            Node n = elementNodes.item(i);
+
+            SimpleFeatureProperty sft = new SimpleFeatureProperty(
+                    Integer.parseInt(n.getAttributes().getNamedItem("maxOccurs").getTextContent()),
+                    Integer.parseInt(n.getAttributes().getNamedItem("minOccurs").getTextContent()),
+                    n.getAttributes().getNamedItem("name").getTextContent(),
+                    Boolean.parseBoolean(n.getAttributes().getNamedItem("nillable").getTextContent()),
+                    n.getAttributes().getNamedItem("type").getTextContent(),
+                    i + 1);
+
+            featureTypes.add(sft);
+        }
+
+        return featureTypes;
+    }
+}
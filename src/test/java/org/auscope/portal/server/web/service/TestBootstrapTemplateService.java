@@ -0,0 +1,35 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.IOException;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBootstrapTemplateService extends PortalTestClass {
+
+    private BootstrapTemplateService service = new BootstrapTemplateService("bootstrap/test-bootstrap");
+
+    /**
+     * Tests that compute services with a template variant use it and all others fall back to the default
+     * @throws Exception
+     */
+    @Test
+    public void testVariants() throws Exception {
+        Assert.assertEquals("#!/usr/bin/env bash\necho \"variant abc\"\n", service.render("variant", "abc"));
+        Assert.assertEquals("#!/usr/bin/env bash\necho \"default abc\"\n", service.render("other", "abc"));
+        Assert.assertEquals("#!/usr/bin/env bash\necho \"default def\"\n", service.render(null, "def"));
+
+        //Templates are only parsed once
+        Assert.assertSame(service.getTemplate("other"), service.getTemplate("other"));
+    }
+
+    /**
+     * Tests that a missing template is reported as an IOException
+     * @throws Exception
+     */
+    @Test(expected=IOException.class)
+    public void testMissingTemplate() throws Exception {
+        new BootstrapTemplateService("bootstrap/does-not-exist").render(null, "abc");
+    }
+}
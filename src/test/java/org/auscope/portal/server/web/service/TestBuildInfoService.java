@@ -0,0 +1,68 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayInputStream;
+
+import javax.servlet.ServletContext;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for BuildInfoService
+ */
+public class TestBuildInfoService extends PortalTestClass {
+    private ServletContext mockServletContext = context.mock(ServletContext.class);
+
+    /**
+     * Tests that the manifest is read (once) at startup
+     * @throws Exception
+     */
+    @Test
+    public void testManifestRead() throws Exception {
+        final String manifest = "Manifest-Version: 1.0\r\n" +
+                "Specification-Title: VGL\r\n" +
+                "Implementation-Version: 1.2.3\r\n" +
+                "Implementation-Build: abc123\r\n\r\n";
+
+        context.checking(new Expectations() {{
+            oneOf(mockServletContext).getResourceAsStream(BuildInfoService.MANIFEST_PATH);will(returnValue(new ByteArrayInputStream(manifest.getBytes("UTF-8"))));
+            allowing(mockServletContext).getServerInfo();will(returnValue("Tomcat"));
+        }});
+
+        BuildInfoService service = new BuildInfoService();
+        service.setServletContext(mockServletContext);
+
+        Assert.assertEquals("VGL", service.getValue("specificationTitle"));
+        Assert.assertEquals("1.2.3", service.getValue("implementationVersion"));
+        Assert.assertEquals("abc123", service.getValue("implementationBuild"));
+        Assert.assertNull(service.getValue("builtBy"));
+        Assert.assertEquals("Tomcat", service.getValue("serverInfo"));
+        Assert.assertNotNull(service.getRenderedResponse());
+        Assert.assertNotNull(service.getRenderedResponse().getETag());
+
+        //Values are read and rendered once
+        Assert.assertSame(service.getBuildInfo(), service.getBuildInfo());
+        Assert.assertSame(service.getRenderedResponse(), service.getRenderedResponse());
+    }
+
+    /**
+     * Tests that a missing manifest doesn't prevent startup
+     * @throws Exception
+     */
+    @Test
+    public void testMissingManifest() throws Exception {
+        context.checking(new Expectations() {{
+            oneOf(mockServletContext).getResourceAsStream(BuildInfoService.MANIFEST_PATH);will(returnValue(null));
+            allowing(mockServletContext).getServerInfo();will(returnValue("Tomcat"));
+        }});
+
+        BuildInfoService service = new BuildInfoService();
+        service.setServletContext(mockServletContext);
+
+        Assert.assertNull(service.getValue("specificationTitle"));
+        Assert.assertEquals("Tomcat", service.getValue("serverInfo"));
+        Assert.assertNotNull(service.getRenderedResponse());
+    }
+}
@@ -0,0 +1,139 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.collections.iterators.IteratorEnumeration;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.vegl.VglDownload;
+import org.auscope.portal.server.web.service.DownloadBasketService.AddResult;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for DownloadBasketService
+ */
+public class TestDownloadBasketService extends PortalTestClass {
+    private HttpSession mockSession = context.mock(HttpSession.class);
+    private Map<String, Object> sessionAttributes = new HashMap<String, Object>();
+    private DownloadBasketService service;
+
+    @Before
+    public void setup() {
+        service = new DownloadBasketService();
+        service.setMaxDownloads(3);
+
+        //Back our mock session with sessionAttributes
+        context.checking(new Expectations() {{
+            allowing(mockSession).getAttribute(with(any(String.class)));will(new CustomAction("getAttribute") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    return sessionAttributes.get(invocation.getParameter(0));
+                }
+            });
+            allowing(mockSession).setAttribute(with(any(String.class)), with(any(Object.class)));will(new CustomAction("setAttribute") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    sessionAttributes.put((String) invocation.getParameter(0), invocation.getParameter(1));
+                    return null;
+                }
+            });
+            allowing(mockSession).removeAttribute(with(any(String.class)));will(new CustomAction("removeAttribute") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    sessionAttributes.remove(invocation.getParameter(0));
+                    return null;
+                }
+            });
+            allowing(mockSession).getAttributeNames();will(new CustomAction("getAttributeNames") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    return new IteratorEnumeration(new HashMap<String, Object>(sessionAttributes).keySet().iterator());
+                }
+            });
+        }});
+    }
+
+    private static VglDownload makeDownload(String url, Double north) {
+        VglDownload download = new VglDownload(12);
+        download.setUrl(url);
+        download.setName("name-" + url);
+        download.setDescription("desc");
+        download.setLocalPath("path");
+        download.setNorthBoundLatitude(north);
+        download.setSouthBoundLatitude(north == null ? null : north - 1);
+        download.setEastBoundLongitude(north == null ? null : 150.0);
+        download.setWestBoundLongitude(north == null ? null : 140.0);
+        return download;
+    }
+
+    /**
+     * Tests that downloads are returned in order and that taking them empties the basket
+     */
+    @Test
+    public void testAddAndTake() {
+        Assert.assertEquals(0, service.size(mockSession));
+
+        Assert.assertEquals(AddResult.ADDED, service.add(mockSession, makeDownload("http://example.org/2", -10.0)));
+        Assert.assertEquals(AddResult.ADDED, service.add(mockSession, makeDownload("http://example.org/1", null)));
+        Assert.assertEquals(2, service.size(mockSession));
+
+        List<VglDownload> downloads = service.takeDownloads(mockSession);
+        Assert.assertEquals(2, downloads.size());
+        Assert.assertEquals("http://example.org/2", downloads.get(0).getUrl());
+        Assert.assertEquals("name-http://example.org/2", downloads.get(0).getName());
+        Assert.assertEquals(-10.0, downloads.get(0).getNorthBoundLatitude(), 0.0);
+        Assert.assertEquals(-11.0, downloads.get(0).getSouthBoundLatitude(), 0.0);
+        Assert.assertNull(downloads.get(0).getId());
+        Assert.assertEquals("http://example.org/1", downloads.get(1).getUrl());
+        Assert.assertNull(downloads.get(1).getNorthBoundLatitude());
+
+        Assert.assertEquals(0, service.size(mockSession));
+        Assert.assertTrue(service.getDownloads(mockSession).isEmpty());
+        Assert.assertTrue(sessionAttributes.isEmpty());
+    }
+
+    /**
+     * Tests that the same URL/bbox is only stored once
+     */
+    @Test
+    public void testDuplicates() {
+        VglDownload duplicate = makeDownload("http://example.org/1", -10.0);
+        duplicate.setName("other-name");
+
+        Assert.assertEquals(AddResult.ADDED, service.add(mockSession, makeDownload("http://example.org/1", -10.0)));
+        Assert.assertEquals(AddResult.DUPLICATE, service.add(mockSession, duplicate));
+        Assert.assertEquals(AddResult.ADDED, service.add(mockSession, makeDownload("http://example.org/1", -20.0)));
+
+        Assert.assertEquals(2, service.size(mockSession));
+        Assert.assertEquals(2, service.getDownloads(mockSession).size());
+
+        //The originally added download is kept
+        VglDownload stored = service.getDownload(mockSession, duplicate);
+        Assert.assertEquals("name-http://example.org/1", stored.getName());
+        Assert.assertNull(service.getDownload(mockSession, makeDownload("http://example.org/2", -10.0)));
+    }
+
+    /**
+     * Tests that the basket won't grow beyond its maximum size
+     */
+    @Test
+    public void testFull() {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(AddResult.ADDED, service.add(mockSession, makeDownload("http://example.org/" + i, null)));
+        }
+        Assert.assertEquals(AddResult.FULL, service.add(mockSession, makeDownload("http://example.org/4", null)));
+        Assert.assertEquals(AddResult.DUPLICATE, service.add(mockSession, makeDownload("http://example.org/0", null)));
+
+        Assert.assertEquals(3, service.size(mockSession));
+        service.clear(mockSession);
+        Assert.assertEquals(AddResult.ADDED, service.add(mockSession, makeDownload("http://example.org/4", null)));
+    }
+}
@@ -0,0 +1,161 @@
+package org.auscope.portal.server.web.service;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.auscope.portal.core.cloud.CloudFileInformation;
+import org.auscope.portal.core.services.GeonetworkService;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.cloud.CloudStorageService;
+import org.auscope.portal.core.services.responses.csw.CSWOnlineResourceImpl;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobManager;
+import org.auscope.portal.server.web.service.JobRegistrationService.RegistrationStatus;
+import org.auscope.portal.server.web.service.JobRegistrationService.Status;
+import org.jmock.Expectations;
+import org.jmock.Sequence;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestJobRegistrationService extends PortalTestClass {
+
+    /** Holds onto submitted tasks until they are explicitly run*/
+    private static class ManualExecutor implements Executor {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> toRun = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable task : toRun) {
+                task.run();
+            }
+        }
+    }
+
+    private VEGLJobManager mockJobManager = context.mock(VEGLJobManager.class);
+    private GeonetworkService mockGNService = context.mock(GeonetworkService.class);
+    private CloudStorageService mockStorageService = context.mock(CloudStorageService.class);
+    private VEGLJob mockJob = context.mock(VEGLJob.class);
+    private ManualExecutor executor = new ManualExecutor();
+    private JobRegistrationService service;
+
+    private final Integer jobId = 1235;
+
+    @Before
+    public void setup() {
+        service = new JobRegistrationService(mockJobManager, mockGNService, executor);
+        service.setListRetryDelayMillis(0);
+
+        context.checking(new Expectations() {{
+            allowing(mockJob).getId();will(returnValue(jobId));
+        }});
+    }
+
+    private List<CSWOnlineResourceImpl> linkResources() throws Exception {
+        return Arrays.asList(new CSWOnlineResourceImpl(new URL("http://example.org/5432"), "WWW:LINK-1.0-http--link", "name", "desc"));
+    }
+
+    /**
+     * Tests that a registration lists outputs, inserts the record and then saves the registered URL
+     * @throws Exception
+     */
+    @Test
+    public void testRegister() throws Exception {
+        final String registeredUrl  = "http://example.csw.url/";
+        final CSWRecord record = new CSWRecord(null);
+        final CloudFileInformation[] outputFileInfo = new CloudFileInformation[] {
+                new CloudFileInformation("my/key1", 100L, "http://public.url1"),
+                new CloudFileInformation("my/key2", 200L, "not a url"),
+                new CloudFileInformation("my/key3", 300L, "http://public.url3")
+        };
+        final Sequence jobSavingSequence = context.sequence("jobSavingSequence");
+
+        context.checking(new Expectations() {{
+            oneOf(mockStorageService).listJobFiles(mockJob);will(returnValue(outputFileInfo));
+            oneOf(mockGNService).makeCSWRecordInsertion(record);will(returnValue(registeredUrl));
+
+            //This must occur in sequence (set our value before saving it)
+            oneOf(mockJob).setRegisteredUrl(registeredUrl);inSequence(jobSavingSequence);
+            oneOf(mockJobManager).saveJob(mockJob);inSequence(jobSavingSequence);
+        }});
+
+        RegistrationStatus status = service.register(mockJob, record, linkResources(), mockStorageService);
+        Assert.assertEquals(Status.PENDING, status.getStatus());
+        Assert.assertSame(status, service.getStatus(jobId));
+
+        executor.runAll();
+
+        status = service.getStatus(jobId);
+        Assert.assertEquals(Status.SUCCEEDED, status.getStatus());
+        Assert.assertEquals(registeredUrl, status.getRegisteredUrl());
+        Assert.assertTrue(status.isFinished());
+
+        //The unparseable output is skipped, the link resource comes last
+        Assert.assertEquals(3, record.getOnlineResources().length);
+    }
+
+    /**
+     * Tests that registering a job that is already being registered doesn't start a second registration
+     * @throws Exception
+     */
+    @Test
+    public void testRegisterInProgress() throws Exception {
+        RegistrationStatus first = service.register(mockJob, new CSWRecord(null), linkResources(), mockStorageService);
+        RegistrationStatus second = service.register(mockJob, new CSWRecord(null), linkResources(), mockStorageService);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, executor.tasks.size());
+    }
+
+    /**
+     * Tests that failures listing output files are retried before failing the registration
+     * @throws Exception
+     */
+    @Test
+    public void testListingFailure() throws Exception {
+        service.setMaxListAttempts(2);
+
+        context.checking(new Expectations() {{
+            exactly(2).of(mockStorageService).listJobFiles(mockJob);will(throwException(new PortalServiceException("")));
+        }});
+
+        service.register(mockJob, new CSWRecord(null), linkResources(), mockStorageService);
+        executor.runAll();
+
+        Assert.assertEquals(Status.FAILED, service.getStatus(jobId).getStatus());
+    }
+
+    /**
+     * Tests that a failure inserting the record fails the registration (and can then be retried)
+     * @throws Exception
+     */
+    @Test
+    public void testInsertionFailure() throws Exception {
+        final CSWRecord record = new CSWRecord(null);
+
+        context.checking(new Expectations() {{
+            allowing(mockStorageService).listJobFiles(mockJob);will(returnValue(new CloudFileInformation[0]));
+            oneOf(mockGNService).makeCSWRecordInsertion(record);will(throwException(new Exception()));
+        }});
+
+        service.register(mockJob, record, linkResources(), mockStorageService);
+        executor.runAll();
+        Assert.assertEquals(Status.FAILED, service.getStatus(jobId).getStatus());
+
+        //A failed registration can be restarted
+        RegistrationStatus status = service.register(mockJob, record, linkResources(), mockStorageService);
+        Assert.assertEquals(Status.PENDING, status.getStatus());
+        Assert.assertEquals(1, executor.tasks.size());
+    }
+}
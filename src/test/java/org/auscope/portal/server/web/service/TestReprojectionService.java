@@ -0,0 +1,77 @@
+package org.auscope.portal.server.web.service;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for ReprojectionService
+ */
+public class TestReprojectionService extends PortalTestClass {
+    private ReprojectionService service = new ReprojectionService();
+
+    /**
+     * Tests MGA zone boundaries
+     */
+    @Test
+    public void testCalculateIdealMgaZone() {
+        Assert.assertEquals(-1, service.calculateIdealMgaZone(-30, 107.99));
+        Assert.assertEquals(49, service.calculateIdealMgaZone(-30, 108));
+        Assert.assertEquals(49, service.calculateIdealMgaZone(-30, 113.99));
+        Assert.assertEquals(50, service.calculateIdealMgaZone(-30, 114));
+        Assert.assertEquals(56, service.calculateIdealMgaZone(-30, 155.99));
+        Assert.assertEquals(-1, service.calculateIdealMgaZone(-30, 156));
+        Assert.assertEquals(-1, service.calculateIdealMgaZone(-30, Double.NaN));
+    }
+
+    /**
+     * Tests that projections are only created once per zone
+     */
+    @Test
+    public void testProjectionCached() {
+        Assert.assertSame(service.getUtmProjection(55), service.getUtmProjection(55));
+        Assert.assertNotSame(service.getUtmProjection(55), service.getUtmProjection(54));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidZone() {
+        service.getUtmProjection(61);
+    }
+
+    /**
+     * Tests that points on a zone's central meridian project to the false easting
+     */
+    @Test
+    public void testProjectPoints() {
+        double[] points = new double[] {0, 0, 147, 0, 147, -30};
+        double[] result = new double[points.length + 2];
+        service.projectPoints(55, points, 2, result, 2, 2);
+
+        Assert.assertEquals(0, result[0], 0);
+        Assert.assertEquals(0, result[1], 0);
+        Assert.assertEquals(500000, result[2], 0.01);
+        Assert.assertEquals(10000000, result[3], 0.01);
+        Assert.assertEquals(500000, result[4], 0.01);
+        Assert.assertTrue(result[5] < 10000000);
+    }
+
+    /**
+     * Tests that a projected bbox encompasses every projected point in the original bbox
+     */
+    @Test
+    public void testProjectBBoxes() {
+        double[] bboxes = new double[] {-30, -32, 150, 144, -10, -12, 125, 120};
+        double[] extents = service.projectBBoxes(bboxes, new int[] {55, 51});
+        Assert.assertEquals(8, extents.length);
+
+        double[] points = new double[] {147, -30, 147, -32, 144, -31, 150, -31};
+        service.projectPoints(55, points, 0, points, 0, 4);
+        for (int i = 0; i < points.length; i += 2) {
+            Assert.assertTrue(points[i] >= extents[0] && points[i] <= extents[2]);
+            Assert.assertTrue(points[i + 1] >= extents[1] && points[i + 1] <= extents[3]);
+        }
+
+        Assert.assertTrue(extents[4] < extents[6]);
+        Assert.assertTrue(extents[5] < extents[7]);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.ConnectException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.Assert;
@@ -11,9 +12,12 @@ import junit.framework.Assert;
 import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.services.cloud.FileStagingService;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.util.LineDiff;
 import org.auscope.portal.server.vegl.VEGLJob;
 import org.auscope.portal.server.vegl.VEGLJobManager;
+import org.auscope.portal.server.web.service.ScriptRevisionHistory.Revision;
 import org.jmock.Expectations;
+import org.jmock.Sequence;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -31,6 +35,7 @@ public class TestScriptBuilderService extends PortalTestClass {
     @Before
     public void init() {
         service = new ScriptBuilderService(mockFileStagingService, mockJobManager);
+        service.setWriteBehindDelay(0); //write through unless a test says otherwise
     }
 
     /**
@@ -181,4 +186,173 @@ public class TestScriptBuilderService extends PortalTestClass {
         String result = service.populateTemplate(template, values);
         Assert.assertEquals("I have 2 dogs and ${cat-amount} cats", result);
     }
+
+    /**
+     * Tests that a loaded script is cached (no further DB/filesystem access)
+     */
+    @Test
+    public void testLoadScriptCached() throws Exception {
+        final String script = "#a pretend script\n";
+        final Integer jobId = 123;
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getJobById(jobId);
+            will(returnValue(mockJob));
+
+            oneOf(mockFileStagingService).readFile(mockJob, ScriptBuilderService.SCRIPT_FILE_NAME);
+            will(returnValue(new ByteArrayInputStream(script.getBytes())));
+        }});
+
+        Assert.assertEquals(script, service.loadScript(jobId.toString()));
+        Assert.assertEquals(script, service.loadScript(jobId.toString()));
+    }
+
+    /**
+     * Tests that write-behind coalesces many saves into a single write
+     */
+    @Test
+    public void testSaveScriptWriteBehind() throws Exception {
+        final Integer jobId = 123;
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getJobById(jobId);
+            will(returnValue(mockJob));
+
+            oneOf(mockFileStagingService).writeFile(mockJob, ScriptBuilderService.SCRIPT_FILE_NAME);
+            will(returnValue(bos));
+        }});
+
+        service.setWriteBehindDelay(60000);
+        service.saveScript(jobId.toString(), "#revision 1\n");
+        service.saveScript(jobId.toString(), "#revision 2\n");
+        service.saveScript(jobId.toString(), "#revision 2\n");
+
+        //Nothing written yet, but loading should return the latest save
+        Assert.assertEquals(0, bos.size());
+        Assert.assertEquals("#revision 2\n", service.loadScript(jobId.toString()));
+
+        service.flush();
+        Assert.assertEquals("#revision 2\n", new String(bos.toByteArray()));
+
+        //Nothing left to write
+        service.flush();
+    }
+
+    /**
+     * Tests that script revisions can be listed, compared and restored
+     */
+    @Test
+    public void testRevisions() throws Exception {
+        final Integer jobId = 123;
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getJobById(jobId);
+            will(returnValue(mockJob));
+
+            allowing(mockFileStagingService).writeFile(mockJob, ScriptBuilderService.SCRIPT_FILE_NAME);
+            will(returnValue(bos));
+        }});
+
+        service.setWriteBehindDelay(60000);
+        service.saveScript(jobId.toString(), "line1\nline2\n");
+        service.saveScript(jobId.toString(), "line1\nline2 edited\nline3\n");
+
+        List<Revision> revisions = service.getRevisions(jobId.toString());
+        Assert.assertEquals(2, revisions.size());
+        Assert.assertEquals(2, revisions.get(0).getNumber());
+        Assert.assertEquals(1, revisions.get(1).getNumber());
+        Assert.assertEquals("line1\nline2\n", service.getRevision(jobId.toString(), 1));
+
+        List<LineDiff.Line> diff = service.diffRevisions(jobId.toString(), 1, 2);
+        Assert.assertEquals(LineDiff.Operation.EQUAL, diff.get(0).getOperation());
+        Assert.assertEquals(LineDiff.Operation.DELETE, diff.get(1).getOperation());
+        Assert.assertEquals("line2", diff.get(1).getText());
+
+        Assert.assertEquals("line1\nline2\n", service.restoreRevision(jobId.toString(), 1));
+        Assert.assertEquals("line1\nline2\n", service.loadScript(jobId.toString()));
+        Assert.assertEquals(3, service.getRevisions(jobId.toString()).size());
+
+        service.flush();
+        Assert.assertEquals("line1\nline2\n", new String(bos.toByteArray()));
+    }
+
+    /**
+     * Tests that requesting an unknown revision errors appropriately
+     */
+    @Test(expected=PortalServiceException.class)
+    public void testMissingRevision() throws Exception {
+        final Integer jobId = 123;
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getJobById(jobId);
+            will(returnValue(mockJob));
+
+            oneOf(mockFileStagingService).readFile(mockJob, ScriptBuilderService.SCRIPT_FILE_NAME);
+            will(returnValue(null));
+        }});
+
+        service.getRevision(jobId.toString(), 5);
+    }
+
+    /**
+     * Tests that a failed background write is reported by flush and by the next save
+     */
+    @Test
+    public void testWriteFailureReported() throws Exception {
+        final Integer jobId = 123;
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        final Sequence writes = context.sequence("writes");
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobManager).getJobById(jobId);
+            will(returnValue(mockJob));
+
+            oneOf(mockFileStagingService).writeFile(mockJob, ScriptBuilderService.SCRIPT_FILE_NAME);
+            inSequence(writes);
+            will(throwException(new PortalServiceException("disk full")));
+            oneOf(mockFileStagingService).writeFile(mockJob, ScriptBuilderService.SCRIPT_FILE_NAME);
+            inSequence(writes);
+            will(returnValue(bos));
+        }});
+
+        service.setWriteBehindDelay(60000);
+        service.saveScript(jobId.toString(), "#revision 1\n");
+        try {
+            service.flush(jobId.toString());
+            Assert.fail("Expected a PortalServiceException");
+        } catch (PortalServiceException ex) {
+            //expected
+        }
+
+        //The failure means the next save is written immediately (so any further failure reaches the user)
+        service.saveScript(jobId.toString(), "#revision 2\n");
+        Assert.assertEquals("#revision 2\n", new String(bos.toByteArray()));
+    }
+
+    /**
+     * Tests that evicting a script discards its pending write and forces the next load to re-read the file
+     */
+    @Test
+    public void testEvict() throws Exception {
+        final Integer jobId = 123;
+        final String uploadedScript = "#uploaded\n";
+
+        context.checking(new Expectations() {{
+            exactly(2).of(mockJobManager).getJobById(jobId);
+            will(returnValue(mockJob));
+
+            never(mockFileStagingService).writeFile(mockJob, ScriptBuilderService.SCRIPT_FILE_NAME);
+            oneOf(mockFileStagingService).readFile(mockJob, ScriptBuilderService.SCRIPT_FILE_NAME);
+            will(returnValue(new ByteArrayInputStream(uploadedScript.getBytes())));
+        }});
+
+        service.setWriteBehindDelay(60000);
+        service.saveScript(jobId.toString(), "#pending\n");
+        service.evict(jobId.toString());
+        service.flush();
+
+        Assert.assertEquals(uploadedScript, service.loadScript(jobId.toString()));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.List;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.web.service.ScriptRevisionHistory.Revision;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for ScriptRevisionHistory
+ */
+public class TestScriptRevisionHistory extends PortalTestClass {
+
+    /**
+     * Tests that every retained revision can be reconstructed
+     */
+    @Test
+    public void testGetScript() {
+        ScriptRevisionHistory history = new ScriptRevisionHistory(10);
+        Assert.assertNull(history.getLatestRevision());
+
+        String[] scripts = new String[] {"print 1\n", "print 1\nprint 2\n", "print 0\nprint 2\n", "", "print 3"};
+        for (int i = 0; i < scripts.length; i++) {
+            Revision revision = history.add(scripts[i]);
+            Assert.assertEquals(i + 1, revision.getNumber());
+            Assert.assertEquals(scripts[i].length(), revision.getLength());
+        }
+
+        Assert.assertEquals(scripts.length, history.getLatestRevision().getNumber());
+        for (int i = 0; i < scripts.length; i++) {
+            Assert.assertEquals(scripts[i], history.getScript(i + 1));
+        }
+        Assert.assertNull(history.getScript(scripts.length + 1));
+    }
+
+    /**
+     * Tests that the oldest revisions are discarded
+     */
+    @Test
+    public void testMaxRevisions() {
+        ScriptRevisionHistory history = new ScriptRevisionHistory(2);
+        history.add("a");
+        history.add("ab");
+        history.add("abc");
+
+        List<Revision> revisions = history.getRevisions();
+        Assert.assertEquals(2, revisions.size());
+        Assert.assertEquals(3, revisions.get(0).getNumber());
+        Assert.assertEquals(2, revisions.get(1).getNumber());
+
+        Assert.assertNull(history.getScript(1));
+        Assert.assertEquals("ab", history.getScript(2));
+        Assert.assertEquals("abc", history.getScript(3));
+    }
+}
@@ -0,0 +1,252 @@
+package org.auscope.portal.server.web.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import org.auscope.portal.core.cloud.CloudFileInformation;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.cloud.CloudStorageService;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.vegl.VEGLJobManager;
+import org.auscope.portal.server.vegl.VEGLSeries;
+import org.auscope.portal.server.vegl.VGLSignature;
+import org.auscope.portal.server.vegl.VglDownload;
+import org.auscope.portal.server.web.service.JobRegistrationService.Status;
+import org.auscope.portal.server.web.service.SeriesRegistrationService.SeriesRegistrationStatus;
+import org.auscope.portal.server.web.service.csw.BatchGeonetworkService;
+import org.hamcrest.Description;
+import org.hamcrest.TypeSafeMatcher;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSeriesRegistrationService extends PortalTestClass {
+
+    /**
+     * Matches batches containing a specific number of records
+     */
+    private static class BatchMatcher extends TypeSafeMatcher<List<String>> {
+        private int records;
+
+        public BatchMatcher(int records) {
+            this.records = records;
+        }
+
+        @Override
+        public boolean matchesSafely(List<String> batch) {
+            if (batch.size() != records) {
+                return false;
+            }
+            for (String record : batch) {
+                if (!record.contains("<gmd:MD_Metadata")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            description.appendText("a batch of " + records + " records");
+        }
+    }
+
+    private static final String SESSION = "JSESSIONID=abc";
+    private static final String USER = "user@test.au";
+
+    private VEGLJobManager mockJobManager = context.mock(VEGLJobManager.class);
+    private JobRegistrationService mockJobRegistrationService = context.mock(JobRegistrationService.class);
+    private BatchGeonetworkService mockGNService = context.mock(BatchGeonetworkService.class);
+    private CloudStorageService mockStorageService = context.mock(CloudStorageService.class);
+    private VEGLSeries mockSeries = context.mock(VEGLSeries.class);
+    private SeriesRegistrationService service;
+
+    private final Integer seriesId = 5432;
+
+    @Before
+    public void setup() throws Exception {
+        Executor synchronousExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        service = new SeriesRegistrationService(mockJobManager, mockJobRegistrationService, mockGNService, synchronousExecutor);
+        service.setBatchSize(2);
+
+        context.checking(new Expectations() {{
+            allowing(mockSeries).getId();will(returnValue(seriesId));
+            allowing(mockSeries).getName();will(returnValue("series <name>"));
+            allowing(mockSeries).getDescription();will(returnValue("series & description"));
+            allowing(mockSeries).getUser();will(returnValue(USER));
+
+            allowing(mockGNService).getRecordUrl(with(any(String.class)));
+            will(new CustomAction("getRecordUrl") {
+                @Override
+                public Object invoke(Invocation invocation) {
+                    return "http://example.com/info?uuid=" + invocation.getParameter(0);
+                }
+            });
+        }});
+    }
+
+    private VEGLJob makeJob(int id) {
+        VglDownload download = new VglDownload(id);
+        download.setNorthBoundLatitude(4.0 + id);
+        download.setSouthBoundLatitude(3.0);
+        download.setEastBoundLongitude(2.0);
+        download.setWestBoundLongitude(1.0 - id);
+        download.setName("name");
+        download.setDescription("desc");
+        download.setUrl("http://example.org/" + id);
+
+        VEGLJob job = new VEGLJob(id);
+        job.setUser(USER);
+        job.setJobDownloads(Arrays.asList(download));
+        return job;
+    }
+
+    private static String uuid(String name) {
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private String parentUuid() {
+        return uuid("series:" + USER + ":" + seriesId);
+    }
+
+    private static String childUuid(VEGLJob job) {
+        return uuid("job:" + USER + ":" + job.getId());
+    }
+
+    /**
+     * Tests that the parent and child records are inserted in batches (not one request per record) and published
+     * @throws Exception
+     */
+    @Test
+    public void testRegisterBatches() throws Exception {
+        final VEGLJob job1 = makeJob(1);
+        final VEGLJob job2 = makeJob(2);
+        final VEGLJob job3 = makeJob(3);
+        final Map<VEGLJob, CloudStorageService> jobs = new LinkedHashMap<VEGLJob, CloudStorageService>();
+        jobs.put(job1, mockStorageService);
+        jobs.put(job2, mockStorageService);
+        jobs.put(job3, mockStorageService);
+        final CloudFileInformation[] outputFiles = new CloudFileInformation[] {
+                new CloudFileInformation("my/key1", 100L, "http://public.url1?a=1&b=2")
+        };
+
+        context.checking(new Expectations() {{
+            exactly(3).of(mockJobRegistrationService).listOutputFiles(with(any(VEGLJob.class)), with(same(mockStorageService)));
+            will(returnValue(outputFiles));
+
+            oneOf(mockGNService).login();will(returnValue(SESSION));
+            oneOf(mockGNService).recordExists(parentUuid(), SESSION);will(returnValue(false));
+
+            //Parent + job1, then job2 + job3
+            exactly(2).of(mockGNService).insertRecords(with(new BatchMatcher(2)), with(equal(SESSION)));
+            oneOf(mockGNService).makeRecordPublic(parentUuid(), SESSION);
+            oneOf(mockGNService).makeRecordPublic(childUuid(job1), SESSION);
+            oneOf(mockGNService).makeRecordPublic(childUuid(job2), SESSION);
+            oneOf(mockGNService).makeRecordPublic(childUuid(job3), SESSION);
+            oneOf(mockGNService).logout(SESSION);
+
+            oneOf(mockJobManager).saveJob(job1);
+            oneOf(mockJobManager).saveJob(job2);
+            oneOf(mockJobManager).saveJob(job3);
+        }});
+
+        service.register(mockSeries, jobs, new VGLSignature(1, USER), "lineage");
+
+        SeriesRegistrationStatus status = service.getStatus(seriesId);
+        Assert.assertEquals(Status.SUCCEEDED, status.getStatus());
+        Assert.assertEquals(3, status.getJobsRegistered());
+        Assert.assertEquals("http://example.com/info?uuid=" + parentUuid(), status.getRegisteredUrl());
+        Assert.assertEquals("http://example.com/info?uuid=" + childUuid(job1), job1.getRegisteredUrl());
+        Assert.assertFalse(job1.getRegisteredUrl().equals(job2.getRegisteredUrl()));
+    }
+
+    /**
+     * Tests that a transaction that doesn't insert everything fails the registration
+     * @throws Exception
+     */
+    @Test
+    public void testRegisterPartialInsert() throws Exception {
+        final VEGLJob job1 = makeJob(1);
+        final Map<VEGLJob, CloudStorageService> jobs = new LinkedHashMap<VEGLJob, CloudStorageService>();
+        jobs.put(job1, mockStorageService);
+
+        context.checking(new Expectations() {{
+            oneOf(mockJobRegistrationService).listOutputFiles(job1, mockStorageService);
+            will(returnValue(new CloudFileInformation[0]));
+
+            oneOf(mockGNService).login();will(returnValue(SESSION));
+            oneOf(mockGNService).recordExists(parentUuid(), SESSION);will(returnValue(false));
+            oneOf(mockGNService).insertRecords(with(new BatchMatcher(2)), with(equal(SESSION)));
+            will(throwException(new PortalServiceException("Transaction didn't insert all 2 records")));
+            oneOf(mockGNService).logout(SESSION);
+        }});
+
+        service.register(mockSeries, jobs, new VGLSignature(1, USER), null);
+
+        SeriesRegistrationStatus status = service.getStatus(seriesId);
+        Assert.assertEquals(Status.FAILED, status.getStatus());
+        Assert.assertEquals(0, status.getJobsRegistered());
+        Assert.assertNull(job1.getRegisteredUrl());
+    }
+
+    /**
+     * Tests that retrying a registration reuses the parent record, skips registered jobs and doesn't
+     * re-insert children that the previous attempt inserted
+     * @throws Exception
+     */
+    @Test
+    public void testRegisterRetry() throws Exception {
+        final VEGLJob job1 = makeJob(1);
+        final VEGLJob job2 = makeJob(2);
+        final VEGLJob job3 = makeJob(3);
+        job1.setRegisteredUrl("http://example.com/info?uuid=original");
+        final Map<VEGLJob, CloudStorageService> jobs = new LinkedHashMap<VEGLJob, CloudStorageService>();
+        jobs.put(job1, mockStorageService);
+        jobs.put(job2, mockStorageService);
+        jobs.put(job3, mockStorageService);
+
+        context.checking(new Expectations() {{
+            oneOf(mockGNService).login();will(returnValue(SESSION));
+            oneOf(mockGNService).recordExists(parentUuid(), SESSION);will(returnValue(true));
+            oneOf(mockGNService).makeRecordPublic(parentUuid(), SESSION);
+
+            //job2 made it in last time, job3 didn't
+            oneOf(mockGNService).recordExists(childUuid(job2), SESSION);will(returnValue(true));
+            oneOf(mockGNService).makeRecordPublic(childUuid(job2), SESSION);
+            oneOf(mockJobManager).saveJob(job2);
+
+            oneOf(mockGNService).recordExists(childUuid(job3), SESSION);will(returnValue(false));
+            oneOf(mockJobRegistrationService).listOutputFiles(job3, mockStorageService);
+            will(returnValue(new CloudFileInformation[0]));
+            oneOf(mockGNService).insertRecords(with(new BatchMatcher(1)), with(equal(SESSION)));
+            oneOf(mockGNService).makeRecordPublic(childUuid(job3), SESSION);
+            oneOf(mockJobManager).saveJob(job3);
+
+            oneOf(mockGNService).logout(SESSION);
+        }});
+
+        service.register(mockSeries, jobs, new VGLSignature(1, USER), null);
+
+        SeriesRegistrationStatus status = service.getStatus(seriesId);
+        Assert.assertEquals(Status.SUCCEEDED, status.getStatus());
+        Assert.assertEquals(3, status.getJobsRegistered());
+        Assert.assertEquals("http://example.com/info?uuid=" + parentUuid(), status.getRegisteredUrl());
+        Assert.assertEquals("http://example.com/info?uuid=original", job1.getRegisteredUrl());
+        Assert.assertEquals("http://example.com/info?uuid=" + childUuid(job3), job3.getRegisteredUrl());
+    }
+}
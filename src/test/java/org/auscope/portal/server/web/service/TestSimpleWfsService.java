@@ -1,5 +1,6 @@
 package org.auscope.portal.server.web.service;
 
+import java.io.StringReader;
 import java.util.List;
 
 import org.apache.commons.httpclient.HttpMethodBase;
@@ -66,4 +67,51 @@ public class TestSimpleWfsService extends PortalTestClass {
         Assert.assertTrue(sf17.isNillable());
     }
     
+    /**
+     * Tests that repeated DescribeFeatureType requests for the same type are served from cache
+     * @throws Exception
+     */
+    @Test
+    public void testDescribeFeaturesCached() throws Exception {
+        final String endpoint = "http://example.com/wfs";
+        final String typeName = "ga:gravitypoints";
+        final String responseString = ResourceUtil.loadResourceAsString("DescribeFeatureTypeResponse-SF0.xml");
+        
+        context.checking(new Expectations() {{
+            oneOf(mockMethodMaker).makeDescribeFeatureTypeMethod(endpoint, typeName);
+            will(returnValue(mockMethod));
+            
+            oneOf(mockServiceCaller).getMethodResponseAsString(mockMethod);
+            will(returnValue(responseString));
+        }});
+        
+        List<SimpleFeatureProperty> first = service.describeSimpleFeature(endpoint, typeName);
+        List<SimpleFeatureProperty> second = service.describeSimpleFeature(endpoint, typeName);
+        
+        Assert.assertEquals(18, second.size());
+        Assert.assertSame(first, second);
+    }
+    
+    /**
+     * Tests that xsd:element definitions outside of the feature type's sequence are ignored
+     * @throws Exception
+     */
+    @Test
+    public void testParseIgnoresOtherElements() throws Exception {
+        final String xml = "<xsd:schema xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\">" +
+                "<xsd:complexType name=\"aType\"><xsd:complexContent><xsd:extension base=\"gml:AbstractFeatureType\"><xsd:sequence>" +
+                "<xsd:element maxOccurs=\"1\" minOccurs=\"0\" name=\"a\" nillable=\"true\" type=\"xsd:string\"><xsd:annotation/></xsd:element>" +
+                "<xsd:element maxOccurs=\"2\" minOccurs=\"1\" name=\"b\" nillable=\"false\" type=\"xsd:int\"/>" +
+                "</xsd:sequence></xsd:extension></xsd:complexContent></xsd:complexType>" +
+                "<xsd:element name=\"a\" type=\"aType\"/>" +
+                "</xsd:schema>";
+        
+        List<SimpleFeatureProperty> result = service.parseSimpleFeatureProperties(new StringReader(xml));
+        
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals("a", result.get(0).getName());
+        Assert.assertEquals("b", result.get(1).getName());
+        Assert.assertEquals(2, result.get(1).getMaxOccurs());
+        Assert.assertEquals(2, result.get(1).getIndex());
+    }
 }
@@ -0,0 +1,208 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.cloud.FileStagingService;
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.core.services.responses.wfs.WFSCountResponse;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.auscope.portal.server.vegl.VEGLJob;
+import org.auscope.portal.server.web.service.WFSHarvestService.HarvestSummary;
+import org.auscope.portal.server.web.service.http.PooledHttpClient;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Unit tests for WFSHarvestService
+ */
+public class TestWFSHarvestService extends PortalTestClass {
+    private static final String SERVICE_URL = "http://example.org/wfs";
+    private static final String FEATURE_TYPE = "ex:Site";
+    private static final String WFS_NAMESPACE = "http://www.opengis.net/wfs";
+    private static final String GML_NAMESPACE = "http://www.opengis.net/gml";
+    private static final String EX_NAMESPACE = "http://example.org/ex";
+
+    private SimpleWfsService mockWfsService = context.mock(SimpleWfsService.class);
+    private PooledHttpClient mockHttpClient = context.mock(PooledHttpClient.class);
+    private FileStagingService mockFileStagingService = context.mock(FileStagingService.class);
+    private VEGLJob job = new VEGLJob(1);
+    private WFSHarvestService service;
+
+    /** The startIndex/count/sortBy of every page requested*/
+    private List<String> requestedPages = new ArrayList<String>();
+
+    @Before
+    public void setup() {
+        service = new WFSHarvestService(mockWfsService, mockHttpClient, mockFileStagingService, 2);
+        service.setPageSize(2);
+    }
+
+    @After
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    /**
+     * A canned (in memory) page response
+     */
+    private static class PageResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        public PageResponse(int status, String content) throws Exception {
+            super(new BasicStatusLine(HttpVersion.HTTP_1_1, status, ""));
+            setEntity(new StringEntity(content, "UTF-8"));
+        }
+
+        @Override
+        public void close() {
+            //Nothing to release
+        }
+    }
+
+    /**
+     * Gets the value of a query parameter of method
+     */
+    private static String getParameter(HttpRequestBase method, String name) {
+        for (NameValuePair param : new URIBuilder(method.getURI()).getQueryParams()) {
+            if (param.getName().equals(name)) {
+                return param.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Responds to each page request with the resource named by the page's startIndex (resourcePrefix + pageNumber + resourceSuffix).
+     * The page numbered failingPage will respond with a HTTP 500.
+     */
+    private CustomAction respondWithPages(final String resourcePrefix, final String resourceSuffix, final int failingPage) {
+        return new CustomAction("Respond with page") {
+            @Override
+            public Object invoke(Invocation invocation) throws Throwable {
+                HttpRequestBase method = (HttpRequestBase) invocation.getParameter(0);
+                int startIndex = Integer.parseInt(getParameter(method, "startIndex"));
+                String maxFeatures = getParameter(method, "maxFeatures");
+                synchronized (requestedPages) {
+                    requestedPages.add(startIndex + "/" + maxFeatures + "/" + getParameter(method, "sortBy"));
+                }
+
+                int pageNumber = startIndex / 2 + 1;
+                return new PageResponse(pageNumber == failingPage ? 500 : 200,
+                        ResourceUtil.loadResourceAsString(resourcePrefix + pageNumber + resourceSuffix));
+            }
+        };
+    }
+
+    /**
+     * Sets up a harvest of featureCount features (split into pages of 2)
+     */
+    private void expectHarvest(final int featureCount, final String outputFormat, final ByteArrayOutputStream output, final CustomAction pages) throws Exception {
+        context.checking(new Expectations() {{
+            oneOf(mockWfsService).getWfsFeatureCount(with(equal(SERVICE_URL)), with(equal(FEATURE_TYPE)), with(any(String.class)), with(aNull(Integer.class)), with(aNull(String.class)));
+            will(returnValue(new WFSCountResponse(featureCount)));
+
+            allowing(mockWfsService).getFeatureRequestAsString(with(equal(SERVICE_URL)), with(equal(FEATURE_TYPE)), with(aNull(FilterBoundingBox.class)), with(any(Integer.class)), with(aNull(String.class)), with(equal(outputFormat)));
+            will(new CustomAction("Make GetFeature URL") {
+                @Override
+                public Object invoke(Invocation invocation) throws Throwable {
+                    return SERVICE_URL + "?service=WFS&maxFeatures=" + invocation.getParameter(3);
+                }
+            });
+
+            oneOf(mockFileStagingService).writeFile(job, "sites.out");will(returnValue(output));
+
+            allowing(mockHttpClient).execute(with(any(HttpRequestBase.class)));will(pages);
+        }});
+    }
+
+    /**
+     * Tests that GML pages (each using different namespace prefixes) are merged into a single FeatureCollection
+     * @throws Exception
+     */
+    @Test
+    public void testHarvestGml() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        expectHarvest(5, null, output, respondWithPages("wfsHarvestPage", ".xml", -1));
+
+        HarvestSummary summary = service.harvest(job, "sites.out", SERVICE_URL, FEATURE_TYPE, null, null, null, null, "ex:name");
+        Assert.assertEquals(5, summary.getFeatureCount());
+        Assert.assertEquals(3, summary.getPageCount());
+
+        //Pages are split on startIndex with the final page only requesting the remainder
+        Assert.assertEquals(3, requestedPages.size());
+        Assert.assertTrue(requestedPages.contains("0/2/ex:name"));
+        Assert.assertTrue(requestedPages.contains("2/2/ex:name"));
+        Assert.assertTrue(requestedPages.contains("4/1/ex:name"));
+
+        Document doc = DOMUtil.buildDomFromString(new String(output.toByteArray(), "UTF-8"));
+        Element root = doc.getDocumentElement();
+        Assert.assertEquals(WFS_NAMESPACE, root.getNamespaceURI());
+        Assert.assertEquals("FeatureCollection", root.getLocalName());
+        Assert.assertEquals(1, doc.getElementsByTagNameNS(GML_NAMESPACE, "boundedBy").getLength());
+        Assert.assertEquals(5, doc.getElementsByTagNameNS(GML_NAMESPACE, "featureMember").getLength());
+
+        //Every feature (regardless of the prefixes its page used) should be in the original namespaces, in order
+        NodeList sites = doc.getElementsByTagNameNS(EX_NAMESPACE, "Site");
+        String[] names = new String[] {"One", "Two", "Three", "Four", "Five"};
+        Assert.assertEquals(names.length, sites.getLength());
+        for (int i = 0; i < names.length; i++) {
+            Element site = (Element) sites.item(i);
+            Assert.assertEquals("site." + (i + 1), site.getAttributeNS(GML_NAMESPACE, "id"));
+            Assert.assertEquals(names[i], site.getElementsByTagNameNS(EX_NAMESPACE, "name").item(0).getTextContent());
+        }
+
+        //Namespaces only declared by a later page are carried across
+        NodeList notes = doc.getElementsByTagNameNS("http://example.org/extra", "note");
+        Assert.assertEquals(1, notes.getLength());
+        Assert.assertEquals("Page two", notes.item(0).getTextContent());
+    }
+
+    /**
+     * Tests that CSV pages are concatenated with only the first header retained (and maxFeatures limiting the pages)
+     * @throws Exception
+     */
+    @Test
+    public void testHarvestCsv() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        expectHarvest(5, "csv", output, respondWithPages("wfsHarvestPage", ".csv", -1));
+
+        HarvestSummary summary = service.harvest(job, "sites.out", SERVICE_URL, FEATURE_TYPE, null, null, "csv", 4, null);
+        Assert.assertEquals(4, summary.getFeatureCount());
+        Assert.assertEquals(2, summary.getPageCount());
+        Assert.assertEquals(2, requestedPages.size());
+        Assert.assertTrue(requestedPages.contains("0/2/null"));
+        Assert.assertTrue(requestedPages.contains("2/2/null"));
+
+        Assert.assertEquals("id,name\n1,One\n2,Two\n3,Three\n4,Four\n", new String(output.toByteArray(), "UTF-8"));
+    }
+
+    /**
+     * Tests that a failing page fails the entire harvest
+     * @throws Exception
+     */
+    @Test(expected = PortalServiceException.class)
+    public void testHarvestPageError() throws Exception {
+        expectHarvest(5, "csv", new ByteArrayOutputStream(), respondWithPages("wfsHarvestPage", ".csv", 2));
+
+        service.harvest(job, "sites.out", SERVICE_URL, FEATURE_TYPE, null, null, "csv", null, null);
+    }
+}
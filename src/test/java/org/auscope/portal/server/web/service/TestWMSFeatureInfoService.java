@@ -0,0 +1,114 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicHeader;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.methodmakers.WMSMethodMakerInterface;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.web.service.WMSFeatureInfoService.FeatureInfoResponse;
+import org.auscope.portal.server.web.service.http.PooledHttpClient;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWMSFeatureInfoService extends PortalTestClass {
+    private PooledHttpClient mockHttpClient = context.mock(PooledHttpClient.class);
+    private WMSMethodMakerInterface mockMethodMaker = context.mock(WMSMethodMakerInterface.class);
+    private CloseableHttpResponse mockResponse = context.mock(CloseableHttpResponse.class);
+    private StatusLine mockStatusLine = context.mock(StatusLine.class);
+    private HttpEntity mockEntity = context.mock(HttpEntity.class);
+
+    private WMSFeatureInfoService service;
+
+    @Before
+    public void setup() {
+        List<WMSMethodMakerInterface> methodMakers = Arrays.asList(mockMethodMaker);
+        service = new WMSFeatureInfoService(mockHttpClient, methodMakers, 60, 10, 1024);
+        service.setPixelTolerance(4);
+    }
+
+    /**
+     * Tests that a response is streamed with its original content type and then served from cache
+     * for a subsequent click within the pixel tolerance. The upstream request must use the pixel that was
+     * actually clicked (not the snapped pixel)
+     */
+    @Test
+    public void testStreamAndCache() throws Exception {
+        final byte[] body = "<html>é</html>".getBytes("UTF-8");
+        final String contentType = "text/html;charset=UTF-8";
+        final HttpGet method = new HttpGet("http://example.com/wms");
+
+        context.checking(new Expectations() {{
+            allowing(mockMethodMaker).accepts(with(equal("http://example.com/wms")), with(equal("1.1.1")), with(any(List.class)));will(returnValue(true));
+            oneOf(mockMethodMaker).getFeatureInfo("http://example.com/wms", "text/html", "layer", WMSFeatureInfoService.DEFAULT_CRS,
+                    1.0, 2.0, 3.0, 4.0, 256, 256, 1.5, 2.5, 10, 21, "", "", "");will(returnValue(method));
+            oneOf(mockHttpClient).execute(method);will(returnValue(mockResponse));
+
+            allowing(mockResponse).getStatusLine();will(returnValue(mockStatusLine));
+            allowing(mockStatusLine).getStatusCode();will(returnValue(200));
+            allowing(mockResponse).getEntity();will(returnValue(mockEntity));
+            allowing(mockEntity).getContentType();will(returnValue(new BasicHeader("Content-Type", contentType)));
+            oneOf(mockEntity).getContent();will(returnValue(new ByteArrayInputStream(body)));
+            allowing(mockEntity).isStreaming();will(returnValue(false));
+            oneOf(mockResponse).close();
+        }});
+
+        FeatureInfoResponse response = service.getFeatureInfo("http://example.com/wms", "text/html", "layer", WMSFeatureInfoService.DEFAULT_CRS,
+                1.0, 2.0, 3.0, 4.0, 256, 256, 1.5, 2.5, 10.2, 21.4, "", "1.1.1", "");
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            Assert.assertEquals(contentType, response.getContentType());
+            Assert.assertFalse(response.isCached());
+            Assert.assertEquals(body.length, response.writeTo(os));
+        } finally {
+            response.close();
+        }
+        Assert.assertArrayEquals(body, os.toByteArray());
+
+        //This should NOT make an upstream request (it snaps to the same pixel)
+        response = service.getFeatureInfo("http://example.com/wms", "text/html", "layer", WMSFeatureInfoService.DEFAULT_CRS,
+                1.0, 2.0, 3.0, 4.0, 256, 256, 1.4, 2.6, 9.8, 22.6, "", "1.1.1", "");
+        os = new ByteArrayOutputStream();
+        try {
+            Assert.assertEquals(contentType, response.getContentType());
+            Assert.assertTrue(response.isCached());
+            response.writeTo(os);
+        } finally {
+            response.close();
+        }
+        Assert.assertArrayEquals(body, os.toByteArray());
+    }
+
+    /**
+     * Tests that a non 200 response is reported as an error
+     */
+    @Test(expected=PortalServiceException.class)
+    public void testErrorStatus() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockMethodMaker).accepts(with(any(String.class)), with(equal("1.3.0")), with(any(List.class)));will(returnValue(true));
+            oneOf(mockMethodMaker).getFeatureInfo(with(any(String.class)), with(any(String.class)), with(any(String.class)), with(any(String.class)),
+                    with(any(Double.class)), with(any(Double.class)), with(any(Double.class)), with(any(Double.class)), with(any(Integer.class)), with(any(Integer.class)),
+                    with(any(Double.class)), with(any(Double.class)), with(any(Integer.class)), with(any(Integer.class)), with(any(String.class)), with(any(String.class)), with(any(String.class)));
+            will(returnValue(new HttpGet("http://example.com/wms")));
+            oneOf(mockHttpClient).execute(with(any(HttpRequestBase.class)));will(returnValue(mockResponse));
+
+            allowing(mockResponse).getStatusLine();will(returnValue(mockStatusLine));
+            allowing(mockStatusLine).getStatusCode();will(returnValue(500));
+            allowing(mockResponse).getEntity();will(returnValue(null));
+            oneOf(mockResponse).close();
+        }});
+
+        service.getFeatureInfo("http://example.com/wms", "text/html", "layer", WMSFeatureInfoService.DEFAULT_CRS,
+                1.0, 2.0, 3.0, 4.0, 256, 256, 1.5, 2.5, 10, 20, "", "1.3.0", "");
+    }
+}
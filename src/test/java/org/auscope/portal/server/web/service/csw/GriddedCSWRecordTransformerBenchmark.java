@@ -0,0 +1,119 @@
+package org.auscope.portal.server.web.service.csw;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.services.responses.csw.CSWRecordTransformer;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares GriddedCSWRecordTransformer against the per field XPath extraction it replaced over the records
+ * in cswRecordResponse.xml and griddedCSWRecords.xml.
+ *
+ * The gridded* benchmarks only measure the gridded extensions, the transform* benchmarks measure the entire
+ * record (including the base fields populated by portal-core).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GriddedCSWRecordTransformerBenchmark {
+
+    /**
+     * The gridded extension extraction as it was prior to the single pass implementation
+     */
+    private static class XPathGriddedCSWRecordTransformer extends CSWRecordTransformer {
+        public XPathGriddedCSWRecordTransformer(Node mdMetadataNode) {
+            super(mdMetadataNode);
+        }
+
+        @Override
+        public CSWRecord transformToCSWRecord() throws XPathExpressionException {
+            GriddedCSWRecord cswRecord = new GriddedCSWRecord(null);
+            super.transformToCSWRecord(cswRecord);
+            parseGriddedExtensions(cswRecord);
+            return cswRecord;
+        }
+
+        public void parseGriddedExtensions(GriddedCSWRecord cswRecord) throws XPathExpressionException {
+            cswRecord.setDateStamp(evalXPathString(this.mdMetadataNode, "gmd:dateStamp/gco:DateTime"));
+
+            NodeList posAccuracyEls = evalXPathNodeList(this.mdMetadataNode, "gmd:dataQualityInfo/gmd:DQ_DataQuality/gmd:report/gmd:DQ_GriddedDataPositionalAccuracy");
+            GriddedDataPositionalAccuracy[] posAccuracyObjs = new GriddedDataPositionalAccuracy[posAccuracyEls.getLength()];
+            for (int i = 0; i < posAccuracyEls.getLength(); i++) {
+                posAccuracyObjs[i] = new GriddedDataPositionalAccuracy();
+
+                posAccuracyObjs[i].setNameOfMeasure(evalXPathString(posAccuracyEls.item(i), "gmd:nameOfMeasure/gco:CharacterString"));
+                posAccuracyObjs[i].setUnitOfMeasure(evalXPathString(posAccuracyEls.item(i), "gmd:result/gmd:DQ_QuantitativeResult/gmd:valueUnit/gml:UnitDefinition/gml:identifier"));
+                posAccuracyObjs[i].setValue(evalXPathString(posAccuracyEls.item(i), "gmd:result/gmd:DQ_QuantitativeResult/gmd:value/gco:Record"));
+            }
+            cswRecord.setGriddedInfo(posAccuracyObjs);
+        }
+    }
+
+    private List<Node> records = new ArrayList<Node>();
+
+    @Setup
+    public void setup() throws Exception {
+        Document doc = DOMUtil.buildDomFromString(ResourceUtil.loadResourceAsString("cswRecordResponse.xml"));
+        NodeList mdMetadataNodes = doc.getElementsByTagNameNS("http://www.isotc211.org/2005/gmd", "MD_Metadata");
+        for (int i = 0; i < mdMetadataNodes.getLength(); i++) {
+            records.add(mdMetadataNodes.item(i));
+        }
+
+        records.add(DOMUtil.buildDomFromString(ResourceUtil.loadResourceAsString("griddedCSWRecords.xml")).getDocumentElement());
+    }
+
+    @Benchmark
+    public void griddedSinglePass(Blackhole bh) {
+        for (Node record : records) {
+            GriddedCSWRecord cswRecord = new GriddedCSWRecord(null);
+            new GriddedCSWRecordTransformer(record).parseGriddedExtensions(cswRecord);
+            bh.consume(cswRecord);
+        }
+    }
+
+    @Benchmark
+    public void griddedXPath(Blackhole bh) throws Exception {
+        for (Node record : records) {
+            GriddedCSWRecord cswRecord = new GriddedCSWRecord(null);
+            new XPathGriddedCSWRecordTransformer(record).parseGriddedExtensions(cswRecord);
+            bh.consume(cswRecord);
+        }
+    }
+
+    @Benchmark
+    public void transformSinglePass(Blackhole bh) throws Exception {
+        for (Node record : records) {
+            bh.consume(new GriddedCSWRecordTransformer(record).transformToCSWRecord());
+        }
+    }
+
+    @Benchmark
+    public void transformXPath(Blackhole bh) throws Exception {
+        for (Node record : records) {
+            bh.consume(new XPathGriddedCSWRecordTransformer(record).transformToCSWRecord());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.auscope.portal.server.web.service.csw;
+
+import java.util.Arrays;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.services.methodmakers.GeonetworkMethodMaker;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for BatchGeonetworkService
+ */
+public class TestBatchGeonetworkService extends PortalTestClass {
+    private static final String SERVICE_URL = "http://example.com/geonetwork/srv/eng/csw";
+    private static final String SESSION = "JSESSIONID=abc";
+    private static final String RECORD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<gmd:MD_Metadata xmlns:gmd=\"http://www.isotc211.org/2005/gmd\"/>";
+
+    private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
+    private GeonetworkMethodMaker mockMethodMaker = context.mock(GeonetworkMethodMaker.class);
+    private BatchGeonetworkService service;
+    private String insertedXml;
+
+    @Before
+    public void setup() {
+        CSWServiceItem item = new CSWServiceItem("csw-id", "Test CSW", SERVICE_URL, "http://example.com/info?uuid=%1$s");
+        service = new BatchGeonetworkService(mockServiceCaller, mockMethodMaker, item);
+    }
+
+    private static String transactionResponse(int inserted) {
+        return "<csw:TransactionResponse xmlns:csw=\"http://www.opengis.net/cat/csw/2.0.2\">" +
+               "<csw:TransactionSummary><csw:totalInserted>" + inserted + "</csw:totalInserted></csw:TransactionSummary>" +
+               "</csw:TransactionResponse>";
+    }
+
+    /**
+     * Tests that every record is sent in a single transaction (without their XML declarations)
+     * @throws Exception
+     */
+    @Test
+    public void testInsertRecords() throws Exception {
+        final HttpPost insertMethod = new HttpPost(SERVICE_URL);
+
+        context.checking(new Expectations() {{
+            oneOf(mockMethodMaker).makeInsertRecordMethod(with(equal(SERVICE_URL)), with(any(String.class)), with(equal(SESSION)));
+            will(new CustomAction("Capture inserted XML") {
+                @Override
+                public Object invoke(Invocation invocation) {
+                    insertedXml = (String) invocation.getParameter(1);
+                    return insertMethod;
+                }
+            });
+            oneOf(mockServiceCaller).getMethodResponseAsString(insertMethod);will(returnValue(transactionResponse(2)));
+        }});
+
+        service.insertRecords(Arrays.asList(RECORD, RECORD), SESSION);
+
+        Assert.assertFalse(insertedXml.contains("<?xml"));
+        Assert.assertEquals(2, insertedXml.split("<gmd:MD_Metadata", -1).length - 1);
+    }
+
+    /**
+     * Tests that a transaction that doesn't insert every record fails
+     * @throws Exception
+     */
+    @Test(expected = PortalServiceException.class)
+    public void testInsertRecordsPartial() throws Exception {
+        final HttpPost insertMethod = new HttpPost(SERVICE_URL);
+
+        context.checking(new Expectations() {{
+            oneOf(mockMethodMaker).makeInsertRecordMethod(with(equal(SERVICE_URL)), with(any(String.class)), with(equal(SESSION)));
+            will(returnValue(insertMethod));
+            oneOf(mockServiceCaller).getMethodResponseAsString(insertMethod);will(returnValue(transactionResponse(1)));
+        }});
+
+        service.insertRecords(Arrays.asList(RECORD, RECORD), SESSION);
+    }
+
+    /**
+     * Tests that records are made public using their GeoNetwork id
+     * @throws Exception
+     */
+    @Test
+    public void testMakeRecordPublic() throws Exception {
+        final HttpGet getMethod = new HttpGet(SERVICE_URL);
+        final HttpGet publicMethod = new HttpGet(SERVICE_URL);
+        final String metadataResponse = "<gmd:MD_Metadata xmlns:gmd=\"http://www.isotc211.org/2005/gmd\" xmlns:geonet=\"http://www.fao.org/geonetwork\">" +
+                "<geonet:info><id>42</id><uuid>my-uuid</uuid></geonet:info></gmd:MD_Metadata>";
+
+        context.checking(new Expectations() {{
+            oneOf(mockMethodMaker).makeRecordMetadataGetMethod(SERVICE_URL, "my-uuid", SESSION);will(returnValue(getMethod));
+            oneOf(mockServiceCaller).getMethodResponseAsString(getMethod);will(returnValue(metadataResponse));
+            oneOf(mockMethodMaker).makeRecordPublicMethod(SERVICE_URL, "42", SESSION);will(returnValue(publicMethod));
+            oneOf(mockServiceCaller).getMethodResponseAsString(publicMethod);will(returnValue("<ok/>"));
+        }});
+
+        service.makeRecordPublic("my-uuid", SESSION);
+    }
+
+    /**
+     * Tests that an empty GetRecordById response means the record doesn't exist
+     * @throws Exception
+     */
+    @Test
+    public void testRecordExists() throws Exception {
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsString(with(any(HttpGet.class)));
+            will(returnValue("<csw:GetRecordByIdResponse xmlns:csw=\"http://www.opengis.net/cat/csw/2.0.2\">\n</csw:GetRecordByIdResponse>"));
+            oneOf(mockServiceCaller).getMethodResponseAsString(with(any(HttpGet.class)));
+            will(returnValue("<csw:GetRecordByIdResponse xmlns:csw=\"http://www.opengis.net/cat/csw/2.0.2\"><csw:BriefRecord/></csw:GetRecordByIdResponse>"));
+        }});
+
+        Assert.assertFalse(service.recordExists("my-uuid", SESSION));
+        Assert.assertTrue(service.recordExists("my-uuid", SESSION));
+        Assert.assertEquals("http://example.com/info?uuid=my-uuid", service.getRecordUrl("my-uuid"));
+    }
+}
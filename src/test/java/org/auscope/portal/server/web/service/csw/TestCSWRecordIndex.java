@@ -0,0 +1,99 @@
+package org.auscope.portal.server.web.service.csw;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.auscope.portal.core.services.responses.csw.CSWGeographicBoundingBox;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicElement;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.web.service.csw.CSWRecordIndex.SearchResult;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCSWRecordIndex extends PortalTestClass {
+
+    private List<CSWRecord> records;
+
+    private CSWRecord makeRecord(String id, CSWGeographicBoundingBox bbox, String... keywords) {
+        CSWRecord record = new CSWRecord(id);
+        record.setDescriptiveKeywords(keywords);
+        if (bbox != null) {
+            record.setCSWGeographicElements(new CSWGeographicElement[] {bbox});
+        }
+        return record;
+    }
+
+    @Before
+    public void setup() {
+        records = new ArrayList<CSWRecord>();
+
+        //A 10x10 grid of 1 degree boxes from 110E,-40S
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                CSWGeographicBoundingBox bbox = new CSWGeographicBoundingBox(110 + x, 111 + x, -40 + y, -39 + y);
+                records.add(makeRecord(String.format("grid-%1$d-%2$d", x, y), bbox, "grid", x % 2 == 0 ? "Even" : "odd"));
+            }
+        }
+
+        //Crosses the anti meridian
+        records.add(makeRecord("pacific", new CSWGeographicBoundingBox(170, -170, -20, -10), "ocean"));
+
+        //No spatial extent
+        records.add(makeRecord("nowhere", null, "grid"));
+    }
+
+    /**
+     * Tests that bounding box queries match only intersecting records
+     */
+    @Test
+    public void testSpatialSearch() {
+        CSWRecordIndex index = new CSWRecordIndex(1, records);
+
+        SearchResult result = index.search(110.5, 111.5, -39.5, -38.5, null, 0, 100);
+        Assert.assertEquals(4, result.getTotalMatches());
+        Assert.assertEquals("grid-0-0", result.getRecords().get(0).getFileIdentifier());
+
+        //Queries crossing the anti meridian
+        result = index.search(175.0, -175.0, -15.0, -14.0, null, 0, 100);
+        Assert.assertEquals(1, result.getTotalMatches());
+        Assert.assertEquals("pacific", result.getRecords().get(0).getFileIdentifier());
+
+        result = index.search(-180.0, 180.0, -90.0, 90.0, null, 0, 100);
+        Assert.assertEquals(101, result.getTotalMatches());
+    }
+
+    /**
+     * Tests that keyword queries are case insensitive and combine with AND
+     */
+    @Test
+    public void testKeywordSearch() {
+        CSWRecordIndex index = new CSWRecordIndex(1, records);
+
+        Assert.assertEquals(101, index.search(null, null, null, null, new String[] {"GRID"}, 0, 0).getTotalMatches());
+        Assert.assertEquals(50, index.search(null, null, null, null, new String[] {"grid", "even"}, 0, 0).getTotalMatches());
+        Assert.assertEquals(0, index.search(null, null, null, null, new String[] {"grid", "ocean"}, 0, 0).getTotalMatches());
+        Assert.assertEquals(0, index.search(null, null, null, null, new String[] {"missing"}, 0, 0).getTotalMatches());
+
+        SearchResult result = index.search(110.5, 112.5, -39.5, -38.5, new String[] {"odd"}, 0, 100);
+        Assert.assertEquals(2, result.getTotalMatches());
+    }
+
+    /**
+     * Tests that results are paged in record order
+     */
+    @Test
+    public void testPaging() {
+        CSWRecordIndex index = new CSWRecordIndex(1, records);
+
+        SearchResult result = index.search(null, null, null, null, null, 10, 5);
+        Assert.assertEquals(102, result.getTotalMatches());
+        Assert.assertEquals(5, result.getRecords().size());
+        Assert.assertSame(records.get(10), result.getRecords().get(0));
+        Assert.assertSame(records.get(14), result.getRecords().get(4));
+
+        result = index.search(null, null, null, null, null, 100, 5);
+        Assert.assertEquals(2, result.getRecords().size());
+    }
+}
@@ -0,0 +1,57 @@
+package org.auscope.portal.server.web.service.csw;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class TestGriddedCSWRecordTransformer extends PortalTestClass {
+
+    /**
+     * Tests that the gridded extensions are correctly extracted
+     * @throws Exception
+     */
+    @Test
+    public void testTransformGriddedRecord() throws Exception {
+        Document doc = DOMUtil.buildDomFromString(ResourceUtil.loadResourceAsString("griddedCSWRecords.xml"));
+        GriddedCSWRecordTransformer transformer = new GriddedCSWRecordTransformer(doc.getDocumentElement());
+
+        GriddedCSWRecord record = (GriddedCSWRecord) transformer.transformToCSWRecord();
+
+        Assert.assertEquals("ea6638e2-2622-45b2-8c49-7292ee23e7d6", record.getFileIdentifier());
+        Assert.assertEquals("1991", record.getDateStamp());
+
+        GriddedDataPositionalAccuracy[] griddedInfo = record.getGriddedInfo();
+        Assert.assertEquals(3, griddedInfo.length);
+
+        Assert.assertEquals("CellSize", griddedInfo[0].getNameOfMeasure());
+        Assert.assertEquals("metres", griddedInfo[0].getUnitOfMeasure());
+        Assert.assertEquals("80", griddedInfo[0].getValue());
+
+        Assert.assertEquals("CellSize", griddedInfo[1].getNameOfMeasure());
+        Assert.assertEquals("decimal degrees", griddedInfo[1].getUnitOfMeasure());
+        Assert.assertEquals("0.000833", griddedInfo[1].getValue());
+
+        Assert.assertEquals("LineSpacing", griddedInfo[2].getNameOfMeasure());
+        Assert.assertEquals("metres", griddedInfo[2].getUnitOfMeasure());
+        Assert.assertEquals("Unknown", griddedInfo[2].getValue());
+    }
+
+    /**
+     * Tests that records without gridded extensions are still transformed
+     * @throws Exception
+     */
+    @Test
+    public void testTransformNonGriddedRecord() throws Exception {
+        Document doc = DOMUtil.buildDomFromString(ResourceUtil.loadResourceAsString("cswRecordResponse.xml"));
+        GriddedCSWRecordTransformer transformer = new GriddedCSWRecordTransformer(
+                doc.getElementsByTagNameNS("http://www.isotc211.org/2005/gmd", "MD_Metadata").item(0));
+
+        GriddedCSWRecord record = (GriddedCSWRecord) transformer.transformToCSWRecord();
+
+        Assert.assertEquals("944e1417-83ca-4d62-b4b1-f3f4a5292b4d", record.getFileIdentifier());
+        Assert.assertEquals(0, record.getGriddedInfo().length);
+    }
+}
@@ -0,0 +1,150 @@
+package org.auscope.portal.server.web.service.csw;
+
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.hamcrest.Description;
+import org.hamcrest.TypeSafeMatcher;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestIncrementalCSWCacheService extends PortalTestClass {
+    private static final String EMPTY_RESPONSE = "<csw:GetRecordsResponse xmlns:csw=\"http://www.opengis.net/cat/csw/2.0.2\">" +
+            "<csw:SearchResults numberOfRecordsMatched=\"0\" numberOfRecordsReturned=\"0\" nextRecord=\"0\"/>" +
+            "</csw:GetRecordsResponse>";
+
+    private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
+    private IncrementalCSWCacheService service;
+
+    /**
+     * Matches GetRecords requests that do (or don't) include a modification date constraint
+     */
+    private static class DeltaRequestMatcher extends TypeSafeMatcher<HttpRequestBase> {
+        private boolean isDelta;
+
+        public DeltaRequestMatcher(boolean isDelta) {
+            this.isDelta = isDelta;
+        }
+
+        @Override
+        public boolean matchesSafely(HttpRequestBase method) {
+            return method.getURI().getQuery().contains("Modified >=") == isDelta;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            description.appendText(isDelta ? "a delta GetRecords request" : "a full GetRecords request");
+        }
+    }
+
+    @Before
+    public void setup() {
+        Executor synchronousExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        CSWServiceItem item = new CSWServiceItem("csw-id", "Test CSW", "http://example.com/csw", "http://example.com/info?uuid=%1$s");
+        service = new IncrementalCSWCacheService(synchronousExecutor, mockServiceCaller, Arrays.asList(item), new GriddedCSWRecordTransformerFactory(), 2);
+    }
+
+    @After
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    /**
+     * Tests that the first update harvests everything and subsequent updates only request modified records
+     * @throws Exception
+     */
+    @Test
+    public void testDeltaHarvest() throws Exception {
+        final String fullResponse = ResourceUtil.loadResourceAsString("cswRecordResponse.xml");
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsString(with(new DeltaRequestMatcher(false)));
+            will(returnValue(fullResponse));
+
+            oneOf(mockServiceCaller).getMethodResponseAsString(with(new DeltaRequestMatcher(true)));
+            will(returnValue(EMPTY_RESPONSE));
+        }});
+
+        Assert.assertTrue(service.updateCache());
+        CSWRecordSnapshot first = service.getSnapshot();
+        Assert.assertEquals(1, first.getVersion());
+        Assert.assertEquals(15, service.getRecordCache().size());
+        Assert.assertFalse(service.getKeywordCache().isEmpty());
+        Assert.assertNotNull(first.getHarvestTime("csw-id"));
+
+        //No changes means no new version
+        Assert.assertTrue(service.updateCache());
+        CSWRecordSnapshot second = service.getSnapshot();
+        Assert.assertEquals(1, second.getVersion());
+        Assert.assertEquals(15, second.getRecords().size());
+        Assert.assertFalse(service.isUpdateRunning());
+    }
+
+    /**
+     * Tests that a full harvest only creates a new version if records were modified or removed
+     * @throws Exception
+     */
+    @Test
+    public void testFullHarvestUnchanged() throws Exception {
+        final String fullResponse = ResourceUtil.loadResourceAsString("cswRecordResponse.xml");
+
+        context.checking(new Expectations() {{
+            exactly(2).of(mockServiceCaller).getMethodResponseAsString(with(new DeltaRequestMatcher(false)));
+            will(returnValue(fullResponse));
+
+            oneOf(mockServiceCaller).getMethodResponseAsString(with(new DeltaRequestMatcher(false)));
+            will(returnValue(EMPTY_RESPONSE));
+        }});
+
+        Assert.assertTrue(service.updateCache(true));
+        Assert.assertEquals(1, service.getSnapshot().getVersion());
+
+        //Identical records means no new version
+        Assert.assertTrue(service.updateCache(true));
+        Assert.assertEquals(1, service.getSnapshot().getVersion());
+        Assert.assertEquals(15, service.getRecordCache().size());
+
+        //Every record being removed is a change
+        Assert.assertTrue(service.updateCache(true));
+        Assert.assertEquals(2, service.getSnapshot().getVersion());
+        Assert.assertTrue(service.getRecordCache().isEmpty());
+    }
+
+    /**
+     * Tests that a failing registry doesn't remove any previously harvested records
+     * @throws Exception
+     */
+    @Test
+    public void testHarvestError() throws Exception {
+        final String fullResponse = ResourceUtil.loadResourceAsString("cswRecordResponse.xml");
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsString(with(any(HttpRequestBase.class)));
+            will(returnValue(fullResponse));
+
+            oneOf(mockServiceCaller).getMethodResponseAsString(with(any(HttpRequestBase.class)));
+            will(throwException(new ConnectException()));
+        }});
+
+        service.updateCache();
+        service.updateCache(true);
+
+        Assert.assertEquals(15, service.getRecordCache().size());
+        Assert.assertEquals(1, service.getSnapshot().getVersion());
+    }
+}
@@ -0,0 +1,157 @@
+package org.auscope.portal.server.web.service.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpGet;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.web.service.http.ResilientHttpServiceCaller.CircuitState;
+import org.auscope.portal.server.web.service.http.ResilientHttpServiceCaller.HostStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestResilientHttpServiceCaller extends PortalTestClass {
+
+    /** Nothing should ever be listening here*/
+    private static final String UNREACHABLE_URL = "http://127.0.0.1:1/wms";
+
+    private ResilientHttpServiceCaller serviceCaller;
+
+    @Before
+    public void setup() {
+        serviceCaller = new ResilientHttpServiceCaller(1000);
+        serviceCaller.setFailureThreshold(2);
+        serviceCaller.setOpenCircuitSeconds(60);
+        serviceCaller.setConnectTimeoutSeconds(1);
+    }
+
+    @After
+    public void teardown() {
+        serviceCaller.shutdown();
+    }
+
+    /**
+     * Tests that repeated failures open the circuit so subsequent requests fail without connecting
+     * @throws Exception
+     */
+    @Test
+    public void testCircuitOpens() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            try {
+                serviceCaller.getMethodResponseAsString(new HttpGet(UNREACHABLE_URL));
+                Assert.fail("Expected a connection failure");
+            } catch (HostUnavailableException ex) {
+                Assert.fail("Circuit opened too early");
+            } catch (IOException ex) {
+                //expected
+            }
+        }
+
+        try {
+            serviceCaller.getMethodResponseAsString(new HttpGet(UNREACHABLE_URL));
+            Assert.fail("Expected the circuit to be open");
+        } catch (HostUnavailableException ex) {
+            Assert.assertEquals("127.0.0.1:1", ex.getHost());
+        }
+
+        List<HostStatus> statuses = serviceCaller.getHostStatuses();
+        Assert.assertEquals(1, statuses.size());
+        Assert.assertEquals(CircuitState.OPEN, statuses.get(0).getState());
+        Assert.assertEquals(2, statuses.get(0).getTotalFailures());
+        Assert.assertEquals(1, statuses.get(0).getTotalRejected());
+        Assert.assertEquals(0, statuses.get(0).getActiveRequests());
+    }
+
+    /**
+     * Tests that the socket timeout adapts to the latencies observed for an operation, within the configured bounds
+     * @throws Exception
+     */
+    @Test
+    public void testAdaptiveTimeout() throws Exception {
+        //Responds after the number of ms specified by the delay parameter
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/wms", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = exchange.getRequestURI().getQuery();
+                try {
+                    Thread.sleep(Long.parseLong(query.substring(query.indexOf("delay=") + 6)));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "<ok/>".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+
+        ResilientHttpServiceCaller caller = new ResilientHttpServiceCaller(60000);
+        caller.setMinTimeoutSeconds(1);
+        caller.setMaxTimeoutSeconds(5);
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/wms?request=GetMap&delay=";
+            Assert.assertEquals(5000, caller.getTimeoutMillis(new HttpGet(url + "0")));
+
+            //Fast responses shorten the timeout (down to the minimum)
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals("<ok/>", caller.getMethodResponseAsString(new HttpGet(url + "0")));
+            }
+            Assert.assertEquals(1000, caller.getTimeoutMillis(new HttpGet(url + "0")));
+
+            //A slow response lengthens it again
+            caller.getMethodResponseAsString(new HttpGet(url + "500"));
+            int timeout = caller.getTimeoutMillis(new HttpGet(url + "0"));
+            Assert.assertTrue("Timeout didn't increase: " + timeout, timeout >= 1500 && timeout <= 5000);
+
+            //Other operations aren't affected
+            Assert.assertEquals(5000, caller.getTimeoutMillis(new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/wms?request=GetCapabilities")));
+        } finally {
+            caller.shutdown();
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Tests that the configured timeout is a ceiling for every adaptive timeout
+     */
+    @Test
+    public void testConfiguredTimeoutIsCeiling() {
+        ResilientHttpServiceCaller caller = new ResilientHttpServiceCaller(2000);
+        caller.setMaxTimeoutSeconds(90);
+        Assert.assertEquals(2000, caller.getTimeoutMillis(new HttpGet(UNREACHABLE_URL)));
+    }
+
+    /**
+     * Tests that the least recently used idle host is discarded once maxHosts are being tracked
+     * @throws Exception
+     */
+    @Test
+    public void testMaxHosts() throws Exception {
+        serviceCaller.setMaxHosts(2);
+        for (String url : new String[] {"http://127.0.0.1:1/wms", "http://127.0.0.1:2/wms", "http://127.0.0.1:3/wms"}) {
+            try {
+                serviceCaller.getMethodResponseAsString(new HttpGet(url));
+                Assert.fail("Expected a connection failure");
+            } catch (IOException ex) {
+                //expected
+            }
+        }
+
+        List<HostStatus> statuses = serviceCaller.getHostStatuses();
+        Assert.assertEquals(2, statuses.size());
+        for (HostStatus status : statuses) {
+            Assert.assertFalse("127.0.0.1:1".equals(status.getHost()));
+        }
+    }
+}
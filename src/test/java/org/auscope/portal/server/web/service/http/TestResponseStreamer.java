@@ -0,0 +1,56 @@
+package org.auscope.portal.server.web.service.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestResponseStreamer extends PortalTestClass {
+
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+
+    /**
+     * Tests that data is copied intact (across multiple buffers)
+     * @throws Exception
+     */
+    @Test
+    public void testCopy() throws Exception {
+        ResponseStreamer streamer = new ResponseStreamer(2, 7, 0);
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        Assert.assertEquals(data.length, streamer.copy(new ByteArrayInputStream(data), output));
+        Assert.assertArrayEquals(data, output.toByteArray());
+
+        //Buffers are recycled
+        output = new ByteArrayOutputStream();
+        Assert.assertEquals(data.length, streamer.copy(new ByteArrayInputStream(data), output));
+        Assert.assertArrayEquals(data, output.toByteArray());
+    }
+
+    /**
+     * Tests that transfers beyond the limit are rejected with a 503
+     * @throws Exception
+     */
+    @Test
+    public void testTransferLimit() throws Exception {
+        ResponseStreamer streamer = new ResponseStreamer(1, 1024, 10);
+
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setHeader("Retry-After", Integer.toString(ResponseStreamer.RETRY_AFTER_SECONDS));
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_SERVICE_UNAVAILABLE), with(any(String.class)));
+        }});
+
+        Assert.assertTrue(streamer.beginTransfer(mockResponse));
+        Assert.assertEquals(1, streamer.getActiveTransfers());
+        Assert.assertFalse(streamer.beginTransfer(mockResponse));
+
+        streamer.endTransfer();
+        Assert.assertEquals(0, streamer.getActiveTransfers());
+    }
+}
@@ -0,0 +1,27 @@
+<html>
+<body>
+<p>Dear ${userName},</p>
+
+<p>Your VGL job has been processed.</p>
+
+<h3>Job details</h3>
+<table>
+<tr><td>Job Status:</td><td>${status}</td></tr>
+<tr><td>Job id:</td><td>${jobId}</td></tr>
+<tr><td>Job series:</td><td>${seriesName}</td></tr>
+<tr><td>Job name:</td><td>${jobName}</td></tr>
+<tr><td>Job description:</td><td>${jobDescription}</td></tr>
+<tr><td>Date &amp; time submitted:</td><td>${dateSubmitted}</td></tr>
+<tr><td>Date &amp; time processed (est.):</td><td>${dateProcessed}</td></tr>
+<tr><td>Time elapsed (est.):</td><td>${timeElapsed}</td></tr>
+</table>
+
+<h3>Job execution log</h3>
+<pre>${jobExecLogSnippet}</pre>
+
+<p>Go to <a href="http://vgl.csiro.au">http://vgl.csiro.au</a> to download or publish your job results.</p>
+
+<p>Yours sincerely,<br/>
+cg-admin@csiro.au</p>
+</body>
+</html>
\ No newline at end of file